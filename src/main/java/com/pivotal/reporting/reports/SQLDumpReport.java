@@ -7,6 +7,7 @@ import com.pivotal.reporting.reports.sqldump.SQLOutput;
 import com.pivotal.reporting.reports.sqldump.TextOutput;
 import com.pivotal.reporting.scheduler.Job;
 import com.pivotal.system.data.dao.Database;
+import com.pivotal.system.data.dao.RowConsumer;
 import com.pivotal.system.hibernate.entities.ReportEntity;
 import com.pivotal.utils.*;
 import com.google.common.collect.Lists;
@@ -247,22 +248,27 @@ public class SQLDumpReport extends Report {
 
                 else if (command.matches("(?ims)select\\s.*")) {
 
-                    // TODO We need to do this in a better way so that we don't exhaust memory for very
-                    // TODO large results sets
+                    // Stream the rows straight to the output so that we don't exhaust
+                    // memory for very large results sets
+                    // A new section is only created, if we don't have one, once the
+                    // query has run so that a failed query doesn't leave an empty one
 
                     logger.debug("Executing select command {}", command);
-                    List<Map<String,Object>> results= database.find(command);
+                    final SQLOutput output = dumpFile;
+                    final boolean startSection = !sectionCreated;
+                    long rowCount = database.stream(command, new RowConsumer() {
+                        @Override
+                        public void start() {
+                            if (startSection) output.newSection();
+                        }
+
+                        @Override
+                        public void addRow(Map<String, Object> rowValues) {
+                            output.addRow(rowValues);
+                        }
+                    });
                     if (!database.isInError()) {
-
-                        // Create a new section if we don't have one
-
-                        if (!sectionCreated) dumpFile.newSection();
-
-                        // Save the values to the output
-
-                        logger.debug("Found {} results", results.size());
-                        for (Map<String,Object>rowValues : results)
-                            dumpFile.addRow(rowValues);
+                        logger.debug("Found {} results", rowCount);
 
                         // We have to be careful here because Excel only supports 347 tabs and it is easy to
                         // exhaust them so we have a mechanism to turn off the generation of new sheets
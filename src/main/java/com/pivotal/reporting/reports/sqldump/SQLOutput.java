@@ -9,6 +9,7 @@
 
 package com.pivotal.reporting.reports.sqldump;
 
+import com.pivotal.system.data.dao.RowConsumer;
 import com.pivotal.utils.Common;
 import com.pivotal.utils.PivotalException;
 
@@ -16,8 +17,9 @@ import java.util.Map;
 
 /**
  * This is the base class that is extended for all types of SQLDump outputs
+ * Outputs can be used directly as the consumer of a streamed query
  */
-public abstract class SQLOutput {
+public abstract class SQLOutput implements RowConsumer {
 
     String filename;
     String compression;
@@ -51,6 +53,14 @@ public abstract class SQLOutput {
 
     }
 
+    /**
+     * {@inheritDoc}
+     * Outputs don't need to do anything before the rows arrive
+     */
+    @Override
+    public void start() {
+    }
+
     /**
      * Creates a new section for all the next rows
      */
@@ -8,6 +8,8 @@
  */
 package com.pivotal.system.data.cache;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -44,6 +46,20 @@ public class CacheAccessor {
     public void put(String key, Integer timeToLive, Object obj) {
     }
 
+    /**
+     * Put an object into the cache and associate it with the tags so that
+     * it can be found again using {@link #getKeys(String)}
+     * This default implementation ignores the tags
+     *
+     * @param key the key to look up this object
+     * @param timeToLive the expiration time of the cached object
+     * @param obj the objecto to put into the cache
+     * @param tags tags to associate the object with
+     */
+    public void put(String key, Integer timeToLive, Object obj, Collection<String> tags) {
+        put(key, timeToLive, obj);
+    }
+
     /**
      * handle all the steps necessary to shutdown the cache accessor
      */
@@ -59,6 +75,16 @@ public class CacheAccessor {
         return null;
     }
 
+    /**
+     * Returns a list of the keys in the cache that were put with the given tag
+     *
+     * @param tag Tag to look for
+     * @return List of keys, empty if there are none
+     */
+    public List<String> getKeys(String tag) {
+        return new ArrayList<>();
+    }
+
     /**
      * Deletes the object with this key from the cache
      * Ignores the operation if the key doesn't exist
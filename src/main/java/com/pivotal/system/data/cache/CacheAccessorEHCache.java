@@ -10,13 +10,16 @@ package com.pivotal.system.data.cache;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.Status;
 import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.config.MemoryUnit;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
 import net.sf.ehcache.statistics.LiveCacheStatistics;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -28,6 +31,7 @@ import java.util.Map;
 public class CacheAccessorEHCache extends CacheAccessor{
 
     private Cache cache;
+    private final CacheKeyIndex keyIndex = new CacheKeyIndex();
     private long hitCount;
     private Date lastCount;
     private long missCount;
@@ -53,6 +57,10 @@ public class CacheAccessorEHCache extends CacheAccessor{
 
         CacheManager.getInstance().addCache(cache);
 
+        // Keep the tag index in step with anything that leaves the cache
+
+        cache.getCacheEventNotificationService().registerListener(new KeyIndexListener());
+
         // Turn on the stats
 
         enableStatistics(true);
@@ -83,6 +91,15 @@ public class CacheAccessorEHCache extends CacheAccessor{
         }
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void put(String key, Integer timeToLive, Object obj, Collection<String> tags) {
+        if (cache!=null) {
+            keyIndex.add(key, tags);
+            put(key, timeToLive, obj);
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public void shutdown() {
@@ -100,6 +117,7 @@ public class CacheAccessorEHCache extends CacheAccessor{
 
             CacheManager.getInstance().shutdown();
             cache = null;
+            keyIndex.clear();
         }
     }
 
@@ -109,10 +127,17 @@ public class CacheAccessorEHCache extends CacheAccessor{
         return cache.getKeys();
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public List<String> getKeys(String tag) {
+        return keyIndex.getKeys(tag);
+    }
+
     /** {@inheritDoc} */
     @Override
     public void delete(String key) {
         cache.remove(key);
+        keyIndex.remove(key);
     }
 
     /** {@inheritDoc} */
@@ -179,4 +204,35 @@ public class CacheAccessorEHCache extends CacheAccessor{
 
         return returnValue;
     }
+
+    /**
+     * Removes keys from the tag index when EHCache removes, expires or
+     * evicts the element
+     */
+    private class KeyIndexListener extends CacheEventListenerAdapter {
+
+        /** {@inheritDoc} */
+        @Override
+        public void notifyElementRemoved(Ehcache cache, Element element) {
+            keyIndex.remove(String.valueOf(element.getObjectKey()));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void notifyElementExpired(Ehcache cache, Element element) {
+            keyIndex.remove(String.valueOf(element.getObjectKey()));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void notifyElementEvicted(Ehcache cache, Element element) {
+            keyIndex.remove(String.valueOf(element.getObjectKey()));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void notifyRemoveAll(Ehcache cache) {
+            keyIndex.clear();
+        }
+    }
 }
@@ -23,6 +23,8 @@ public class CacheAccessorFactory {
     private static String cacheEngine;
     private static String memcachedServer;
     private static Integer cacheSize;
+    private static Integer nearCacheSize;
+    private static Integer nearCacheTimeout;
 
     private static CacheAccessor cache;
 
@@ -78,7 +80,11 @@ public class CacheAccessorFactory {
             // create CacheAccessor instance based on the current settings
 
             if ("memcached".equalsIgnoreCase(cacheEngine)) {
-                cache = new CacheAccessorMemcached(memcachedServer);
+                CacheAccessorMemcached memcached = new CacheAccessorMemcached(memcachedServer);
+                if (nearCacheSize != null && nearCacheSize > 0)
+                    cache = new CacheAccessorNearCache(memcached, nearCacheSize, nearCacheTimeout);
+                else
+                    cache = memcached;
             }
             else if ("ehcache".equalsIgnoreCase(cacheEngine)) {
                 cache = new CacheAccessorEHCache(cacheSize);
@@ -99,10 +105,14 @@ public class CacheAccessorFactory {
         String tmpCacheEngine = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_ENGINE, HibernateUtils.SETTING_CACHE_ENGINE_DEFAULT);
         String tmpMemcachedServer = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_MEMCACHED_SERVERS, HibernateUtils.SETTING_CACHE_MEMCACHED_SERVERS_DEFAULT);
         Integer tmpCacheSize = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_MAX_SIZE, HibernateUtils.SETTING_CACHE_MAX_SIZE_DEFAULT);
+        Integer tmpNearCacheSize = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_NEAR_SIZE, HibernateUtils.SETTING_CACHE_NEAR_SIZE_DEFAULT);
+        Integer tmpNearCacheTimeout = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_NEAR_TIMEOUT, HibernateUtils.SETTING_CACHE_NEAR_TIMEOUT_DEFAULT);
 
         boolean hasChangedConfig = !Common.doStringsMatch(tmpCacheEngine,cacheEngine) ||
                                    !Common.doStringsMatch(tmpMemcachedServer,memcachedServer) ||
-                                   !tmpCacheSize.equals(cacheSize);
+                                   !tmpCacheSize.equals(cacheSize) ||
+                                   !tmpNearCacheSize.equals(nearCacheSize) ||
+                                   !tmpNearCacheTimeout.equals(nearCacheTimeout);
 
         // If the settings have changed then update the cache
 
@@ -110,6 +120,8 @@ public class CacheAccessorFactory {
             cacheEngine = tmpCacheEngine;
             memcachedServer = tmpMemcachedServer;
             cacheSize = tmpCacheSize;
+            nearCacheSize = tmpNearCacheSize;
+            nearCacheTimeout = tmpNearCacheTimeout;
             createNewInstance();
         }
     }
@@ -121,6 +133,8 @@ public class CacheAccessorFactory {
         cacheEngine = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_ENGINE, HibernateUtils.SETTING_CACHE_ENGINE_DEFAULT);
         memcachedServer = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_MEMCACHED_SERVERS, HibernateUtils.SETTING_CACHE_MEMCACHED_SERVERS_DEFAULT);
         cacheSize = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_MAX_SIZE, HibernateUtils.SETTING_CACHE_MAX_SIZE_DEFAULT);
+        nearCacheSize = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_NEAR_SIZE, HibernateUtils.SETTING_CACHE_NEAR_SIZE_DEFAULT);
+        nearCacheTimeout = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_NEAR_TIMEOUT, HibernateUtils.SETTING_CACHE_NEAR_TIMEOUT_DEFAULT);
     }
 
     /**
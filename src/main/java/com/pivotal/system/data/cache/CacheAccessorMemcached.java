@@ -14,10 +14,8 @@ import net.spy.memcached.AddrUtil;
 import net.spy.memcached.MemcachedClient;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Handles communication with memcached server
@@ -26,9 +24,17 @@ public class CacheAccessorMemcached extends CacheAccessor {
 
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CacheAccessorMemcached.class);
 
+    // Memcached treats any time to live longer than 30 days as an absolute time
+    private static final int MAX_RELATIVE_TTL = 60 * 60 * 24 * 30;
+
+    // How often to remove expired keys from the index and the most keys it will hold
+    private static final long SWEEP_PERIOD = 60000;
+    private static final int MAX_KEYS = 100000;
+
     private MemcachedClient client;
 
-    private Set<String> cacheKeys = new HashSet<>();
+    private final CacheKeyIndex keyIndex = new CacheKeyIndex();
+    private volatile long nextSweep;
 
     /**
      * Create a new accessor to memcached servers.
@@ -40,21 +46,98 @@ public class CacheAccessorMemcached extends CacheAccessor {
         if (Common.isBlank(serverList))
             throw new PivotalException("Cannot instantiate a memcached client when no servers have been defined");
         client = new MemcachedClient(AddrUtil.getAddresses(serverList));
-        cacheKeys = new HashSet<>();
     }
 
     /** {@inheritDoc} */
     @SuppressWarnings("unchecked")
     @Override
     public <T> T get(String key) {
-        return (T)client.get(key);
+        T value = (T)client.get(key);
+
+        // Memcached doesn't tell us when things expire so we tidy up
+        // the index whenever we find out that a key has gone
+
+        if (value == null) keyIndex.remove(key);
+        return value;
     }
 
     /** {@inheritDoc} */
     @Override
     public void put(String key, Integer timeToLive, Object obj) {
+        put(key, timeToLive, obj, null);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(String key, Integer timeToLive, Object obj, Collection<String> tags) {
         client.set(key, timeToLive, obj);
-        cacheKeys.add(key);
+        long now = System.currentTimeMillis();
+        keyIndex.add(key, tags, getExpiryTime(timeToLive, now));
+        if (now > nextSweep || keyIndex.size() > MAX_KEYS) sweep(now);
+    }
+
+    /**
+     * Returns the time at which memcached will expire an object
+     *
+     * @param timeToLive Time to live given to memcached
+     * @param now Current time in milliseconds
+     * @return Expiry time in milliseconds or 0 if it never expires
+     */
+    private static long getExpiryTime(Integer timeToLive, long now) {
+        if (timeToLive == null || timeToLive <= 0)
+            return 0;
+        else if (timeToLive > MAX_RELATIVE_TTL)
+            return timeToLive * 1000L;
+        else
+            return now + timeToLive * 1000L;
+    }
+
+    /**
+     * Removes the keys that memcached will have expired from the index and, if
+     * there are still too many, deletes the keys that are due to expire soonest
+     * so that the index never grows without bound
+     *
+     * @param now Current time in milliseconds
+     */
+    private synchronized void sweep(long now) {
+        if (now <= nextSweep && keyIndex.size() <= MAX_KEYS) return;
+        nextSweep = now + SWEEP_PERIOD;
+        int expired = keyIndex.removeExpired(now).size();
+        int excess = keyIndex.size() - MAX_KEYS;
+        if (excess > 0) {
+
+            // Remove a few more than we need to so that we're not doing this on every put
+
+            List<String> keys = keyIndex.getEldestKeys(excess + MAX_KEYS / 10);
+            for (String key : keys) {
+                delete(key);
+            }
+            logger.debug("Deleted {} cache keys as the index has reached its limit of {}", keys.size(), MAX_KEYS);
+        }
+        if (expired > 0) logger.debug("Removed {} expired keys from the cache index", expired);
+    }
+
+    /**
+     * Returns the current value of a version counter held in memcached
+     * If the counter doesn't exist it is created using the current time so that
+     * a counter that has been evicted never comes back with a value seen before
+     *
+     * @param key Key of the counter
+     * @return Current version
+     */
+    public long getVersion(String key) {
+        return client.incr(key, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * Increments a version counter held in memcached
+     * If the counter doesn't exist it is created using the current time
+     *
+     * @param key Key of the counter
+     * @return New version
+     */
+    public long incrementVersion(String key) {
+        return client.incr(key, 1, System.currentTimeMillis());
     }
 
     /** {@inheritDoc} */
@@ -66,14 +149,20 @@ public class CacheAccessorMemcached extends CacheAccessor {
     /** {@inheritDoc} */
     @Override
     public List getKeys() {
-        return new ArrayList<>(cacheKeys);
+        return keyIndex.getKeys();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public List<String> getKeys(String tag) {
+        return keyIndex.getKeys(tag);
     }
 
     /** {@inheritDoc} */
     @Override
     public void delete(String key) {
         client.delete(key);
-        cacheKeys.remove(key);
+        keyIndex.remove(key);
     }
 
 }
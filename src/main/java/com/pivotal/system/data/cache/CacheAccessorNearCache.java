@@ -0,0 +1,296 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import com.pivotal.web.servlet.ServletHelper;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small on-heap cache that sits in front of the memcached accessor so that
+ * hot keys can be served from local memory rather than a network round trip
+ * and deserialisation
+ *
+ * Coherence between nodes is maintained using version counters held in memcached;
+ * every put or delete increments a counter for the key, and only a delete (which
+ * is how cached results are invalidated) also increments a single global counter
+ * Puts don't touch the global counter as they are nearly always the reload of a
+ * value after a miss, so other nodes holding a copy of it can carry on using it
+ * until it ages out locally rather than every node having to revalidate every
+ * entry after each put anywhere
+ * The global counter is checked at most once per check period - if it hasn't
+ * changed then local entries are served as is, if it has changed then each local
+ * entry is revalidated against its key counter (a small number) the next time it
+ * is read before it is used again
+ * Local entries are also limited in number (least recently used are dropped) and
+ * in age
+ */
+public class CacheAccessorNearCache extends CacheAccessor {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CacheAccessorNearCache.class);
+
+    // The minimum time in milliseconds between checks of the global version
+    /** Constant <code>DEFAULT_VERSION_CHECK_PERIOD=1000</code> */
+    public static final long DEFAULT_VERSION_CHECK_PERIOD = 1000;
+
+    private final CacheAccessorMemcached remote;
+    private final int maxEntries;
+    private final long timeToLive;
+    private final String versionPrefix;
+    private final String globalVersionKey;
+    private final Map<String, NearEntry> entries;
+
+    private volatile long globalVersion;
+    private volatile long lastVersionCheck;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidateCount = new AtomicLong();
+
+    /**
+     * Creates a near cache in front of the memcached accessor
+     *
+     * @param remote Memcached accessor to use as the second tier
+     * @param maxEntries Maximum number of objects to hold locally
+     * @param timeToLive Maximum time in seconds to hold an object locally
+     */
+    public CacheAccessorNearCache(CacheAccessorMemcached remote, final int maxEntries, int timeToLive) {
+        this.remote = remote;
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive * 1000L;
+        versionPrefix = ServletHelper.getAppIdentity() + "|near|";
+        globalVersionKey = versionPrefix + "global";
+        entries = new LinkedHashMap<String, NearEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NearEntry> eldest) {
+                return size() > CacheAccessorNearCache.this.maxEntries;
+            }
+        };
+        globalVersion = remote.getVersion(globalVersionKey);
+        lastVersionCheck = System.currentTimeMillis();
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T get(String key) {
+        long now = System.currentTimeMillis();
+        long currentGlobalVersion = getGlobalVersion(now);
+
+        // See if we have a local copy that we can still use
+
+        NearEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            if (entry.expires < now) {
+                removeLocal(key);
+            }
+            else if (entry.globalVersion == currentGlobalVersion) {
+                hitCount.incrementAndGet();
+                return (T)entry.value;
+            }
+            else {
+
+                // Something has changed somewhere so check that it wasn't this key
+
+                revalidateCount.incrementAndGet();
+                if (remote.getVersion(getVersionKey(key)) == entry.version) {
+                    entry.globalVersion = currentGlobalVersion;
+                    hitCount.incrementAndGet();
+                    return (T)entry.value;
+                }
+                removeLocal(key);
+            }
+        }
+
+        // Get the version before the value - a writer changes the value before
+        // the version so the worst that can happen is that we hold a newer value
+        // against an older version and will fetch it again
+
+        missCount.incrementAndGet();
+        long version = remote.getVersion(getVersionKey(key));
+        T value = remote.get(key);
+        if (value != null) {
+            putLocal(key, new NearEntry(value, version, currentGlobalVersion, now + timeToLive));
+        }
+        return value;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(String key, Integer timeToLive, Object obj) {
+        put(key, timeToLive, obj, null);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(String key, Integer timeToLive, Object obj, Collection<String> tags) {
+        remote.put(key, timeToLive, obj, tags);
+        long version = remote.incrementVersion(getVersionKey(key));
+        long currentGlobalVersion = getGlobalVersion(System.currentTimeMillis());
+
+        // Hold the new value locally, honouring the shorter of the two lifetimes
+
+        long expires = System.currentTimeMillis() + (timeToLive != null && timeToLive > 0 ? Math.min(timeToLive * 1000L, this.timeToLive) : this.timeToLive);
+        putLocal(key, new NearEntry(obj, version, currentGlobalVersion, expires));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void delete(String key) {
+        removeLocal(key);
+        remote.delete(key);
+        remote.incrementVersion(getVersionKey(key));
+        incrementGlobalVersion();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void shutdown() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        remote.shutdown();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public List getKeys() {
+        return remote.getKeys();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public List<String> getKeys(String tag) {
+        return remote.getKeys(tag);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> returnValue = new LinkedHashMap<>();
+        Map<String, Object> remoteStats = remote.getStatistics();
+        if (remoteStats != null) returnValue.putAll(remoteStats);
+        synchronized (entries) {
+            returnValue.put("NearSize", entries.size());
+        }
+        returnValue.put("NearMaxSize", maxEntries);
+        returnValue.put("NearHits", hitCount.get());
+        returnValue.put("NearMisses", missCount.get());
+        returnValue.put("NearRevalidations", revalidateCount.get());
+        return returnValue;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void clearStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        revalidateCount.set(0);
+        remote.clearStatistics();
+    }
+
+    /**
+     * Returns the global version, refreshing it from memcached if we haven't
+     * done so within the check period
+     *
+     * @param now Current time in milliseconds
+     * @return Global version
+     */
+    private long getGlobalVersion(long now) {
+        if (now - lastVersionCheck > DEFAULT_VERSION_CHECK_PERIOD) {
+            lastVersionCheck = now;
+            try {
+                globalVersion = remote.getVersion(globalVersionKey);
+            }
+            catch (Exception e) {
+
+                // If we can't tell what has changed then we can't trust anything we hold
+
+                logger.debug("Unable to check the near cache version - {}", e.getMessage());
+                synchronized (entries) {
+                    entries.clear();
+                }
+            }
+        }
+        return globalVersion;
+    }
+
+    /**
+     * Increments the global version to tell other nodes that something has changed
+     *
+     * @return New global version
+     */
+    private long incrementGlobalVersion() {
+        globalVersion = remote.incrementVersion(globalVersionKey);
+        lastVersionCheck = System.currentTimeMillis();
+        return globalVersion;
+    }
+
+    /**
+     * Returns the key of the version counter for the cache key
+     *
+     * @param key Cache key
+     * @return Version counter key
+     */
+    private String getVersionKey(String key) {
+        return versionPrefix + key;
+    }
+
+    /**
+     * Adds an entry to the local tier
+     *
+     * @param key Cache key
+     * @param entry Entry to hold
+     */
+    private void putLocal(String key, NearEntry entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes an entry from the local tier
+     *
+     * @param key Cache key
+     */
+    private void removeLocal(String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * A locally held value along with the versions it was valid for
+     */
+    private static class NearEntry {
+
+        final Object value;
+        final long version;
+        final long expires;
+        volatile long globalVersion;
+
+        /**
+         * Creates a local entry
+         *
+         * @param value Cached object
+         * @param version Version of the key when the object was read
+         * @param globalVersion Global version when the object was last known to be valid
+         * @param expires Time in milliseconds when the entry must be dropped
+         */
+        NearEntry(Object value, long version, long globalVersion, long expires) {
+            this.value = value;
+            this.version = version;
+            this.globalVersion = globalVersion;
+            this.expires = expires;
+        }
+    }
+}
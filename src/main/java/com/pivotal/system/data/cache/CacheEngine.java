@@ -12,16 +12,35 @@ import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.utils.Common;
 import com.pivotal.web.servlet.ServletHelper;
 
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Class created to be the only interaction between the client and the cache.
- * It exposes just three methods - get,put and clear - and handle internally all other steps
+ * It exposes just four methods - get, getOrLoad, put and clear - and handle internally all other steps
  */
 public class CacheEngine {
 
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CacheEngine.class);
 
+    // Tag given to queries where we can't be sure which tables they read
+    private static final String UNKNOWN_TABLES_TAG = "*";
+
+    // Maximum time in seconds to wait for another caller to load an object before loading it ourselves
+    private static final int DEFAULT_LOAD_WAIT = 60;
+
+    // Weighting of the load time when deciding whether to refresh an object early
+    private static final double EARLY_REFRESH_BETA = 1.0;
+
+    // Objects currently being loaded by getOrLoad keyed on the cache key
+    private static final SingleFlight loading = new SingleFlight();
+
+    private static final Pattern TABLE_REFERENCE = Pattern.compile("(?is)\\b(from|join|into|update|table)\\s+(only\\s+)?(\"?[a-z_][\\w$]*\"?(\\s*\\.\\s*\"?[a-z_][\\w$]*\"?)*)\\s*(\\()?");
+    private static final Pattern DERIVED_TABLE = Pattern.compile("(?is)\\b(from|join)\\s*\\(");
+    private static final Pattern FROM_CLAUSE_END = Pattern.compile("(?is)\\b(where|group|order|having|limit|offset|union|intersect|except|join|on|set|values|select|returning|window|for)\\b|[();]");
+
     /**
      * Prevent instantiation
      */
@@ -35,8 +54,153 @@ public class CacheEngine {
      * @return either the object from the cache if found or null
      * @param <T> a T object.
      */
+    @SuppressWarnings("unchecked")
     public static <T> T get(String key) {
-        T ret = null;
+        Object ret = getEntry(key);
+        if (ret instanceof CacheEntry) {
+            ret = ((CacheEntry)ret).getValue();
+        }
+        return (T)ret;
+    }
+
+    /**
+     * Retrieves an object from the cache, loading it using the loader if it is missing
+     * Only one caller on this server loads a given key at a time - any other callers
+     * that want the same key wait for that load to finish and share its result
+     * so that the expiry of a popular object causes a single load rather than one
+     * per caller
+     * If the stale period is set then objects are kept for that long after they
+     * expire and are returned while a single caller refreshes them, and if early
+     * refresh is enabled then objects that are expensive to load are occasionally
+     * refreshed by one caller just before they expire
+     * Returns null if the loader fails or returns null, or if another caller is
+     * taking too long to load the object; callers should then load it themselves
+     *
+     * @param key the key to store the object into the cache
+     * @param timeToLive the expiration time of the cached object (seconds)
+     * @param loader creates the object if it isn't in the cache
+     * @param <T> Type of the object
+     * @return either the object from the cache, the newly loaded object or null
+     */
+    public static <T> T getOrLoad(String key, Integer timeToLive, CacheLoader<T> loader) {
+        return getOrLoad(key, timeToLive, null, loader);
+    }
+
+    /**
+     * Retrieves an object from the cache, loading it using the loader if it is missing
+     * and storing it with the tags
+     * See {@link #getOrLoad(String, Integer, CacheLoader)}
+     *
+     * @param key the key to store the object into the cache
+     * @param timeToLive the expiration time of the cached object (seconds)
+     * @param tags tags to associate the object with e.g. from getCacheTags, if null the tags
+     *             are taken from the loader when it is a TaggedCacheLoader
+     * @param loader creates the object if it isn't in the cache
+     * @param <T> Type of the object
+     * @return either the object from the cache, the newly loaded object or null
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T getOrLoad(String key, Integer timeToLive, Collection<String> tags, CacheLoader<T> loader) {
+
+        // if time to live is not defined in the datasource, use default configuration
+        if (timeToLive == null) {
+            timeToLive = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_EXPIRATION, HibernateUtils.SETTING_CACHE_EXPIRATION_DEFAULT);
+        }
+        int stalePeriod = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_STALE_PERIOD, HibernateUtils.SETTING_CACHE_STALE_PERIOD_DEFAULT);
+
+        Object cached = getEntry(key);
+        if (cached instanceof CacheEntry) {
+            CacheEntry entry = (CacheEntry)cached;
+            long now = System.currentTimeMillis();
+
+            boolean stale = entry.isStale(now);
+            if (!stale || now < entry.getExpires() + stalePeriod * 1000L) {
+                if (!stale && !isEarlyRefreshDue(entry, now)) {
+                    return (T)entry.getValue();
+                }
+
+                // The object is due an early refresh or is stale but still usable
+                // One caller refreshes it and everyone else carries on with the current value
+
+                T value = load(key, timeToLive, stalePeriod, tags, loader, false);
+                return value == null ? (T)entry.getValue() : value;
+            }
+        }
+        else if (cached != null) {
+            return (T)cached;
+        }
+        return load(key, timeToLive, stalePeriod, tags, loader, true);
+    }
+
+    /**
+     * Loads the object making sure that only one caller loads the key at a time
+     * If another caller is already loading it then we either wait for their
+     * result or, if we have a stale value to fall back on, return null straight away
+     *
+     * @param key the key to store the object into the cache
+     * @param timeToLive the expiration time of the cached object (seconds)
+     * @param stalePeriod the time to keep the object after it has expired (seconds)
+     * @param tags tags to associate the object with
+     * @param loader creates the object
+     * @param wait True if we should wait for another caller that is loading the key
+     * @param <T> Type of the object
+     * @return Loaded object or null
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T load(final String key, final Integer timeToLive, final int stalePeriod, final Collection<String> tags, final CacheLoader<T> loader, final boolean wait) {
+        return (T)loading.run(key, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+
+                // Someone may have finished loading it between our cache miss and now
+
+                if (wait) {
+                    Object cached = getEntry(key);
+                    if (cached instanceof CacheEntry && !((CacheEntry)cached).isStale(System.currentTimeMillis())) {
+                        return ((CacheEntry)cached).getValue();
+                    }
+                }
+                long startTime = System.currentTimeMillis();
+                T value = loader.load();
+                if (value != null) {
+                    long now = System.currentTimeMillis();
+                    long expires = timeToLive > 0 ? now + timeToLive * 1000L : Long.MAX_VALUE;
+                    Collection<String> valueTags = tags == null && loader instanceof TaggedCacheLoader ? ((TaggedCacheLoader<T>)loader).getTags() : tags;
+                    put(key, timeToLive > 0 ? timeToLive + stalePeriod : timeToLive, new CacheEntry(value, expires, now - startTime), valueTags);
+                }
+                return value;
+            }
+        }, wait, DEFAULT_LOAD_WAIT);
+    }
+
+    /**
+     * Returns true if a fresh object should be refreshed now rather than waiting
+     * for it to expire
+     * The chance of this increases as the expiry time approaches and the longer
+     * the object took to load, so that expensive objects are usually reloaded
+     * by a single caller just before they expire
+     *
+     * @param entry Cached entry
+     * @param now Current time in milliseconds
+     * @return True if the caller should refresh the object
+     */
+    private static boolean isEarlyRefreshDue(CacheEntry entry, long now) {
+        if (entry.getExpires() == Long.MAX_VALUE || entry.getLoadTime() <= 0 || !HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_EARLY_REFRESH, HibernateUtils.SETTING_CACHE_EARLY_REFRESH_DEFAULT)) {
+            return false;
+        }
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return now - entry.getLoadTime() * EARLY_REFRESH_BETA * Math.log(random) >= entry.getExpires();
+    }
+
+    /**
+     * Retrieves the object as it is stored in the cache. If object is not present
+     * or error it will simply return null.
+     *
+     * @param key the key to look up the object
+     * @return the stored object or null
+     */
+    private static Object getEntry(String key) {
+        Object ret = null;
         try {
             ret = CacheAccessorFactory.getInstance().get(key);
         } catch (Exception e) {
@@ -66,52 +230,172 @@ public class CacheEngine {
         }
     }
 
+    /**
+     * Puts an object into the cache along with tags that can be used to
+     * find it again when clearing. In case of error nothing will be thrown.
+     *
+     * @param key the key to store the object into the cache
+     * @param timeToLive the expiration time of the cached object (seconds)
+     * @param obj the object to store into the cache
+     * @param tags tags to associate the object with e.g. from getCacheTags
+     */
+    public static void put(String key, Integer timeToLive, Object obj, Collection<String> tags) {
+
+        // if time to live is not defined in the datasource, use default configuration
+        if (timeToLive == null) {
+            timeToLive = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_EXPIRATION, HibernateUtils.SETTING_CACHE_EXPIRATION_DEFAULT);
+        }
+
+        try {
+            CacheAccessorFactory.getInstance().put(key, timeToLive, obj, tags);
+        } catch (Exception e) {
+            logger.warn("Unable to put object ["+key+"] into cache", e);
+        }
+    }
+
     /**
      * Clears the cache of all objects that use this datasource on the current NRMM instance
+     * The objects are found using the tag index so only the keys for this
+     * datasource are visited
      *
      * @param dataSourceId ID of the datasource
      */
     public static void clear(int dataSourceId) {
-        String keyLead = ServletHelper.getAppIdentity() + '|' + dataSourceId + '|';
-
+        String tag = getDataSourceTag(dataSourceId);
         try {
             CacheAccessor cache=CacheAccessorFactory.getInstance();
-            List keys=cache.getKeys();
-            if (!Common.isBlank(keys)) {
-                for (Object key : keys) {
-                    if (key.getClass().getName().equals(String.class.getName()) &&
-                        ((String)key).startsWith(keyLead))
-                        cache.delete((String)key);
-                }
-              }
+            for (String key : cache.getKeys(tag)) {
+                cache.delete(key);
+            }
         }
         catch (Exception e) {
-            logger.warn("Unable to clear cache for ["+keyLead+']', e);
+            logger.warn("Unable to clear cache for ["+tag+']', e);
         }
     }
 
     /**
-     * Creates a general purpose key using a combination of the NRMM instance name,
-     * the datasource ID and a part of the SQL query
+     * Clears the cache of all objects from this datasource that read from any of
+     * the tables, along with any objects where the tables read couldn't be determined
+     * If no tables are given, the whole datasource is cleared
      *
-     * Format is: NRMM ID | datasource id | md5(query) | beginning of the query
+     * @param dataSourceId ID of the datasource
+     * @param tables Names of the tables that have been changed
+     */
+    public static void clear(int dataSourceId, Collection<String> tables) {
+        if (Common.isBlank(tables)) {
+            clear(dataSourceId);
+        }
+        else {
+            String tag = getDataSourceTag(dataSourceId);
+            try {
+                CacheAccessor cache=CacheAccessorFactory.getInstance();
+                Set<String> keys = new HashSet<>(cache.getKeys(tag + '|' + UNKNOWN_TABLES_TAG));
+                for (String table : tables) {
+                    keys.addAll(cache.getKeys(tag + '|' + normaliseTableName(table)));
+                }
+                for (String key : keys) {
+                    cache.delete(key);
+                }
+            }
+            catch (Exception e) {
+                logger.warn("Unable to clear cache for ["+tag+"] tables " + tables, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the tags to store a query result with so that it can be cleared by
+     * datasource or by the tables that it reads from
      *
-     * @param dataSourceId ID of the datasource4
+     * @param dataSourceId ID of the datasource
      * @param sql SQL query
-     * @return String
+     * @return List of tags
      */
-    public static String getCacheKey(int dataSourceId, String sql) {
-        String key = ServletHelper.getAppIdentity() + '|' + dataSourceId + '|' + Common.getMD5String(sql) + '|';
+    public static List<String> getCacheTags(int dataSourceId, String sql) {
+        String tag = getDataSourceTag(dataSourceId);
+        List<String> returnValue = new ArrayList<>();
+        returnValue.add(tag);
+        Set<String> tables = getTableNames(sql);
+        if (Common.isBlank(tables)) {
+            returnValue.add(tag + '|' + UNKNOWN_TABLES_TAG);
+        }
+        else {
+            for (String table : tables) {
+                returnValue.add(tag + '|' + table);
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns the names of the tables referenced by the SQL statement
+     * This is deliberately cautious - if the statement contains anything that
+     * makes it unclear which tables are used (comma joins, derived tables,
+     * table functions etc.)
+     * then null is returned
+     * Table names are lowercased and any schema prefix and quotes are removed
+     *
+     * @param sql SQL statement
+     * @return Set of table names or null if they can't be determined
+     */
+    public static Set<String> getTableNames(String sql) {
+        if (Common.isBlank(sql) || DERIVED_TABLE.matcher(sql).find()) return null;
+        Set<String> returnValue = new LinkedHashSet<>();
+        Matcher matcher = TABLE_REFERENCE.matcher(sql);
+        while (matcher.find()) {
+
+            // Table functions make it impossible to know what is read
 
-        //add part of the query as key (keys cannot have spaces)
-        sql = sql.replaceAll("\\s", "");
+            boolean isRead = Common.doStringsMatch(matcher.group(1), "from", "join");
+            if (isRead && matcher.group(5) != null) return null;
 
-        //add the first 50 chars of the query into the key
-        if (!Common.isBlank(sql)) {
-            key += new String(sql.substring(0, sql.length() > 50 ? 50 : sql.length()));
+            // Comma separated table lists are too ambiguous to parse reliably
+
+            if ("from".equalsIgnoreCase(matcher.group(1))) {
+                String rest = sql.substring(matcher.end());
+                Matcher end = FROM_CLAUSE_END.matcher(rest);
+                if ((end.find() ? rest.substring(0, end.start()) : rest).contains(",")) return null;
+            }
+            returnValue.add(normaliseTableName(matcher.group(3)));
         }
+        return returnValue.isEmpty() ? null : returnValue;
+    }
 
-        return key;
+    /**
+     * Returns the tag used for all the objects cached from this datasource
+     * on the current NRMM instance
+     *
+     * @param dataSourceId ID of the datasource
+     * @return Tag
+     */
+    private static String getDataSourceTag(int dataSourceId) {
+        return ServletHelper.getAppIdentity() + '|' + dataSourceId;
+    }
+
+    /**
+     * Reduces a table name to its lowercase, unquoted form without any schema
+     *
+     * @param table Table name as written in the SQL
+     * @return Normalised name
+     */
+    private static String normaliseTableName(String table) {
+        String returnValue = table.replaceAll("[\"\\s]", "").toLowerCase();
+        return returnValue.contains(".") ? returnValue.substring(returnValue.lastIndexOf('.') + 1) : returnValue;
+    }
+
+    /**
+     * Creates a general purpose key using a combination of the NRMM instance name,
+     * the datasource ID and a hash of the SQL query and its parameters
+     *
+     * Format is: NRMM ID | datasource id | 128 bit hash of query and parameters
+     *
+     * @param dataSourceId ID of the datasource
+     * @param sql SQL query
+     * @param parameters Optional positional parameters of the query
+     * @return String
+     */
+    public static String getCacheKey(int dataSourceId, String sql, Object... parameters) {
+        return new CacheKey(ServletHelper.getAppIdentity(), dataSourceId, sql, parameters).toString();
     }
 
     /**
@@ -0,0 +1,76 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import java.io.Serializable;
+
+/**
+ * Wraps an object stored by {@link CacheEngine#getOrLoad(String, Integer, CacheLoader)}
+ * with the time it should be refreshed and how long it took to load
+ * The object is kept in the cache beyond its refresh time when stale values
+ * are allowed, so that it can be served while a single caller reloads it
+ */
+public class CacheEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Object value;
+    private final long expires;
+    private final long loadTime;
+
+    /**
+     * Creates an entry for the value
+     *
+     * @param value    Cached object
+     * @param expires  Time in milliseconds after which the value is stale
+     * @param loadTime Time in milliseconds it took to load the value
+     */
+    public CacheEntry(Object value, long expires, long loadTime) {
+        this.value = value;
+        this.expires = expires;
+        this.loadTime = loadTime;
+    }
+
+    /**
+     * Returns the cached object
+     *
+     * @return Cached object
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the time after which the value is stale
+     *
+     * @return Time in milliseconds
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Returns how long the value took to load
+     *
+     * @return Time in milliseconds
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Returns true if the value should no longer be used without refreshing it
+     *
+     * @param now Current time in milliseconds
+     * @return True if stale
+     */
+    public boolean isStale(long now) {
+        return now >= expires;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Identifies the cached results of a query by the NRMM instance, the datasource
+ * and a 128 bit hash of the SQL and its parameters
+ * The hash is a MurmurHash3 (x64 128 bit variant) calculated in a single pass over
+ * the SQL, ignoring any differences in whitespace outside of quoted strings, so
+ * it is much cheaper to build than an MD5 digest of the text
+ * The hash code is calculated up front so the key can be used directly in maps,
+ * and the string form, which is what the cache accessors store against, is a
+ * short fixed format that is safe to use as a memcached key
+ */
+public final class CacheKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String appIdentity;
+    private final int dataSourceId;
+    private final long hashHigh;
+    private final long hashLow;
+    private final int hashCode;
+    private transient String key;
+
+    /**
+     * Creates a key for the query
+     *
+     * @param appIdentity  Identity of the NRMM instance
+     * @param dataSourceId ID of the datasource
+     * @param sql          SQL query
+     * @param parameters   Optional positional parameters of the query
+     */
+    public CacheKey(String appIdentity, int dataSourceId, String sql, Object... parameters) {
+        this.appIdentity = appIdentity;
+        this.dataSourceId = dataSourceId;
+        Hasher hasher = new Hasher();
+        hasher.addSql(sql);
+        if (parameters != null) {
+            for (Object parameter : parameters) {
+                hasher.addParameter(parameter);
+            }
+        }
+        hasher.finish();
+        hashHigh = hasher.h1;
+        hashLow = hasher.h2;
+        int result = appIdentity == null ? 0 : appIdentity.hashCode();
+        result = 31 * result + dataSourceId;
+        result = 31 * result + (int)(hashHigh ^ (hashHigh >>> 32));
+        hashCode = 31 * result + (int)(hashLow ^ (hashLow >>> 32));
+    }
+
+    /**
+     * Returns the identity of the NRMM instance
+     *
+     * @return Application identity
+     */
+    public String getAppIdentity() {
+        return appIdentity;
+    }
+
+    /**
+     * Returns the ID of the datasource
+     *
+     * @return Datasource ID
+     */
+    public int getDataSourceId() {
+        return dataSourceId;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof CacheKey)) return false;
+        CacheKey other = (CacheKey)obj;
+        return hashCode == other.hashCode && dataSourceId == other.dataSourceId &&
+               hashHigh == other.hashHigh && hashLow == other.hashLow &&
+               (appIdentity == null ? other.appIdentity == null : appIdentity.equals(other.appIdentity));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * Returns the key as a string in the form
+     * NRMM ID | datasource id | 32 character hex hash
+     *
+     * @return String key
+     */
+    @Override
+    public String toString() {
+        if (key == null) {
+            char[] hash = new char[32];
+            toHex(hashHigh, hash, 0);
+            toHex(hashLow, hash, 16);
+            key = appIdentity + '|' + dataSourceId + '|' + new String(hash);
+        }
+        return key;
+    }
+
+    /**
+     * Writes the value as 16 hex digits into the buffer
+     *
+     * @param value  Value to write
+     * @param buffer Buffer to write to
+     * @param offset Position in the buffer to start at
+     */
+    private static void toHex(long value, char[] buffer, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            buffer[offset + i] = HEX_DIGITS[(int)(value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Incremental MurmurHash3 x64 128 bit hash of a sequence of characters
+     * Characters are consumed as 16 bit values, 8 characters per block
+     */
+    private static class Hasher {
+
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        long h1;
+        long h2;
+        private long k1;
+        private long k2;
+        private int count;
+        private long length;
+
+        /**
+         * Adds the SQL collapsing each run of whitespace outside of quotes
+         * to a single space and ignoring leading and trailing whitespace
+         *
+         * @param sql SQL to add
+         */
+        void addSql(String sql) {
+            if (sql == null) return;
+            boolean pendingSpace = false;
+            boolean started = false;
+            char quote = 0;
+            for (int i = 0; i < sql.length(); i++) {
+                char c = sql.charAt(i);
+                if (quote == 0 && Character.isWhitespace(c)) {
+                    pendingSpace = started;
+                }
+                else {
+                    if (pendingSpace) {
+                        add(' ');
+                        pendingSpace = false;
+                    }
+                    if (quote == 0 && (c == '\'' || c == '"')) {
+                        quote = c;
+                    }
+                    else if (c == quote) {
+                        quote = 0;
+                    }
+                    add(c);
+                    started = true;
+                }
+            }
+        }
+
+        /**
+         * Adds a query parameter, including its type so that values
+         * of different types with the same text don't collide
+         *
+         * @param parameter Parameter value
+         */
+        void addParameter(Object parameter) {
+            add('\u0000');
+            if (parameter == null) {
+                add('\u0001');
+            }
+            else {
+                addString(parameter.getClass().getName());
+                add('\u0002');
+                if (parameter instanceof Date) {
+                    addString(String.valueOf(((Date)parameter).getTime()));
+                }
+                else if (parameter.getClass().isArray()) {
+                    addString(Arrays.deepToString(new Object[]{parameter}));
+                }
+                else {
+                    addString(String.valueOf(parameter));
+                }
+            }
+        }
+
+        /**
+         * Adds all the characters of the string
+         *
+         * @param value String to add
+         */
+        private void addString(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                add(value.charAt(i));
+            }
+        }
+
+        /**
+         * Adds a single character, mixing in a block every 8 characters
+         *
+         * @param c Character to add
+         */
+        private void add(char c) {
+            int position = count++;
+            if (position < 4) {
+                k1 |= ((long)c) << (position * 16);
+            }
+            else {
+                k2 |= ((long)c) << ((position - 4) * 16);
+            }
+            if (count == 8) {
+                mixBlock();
+            }
+        }
+
+        /**
+         * Mixes a full block of 16 bytes into the hash
+         */
+        private void mixBlock() {
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+
+            length += 16;
+            k1 = 0;
+            k2 = 0;
+            count = 0;
+        }
+
+        /**
+         * Mixes in any remaining partial block and finalises the hash
+         */
+        void finish() {
+            if (count > 0) {
+                length += count * 2;
+                h1 ^= mixK1(k1);
+                h2 ^= mixK2(k2);
+            }
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+        }
+
+        private static long mixK1(long k) {
+            k *= C1;
+            k = Long.rotateLeft(k, 31);
+            return k * C2;
+        }
+
+        private static long mixK2(long k) {
+            k *= C2;
+            k = Long.rotateLeft(k, 33);
+            return k * C1;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of the keys held by a cache accessor and a secondary index
+ * from tags (e.g. a datasource or a table) to the keys that were stored
+ * with them
+ * This allows all the objects for a tag to be found without scanning every
+ * key in the cache
+ * The accessor is responsible for removing keys as they are deleted or
+ * expired from the underlying cache - caches that don't say when keys expire
+ * can record the expiry time with the key and sweep the index periodically
+ */
+public class CacheKeyIndex {
+
+    private final ConcurrentMap<String, Entry> keyTags = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> tagKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Records the key along with the tags it is associated with
+     * Any tags from a previous use of the key are replaced
+     *
+     * @param key  Cache key
+     * @param tags Tags to associate the key with (can be null)
+     */
+    public void add(String key, Collection<String> tags) {
+        add(key, tags, 0);
+    }
+
+    /**
+     * Records the key along with the tags it is associated with and the time
+     * at which it will expire from the cache
+     * Any tags from a previous use of the key are replaced
+     *
+     * @param key     Cache key
+     * @param tags    Tags to associate the key with (can be null)
+     * @param expires Time in milliseconds at which the key expires or 0 if it doesn't
+     */
+    public void add(String key, Collection<String> tags, long expires) {
+        Collection<String> keyTagList = tags == null ? Collections.<String>emptyList() : new ArrayList<>(tags);
+        Entry oldEntry = keyTags.put(key, new Entry(keyTagList, expires));
+        if (oldEntry != null) removeFromTags(key, oldEntry.tags);
+        for (String tag : keyTagList) {
+            Set<String> keys = tagKeys.get(tag);
+            if (keys == null) {
+                keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                Set<String> existing = tagKeys.putIfAbsent(tag, keys);
+                if (existing != null) keys = existing;
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Removes the key and all its tag associations
+     *
+     * @param key Cache key
+     */
+    public void remove(String key) {
+        Entry entry = keyTags.remove(key);
+        if (entry != null) removeFromTags(key, entry.tags);
+    }
+
+    /**
+     * Removes all the keys that have expired by the given time
+     *
+     * @param now Current time in milliseconds
+     * @return List of the keys removed
+     */
+    public List<String> removeExpired(long now) {
+        List<String> returnValue = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : keyTags.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.expires > 0 && value.expires <= now && keyTags.remove(entry.getKey(), value)) {
+                removeFromTags(entry.getKey(), value.tags);
+                returnValue.add(entry.getKey());
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns the keys that will expire soonest, keys that never expire
+     * coming last
+     *
+     * @param count Maximum number of keys to return
+     * @return List of keys in order of expiry
+     */
+    public List<String> getEldestKeys(int count) {
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(keyTags.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+                long expires1 = o1.getValue().expires > 0 ? o1.getValue().expires : Long.MAX_VALUE;
+                long expires2 = o2.getValue().expires > 0 ? o2.getValue().expires : Long.MAX_VALUE;
+                return expires1 < expires2 ? -1 : (expires1 == expires2 ? 0 : 1);
+            }
+        });
+        List<String> returnValue = new ArrayList<>(Math.min(Math.max(count, 0), entries.size()));
+        for (int i = 0; i < entries.size() && i < count; i++) {
+            returnValue.add(entries.get(i).getKey());
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns a snapshot of all the keys currently known
+     *
+     * @return List of keys
+     */
+    public List<String> getKeys() {
+        return new ArrayList<>(keyTags.keySet());
+    }
+
+    /**
+     * Returns a snapshot of all the keys associated with the tag
+     *
+     * @param tag Tag to look up
+     * @return List of keys, empty if there are none
+     */
+    public List<String> getKeys(String tag) {
+        Set<String> keys = tagKeys.get(tag);
+        return keys == null ? new ArrayList<String>() : new ArrayList<>(keys);
+    }
+
+    /**
+     * Returns the number of keys currently known
+     *
+     * @return Number of keys
+     */
+    public int size() {
+        return keyTags.size();
+    }
+
+    /**
+     * Forgets all keys and tags
+     */
+    public void clear() {
+        keyTags.clear();
+        tagKeys.clear();
+    }
+
+    /**
+     * Removes the key from the sets of keys of the given tags
+     *
+     * @param key  Cache key
+     * @param tags Tags to remove it from
+     */
+    private void removeFromTags(String key, Collection<String> tags) {
+        for (String tag : tags) {
+            Set<String> keys = tagKeys.get(tag);
+            if (keys != null) keys.remove(key);
+        }
+    }
+
+    /**
+     * The tags and expiry time of a key
+     */
+    private static class Entry {
+        private final Collection<String> tags;
+        private final long expires;
+
+        Entry(Collection<String> tags, long expires) {
+            this.tags = tags;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+/**
+ * Creates the value of a cached object when it is missing or needs refreshing
+ * See {@link CacheEngine#getOrLoad(String, Integer, CacheLoader)}
+ *
+ * @param <T> Type of the object loaded
+ */
+public interface CacheLoader<T> {
+
+    /**
+     * Loads the value to cache
+     *
+     * @return Value to cache or null if it couldn't be loaded and nothing should be cached
+     * @throws Exception if the value can't be loaded
+     */
+    T load() throws Exception;
+}
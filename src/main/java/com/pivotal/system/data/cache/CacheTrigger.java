@@ -0,0 +1,127 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import com.pivotal.system.data.dao.Database;
+import com.pivotal.system.data.dao.DatabaseApp;
+import com.pivotal.system.hibernate.entities.DatasourceEntity;
+import com.pivotal.utils.Common;
+import com.pivotal.utils.PivotalException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the declarative cache triggers of a datasource
+ * The trigger is a list of table:column pairs e.g. "machinery:id, site:last_modified"
+ * where the column only ever increases when the table changes (a sequence or
+ * timestamp). The highest value of every column is read using a single query and
+ * compared with the value seen last time - only the cached results that read from
+ * the tables that have moved on are cleared
+ * Note that deleting rows isn't seen unless it also moves the column on
+ */
+public class CacheTrigger {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CacheTrigger.class);
+
+    private static final Pattern IDENTIFIER = Pattern.compile("(?i)\"?[a-z_][\\w$]*\"?(\\.\"?[a-z_][\\w$]*\"?)?");
+
+    // The high-water marks last seen keyed on the datasource ID and then the trigger
+    private static final ConcurrentMap<Integer, Map<String, Object>> highWaterMarks = new ConcurrentHashMap<>();
+
+    /**
+     * Prevent instantiation
+     */
+    private CacheTrigger() {
+    }
+
+    /**
+     * Reads the high-water marks of all the watched tables of the datasource and
+     * clears the cached results of those that have changed since the last time
+     * The first time a datasource is checked the marks are simply remembered
+     *
+     * @param datasource Datasource to check
+     */
+    public static void check(DatasourceEntity datasource) {
+        List<String[]> triggers = parseTriggers(datasource.getName(), datasource.getCacheTriggerTables());
+        if (triggers.isEmpty()) return;
+
+        // Read all the marks in one go
+
+        StringBuilder sql = new StringBuilder("select ");
+        for (int i = 0; i < triggers.size(); i++) {
+            sql.append(i == 0 ? "" : ",").append(String.format("(select max(%s) from %s) as t%d", triggers.get(i)[1], triggers.get(i)[0], i));
+        }
+
+        Database source = null;
+        try {
+            source = new DatabaseApp(datasource);
+            source.open();
+            List<Map<String, Object>> rows = source.find(sql.toString(), true);
+            if (source.isInError() || Common.isBlank(rows)) {
+                logger.error("Cannot read cache triggers for [{}] - {}", datasource.getName(), source.getLastError());
+                return;
+            }
+
+            // Compare them with what we saw last time
+
+            Map<String, Object> row = rows.get(0);
+            Map<String, Object> previous = highWaterMarks.get(datasource.getId());
+            Map<String, Object> current = new HashMap<>();
+            Set<String> changed = new LinkedHashSet<>();
+            for (int i = 0; i < triggers.size(); i++) {
+                String key = triggers.get(i)[0] + ':' + triggers.get(i)[1];
+                Object value = row.get("t" + i);
+                current.put(key, value);
+                if (previous != null && previous.containsKey(key) && !Objects.equals(previous.get(key), value)) {
+                    changed.add(triggers.get(i)[0].replaceAll("\"", ""));
+                }
+            }
+            highWaterMarks.put(datasource.getId(), current);
+
+            if (!changed.isEmpty()) {
+                logger.debug("Clearing cache for [{}] tables {}", datasource.getName(), changed);
+                CacheEngine.clear(datasource.getId(), changed);
+            }
+        }
+        catch (Exception e) {
+            logger.error("Problem checking cache triggers for [{}] - {}", datasource.getName(), PivotalException.getErrorMessage(e));
+        }
+        finally {
+            Common.close(source);
+        }
+    }
+
+    /**
+     * Splits the trigger definition into its table and column pairs
+     * Anything that doesn't look like a plain table and column name is ignored
+     *
+     * @param name Name of the datasource
+     * @param definition Comma or line separated list of table:column
+     *
+     * @return List of table and column pairs
+     */
+    private static List<String[]> parseTriggers(String name, String definition) {
+        List<String[]> returnValue = new ArrayList<>();
+        if (!Common.isBlank(definition)) {
+            for (String entry : definition.split("[,;\\n]+")) {
+                if (!Common.isBlank(entry)) {
+                    String[] parts = entry.trim().split("\\s*:\\s*");
+                    if (parts.length == 2 && IDENTIFIER.matcher(parts[0]).matches() && IDENTIFIER.matcher(parts[1]).matches())
+                        returnValue.add(parts);
+                    else
+                        logger.warn("Ignoring invalid cache trigger [{}] for [{}] - it should be table:column", entry.trim(), name);
+                }
+            }
+        }
+        return returnValue;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import java.util.concurrent.*;
+
+/**
+ * Makes sure that only one caller at a time runs the load for a key, the
+ * others either waiting for its result or giving up straight away
+ * The task registered for a key is always run to completion before it is
+ * removed, so a caller waiting on it is never left waiting for a result that
+ * won't come
+ */
+class SingleFlight {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(SingleFlight.class);
+
+    private final ConcurrentMap<String, FutureTask<Object>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the load for the key unless another caller is already running it
+     *
+     * @param key Key being loaded
+     * @param load Load to run if no one else is running one for the key
+     * @param wait True if we should wait for another caller that is loading the key
+     * @param timeout Maximum time in seconds to wait for another caller
+     * @return Result of the load or null if it failed, timed out or another
+     * caller is loading the key and we didn't want to wait
+     */
+    Object run(String key, Callable<Object> load, boolean wait, int timeout) {
+        FutureTask<Object> task = new FutureTask<>(load);
+        FutureTask<Object> existing = loading.putIfAbsent(key, task);
+
+        // We are the loader for this key
+
+        if (existing == null) {
+            try {
+                task.run();
+                return task.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                logger.warn("Unable to load object [" + key + "] into cache", e.getCause());
+            }
+            finally {
+                loading.remove(key, task);
+            }
+        }
+
+        // Someone else is loading it so use their result
+
+        else if (wait) {
+            try {
+                return existing.get(timeout, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (TimeoutException e) {
+                logger.debug("Timed out waiting for object [{}] to be loaded", key);
+            }
+            catch (ExecutionException e) {
+                logger.debug("Object [{}] could not be loaded - {}", key, e.getCause());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a load is running for the key
+     *
+     * @param key Key to check
+     * @return True if the key is being loaded
+     */
+    boolean isLoading(String key) {
+        return loading.containsKey(key);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import java.util.Collection;
+
+/**
+ * A loader that also provides the tags to store the loaded object with
+ * The tags are only asked for when the object is actually stored, so they
+ * can be expensive to work out without slowing down cache hits
+ * See {@link CacheEngine#getOrLoad(String, Integer, CacheLoader)}
+ *
+ * @param <T> Type of the object loaded
+ */
+public interface TaggedCacheLoader<T> extends CacheLoader<T> {
+
+    /**
+     * Returns the tags to associate the loaded object with
+     *
+     * @return Tags e.g. from CacheEngine.getCacheTags or null
+     */
+    Collection<String> getTags();
+}
@@ -12,7 +12,9 @@ import com.pivotal.reporting.reports.Report;
 import com.pivotal.reporting.reports.sqldump.ExcelOutput;
 import com.pivotal.reporting.reports.sqldump.SQLOutput;
 import com.pivotal.reporting.reports.sqldump.TextOutput;
+import com.pivotal.system.data.cache.CacheLoader;
 import com.pivotal.system.hibernate.entities.DatasourceEntity;
+import com.pivotal.system.monitoring.QueryProfiler;
 import com.pivotal.utils.Common;
 import com.pivotal.utils.PivotalException;
 import com.pivotal.utils.VFSUtils;
@@ -45,7 +47,6 @@ import java.util.*;
 public abstract class Database {
 
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(Database.class);
-    private static final org.slf4j.Logger Perflogger = org.slf4j.LoggerFactory.getLogger("QueryPerformance");
 
     private static final int DEFAULT_MAXIMUM_RESULTS = 500000;
     private static final int DEFAULT_FETCH_SIZE = 30000;
@@ -61,6 +62,7 @@ public abstract class Database {
     boolean resultsTruncated;
     boolean resultsCached;
     long lastDuration;
+    int lastUpdateCount;
     String name;
     boolean isInsideTranasaction;
     boolean autoCommitState;
@@ -144,6 +146,16 @@ public abstract class Database {
         return lastDuration;
     }
 
+    /**
+     * Returns the number of rows changed by the last parameterised statement
+     * executed, or -1 if it failed or didn't change anything
+     *
+     * @return Number of rows
+     */
+    public int getLastUpdateCount() {
+        return lastUpdateCount;
+    }
+
     /**
      * Adds a row for batching processing into the specified table using the map of
      * column values. The method takes care of type conversion into the native representation
@@ -556,6 +568,41 @@ public abstract class Database {
         return !isInError();
     }
 
+    /**
+     * Executes the statement against the database with the positional
+     * parameters bound to it, within an implicit transaction if one
+     * is not in operation
+     *
+     * @param sql        SQL statement to execute
+     * @param parameters Array of parameters
+     * @return Returns true if OK
+     */
+    public boolean execute(String sql, Object... parameters) {
+        lastError = null;
+        lastUpdateCount = -1;
+        getConnection();
+        PreparedStatement stmt = null;
+        logger.debug("Executing statement [{}]", sql);
+        try {
+            stmt = dbConnection.prepareStatement(sql);
+            if (!Common.isBlank(parameters)) {
+                int pos = 1;
+                for (Object obj : parameters) {
+                    stmt.setObject(pos, obj);
+                    pos++;
+                }
+            }
+            if (!stmt.execute()) lastUpdateCount = stmt.getUpdateCount();
+        }
+        catch (SQLException e) {
+            setError("Problem executing statement [" + sql + "] on [" + name + "] - " + PivotalException.getErrorMessage(e), e);
+        }
+        finally {
+            Common.close(stmt);
+        }
+        return !isInError();
+    }
+
     /**
      * Runs the select statement against the database and returns the
      * first row as a map keyed on case insensitive column names
@@ -566,11 +613,11 @@ public abstract class Database {
      *         an empty map if nothing found
      */
     public Map<String, Object> findFirst(String sql, boolean bypassCache) {
-        List<Map<String, Object>> list = find(sql, bypassCache);
-        if (Common.isBlank(list))
+        ResultTable table = findTable(sql, bypassCache);
+        if (Common.isBlank(table))
             return new HashMap<>();
         else
-            return list.get(0);
+            return new LinkedHashMap<>(table.get(0));
     }
 
     /**
@@ -594,7 +641,7 @@ public abstract class Database {
      * @return String in the form "xx,yy,yy"
      */
     public String findList(String sql, boolean bypassCache) {
-        return getInClauseFromResults(find(sql, bypassCache), null);
+        return getInClauseFromResults(findTable(sql, bypassCache), null);
     }
 
     /**
@@ -618,7 +665,7 @@ public abstract class Database {
      * @return String in the form "xx,yy,yy"
      */
     public String findList(String sql, String columnName, boolean bypassCache) {
-        return getInClauseFromResults(find(sql, bypassCache), columnName);
+        return getInClauseFromResults(findTable(sql, bypassCache), columnName);
     }
 
     /**
@@ -666,165 +713,404 @@ public abstract class Database {
      */
     public List<Map<String, Object>> find(String sql, boolean bypassCache, Object... parameters) {
 
+        // The table may be shared with the cache so we wrap it in a list that only
+        // copies the rows that the caller actually modifies
+
+        return new ResultList(findTable(sql, bypassCache, parameters));
+    }
+
+    /**
+     * Runs the select statement against the database and returns the
+     * results as a compact read only table
+     *
+     * @param sql Select statement to execute
+     * @return Table of rows of data keyed on the column name or
+     *         an empty table if nothing found
+     */
+    public ResultTable findTable(String sql) {
+        return findTable(sql, false);
+    }
+
+    /**
+     * Runs the select statement against the database and returns the
+     * results as a compact read only table
+     *
+     * @param sql         Select statement to execute
+     * @param bypassCache If it should bypass cache in case it exists
+     * @return Table of rows of data keyed on the column name or
+     *         an empty table if nothing found
+     */
+    public ResultTable findTable(String sql, boolean bypassCache) {
+        return findTable(sql, bypassCache, (Object[])null);
+    }
+
+    /**
+     * Runs the select statement against the database and returns the
+     * results as a compact read only table
+     * The table holds the column names once and the values in typed column
+     * arrays so it uses a fraction of the memory of the equivalent list of
+     * maps and, because it cannot be modified, the cached copy is returned
+     * directly without being cloned
+     * Callers that need to change the rows should use find instead
+     * The parameters is an array of any positional SQL parameters within
+     * the query
+     *
+     * @param sql               Select statement to execute
+     * @param bypassCache       If it should bypass cache in case it exists
+     * @param parameters        Array of optional parameters
+     * @return Table of rows of data keyed on the column name or
+     *         an empty table if nothing found
+     */
+    public ResultTable findTable(String sql, boolean bypassCache, Object... parameters) {
+
         resultsTruncated = false;
         resultsCached = false;
         lastError = null;
         long startTime = new Date().getTime();
-        List<Map<String, Object>> list;
+        ResultTable table;
 
-        if (bypassCache || (list = getCachedQuery(sql)) == null) {
+        if (bypassCache) {
+            table = readTable(sql, parameters);
+        }
 
-            logger.debug("Object is not cached or cache is disabled ");
+        // Get the results from the cache, or run the query if they aren't there
+        // If someone else is already running the same query then we'll wait for
+        // their results rather than running it again
 
-            list = new ArrayList<>();
+        else {
+            QueryLoader loader = new QueryLoader(sql, parameters);
+            table = getCachedQuery(sql, parameters, loader);
+            if (loader.isLoaded()) {
+                table = loader.getTable();
+            }
 
-            // Only do something if we have a database connection
+            // We're getting the values from the cache
+            // The table is read only so it can be shared as is
 
-            getConnection();
-            if (dbConnection != null) {
-                ResultSet results = null;
-                PreparedStatement stmt = null;
-                logger.debug("Running statement [{}]", sql);
-                try {
+            else if (table != null) {
+                resultsCached = true;
+                logger.debug("Object found in cache");
+            }
 
-                    // Prepare the query
+            // Whoever was running the query didn't manage it so have a go ourselves
 
-                    stmt = dbConnection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-                    if (obtainConnectionUrl().contains("mysql"))
-                        stmt.setFetchSize(Integer.MIN_VALUE);
-                    else
-                        stmt.setFetchSize(DEFAULT_FETCH_SIZE);
+            else {
+                table = readTable(sql, parameters);
+            }
+        }
+        lastDuration = new Date().getTime() - startTime;
+        QueryProfiler.record(getName(), sql, lastDuration, table == null ? 0 : table.size(), resultsCached);
+        return table;
+    }
 
-                    // Add on any parameters that might have been passed
+    /**
+     * Runs the select statement against the database and reads the results
+     * into a table without using the cache
+     *
+     * @param sql        Select statement to execute
+     * @param parameters Array of optional parameters
+     * @return Table of rows of data keyed on the column name or
+     *         an empty table if nothing found
+     */
+    private ResultTable readTable(String sql, Object... parameters) {
 
-                    if (!Common.isBlank(parameters)) {
-                        int pos = 1;
-                        for (Object obj : parameters) {
-                            stmt.setObject(pos, obj);
-                            pos++;
-                        }
-                    }
+        logger.debug("Object is not cached or cache is disabled ");
 
-                    // Run the query
+        ResultTable table = new ResultTable(new ArrayList<String>());
 
-                    results = stmt.executeQuery();
+        // Only do something if we have a database connection
+
+        getConnection();
+        if (dbConnection != null) {
+            ResultSet results = null;
+            PreparedStatement stmt = null;
+            logger.debug("Running statement [{}]", sql);
+            try {
 
-                    // Log the query
+                // Prepare the query
 
-                    if (Perflogger.isInfoEnabled()) {
-                        long duration = new Date().getTime() - startTime;
-                        Perflogger.info(duration + '\t' + sql);
-                    }
+                stmt = prepareQuery(sql, parameters);
 
-                    // Get the results if there are any
+                // Run the query
 
-                    if (results != null) {
-                        ResultSetMetaData meta = results.getMetaData();
-                        int columnCount = meta.getColumnCount();
+                results = stmt.executeQuery();
 
-                        // Construct a central store of column names
-                        // Do it now as better for larger result sets and not much overhead for small ones
+                // Get the results if there are any
 
-                        String[] columnNames = new String[columnCount + 1];
-                        Set<String> columnNamesX = new HashSet<>();
-                        for (int i = 1; i <= columnCount; i++) {
-                            String columnName = meta.getColumnLabel(i);
-                            if (columnName.equals(meta.getColumnName(i)))
-                                columnName = columnName.toLowerCase();
-                            if (columnNamesX.contains(columnName))
-                                columnNames[i] = columnName + '_' + i;
-                            else
-                                columnNames[i] = columnName;
-                            columnNamesX.add(columnName);
+                if (results != null) {
+
+                    // Construct a central store of column names and types
+                    // Do it now as better for larger result sets and not much overhead for small ones
+
+                    ResultSetMetaData meta = results.getMetaData();
+                    String[] columnNames = getColumnNames(meta);
+                    int[] columnTypes = getColumnTypes(meta);
+                    table = new ResultTable(Arrays.asList(columnNames).subList(1, columnNames.length));
+
+                    // Loop through all the results or until we reach the limit
+
+                    Object[] values = new Object[columnNames.length - 1];
+                    while (results.next() && (maximumResults == 0 || table.size() < maximumResults)) {
+                        for (int iCnt = 1; iCnt < columnNames.length; iCnt++) {
+                            values[iCnt - 1] = getColumnValue(results, columnTypes[iCnt], iCnt);
                         }
+                        table.addRow(values);
+                    }
+                    table.trimToSize();
 
-                        Object value;
-                        Map<String, Object> row;
+                    // Show a warning if we have reached the limit
 
-                        // Loop through all the results or until we reach the limit
+                    if (maximumResults > 0 && table.size() == maximumResults && !results.isAfterLast()) {
+                        resultsTruncated = true;
+                        logger.warn("The maximum number of results [{}] has been reached for [{}]", maximumResults, sql);
+                    }
+                }
+            }
+            catch (SQLException e) {
+                setError("SQL Problem running query [" + sql + "] - " + PivotalException.getErrorMessage(e), e);
+            }
+            catch (Exception e) {
+                setError("Problem running query [" + sql + "] - " + PivotalException.getErrorMessage(e));
+            }
+            finally {
+                Common.close(results, stmt);
+            }
+            logger.debug("Search returned {} results", results == null ? "no" : "some");
+        }
+        else {
+            setError("Problem with connection for [" + sql + "] - Call made to find without a valid connection");
+        }
+        return table;
+    }
 
-                        while (results.next() && (maximumResults == 0 || list.size() < maximumResults)) {
-                            row = new LinkedHashMap<>(columnCount);
-                            for (int iCnt = 1; iCnt <= columnCount; iCnt++) {
+    /**
+     * Runs the select statement against the database and passes each row
+     * to the consumer as soon as it has been read
+     * Unlike find, the rows are never collected into a list and the cache is
+     * not used, so very large result sets can be exported in constant memory
+     * The maximum results limit is not applied
+     *
+     * @param sql      Select statement to execute
+     * @param consumer Receiver of each row of data
+     * @return Number of rows passed to the consumer
+     */
+    public long stream(String sql, RowConsumer consumer) {
+        return stream(sql, consumer, (Object[])null);
+    }
 
-                                // Get the value based on it's type
+    /**
+     * Runs the select statement against the database and passes each row
+     * to the consumer as soon as it has been read
+     * Unlike find, the rows are never collected into a list and the cache is
+     * not used, so very large result sets can be exported in constant memory
+     * The maximum results limit is not applied
+     * The parameters is an array of any positional SQL parameters within
+     * the query
+     *
+     * @param sql        Select statement to execute
+     * @param consumer   Receiver of each row of data
+     * @param parameters Array of optional parameters
+     * @return Number of rows passed to the consumer
+     */
+    public long stream(String sql, RowConsumer consumer, Object... parameters) {
 
-                                value = null;
-                                try {
-                                    if (meta.getColumnType(iCnt)==Types.CLOB) {
-                                        Reader reader = results.getCharacterStream(iCnt);
-                                        if (reader!=null) {
-                                            value = IOUtils.toString(reader);
-                                        }
-                                    }
-                                    else if (meta.getColumnType(iCnt)==Types.BLOB) {
-                                        InputStream input = results.getBinaryStream(iCnt);
-                                        if (input != null) {
-                                            value = IOUtils.toByteArray(input);
-                                        }
-                                    }
-                                    else {
-                                        value = results.getObject(iCnt);
-                                    }
-                                }
-                                catch (Throwable e) {
-                                    logger.error("Problem getting database connection for [{}] - {}", getName(), PivotalException.getErrorMessage(e));
-                                }
+        resultsTruncated = false;
+        resultsCached = false;
+        lastError = null;
+        long startTime = new Date().getTime();
+        long rowCount = 0;
 
-                                // Add the value to the row
+        // Only do something if we have a database connection
 
-                                row.put(columnNames[iCnt], value);
-                            }
-                            list.add(row);
-                        }
+        getConnection();
+        if (consumer == null) {
+            setError("Problem running query [" + sql + "] - A row consumer must be specified");
+        }
+        else if (dbConnection != null) {
+            ResultSet results = null;
+            PreparedStatement stmt = null;
+            boolean restoreAutoCommit = false;
+            logger.debug("Streaming statement [{}]", sql);
+            try {
 
-                        // Show a warning if we have reached the limit
+                // Some drivers (PostgreSQL) ignore the fetch size and read the whole
+                // result set into memory unless the query runs inside a transaction
 
-                        if (maximumResults > 0 && list.size() == maximumResults && !results.isAfterLast()) {
-                            resultsTruncated = true;
-                            logger.warn("The maximum number of results [{}] has been reached for [{}]", maximumResults, sql);
-                        }
-                    }
+                if (!isInsideTranasaction && dbConnection.getAutoCommit()) {
+                    dbConnection.setAutoCommit(false);
+                    restoreAutoCommit = true;
+                }
 
-                    // Cache the result unless we're not allowed to
+                // Prepare and run the query
 
-                    if (!bypassCache) {
-                        putCachedQuery(sql, list);
-                        list = DataSourceUtils.cloneResultsList(list);
+                stmt = prepareQuery(sql, parameters);
+                results = stmt.executeQuery();
+
+                // Pass each row on to the consumer as we read it
+
+                if (results != null) {
+                    ResultSetMetaData meta = results.getMetaData();
+                    String[] columnNames = getColumnNames(meta);
+                    int[] columnTypes = getColumnTypes(meta);
+                    consumer.start();
+                    while (results.next()) {
+                        consumer.addRow(getRowValues(results, columnNames, columnTypes));
+                        rowCount++;
                     }
                 }
-                catch (SQLException e) {
-                    setError("SQL Problem running query [" + sql + "] - " + PivotalException.getErrorMessage(e), e);
-                }
-                catch (Exception e) {
-                    setError("Problem running query [" + sql + "] - " + PivotalException.getErrorMessage(e));
-                }
-                finally {
-                    Common.close(results, stmt);
+            }
+            catch (SQLException e) {
+                setError("SQL Problem running query [" + sql + "] - " + PivotalException.getErrorMessage(e), e);
+            }
+            catch (Exception e) {
+                setError("Problem running query [" + sql + "] - " + PivotalException.getErrorMessage(e));
+            }
+            finally {
+                Common.close(results, stmt);
+
+                // Switching auto commit back on will also end the read transaction
+
+                if (restoreAutoCommit) {
+                    try {
+                        dbConnection.setAutoCommit(true);
+                    }
+                    catch (SQLException e) {
+                        logger.warn("Problem restoring auto commit on [{}] - {}", getName(), PivotalException.getErrorMessage(e));
+                    }
                 }
-                logger.debug("Search returned {} results", results == null ? "no" : "some");
             }
-            else {
-                setError("Problem with connection for [" + sql + "] - Call made to find without a valid connection");
+            logger.debug("Streamed {} rows", rowCount);
+        }
+        else {
+            setError("Problem with connection for [" + sql + "] - Call made to stream without a valid connection");
+        }
+        lastDuration = new Date().getTime() - startTime;
+        QueryProfiler.record(getName(), sql, lastDuration, rowCount, false);
+        return rowCount;
+    }
+
+    /**
+     * Creates a forward only, read only statement for the query using a fetch size
+     * that stops the driver from reading the whole result set in one go, and
+     * binds any positional parameters to it
+     *
+     * @param sql        Select statement to prepare
+     * @param parameters Array of optional parameters
+     * @return Prepared statement ready to execute
+     * @throws SQLException If the statement cannot be prepared
+     */
+    private PreparedStatement prepareQuery(String sql, Object... parameters) throws SQLException {
+        PreparedStatement stmt = dbConnection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        if (obtainConnectionUrl().contains("mysql"))
+            stmt.setFetchSize(Integer.MIN_VALUE);
+        else
+            stmt.setFetchSize(DEFAULT_FETCH_SIZE);
+
+        // Add on any parameters that might have been passed
+
+        if (!Common.isBlank(parameters)) {
+            int pos = 1;
+            for (Object obj : parameters) {
+                stmt.setObject(pos, obj);
+                pos++;
             }
         }
+        return stmt;
+    }
 
-        // We're getting the values from the cache
+    /**
+     * Returns the unique names of the columns in the result set, indexed from 1 to
+     * match the JDBC column numbers
+     * Columns that are not aliased are lowercased and duplicates are suffixed
+     * with their column number
+     *
+     * @param meta Result set metadata
+     * @return Array of column names
+     * @throws SQLException If the metadata cannot be read
+     */
+    private static String[] getColumnNames(ResultSetMetaData meta) throws SQLException {
+        int columnCount = meta.getColumnCount();
+        String[] columnNames = new String[columnCount + 1];
+        Set<String> columnNamesX = new HashSet<>();
+        for (int i = 1; i <= columnCount; i++) {
+            String columnName = meta.getColumnLabel(i);
+            if (columnName.equals(meta.getColumnName(i)))
+                columnName = columnName.toLowerCase();
+            if (columnNamesX.contains(columnName))
+                columnNames[i] = columnName + '_' + i;
+            else
+                columnNames[i] = columnName;
+            columnNamesX.add(columnName);
+        }
+        return columnNames;
+    }
 
-        else {
-            resultsCached = true;
-            logger.debug("Object found in cache");
+    /**
+     * Returns the SQL types of the columns in the result set, indexed from 1 to
+     * match the JDBC column numbers
+     *
+     * @param meta Result set metadata
+     * @return Array of java.sql.Types values
+     * @throws SQLException If the metadata cannot be read
+     */
+    private static int[] getColumnTypes(ResultSetMetaData meta) throws SQLException {
+        int columnCount = meta.getColumnCount();
+        int[] columnTypes = new int[columnCount + 1];
+        for (int i = 1; i <= columnCount; i++) {
+            columnTypes[i] = meta.getColumnType(i);
+        }
+        return columnTypes;
+    }
 
-            // We need to make a copy of the rows into new Maps of a new List so that
-            // if the user modifies the contents in some way, it doesn't pollute the
-            // cache for everyone else
+    /**
+     * Reads the values of the current row of the result set into a new map
+     * keyed on the column names
+     *
+     * @param results     Result set positioned on the row to read
+     * @param columnNames Column names indexed from 1
+     * @param columnTypes Column types indexed from 1
+     * @return Map of column values
+     */
+    private Map<String, Object> getRowValues(ResultSet results, String[] columnNames, int[] columnTypes) {
+        Map<String, Object> row = new LinkedHashMap<>(columnNames.length);
+        for (int iCnt = 1; iCnt < columnNames.length; iCnt++) {
+            row.put(columnNames[iCnt], getColumnValue(results, columnTypes[iCnt], iCnt));
+        }
+        return row;
+    }
 
-            if (!Common.isBlank(list)) {
-                list = DataSourceUtils.cloneResultsList(list);
+    /**
+     * Reads the value of the column from the current row of the result set
+     * Large objects are read fully into strings and byte arrays
+     *
+     * @param results    Result set positioned on the row to read
+     * @param columnType SQL type of the column
+     * @param column     Column number (1 based)
+     * @return Value or null if it cannot be read
+     */
+    private Object getColumnValue(ResultSet results, int columnType, int column) {
+        Object value = null;
+        try {
+            if (columnType==Types.CLOB) {
+                Reader reader = results.getCharacterStream(column);
+                if (reader!=null) {
+                    value = IOUtils.toString(reader);
+                }
+            }
+            else if (columnType==Types.BLOB) {
+                InputStream input = results.getBinaryStream(column);
+                if (input != null) {
+                    value = IOUtils.toByteArray(input);
+                }
+            }
+            else {
+                value = results.getObject(column);
             }
         }
-        lastDuration = new Date().getTime() - startTime;
-        return list;
+        catch (Throwable e) {
+            logger.error("Problem getting database connection for [{}] - {}", getName(), PivotalException.getErrorMessage(e));
+        }
+        return value;
     }
 
     /**
@@ -1492,6 +1778,48 @@ public abstract class Database {
         return null;
     }
 
+    /**
+     * Retrieve the results of the query from the cache, using the loader to
+     * run the query if they aren't there
+     *
+     * Default implementation uses getCachedQuery and putCachedQuery. Subclasses
+     * should override this to prevent concurrent callers all running the same query
+     *
+     * @param sql        the sql to be looked up in the cache
+     * @param parameters positional parameters of the query (can be null)
+     * @param loader     runs the query and returns the results or null if it failed
+     * @return the results or null if they couldn't be found or loaded
+     */
+    public ResultTable getCachedQuery(String sql, Object[] parameters, CacheLoader<ResultTable> loader) {
+
+        // The simple cache is keyed on the SQL alone so it can't be used for parameterised queries
+
+        if (parameters != null && parameters.length > 0) {
+            try {
+                return loader.load();
+            }
+            catch (Exception e) {
+                logger.warn("Problem loading query [{}] - {}", sql, PivotalException.getErrorMessage(e));
+                return null;
+            }
+        }
+        List<Map<String, Object>> cached = getCachedQuery(sql);
+        if (cached != null) {
+            return ResultTable.valueOf(cached);
+        }
+        ResultTable returnValue = null;
+        try {
+            returnValue = loader.load();
+            if (returnValue != null) {
+                putCachedQuery(sql, returnValue);
+            }
+        }
+        catch (Exception e) {
+            logger.warn("Problem loading query [{}] - {}", sql, PivotalException.getErrorMessage(e));
+        }
+        return returnValue;
+    }
+
     /**
      * Adds the results of the query to the cache.
      *
@@ -2078,24 +2406,22 @@ public abstract class Database {
 
             try {
                 getConnection();
-                List<Map<String, Object>> results = find(select, true);
-                if (Common.isBlank(lastError) && !Common.isBlank(results)) {
-                    logger.debug("Found {} results", results.size());
 
-                    // Create a temporary file to use
+                // Create a temporary file to use
 
-                    tmpFile = Common.getTemporaryFilename(Common.getFilenameExtension(vfsFilename));
+                tmpFile = Common.getTemporaryFilename(Common.getFilenameExtension(vfsFilename));
 
-                    // Send the results to the appropriate destination
+                // Stream the results straight to the appropriate destination
 
-                    dumpFile = Z_SelectDumpFile(tmpFile, Report.ExportFormat.getType(format), compression, true);
-                    if (dumpFile != null) {
-                        for (Map<String, Object> rowValues : results) {
-                            dumpFile.addRow(rowValues);
-                        }
-                        dumpFile.close();
-                    }
-                    dumpFile = null;
+                long rowCount = 0;
+                dumpFile = Z_SelectDumpFile(tmpFile, Report.ExportFormat.getType(format), compression, true);
+                if (dumpFile != null) {
+                    rowCount = stream(select, dumpFile);
+                    dumpFile.close();
+                }
+                dumpFile = null;
+                if (Common.isBlank(lastError) && rowCount > 0) {
+                    logger.debug("Found {} results", rowCount);
 
                     // Connect to the server
 
@@ -2180,6 +2506,57 @@ public abstract class Database {
         }
     }
 
+    /**
+     * Runs a query on behalf of the cache and keeps hold of the results so
+     * that the caller can tell whether it ran the query itself
+     */
+    private class QueryLoader implements CacheLoader<ResultTable> {
+
+        private final String sql;
+        private final Object[] parameters;
+        private ResultTable table;
+
+        /**
+         * Creates a loader for the query
+         *
+         * @param sql        Select statement to execute
+         * @param parameters Array of optional parameters
+         */
+        QueryLoader(String sql, Object... parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Runs the query
+         *
+         * @return Results or null if the query failed and shouldn't be cached
+         */
+        @Override
+        public ResultTable load() {
+            table = readTable(sql, parameters);
+            return isInError() ? null : table;
+        }
+
+        /**
+         * Returns true if this loader ran the query
+         *
+         * @return True if loaded
+         */
+        boolean isLoaded() {
+            return table != null;
+        }
+
+        /**
+         * Returns the results of the query, even if it failed
+         *
+         * @return Results or null if the query wasn't run
+         */
+        ResultTable getTable() {
+            return table;
+        }
+    }
+
     /**
      * A timer that will flush the buffer on the response stream
      * This is useful if we want hold back sending the headers until
@@ -10,8 +10,13 @@ package com.pivotal.system.data.dao;
 
 import com.pivotal.api.PoolBroker;
 import com.pivotal.system.data.cache.CacheEngine;
+import com.pivotal.system.data.cache.CacheLoader;
+import com.pivotal.system.data.cache.TaggedCacheLoader;
 import com.pivotal.system.hibernate.entities.DatasourceEntity;
+import com.pivotal.system.hibernate.utils.HibernateUtils;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -58,23 +63,59 @@ public class DatabaseApp extends Database {
      */
     public List<Map<String, Object>> getCachedQuery(String sql) {
         if (dataSrc.isUseCache()) {
-            logger.debug("Retrieving from cache: {} {}", sql, CacheEngine.getCacheKey(dataSrc.getId(), sql));
-            return CacheEngine.get(CacheEngine.getCacheKey(dataSrc.getId(), sql));
+            String key = CacheEngine.getCacheKey(dataSrc.getId(), sql);
+            logger.debug("Retrieving from cache: {} {}", sql, key);
+            return CacheEngine.get(key);
         } else {
             return null;
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Retrieve the return of the query from the cache if cache is enabled
+     * in this datasource, running the query if it isn't there
+     * Only one caller runs the query at a time, anyone else wanting
+     * the same results waits for them
+     * The tables read by the query are only worked out when the results
+     * are stored, not on every look up
+     */
+    public ResultTable getCachedQuery(final String sql, Object[] parameters, final CacheLoader<ResultTable> loader) {
+        if (dataSrc.isUseCache()) {
+            String key = CacheEngine.getCacheKey(dataSrc.getId(), sql, parameters);
+            logger.debug("Retrieving from cache: {} {}", sql, key);
+            final int dataSourceId = dataSrc.getId();
+            return CacheEngine.getOrLoad(key, dataSrc.getCacheTimeout(), new TaggedCacheLoader<ResultTable>() {
+                @Override
+                public ResultTable load() throws Exception {
+                    return loader.load();
+                }
+
+                @Override
+                public Collection<String> getTags() {
+                    return CacheEngine.getCacheTags(dataSourceId, sql);
+                }
+            });
+        }
+        else {
+            return super.getCachedQuery(sql, parameters, loader);
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
      * Put the return of the query into the cache
      * if cache is enabled in this datasource
+     * The results are always stored as a read only table so that
+     * they can be handed out from the cache without copying
      */
     public void putCachedQuery(String sql, List<Map<String, Object>> result) {
         if (dataSrc.isUseCache()) {
-            logger.debug("Adding to cache: {}", CacheEngine.getCacheKey(dataSrc.getId(), sql));
-            CacheEngine.put(CacheEngine.getCacheKey(dataSrc.getId(), sql), dataSrc.getCacheTimeout(), result);
+            String key = CacheEngine.getCacheKey(dataSrc.getId(), sql);
+            logger.debug("Adding to cache: {}", key);
+            CacheEngine.put(key, dataSrc.getCacheTimeout(), ResultTable.valueOf(result), CacheEngine.getCacheTags(dataSrc.getId(), sql));
         }
     }
 
@@ -91,7 +132,25 @@ public class DatabaseApp extends Database {
         // Clear the cache if it is engaged
 
         if (returnValue && dataSrc.isUseCache()) {
-            CacheEngine.clear(dataSrc.getId());
+            clearCache(CacheEngine.getTableNames(sql));
+        }
+        return returnValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Executes the statement against the database within an implicit
+     * transaction if one is not in operation
+     * Clears the cache if the update was successful
+     */
+    public boolean execute(String sql, Object... parameters) {
+        boolean returnValue = super.execute(sql, parameters);
+
+        // Clear the cache if it is engaged
+
+        if (returnValue && dataSrc.isUseCache()) {
+            clearCache(CacheEngine.getTableNames(sql));
         }
         return returnValue;
     }
@@ -108,11 +167,25 @@ public class DatabaseApp extends Database {
         // Clear the cache if it is engaged
 
         if (returnValue && dataSrc.isUseCache()) {
-            CacheEngine.clear(dataSrc.getId());
+            clearCache(Collections.singleton(table));
         }
         return returnValue;
     }
 
+    /**
+     * Clears the cached queries for this datasource
+     * If clearing by table is enabled and we know which tables have been
+     * changed, then only the queries that read those tables are cleared
+     *
+     * @param tables Tables that have been changed or null if not known
+     */
+    private void clearCache(Collection<String> tables) {
+        if (tables != null && HibernateUtils.getSystemSetting(HibernateUtils.SETTING_CACHE_INVALIDATE_TABLES, HibernateUtils.SETTING_CACHE_INVALIDATE_TABLES_DEFAULT))
+            CacheEngine.clear(dataSrc.getId(), tables);
+        else
+            CacheEngine.clear(dataSrc.getId());
+    }
+
     /**
      * Returns the underlying data source that this connection is based on
      *
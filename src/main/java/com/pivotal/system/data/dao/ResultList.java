@@ -0,0 +1,253 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.dao;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A modifiable list of mapped rows layered over a read only {@link ResultTable}
+ * Nothing is copied until the caller changes something - adding or removing
+ * rows copies the list of rows, and changing a row copies just that row into
+ * a private map - so callers that only read the results (the vast majority)
+ * share the underlying table, which may be the cached copy, at no cost
+ * Mutable values such as dates are copied by the table as they are read so
+ * changing one in place only affects the caller's copy
+ */
+public class ResultList extends AbstractList<Map<String, Object>> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ResultTable table;
+    private Map<String, Object>[] rows;
+    private List<Map<String, Object>> copy;
+
+    /**
+     * Creates a copy on write list of the table rows
+     *
+     * @param table Table to wrap
+     */
+    public ResultList(ResultTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns the row, creating a copy on write view of it on first access
+     * so that any changes made to it are kept
+     *
+     * @param index Row number
+     * @return Map of column values
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> get(int index) {
+        if (copy != null) return copy.get(index);
+        if (rows == null) rows = new Map[table.size()];
+        if (rows[index] == null) rows[index] = new ResultRow(table.get(index));
+        return rows[index];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return copy != null ? copy.size() : table.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, Object> set(int index, Map<String, Object> element) {
+        return getCopy().set(index, element);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(int index, Map<String, Object> element) {
+        getCopy().add(index, element);
+        modCount++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<String, Object> remove(int index) {
+        Map<String, Object> returnValue = getCopy().remove(index);
+        modCount++;
+        return returnValue;
+    }
+
+    /**
+     * Returns the private list of rows, creating it from the table rows
+     * the first time the list structure is changed
+     *
+     * @return Modifiable list of rows
+     */
+    private List<Map<String, Object>> getCopy() {
+        if (copy == null) {
+            List<Map<String, Object>> list = new ArrayList<>(table.size() + 1);
+            for (int i = 0; i < table.size(); i++) {
+                list.add(get(i));
+            }
+            copy = list;
+            rows = null;
+        }
+        return copy;
+    }
+
+    /**
+     * Serialises the list as a plain list of maps so that it doesn't drag the
+     * whole table along with it
+     *
+     * @return Serializable copy of the list
+     */
+    private Object writeReplace() {
+        List<Map<String, Object>> list = new ArrayList<>(size());
+        for (Map<String, Object> row : this) {
+            list.add(new LinkedHashMap<>(row));
+        }
+        return list;
+    }
+
+    /**
+     * A row that reads from the table until it is changed, at which point
+     * it takes a private copy of the values
+     * Changes made through the entry set, key set and values views, their
+     * iterators and entries take the copy in the same way
+     */
+    private static class ResultRow extends AbstractMap<String, Object> {
+
+        private Map<String, Object> values;
+        private boolean copied;
+
+        /**
+         * Creates a view of the table row
+         *
+         * @param values Read only row
+         */
+        ResultRow(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Object get(Object key) {
+            return values.get(key);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean containsKey(Object key) {
+            return values.containsKey(key);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int size() {
+            return values.size();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Object put(String key, Object value) {
+            return getCopy().put(key, value);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Object remove(Object key) {
+            return getCopy().remove(key);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void clear() {
+            getCopy().clear();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return copied ? values.entrySet().iterator() : new RowIterator(values.entrySet().iterator());
+                }
+
+                @Override
+                public int size() {
+                    return values.size();
+                }
+
+                @Override
+                public void clear() {
+                    ResultRow.this.clear();
+                }
+            };
+        }
+
+        /**
+         * Takes a private copy of the row values the first time it is changed
+         *
+         * @return Modifiable map of values
+         */
+        private Map<String, Object> getCopy() {
+            if (!copied) {
+                values = new LinkedHashMap<>(values);
+                copied = true;
+            }
+            return values;
+        }
+
+        /**
+         * Iterates over the values of the row as it was when the iterator was
+         * created, making any changes to the private copy of the row
+         */
+        private class RowIterator implements Iterator<Entry<String, Object>> {
+
+            private final Iterator<Entry<String, Object>> entries;
+            private Entry<String, Object> last;
+
+            /**
+             * Creates an iterator over the read only values
+             *
+             * @param entries Iterator of the read only values
+             */
+            RowIterator(Iterator<Entry<String, Object>> entries) {
+                this.entries = entries;
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public Entry<String, Object> next() {
+                last = entries.next();
+                return new SimpleEntry<String, Object>(last) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Object setValue(Object value) {
+                        super.setValue(value);
+                        return ResultRow.this.put(getKey(), value);
+                    }
+                };
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                ResultRow.this.remove(last.getKey());
+                last = null;
+            }
+        }
+    }
+}
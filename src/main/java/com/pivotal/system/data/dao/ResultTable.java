@@ -0,0 +1,546 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.dao;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A compact, read-only container for the results of a query
+ * The column names are held once for the whole table and the values are
+ * held column by column in arrays of the natural primitive type where the
+ * values allow it (int, long and double)
+ * The table can be used anywhere a list of mapped rows is expected - each
+ * row is a lightweight read-only map view onto the columns so no per-row
+ * maps are allocated to hold the data
+ * The table is shared between threads and callers e.g. from the cache, so
+ * mutable values (dates and byte arrays) are copied whenever they are read,
+ * and when a table is made from an existing list, so that no caller can
+ * change the values seen by another
+ */
+public class ResultTable extends AbstractList<Map<String, Object>> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAXIMUM_SHARED_STRINGS = 1024;
+
+    private final String[] columnNames;
+    private final Map<String, Integer> columnIndex;
+    private final Column[] columns;
+    private int rowCount;
+
+    /**
+     * Creates an empty table with the given columns
+     *
+     * @param columnNames Names of the columns in the order they are returned
+     */
+    public ResultTable(List<String> columnNames) {
+        this.columnNames = columnNames.toArray(new String[columnNames.size()]);
+        columnIndex = new HashMap<>(this.columnNames.length * 2);
+        columns = new Column[this.columnNames.length];
+        for (int i = 0; i < this.columnNames.length; i++) {
+            columnIndex.put(this.columnNames[i], i);
+            columns[i] = new NullColumn();
+        }
+    }
+
+    /**
+     * Creates a table from an existing list of rows
+     * The columns are taken from the first row and mutable values are copied
+     * so that later changes to the list don't reach the table
+     *
+     * @param list List of mapped rows
+     * @return Table containing the same values
+     */
+    public static ResultTable valueOf(List<Map<String, Object>> list) {
+        if (list instanceof ResultTable) return (ResultTable)list;
+        List<String> names = new ArrayList<>();
+        if (list != null && !list.isEmpty()) names.addAll(list.get(0).keySet());
+        ResultTable table = new ResultTable(names);
+        if (list != null) {
+            Object[] values = new Object[names.size()];
+            for (Map<String, Object> row : list) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = DataSourceUtils.cloneValueOf(row.get(names.get(i)));
+                }
+                table.addRow(values);
+            }
+        }
+        table.trimToSize();
+        return table;
+    }
+
+    /**
+     * Appends a row of values to the table
+     * Only used whilst the table is being populated
+     *
+     * @param values Array of values in column order
+     */
+    void addRow(Object[] values) {
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = columns[i].add(values[i], rowCount);
+        }
+        rowCount++;
+    }
+
+    /**
+     * Releases any spare capacity once the table has been populated
+     */
+    void trimToSize() {
+        for (Column column : columns) {
+            column.trimToSize(rowCount);
+        }
+    }
+
+    /**
+     * Returns the names of the columns in the table
+     *
+     * @return Unmodifiable list of column names
+     */
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(Arrays.asList(columnNames));
+    }
+
+    /**
+     * Returns the number of columns in the table
+     *
+     * @return Number of columns
+     */
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    /**
+     * Returns the value at the given row and column position
+     *
+     * @param row    Row number (0 based)
+     * @param column Column number (0 based)
+     * @return Value or null
+     */
+    public Object getValue(int row, int column) {
+        if (row < 0 || row >= rowCount)
+            throw new IndexOutOfBoundsException("Row " + row + " is outside of the table size " + rowCount);
+        return columns[column].get(row);
+    }
+
+    /**
+     * Returns the value at the given row of the named column
+     *
+     * @param row    Row number (0 based)
+     * @param column Name of the column
+     * @return Value or null if the column doesn't exist
+     */
+    public Object getValue(int row, String column) {
+        Integer index = columnIndex.get(column);
+        return index == null ? null : getValue(row, index);
+    }
+
+    /**
+     * Returns a read only view of the row
+     *
+     * @param row Row number (0 based)
+     * @return Map of values keyed on the column name
+     */
+    @Override
+    public Map<String, Object> get(int row) {
+        if (row < 0 || row >= rowCount)
+            throw new IndexOutOfBoundsException("Row " + row + " is outside of the table size " + rowCount);
+        return new Row(row);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return rowCount;
+    }
+
+    /**
+     * Read only map view of a single row of the table
+     */
+    private class Row extends AbstractMap<String, Object> {
+
+        private final int row;
+
+        /**
+         * Creates a view of the row
+         *
+         * @param row Row number
+         */
+        Row(int row) {
+            this.row = row;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Object get(Object key) {
+            Integer index = columnIndex.get(key);
+            return index == null ? null : columns[index].get(row);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean containsKey(Object key) {
+            return columnIndex.containsKey(key);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int size() {
+            return columnNames.length;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int column;
+
+                        @Override
+                        public boolean hasNext() {
+                            return column < columnNames.length;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if (column >= columnNames.length) throw new NoSuchElementException();
+                            Entry<String, Object> entry = new SimpleImmutableEntry<>(columnNames[column], columns[column].get(row));
+                            column++;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException("Result table rows are read only");
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return columnNames.length;
+                }
+            };
+        }
+    }
+
+    /**
+     * Storage for the values of a single column
+     * Columns start off untyped and are replaced by a typed column when the first
+     * value arrives - if a later value doesn't fit the type, the column is
+     * widened to a general object column
+     */
+    private abstract static class Column implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Returns the value at the row
+         *
+         * @param row Row number
+         * @return Value or null
+         */
+        abstract Object get(int row);
+
+        /**
+         * Appends the value to the column
+         *
+         * @param value Value to add
+         * @param row   Row number of the value
+         * @return The column to use from now on (this or a wider replacement)
+         */
+        abstract Column add(Object value, int row);
+
+        /**
+         * Releases any spare capacity
+         *
+         * @param size Number of rows in the table
+         */
+        abstract void trimToSize(int size);
+
+        /**
+         * Returns a new capacity that will accommodate the row
+         *
+         * @param capacity Current capacity
+         * @param row      Row number to accommodate
+         * @return New capacity
+         */
+        static int grow(int capacity, int row) {
+            return Math.max(row + 1, Math.max(INITIAL_CAPACITY, capacity + (capacity >> 1)));
+        }
+
+        /**
+         * Creates the most compact column for the type of value
+         *
+         * @param value First non-null value in the column
+         * @return Typed column
+         */
+        static Column forValue(Object value) {
+            if (value instanceof Integer)
+                return new IntColumn();
+            else if (value instanceof Long)
+                return new LongColumn();
+            else if (value instanceof Double)
+                return new DoubleColumn();
+            else
+                return new ObjectColumn();
+        }
+
+        /**
+         * Copies the existing values into a general purpose column
+         *
+         * @param size Number of rows already in this column
+         * @return Object column containing the same values
+         */
+        Column widen(int size) {
+            ObjectColumn column = new ObjectColumn();
+            for (int i = 0; i < size; i++) {
+                column.add(get(i), i);
+            }
+            return column;
+        }
+    }
+
+    /**
+     * A column that has only seen null values so far
+     */
+    private static class NullColumn extends Column {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        Object get(int row) {
+            return null;
+        }
+
+        @Override
+        Column add(Object value, int row) {
+            return value == null ? this : forValue(value).add(value, row);
+        }
+
+        @Override
+        void trimToSize(int size) {
+        }
+    }
+
+    /**
+     * Base class for columns that store their values in a primitive array
+     */
+    private abstract static class PrimitiveColumn extends Column {
+
+        private static final long serialVersionUID = 1L;
+
+        BitSet nulls = new BitSet();
+        int size;
+
+        @Override
+        Object get(int row) {
+            return row >= size || nulls.get(row) ? null : getValue(row);
+        }
+
+        @Override
+        Column add(Object value, int row) {
+            if (value == null) {
+                nulls.set(row);
+            }
+            else if (!accepts(value)) {
+                return widen(row).add(value, row);
+            }
+            else {
+
+                // Any rows skipped since the last value are nulls
+
+                if (row > size) nulls.set(size, row);
+                ensureCapacity(row);
+                setValue(row, value);
+                size = row + 1;
+            }
+            return this;
+        }
+
+        /**
+         * Returns true if the value can be stored in this column
+         *
+         * @param value Non-null value
+         * @return True if acceptable
+         */
+        abstract boolean accepts(Object value);
+
+        /**
+         * Makes sure the arrays can hold the row
+         *
+         * @param row Row number
+         */
+        abstract void ensureCapacity(int row);
+
+        /**
+         * Stores the value in the arrays
+         *
+         * @param row   Row number
+         * @param value Non-null value
+         */
+        abstract void setValue(int row, Object value);
+
+        /**
+         * Gets the non-null value from the arrays
+         *
+         * @param row Row number
+         * @return Boxed value
+         */
+        abstract Object getValue(int row);
+    }
+
+    /**
+     * Column of Integer values
+     */
+    private static class IntColumn extends PrimitiveColumn {
+
+        private static final long serialVersionUID = 1L;
+
+        private int[] values = new int[0];
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Integer;
+        }
+
+        @Override
+        void ensureCapacity(int row) {
+            if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = (Integer)value;
+        }
+
+        @Override
+        Object getValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        void trimToSize(int size) {
+            values = Arrays.copyOf(values, this.size);
+        }
+    }
+
+    /**
+     * Column of Long values
+     */
+    private static class LongColumn extends PrimitiveColumn {
+
+        private static final long serialVersionUID = 1L;
+
+        private long[] values = new long[0];
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Long;
+        }
+
+        @Override
+        void ensureCapacity(int row) {
+            if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = (Long)value;
+        }
+
+        @Override
+        Object getValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        void trimToSize(int size) {
+            values = Arrays.copyOf(values, this.size);
+        }
+    }
+
+    /**
+     * Column of Double values
+     */
+    private static class DoubleColumn extends PrimitiveColumn {
+
+        private static final long serialVersionUID = 1L;
+
+        private double[] values = new double[0];
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Double;
+        }
+
+        @Override
+        void ensureCapacity(int row) {
+            if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = (Double)value;
+        }
+
+        @Override
+        Object getValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        void trimToSize(int size) {
+            values = Arrays.copyOf(values, this.size);
+        }
+    }
+
+    /**
+     * Column of any other type of value
+     * Repeated strings share the same instance and mutable values are
+     * copied on the way out
+     */
+    private static class ObjectColumn extends Column {
+
+        private static final long serialVersionUID = 1L;
+
+        private Object[] values = new Object[0];
+        private transient Map<String, String> sharedStrings = new HashMap<>();
+
+        @Override
+        Object get(int row) {
+            return row < values.length ? DataSourceUtils.cloneValueOf(values[row]) : null;
+        }
+
+        @Override
+        Column add(Object value, int row) {
+            if (value != null) {
+                if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+                if (value instanceof String && sharedStrings != null) {
+                    String shared = sharedStrings.get(value);
+                    if (shared != null)
+                        value = shared;
+                    else if (sharedStrings.size() < MAXIMUM_SHARED_STRINGS)
+                        sharedStrings.put((String)value, (String)value);
+                }
+                values[row] = value;
+            }
+            return this;
+        }
+
+        @Override
+        void trimToSize(int size) {
+            values = Arrays.copyOf(values, size);
+            sharedStrings = null;
+        }
+    }
+}
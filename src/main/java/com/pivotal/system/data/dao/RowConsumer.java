@@ -0,0 +1,33 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.dao;
+
+import java.util.Map;
+
+/**
+ * Receives the rows of a query one at a time as they are read from
+ * the database by {@link Database#stream(String, RowConsumer)}
+ * Implementations must not hang on to the row maps if they want to
+ * keep the memory footprint of the query constant
+ */
+public interface RowConsumer {
+
+    /**
+     * Called once the query has run successfully, before the first row
+     * It isn't called at all if the query fails
+     */
+    void start();
+
+    /**
+     * Called for each row of the result set in the order they are read
+     *
+     * @param rowValues Map of column values keyed on the column name
+     */
+    void addRow(Map<String, Object> rowValues);
+}
@@ -231,6 +231,29 @@ public class DatasourceEntity extends AbstractEntity implements Serializable {
         cacheTriggerReport = report;
     }
 
+    private String cacheTriggerTables;
+
+    /**
+     * Returns the tables to watch for changes to decide which cached results to clear,
+     * as a comma separated list of table:column where the column is a sequence or timestamp
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Column(name = "cache_trigger_tables", length = 65535, precision = 0)
+    @Basic
+    public String getCacheTriggerTables() {
+        return cacheTriggerTables;
+    }
+
+    /**
+     * <p>Setter for the field <code>cacheTriggerTables</code>.</p>
+     *
+     * @param cacheTriggerTables a {@link java.lang.String} object.
+     */
+    public void setCacheTriggerTables(String cacheTriggerTables) {
+        this.cacheTriggerTables = cacheTriggerTables;
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean equals(Object obj) {
@@ -239,6 +262,7 @@ public class DatasourceEntity extends AbstractEntity implements Serializable {
         final DatasourceEntity other = (DatasourceEntity) obj;
         return Objects.equals(this.cacheTimeout, other.cacheTimeout) &&
                Objects.equals(this.getCacheTriggerReport(), other.getCacheTriggerReport()) &&
+               Objects.equals(this.cacheTriggerTables, other.cacheTriggerTables) &&
                Objects.equals(this.databaseUrl, other.databaseUrl) &&
                Objects.equals(this.description, other.description) &&
                Objects.equals(this.driver, other.driver) &&
@@ -264,6 +288,7 @@ public class DatasourceEntity extends AbstractEntity implements Serializable {
         return "DatasourceEntity{" +
                "cacheTimeout='" + cacheTimeout + '\'' +
                ", cacheTriggerReport=" + getCacheTriggerReport() +
+               ", cacheTriggerTables='" + cacheTriggerTables + '\'' +
                ", databaseUrl='" + databaseUrl + '\'' +
                ", description='" + description + '\'' +
                ", driver='" + driver + '\'' +
@@ -682,6 +707,6 @@ public class DatasourceEntity extends AbstractEntity implements Serializable {
     /** {@inheritDoc} */
     @Override
     public int hashCode() {
-        return Objects.hash(cacheTimeout, getCacheTriggerReport(), databaseUrl, description, driver, initSql, initialSize, maxActive, maxIdle, maxWait, minIdle, name, password, removeAbandoned, removeAbandonedTimeout, useCache, useConnectionPool, username, validationQuery);
+        return Objects.hash(cacheTimeout, getCacheTriggerReport(), cacheTriggerTables, databaseUrl, description, driver, initSql, initialSize, maxActive, maxIdle, maxWait, minIdle, name, password, removeAbandoned, removeAbandonedTimeout, useCache, useConnectionPool, username, validationQuery);
     }
 }
@@ -10,6 +10,7 @@ package com.pivotal.system.hibernate.entities;
 
 import com.pivotal.monitoring.utils.DefinitionSettings;
 import com.pivotal.reporting.reports.Report;
+import com.pivotal.system.hibernate.utils.CacheInvalidator;
 import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.system.security.CaseManager;
 import com.pivotal.utils.Common;
@@ -1230,6 +1231,10 @@ public class ScheduledTaskEntity extends AbstractEntity implements Serializable
             if (rows>0) {
                 HibernateUtils.commit();
                 HibernateUtils.flush();
+
+                // A bulk update doesn't tell the other nodes, so do it ourselves
+
+                CacheInvalidator.invalidateEntity(ScheduledTaskEntity.class);
                 logger.info("Cleared status for {} tasks belonging to [{}]", rows, ServletHelper.getAppIdentity());
             }
             else {
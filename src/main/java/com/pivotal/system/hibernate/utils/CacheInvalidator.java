@@ -0,0 +1,442 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.hibernate.utils;
+
+import com.pivotal.system.data.dao.Database;
+import com.pivotal.system.data.dao.DatabaseHibernate;
+import com.pivotal.utils.Common;
+import com.pivotal.utils.PivotalException;
+import com.pivotal.utils.VelocityCacheDirective;
+import com.pivotal.web.servlet.ServletHelper;
+import com.pivotal.web.servlet.VelocityTemplateMixedResourceLoader;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.*;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.metadata.CollectionMetadata;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the 2nd level caches of all the nodes sharing the NRMM database in step
+ * Hibernate tells us about every committed update or delete of a cached entity
+ * and every change to a cached collection - these are queued and periodically
+ * written to the cache_invalidation table by the event monitor, which also reads
+ * the messages written by the other nodes and evicts just the affected entries
+ * from the local cache
+ * Changes to whole tables are passed on in the same way so that the rendered
+ * fragments (see VelocityCacheDirective) and report templates that depend on
+ * them are discarded on every node
+ * Message ids are taken from a sequence when the row is inserted, not when it is
+ * committed, so a message can become visible after one with a higher id has
+ * been read - any ids skipped over between two messages that have been read
+ * are remembered and looked for again on the following reads until they turn
+ * up or are old enough to have been rolled back
+ */
+public class CacheInvalidator implements PostUpdateEventListener, PostDeleteEventListener,
+                                         PostCollectionRecreateEventListener, PostCollectionUpdateEventListener, PostCollectionRemoveEventListener {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(CacheInvalidator.class);
+    private static final long serialVersionUID = 3906447162513079532L;
+
+    // Entity name used to tell the other nodes to clear everything
+    private static final String ALL_ENTITIES = "*";
+
+    // Entity name used to tell the other nodes that a table has changed - the id is the table name
+    private static final String TABLE_CHANGE = "#table";
+
+    // The number of messages written in a single statement
+    private static final int MAX_ROWS_PER_STATEMENT = 200;
+
+    // How long messages are kept in the table before they are removed
+    private static final long MESSAGE_RETENTION = 60 * 60 * 1000L;
+
+    // How long to keep looking for a skipped message id and the most to look for
+    private static final long MISSING_TIMEOUT = 2 * 60 * 1000L;
+    private static final int MAX_MISSING = 1000;
+
+    // Unique name of this node so that it can ignore its own messages
+    private static final String NODE = ServletHelper.getNodeIdentity();
+
+    private static final Queue<Message> pending = new ConcurrentLinkedQueue<>();
+    private static long lastMessageId = -1;
+    private static final Map<Long, Long> missingIds = new LinkedHashMap<>();
+    private static long lastPurge;
+
+    /**
+     * Adds the invalidation listeners to the configuration
+     *
+     * @param configuration Configuration to add the listeners to
+     */
+    static synchronized void register(Configuration configuration) {
+
+        // Start again from the most recent message when the factory is rebuilt
+
+        lastMessageId = -1;
+        missingIds.clear();
+        CacheInvalidator listener = new CacheInvalidator();
+        EventListeners listeners = configuration.getEventListeners();
+        listeners.setPostCommitUpdateEventListeners(add(listeners.getPostCommitUpdateEventListeners(), listener, PostUpdateEventListener.class));
+        listeners.setPostCommitDeleteEventListeners(add(listeners.getPostCommitDeleteEventListeners(), listener, PostDeleteEventListener.class));
+        listeners.setPostCollectionRecreateEventListeners(add(listeners.getPostCollectionRecreateEventListeners(), listener, PostCollectionRecreateEventListener.class));
+        listeners.setPostCollectionUpdateEventListeners(add(listeners.getPostCollectionUpdateEventListeners(), listener, PostCollectionUpdateEventListener.class));
+        listeners.setPostCollectionRemoveEventListeners(add(listeners.getPostCollectionRemoveEventListeners(), listener, PostCollectionRemoveEventListener.class));
+    }
+
+    /**
+     * Clears the whole of the local cache and tells the other nodes to do the same
+     * This should only be used when the database has been changed underneath Hibernate
+     * e.g. after a reload
+     */
+    public static void invalidateAll() {
+        HibernateUtils.clearCache();
+        pending.add(new Message(ALL_ENTITIES, null, null));
+    }
+
+    /**
+     * Evicts every cached instance of the entity from the local cache and tells
+     * the other nodes to do the same
+     * Bulk HQL and native SQL changes don't raise any Hibernate events so they
+     * must call this once they have been committed
+     *
+     * @param entityClass Class of the entity that has changed
+     */
+    public static void invalidateEntity(Class<?> entityClass) {
+        invalidateEntity(entityClass, null);
+    }
+
+    /**
+     * Evicts the cached entity from the local cache and tells the other nodes
+     * to do the same
+     * Bulk HQL and native SQL changes don't raise any Hibernate events so they
+     * must call this once they have been committed
+     *
+     * @param entityClass Class of the entity that has changed
+     * @param id Identifier of the entity or null for all of them
+     */
+    public static void invalidateEntity(Class<?> entityClass, Serializable id) {
+        Message message = new Message(entityClass.getName(), id, null);
+        SessionFactory factory = HibernateUtils.getSessionFactory();
+        if (factory != null) {
+            evict(factory, message.entityName, message.id, null);
+        }
+        pending.add(message);
+    }
+
+    /**
+     * Discards everything held locally that was built from the table and tells
+     * the other nodes to do the same
+     *
+     * @param table Name of the table that has changed
+     */
+    public static void invalidateTable(String table) {
+        if (!Common.isBlank(table)) {
+            applyTableChange(table);
+            pending.add(new Message(TABLE_CHANGE, table, null));
+        }
+    }
+
+    /**
+     * Discards the rendered output that shows the table and, if it is the
+     * report table, the report templates
+     *
+     * @param table Name of the table that has changed
+     */
+    private static void applyTableChange(String table) {
+        VelocityCacheDirective.invalidate(table);
+        if (Common.doStringsMatch(table, "report")) {
+            VelocityTemplateMixedResourceLoader.clearCache();
+        }
+    }
+
+    /**
+     * Writes all the queued invalidations to the database for the other nodes
+     * to pick up
+     */
+    public static void publish() {
+        Set<Message> unique = new LinkedHashSet<>();
+        Message message;
+        while ((message = pending.poll()) != null) {
+            unique.add(message);
+        }
+        List<Message> messages = new ArrayList<>(unique);
+        if (!messages.isEmpty()) {
+            logger.debug("Publishing {} cache invalidations", messages.size());
+            Database db = new DatabaseHibernate();
+            try {
+                for (int start = 0; start < messages.size(); start += MAX_ROWS_PER_STATEMENT) {
+                    List<Message> rows = messages.subList(start, Math.min(messages.size(), start + MAX_ROWS_PER_STATEMENT));
+                    StringBuilder sql = new StringBuilder("insert into cache_invalidation (node,entity_name,entity_id,collection_role) values ");
+                    List<Object> parameters = new ArrayList<>();
+                    for (int i = 0; i < rows.size(); i++) {
+                        sql.append(i == 0 ? "" : ",").append("(?,?,?,?)");
+                        parameters.add(NODE);
+                        parameters.add(rows.get(i).entityName);
+                        parameters.add(rows.get(i).id);
+                        parameters.add(rows.get(i).role);
+                    }
+                    if (!db.execute(sql.toString(), parameters.toArray())) {
+                        logger.error("Cannot publish cache invalidations - {}", db.getLastError());
+                    }
+                }
+            }
+            finally {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the invalidations published by the other nodes since the last time
+     * and evicts the affected entries from the local cache
+     * Old messages are removed from the table once an hour
+     *
+     * @return True if anything was evicted
+     */
+    public static synchronized boolean receive() {
+        boolean returnValue = false;
+        SessionFactory factory = HibernateUtils.getSessionFactory();
+        Database db = new DatabaseHibernate();
+        try {
+
+            // When first called there is nothing we can have missed so just
+            // start from the most recent message or, if the table is empty, the
+            // last id handed out by the sequence so that none of the ids that
+            // were used before are thought to have been skipped
+
+            if (lastMessageId < 0) {
+                List<Map<String, Object>> rows = db.find("select coalesce(max(id), (select case when is_called then last_value else last_value - 1 end from cache_invalidation_id_seq)) as id from cache_invalidation", true);
+                if (db.isInError()) {
+                    logger.error("Cannot read cache invalidations - {}", db.getLastError());
+                    return false;
+                }
+                lastMessageId = Common.isBlank(rows) || rows.get(0).get("id") == null ? 0 : ((Number) rows.get(0).get("id")).longValue();
+            }
+            else {
+
+                // Read everything new plus anything we skipped that may have been committed since
+                // The last message is read again so that the gap after it can be seen
+
+                StringBuilder sql = new StringBuilder("select id,node,entity_name,entity_id,collection_role from cache_invalidation where id >= ?");
+                List<Object> parameters = new ArrayList<>();
+                parameters.add(lastMessageId);
+                long now = System.currentTimeMillis();
+                Iterator<Long> timeouts = missingIds.values().iterator();
+                while (timeouts.hasNext()) {
+                    if (now - timeouts.next() > MISSING_TIMEOUT) timeouts.remove();
+                }
+                if (!missingIds.isEmpty()) {
+                    sql.append(" or id in (");
+                    for (Long id : missingIds.keySet()) {
+                        sql.append(parameters.size() > 1 ? ",?" : "?");
+                        parameters.add(id);
+                    }
+                    sql.append(')');
+                }
+                List<Map<String, Object>> rows = db.find(sql + " order by id", true, parameters.toArray());
+                if (db.isInError()) {
+                    logger.error("Cannot read cache invalidations - {}", db.getLastError());
+                }
+                else if (!Common.isBlank(rows)) {
+
+                    // Only the ids between two messages read here can have been skipped -
+                    // the id we started from may never have been used
+
+                    long previousId = -1;
+                    for (Map<String, Object> row : rows) {
+                        long id = ((Number) row.get("id")).longValue();
+                        if (id == lastMessageId) {
+                            previousId = id;
+                            continue;
+                        }
+                        else if (id > lastMessageId) {
+                            if (previousId >= 0) {
+                                for (long skipped = previousId + 1; skipped < id && missingIds.size() < MAX_MISSING; skipped++) {
+                                    missingIds.put(skipped, now);
+                                }
+                            }
+                            previousId = id;
+                            lastMessageId = id;
+                        }
+                        else {
+                            missingIds.remove(id);
+                        }
+                        if (!NODE.equals(row.get("node")) && (factory != null || TABLE_CHANGE.equals(row.get("entity_name")))) {
+                            returnValue = true;
+                            evict(factory, (String) row.get("entity_name"), (String) row.get("entity_id"), (String) row.get("collection_role"));
+                        }
+                    }
+                }
+            }
+
+            // Tidy up the table
+
+            if (System.currentTimeMillis() - lastPurge > MESSAGE_RETENTION) {
+                if (!db.execute("delete from cache_invalidation where time_added < ?", new java.sql.Timestamp(System.currentTimeMillis() - MESSAGE_RETENTION))) {
+                    logger.error("Cannot remove old cache invalidations - {}", db.getLastError());
+                }
+                lastPurge = System.currentTimeMillis();
+            }
+        }
+        finally {
+            db.close();
+        }
+        return returnValue;
+    }
+
+    /**
+     * Evicts the entity or collection from the local cache
+     *
+     * @param factory Session factory holding the cache
+     * @param entityName Name of the entity or * for everything
+     * @param id Identifier of the entity or collection owner
+     * @param role Collection role or null if this is an entity
+     */
+    private static void evict(SessionFactory factory, String entityName, String id, String role) {
+        try {
+            if (TABLE_CHANGE.equals(entityName)) {
+                applyTableChange(id);
+            }
+            else if (ALL_ENTITIES.equals(entityName)) {
+                logger.debug("Clearing the Hibernate cache at the request of another node");
+                HibernateUtils.clearCache();
+            }
+            else if (!Common.isBlank(role)) {
+                CollectionMetadata metadata = factory.getCollectionMetadata(role);
+                if (metadata != null) {
+                    if (id == null)
+                        factory.getCache().evictCollectionRegion(role);
+                    else
+                        factory.getCache().evictCollection(role, toIdentifier(metadata.getKeyType(), id));
+                }
+            }
+            else {
+                ClassMetadata metadata = factory.getClassMetadata(entityName);
+                if (metadata != null) {
+                    if (id == null)
+                        factory.getCache().evictEntityRegion(entityName);
+                    else
+                        factory.getCache().evictEntity(entityName, toIdentifier(metadata.getIdentifierType(), id));
+                }
+            }
+        }
+        catch (Exception e) {
+            logger.warn("Problem evicting [{}] [{}] from the cache - {}", entityName + (role == null ? "" : " " + role), id, PivotalException.getErrorMessage(e));
+        }
+    }
+
+    /**
+     * Converts the stored identifier back into the type used by Hibernate
+     *
+     * @param type Identifier type
+     * @param id String version of the identifier
+     *
+     * @return Identifier
+     */
+    private static Serializable toIdentifier(Type type, String id) {
+        Class returnedClass = type.getReturnedClass();
+        if (Integer.class.equals(returnedClass) || int.class.equals(returnedClass))
+            return Integer.valueOf(id);
+        else if (Long.class.equals(returnedClass) || long.class.equals(returnedClass))
+            return Long.valueOf(id);
+        else
+            return id;
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (event.getPersister().hasCache()) {
+            pending.add(new Message(event.getPersister().getEntityName(), event.getId(), null));
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (event.getPersister().hasCache()) {
+            pending.add(new Message(event.getPersister().getEntityName(), event.getId(), null));
+        }
+    }
+
+    @Override
+    public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+        addCollection(event);
+    }
+
+    @Override
+    public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+        addCollection(event);
+    }
+
+    @Override
+    public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+        addCollection(event);
+    }
+
+    /**
+     * Queues an invalidation for the collection if it is cached
+     *
+     * @param event Collection event
+     */
+    private static void addCollection(AbstractCollectionEvent event) {
+        String role = event.getCollection().getRole();
+        if (role != null && event.getSession().getFactory().getCollectionPersister(role).hasCache()) {
+            pending.add(new Message(event.getAffectedOwnerEntityName(), event.getAffectedOwnerIdOrNull(), role));
+        }
+    }
+
+    /**
+     * Appends the listener to the existing listeners
+     *
+     * @param existing Current listeners
+     * @param listener Listener to add
+     * @param type Type of the listeners
+     * @param <T> Listener type
+     *
+     * @return New array of listeners
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] add(T[] existing, T listener, Class<T> type) {
+        int length = existing == null ? 0 : existing.length;
+        T[] returnValue = (T[]) java.lang.reflect.Array.newInstance(type, length + 1);
+        if (length > 0) System.arraycopy(existing, 0, returnValue, 0, length);
+        returnValue[length] = listener;
+        return returnValue;
+    }
+
+    /**
+     * A single invalidation
+     */
+    private static class Message {
+        private final String entityName;
+        private final String id;
+        private final String role;
+
+        Message(String entityName, Serializable id, String role) {
+            this.entityName = entityName;
+            this.id = id == null ? null : id.toString();
+            this.role = role;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Message)) return false;
+            Message other = (Message) obj;
+            return Objects.equals(entityName, other.entityName) && Objects.equals(id, other.id) && Objects.equals(role, other.role);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entityName, id, role);
+        }
+    }
+}
@@ -287,6 +287,16 @@ public class HibernateUtils {
      */
     public static final Integer SETTING_LOG_MONTHS_DEFAULT = 12;
 
+    //** Number of days after which the performance entries in the log table are rolled up into hours, 0 to keep every minute
+    /**
+     * Constant <code>SETTING_LOG_ROLLUP_DAYS="system.setting.log.rollup.days"</code>
+     */
+    public static final String SETTING_LOG_ROLLUP_DAYS = "system.setting.log.rollup.days";
+    /**
+     * Constant <code>SETTING_LOG_ROLLUP_DAYS_DEFAULT=0</code>
+     */
+    public static final Integer SETTING_LOG_ROLLUP_DAYS_DEFAULT = 0;
+
     //** Flag to indicate which which is the selected database cache
     /**
      * Constant <code>SETTING_CACHE_ENGINE="system.setting.cache.engine"</code>
@@ -350,6 +360,26 @@ public class HibernateUtils {
      */
     public static final String SETTING_CACHE_MEMCACHED_SERVERS_DEFAULT = "";
 
+    //** Number of objects to hold locally in front of memcached
+    /**
+     * Constant <code>SETTING_CACHE_NEAR_SIZE="system.setting.cache.near.size"</code>
+     */
+    public static final String SETTING_CACHE_NEAR_SIZE = "system.setting.cache.near.size";
+    /**
+     * Constant <code>SETTING_CACHE_NEAR_SIZE_DEFAULT</code>
+     */
+    public static final Integer SETTING_CACHE_NEAR_SIZE_DEFAULT = 0;
+
+    //** Maximum time to hold an object locally in front of memcached
+    /**
+     * Constant <code>SETTING_CACHE_NEAR_TIMEOUT="system.setting.cache.near.timeout"</code>
+     */
+    public static final String SETTING_CACHE_NEAR_TIMEOUT = "system.setting.cache.near.timeout";
+    /**
+     * Constant <code>SETTING_CACHE_NEAR_TIMEOUT_DEFAULT</code>
+     */
+    public static final Integer SETTING_CACHE_NEAR_TIMEOUT_DEFAULT = 60;
+
     //** The expiration time of an cached object
     /**
      * Constant <code>SETTING_CACHE_EXPIRATION="system.setting.cache.expiration"</code>
@@ -360,6 +390,36 @@ public class HibernateUtils {
      */
     public static final Integer SETTING_CACHE_EXPIRATION_DEFAULT = 300;
 
+    //** Flag to indicate if updates only clear the cached queries that read the tables changed
+    /**
+     * Constant <code>SETTING_CACHE_INVALIDATE_TABLES="system.setting.cache.invalidate.tables"</code>
+     */
+    public static final String SETTING_CACHE_INVALIDATE_TABLES = "system.setting.cache.invalidate.tables";
+    /**
+     * Constant <code>SETTING_CACHE_INVALIDATE_TABLES_DEFAULT=false</code>
+     */
+    public static final boolean SETTING_CACHE_INVALIDATE_TABLES_DEFAULT = false;
+
+    //** The time to keep serving an expired object while a single request reloads it
+    /**
+     * Constant <code>SETTING_CACHE_STALE_PERIOD="system.setting.cache.stale.period"</code>
+     */
+    public static final String SETTING_CACHE_STALE_PERIOD = "system.setting.cache.stale.period";
+    /**
+     * Constant <code>SETTING_CACHE_STALE_PERIOD_DEFAULT</code>
+     */
+    public static final Integer SETTING_CACHE_STALE_PERIOD_DEFAULT = 0;
+
+    //** Flag to indicate if expensive objects can be refreshed just before they expire
+    /**
+     * Constant <code>SETTING_CACHE_EARLY_REFRESH="system.setting.cache.early.refresh"</code>
+     */
+    public static final String SETTING_CACHE_EARLY_REFRESH = "system.setting.cache.early.refresh";
+    /**
+     * Constant <code>SETTING_CACHE_EARLY_REFRESH_DEFAULT=false</code>
+     */
+    public static final boolean SETTING_CACHE_EARLY_REFRESH_DEFAULT = false;
+
     //** The period of the background monitor thread
     /**
      * Constant <code>SETTING_MONITOR_PERIOD="system.setting.monitor.period"</code>
@@ -388,6 +448,36 @@ public class HibernateUtils {
      */
     public static final boolean SETTING_MONITOR_BYPASS_DISPATCHER_EVENTS_DEFAULT = false;
 
+    //** The maximum number of events that can be waiting for the monitor
+    /**
+     * Constant <code>SETTING_MONITOR_EVENT_QUEUE_SIZE="system.setting.monitor.event.queue.size"</code>
+     */
+    public static final String SETTING_MONITOR_EVENT_QUEUE_SIZE = "system.setting.monitor.event.queue.size";
+    /**
+     * Constant <code>SETTING_MONITOR_EVENT_QUEUE_SIZE_DEFAULT=100000</code>
+     */
+    public static final Integer SETTING_MONITOR_EVENT_QUEUE_SIZE_DEFAULT = 100000;
+
+    //** Comma separated list of the addresses that can read the metrics
+    /**
+     * Constant <code>SETTING_MONITOR_METRICS_ADDRESSES="system.setting.monitor.metrics.addresses"</code>
+     */
+    public static final String SETTING_MONITOR_METRICS_ADDRESSES = "system.setting.monitor.metrics.addresses";
+    /**
+     * Constant <code>SETTING_MONITOR_METRICS_ADDRESSES_DEFAULT=""</code>
+     */
+    public static final String SETTING_MONITOR_METRICS_ADDRESSES_DEFAULT = "";
+
+    //** Comma separated list of stage=seconds overriding the periods of the event monitor stages
+    /**
+     * Constant <code>SETTING_MONITOR_STAGE_PERIODS="system.setting.monitor.stage.periods"</code>
+     */
+    public static final String SETTING_MONITOR_STAGE_PERIODS = "system.setting.monitor.stage.periods";
+    /**
+     * Constant <code>SETTING_MONITOR_STAGE_PERIODS_DEFAULT=""</code>
+     */
+    public static final String SETTING_MONITOR_STAGE_PERIODS_DEFAULT = "";
+
     //** Turns on/off auto-start of search manager
     /**
      * Constant <code>SETTING_SEARCH_AUTOSTART="system.setting.search.manager.autostart"</code>
@@ -636,12 +726,6 @@ public class HibernateUtils {
      */
     public static final String SETTING_BACKUP_WORKFLOW_SETTINGS="system.settings.backup.workflow.settings";
 
-    //** The date of the latest change to the NRMM database
-    /**
-     * Constant <code>lastUpdate</code>
-     */
-    public static Date lastUpdate;
-
     // The datasources used by the application
     private static Map<String, AppDataSource> dsMap = new HashMap<>();
 
@@ -707,6 +791,10 @@ public class HibernateUtils {
 
                 configuration.setProperty("hibernate.dialect", getDataSource().getDialect());
 
+                // Listen for changes to cached entities so the other nodes can be told
+
+                CacheInvalidator.register(configuration);
+
                 // Build the factory
 
                 sessionFactory = configuration.buildSessionFactory();
@@ -2571,9 +2659,9 @@ public class HibernateUtils {
 
             ChangeLogEntity.addLogEntry(model, change);
 
-            // Update the last change
+            // Discard any rendered output or templates from this table on every node
 
-            lastUpdate = change.getTimeAdded();
+            CacheInvalidator.invalidateTable(change.getTableAffected());
         }
         catch (Exception e) {
             logger.error("Problem getting identity of entity - {}", PivotalException.getErrorMessage(e));
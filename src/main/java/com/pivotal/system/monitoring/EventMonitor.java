@@ -14,16 +14,16 @@ import com.pivotal.reporting.reports.Report;
 import com.pivotal.system.security.UserManager;
 import com.pivotal.system.data.cache.CacheAccessorFactory;
 import com.pivotal.system.data.cache.CacheEngine;
+import com.pivotal.system.data.cache.CacheTrigger;
 import com.pivotal.system.data.dao.Database;
 import com.pivotal.system.data.dao.DatabaseHibernate;
 import com.pivotal.system.data.dao.DatabaseApp;
 import com.pivotal.system.hibernate.entities.DatasourceEntity;
-import com.pivotal.system.hibernate.entities.LogEntity;
 import com.pivotal.system.hibernate.entities.ScheduledTaskEntity;
+import com.pivotal.system.hibernate.utils.CacheInvalidator;
 import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.utils.*;
 import com.pivotal.utils.VelocityUtils;
-import com.pivotal.web.servlet.ServletHelper;
 import com.pivotal.web.servlet.VelocityResourceCache;
 import com.sun.management.OperatingSystemMXBean;
 import org.apache.tomcat.jdbc.pool.DataSource;
@@ -40,12 +40,17 @@ import java.io.Writer;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryPoolMXBean;
 import java.math.BigInteger;
-import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides the main system event monitoring functionality
  * This mostly means checking for storage of events to the audit/log tables
+ * The work is split into stages that run on their own threads, so the run
+ * statistics of the monitor itself only cover starting the stages - the time
+ * taken by the work is in the statistics of each stage
  */
 public class EventMonitor extends Monitor {
 
@@ -67,11 +72,23 @@ public class EventMonitor extends Monitor {
     /** Constant <code>EVENT_REPORT="report"</code> */
     public static final String EVENT_REPORT = "report";
 
-    private static List<Event> eventQueue=new ArrayList<>();
+    // Events are added by every request thread so the queue is lock free and bounded
+    // If the monitor can't keep up then new events are dropped and counted rather
+    // than letting the queue grow without limit
+
+    private static final Queue<Event> eventQueue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger eventQueueSize = new AtomicInteger();
+    private static final AtomicLong droppedEvents = new AtomicLong();
+    private static volatile int eventQueueCapacity = HibernateUtils.SETTING_MONITOR_EVENT_QUEUE_SIZE_DEFAULT;
+    private static long lastDroppedEvents;
+
+    private static final LogAggregator logAggregator = new LogAggregator();
 
-    private static Date lastTruncateLogTable;
     private static EventMonitor instance;
 
+    private final List<MonitorStage> stages = createStages();
+    private ExecutorService stagePool;
+
     private static long lastSystemTime = System.nanoTime();
     private static long lastProcessCpuTime;
 
@@ -87,6 +104,7 @@ public class EventMonitor extends Monitor {
     public static EventMonitor init(String name, int period, int deadPeriod) {
         if (instance!=null) {
             instance.stopMonitor();
+            instance.stopStages();
         }
         instance = new EventMonitor();
         instance.setMonitorName(name);
@@ -111,103 +129,180 @@ public class EventMonitor extends Monitor {
      * Will shut down the manager
      */
     public static void shutdown() {
-        if (instance!=null) instance.stopMonitor();
+        if (instance!=null) {
+            instance.stopMonitor();
+            instance.stopStages();
+            logAggregator.flush(true);
+            CacheInvalidator.publish();
+        }
     }
 
-    /** {@inheritDoc} */
-    @Override
-    public void runTask() {
-
-        // Get a list of events to work on
+    /**
+     * Returns the stages carried out by the monitor
+     *
+     * @return List of stages
+     */
+    public List<MonitorStage> getStages() {
+        return stages;
+    }
 
-        Progress localProgress = new Progress();
-        List<Event> events = getEventQueue(true);
+    /**
+     * Creates the stages of work carried out by the monitor, each with its default
+     * period and timeout in seconds
+     *
+     * @return List of stages
+     */
+    private List<MonitorStage> createStages() {
+        List<MonitorStage> returnValue = new ArrayList<>();
 
-        // Process any dispatcher events
+        // Process the dispatcher and user status events
 
-        if (isRunning) {
-            if (!HibernateUtils.getSystemSetting(HibernateUtils.SETTING_MONITOR_BYPASS_DISPATCHER_EVENTS, HibernateUtils.SETTING_MONITOR_BYPASS_DISPATCHER_EVENTS_DEFAULT)) {
-                try {
+        returnValue.add(new MonitorStage("events", 0, 120) {
+            @Override
+            protected void execute() {
+                List<Event> events = getEventQueue(true);
+                if (!HibernateUtils.getSystemSetting(HibernateUtils.SETTING_MONITOR_BYPASS_DISPATCHER_EVENTS, HibernateUtils.SETTING_MONITOR_BYPASS_DISPATCHER_EVENTS_DEFAULT)) {
                     checkDispatcherEvents(events);
                 }
-                catch (Exception e) {
-                    logger.error("Problem handling Dispatcher events - {}", PivotalException.getErrorMessage(e));
-                }
-                logger.debug("checkDispatcherEvents completed in {} seconds", localProgress.getSecondsElapsed(true));
-            }
-        }
-
-        // Process any user status events
-
-        if (isRunning) {
-            try {
                 checkUserStatusEvents(events);
             }
-            catch (Exception e) {
-                logger.error("Problem handling User Status events - {}", PivotalException.getErrorMessage(e));
-            }
-            logger.debug("checUserStatusEvents completed in {} seconds", localProgress.getSecondsElapsed(true));
-        }
+        });
 
         // Adds log entries for all the KPIs
 
-        if (isRunning) {
-            try {
+        returnValue.add(new MonitorStage("housekeeping", 60, 60) {
+            @Override
+            protected void execute() {
                 addHouseKeepingInfo();
             }
-            catch (Exception e) {
-                logger.error("Problem handling Housekeeping - {}", PivotalException.getErrorMessage(e));
-            }
-            logger.debug("addHouseKeepingInfo completed in {} seconds", localProgress.getSecondsElapsed(true));
-        }
+        });
 
         // Check for any data source caches that need invalidating
 
-        if (isRunning) {
-            try {
+        returnValue.add(new MonitorStage("cachetriggers", 0, 300) {
+            @Override
+            protected void execute() {
                 checkDatasourceCacheInvalidateTriggers();
             }
-            catch (Exception e) {
-                logger.error("Problem handling Cache Invalidation - {}", PivotalException.getErrorMessage(e));
-            }
-            logger.debug("checkDatasourceCacheInvalidateTriggers completed in {} seconds", localProgress.getSecondsElapsed(true));
-        }
+        });
 
-        // Delete old log entries, but only do this once per day
+        // Delete old log entries, the truncation itself only happens once per day
 
-        if (isRunning) {
-            try {
-                truncateLogTable();
+        returnValue.add(new MonitorStage("logtruncation", 3600, 1800) {
+            @Override
+            protected void execute() {
+                LogRetention.run();
             }
-            catch (Exception e) {
-                logger.error("Problem handling Log Truncation - {}", PivotalException.getErrorMessage(e));
-            }
-            logger.debug("truncateLogTable completed in {} seconds", localProgress.getSecondsElapsed(true));
-        }
+        });
 
-        // Check to see if the Hibernate cache is stale
+        // Keep the Hibernate cache in step with the other nodes
 
-        if (isRunning) {
-            try {
+        returnValue.add(new MonitorStage("hibernate", 0, 60) {
+            @Override
+            protected void execute() {
                 checkForStaleHibernate();
             }
-            catch (Exception e) {
-                logger.error("Problem handling Stale Hibernate - {}", PivotalException.getErrorMessage(e));
-            }
-            logger.debug("checkForStaleHibernate completed in {} seconds", localProgress.getSecondsElapsed(true));
-        }
+        });
 
         // Clear out any old files that can be deleted
 
-        if (isRunning) {
-            try {
+        returnValue.add(new MonitorStage("tempfiles", 60, 300) {
+            @Override
+            protected void execute() {
                 clearDeletedFiles();
             }
-            catch (Exception e) {
-                logger.error("Problem handling temporary file deletion - {}", PivotalException.getErrorMessage(e));
+        });
+
+        // Write the performance logs for any minutes that have finished
+
+        returnValue.add(new MonitorStage("logflush", 0, 120) {
+            @Override
+            protected void execute() {
+                logAggregator.flush(false);
+            }
+        });
+        return returnValue;
+    }
+
+    /**
+     * Creates the pool of threads that the stages are run on
+     * There is a thread for each stage because an interrupted stage that is
+     * stuck in a JDBC call keeps its thread until the call returns, and it
+     * mustn't stop the other stages from running
+     *
+     * @return Thread pool
+     */
+    private ExecutorService createStagePool() {
+        return Executors.newFixedThreadPool(stages.size(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, monitorName + " stage " + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void runTask() {
+
+        // Each tick starts any stages that are due on the worker pool
+        // Stages that are still running from before are left alone unless they
+        // have gone past their timeout
+
+        eventQueueCapacity = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_MONITOR_EVENT_QUEUE_SIZE, HibernateUtils.SETTING_MONITOR_EVENT_QUEUE_SIZE_DEFAULT);
+        Map<String, String> periods = getStagePeriods();
+        synchronized (stages) {
+            if (stagePool == null) stagePool = createStagePool();
+            for (MonitorStage stage : stages) {
+                if (!isRunning) break;
+                if (periods.containsKey(stage.getName())) {
+                    stage.setPeriod(Common.parseInt(periods.get(stage.getName())));
+                }
+                stage.schedule(stagePool);
+            }
+        }
+    }
+
+    /**
+     * Stops the stages from being run and interrupts any that are running
+     */
+    private void stopStages() {
+        synchronized (stages) {
+            if (stagePool != null) {
+                stagePool.shutdownNow();
+                try {
+                    if (!stagePool.awaitTermination(STOP_WAIT_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                        logger.warn("{} stages did not stop in time", monitorName);
+                    }
+                }
+                catch (InterruptedException e) {
+                    logger.debug("Interrupted waiting for the stages to stop");
+                }
+                stagePool = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the periods of the stages that have been overridden in the settings
+     *
+     * @return Map of periods in seconds keyed on the stage name
+     */
+    private static Map<String, String> getStagePeriods() {
+        Map<String, String> returnValue = new HashMap<>();
+        List<String> entries = Common.splitToList(HibernateUtils.getSystemSetting(HibernateUtils.SETTING_MONITOR_STAGE_PERIODS, HibernateUtils.SETTING_MONITOR_STAGE_PERIODS_DEFAULT));
+        if (!Common.isBlank(entries)) {
+            for (String entry : entries) {
+                String[] parts = entry.split("=", 2);
+                if (parts.length == 2) returnValue.put(parts[0].trim().toLowerCase(), parts[1].trim());
             }
-            logger.debug("clearDeletedFiles completed in {} seconds", localProgress.getSecondsElapsed(true));
         }
+        return returnValue;
     }
 
     /**
@@ -225,93 +320,26 @@ public class EventMonitor extends Monitor {
     }
 
     /**
-     * Adds a system log entry to the database with the default types etc
+     * Adds a system log entry with the default types etc
      *
      * @param type Type of the event
      * @param duration Duration or counter value
      */
     private static void addLogEntry(String type, long duration) {
-        addLogEntry(new Date(), EVENT_HOUSEKEEPING, type, false, false, duration, 1, 0);
+        addLogEntry(type, duration, 0);
     }
 
     /**
-     * Adds a system log entry to the database with the default types etc
+     * Adds a system log entry with the default types etc
+     * Entries are aggregated on the minute they occur in and written
+     * to the log table at the end of the monitor cycle
      *
      * @param type Type of the event
      * @param duration Duration or counter value
      * @param total Total value to use
      */
     private static void addLogEntry(String type, long duration, long total) {
-        addLogEntry(new Date(), EVENT_HOUSEKEEPING, type, false, false, duration, 1, total);
-    }
-
-    /**
-     * Adds a log entry to the system for the given counter name
-     *
-     * @param timeAdded Time of the event
-     * @param event Event name
-     * @param type Type of the event
-     * @param cumulative True if the duration is to be added to the existing value
-     * @param incrementTotal True if the total should be incremented
-     * @param increment Increment amount
-     * @param duration Duration or count value
-     */
-    private static void addLogEntry(Date timeAdded, String event, String type, boolean cumulative, boolean incrementTotal, long duration, int increment, long total) {
-
-        // We store these in the log table aggregated on the minute they occur in
-        // If the action is not cumulative, then we only add the entry once for any particular minute
-
-        Calendar tmp=Calendar.getInstance();
-        tmp.setTime(timeAdded);
-        tmp.set(Calendar.SECOND, 0);
-        tmp.set(Calendar.MILLISECOND, 0);
-
-        // Get existing log entry if it exists
-
-        LogEntity log=new LogEntity();
-        List<LogEntity> logs = HibernateUtils.selectEntities("from LogEntity where status=? and report_name=? and date_added=? and server_id=?",
-                                                                 event,
-                                                                 type,
-                                                                 tmp.getTime(),
-                                                                 ServletHelper.getAppIdentity());
-
-        // If we don't have any entry, then add it
-
-        boolean save=false;
-        if (Common.isBlank(logs)) {
-            log.setServerId(ServletHelper.getAppIdentity());
-            log.setStatus(event);
-            log.setReportName(type);
-            log.setDateAdded(new Timestamp(tmp.getTime().getTime()));
-            log.setTotal(0L);
-            log.setDuration(0L);
-            save=true;
-        }
-        else
-            log = logs.get(0);
-
-        // If this is a simple visit notification, then update the visit count
-        // else update the duration
-
-        if (cumulative)
-            log.setDuration(log.getDuration() + duration);
-        else {
-            save = save || log.getDuration()!=duration;
-            log.setDuration(duration);
-        }
-
-        // Update the totals
-
-        if (incrementTotal)
-            log.setTotal(log.getTotal() + increment);
-        else {
-            save = save || log.getTotal()!=total;
-            log.setTotal(total);
-        }
-
-        // Save the log entry
-
-        if (save) HibernateUtils.save(log);
+        logAggregator.setValue(new Date(), EVENT_HOUSEKEEPING, type, duration, total);
     }
 
     /**
@@ -321,42 +349,19 @@ public class EventMonitor extends Monitor {
      */
     private static void checkDispatcherEvents(List<Event> events) {
 
-        // Get a list of events to work on
-        // We need to accumulate these on minute boundaries otherwise it will create an enormous
-        // number of database updates
+        // Add the timings to the minute they occurred in, these are written
+        // to the log table in one go at the end of the cycle
 
-        Map<String, Event> eventList=new HashMap<>();
+        int count=0;
         for (int i=events.size()-1; i>=0; i--) {
             Event event=events.get(i);
             if (event.isName(EVENT_DISPATCHER)) {
-                Calendar tmp=Calendar.getInstance();
-                tmp.setTime(event.timeAdded);
-                tmp.set(Calendar.SECOND, 0);
-                tmp.set(Calendar.MILLISECOND, 0);
-                String key = tmp.getTime() + event.getType();
-                if (eventList.containsKey(key)) {
-                    event.duration += eventList.get(key).duration;
-                    event.count = eventList.get(key).count + 1;
-                }
-                else {
-                    event.count++;
-                }
-                eventList.put(key, event);
+                logAggregator.addTiming(event.timeAdded, EVENT_DISPATCHER, event.type, event.duration);
                 events.remove(i);
+                count++;
             }
         }
-
-        // If we have something to work on
-
-        if (!Common.isBlank(eventList)) {
-            logger.debug("Working on {} DispatcherEvents", eventList.size());
-            for (Event event : eventList.values()) {
-
-                // We store these in the log table aggregated on the minute they occur in
-
-                addLogEntry(event.timeAdded, EVENT_DISPATCHER, event.type, true, true, event.duration, event.count, 0);
-            }
-        }
+        if (count>0) logger.debug("Working on {} DispatcherEvents", count);
     }
 
     /**
@@ -396,111 +401,94 @@ public class EventMonitor extends Monitor {
     }
 
     /**
-     * This method runs all the datasource trigger reports to see if
-     * any caches can be invalidated
+     * This method checks the cache triggers of all the caching datasources
+     * to see if any cached results can be invalidated
+     * Datasources with watched tables are checked with a single query and only
+     * have the results from changed tables cleared, those with a trigger report
+     * run the report and clear everything if it asks
      */
     private static void checkDatasourceCacheInvalidateTriggers() {
 
         // Get a list of all the datasources to process
 
-        List<DatasourceEntity> datasources = HibernateUtils.selectEntities("from DatasourceEntity where useCache=true and cacheTriggerReport is not null");
+        List<DatasourceEntity> datasources = HibernateUtils.selectEntities("from DatasourceEntity where useCache=true and (cacheTriggerReport is not null or cacheTriggerTables is not null)");
         if (!Common.isBlank(datasources)) {
 
             // Loop round all the data sources
 
             for (DatasourceEntity datasource : datasources) {
-                logger.debug("Running cache trigger report for [{}]", datasource.getName());
-                Writer output=new StringWriter();
-                VelocityEngine engine;
-                DatabaseApp source=null;
-                try {
-                    engine= VelocityUtils.getEngine();
-                    source=new DatabaseApp(datasource);
-
-                    // Open a connection to the database(s)
-
-                    logger.debug("Opening source {}", datasource.getName());
-                    source.open();
-                    source.setMaximumResults(0);
-
-                    // Now add the useful stuff to the context
-
-                    logger.debug("Creating velocity context");
-                    Context context= VelocityUtils.getVelocityContext();
-                    context.put("ClearCache", false);
-                    context.put("Source", source);
-
-                    // Carry out the transformation using the script in the database
-
-                    String report= Report.getScript(datasource.getCacheTriggerReport());
-                    engine.evaluate(context, output, HibernateUtils.class.getSimpleName(), report);
-
-                    // Check the context to see if the magic variable "ClearCache" is set to true
-
-                    if ((Boolean)context.get("ClearCache")) {
-                        logger.debug("Clearing cache for [{}]", datasource.getName());
-                        CacheEngine.clear(datasource.getId());
-                    }
+                if (!Common.isBlank(datasource.getCacheTriggerTables())) {
+                    CacheTrigger.check(datasource);
                 }
-                catch (Throwable e) {
-                    logger.error("Problem running trigger report for [{}] - {}", datasource.getName(), PivotalException.getErrorMessage(e));
-                }
-                finally{
-                    Common.close(source);
+                if (datasource.getCacheTriggerReport() != null) {
+                    runCacheTriggerReport(datasource);
                 }
             }
         }
     }
 
     /**
-     * This method keeps the log table under some sort of control by
-     * only keeping a maximum of X months worth of entries in it
-     * Only do this check once per day
+     * Runs the trigger report of the datasource and clears the whole of its
+     * cache if the report sets ClearCache
+     *
+     * @param datasource Datasource to run the report for
      */
-    private static void truncateLogTable() {
-
+    private static void runCacheTriggerReport(DatasourceEntity datasource) {
+        logger.debug("Running cache trigger report for [{}]", datasource.getName());
+        Writer output=new StringWriter();
+        VelocityEngine engine;
+        DatabaseApp source=null;
         try {
-            if (lastTruncateLogTable==null || Common.getDay(lastTruncateLogTable) != Common.getDay(new Date())) {
-                logger.debug("Archiving {} log table entries older than {} months", Common.getAplicationName(),
-                        HibernateUtils.getSystemSetting(HibernateUtils.SETTING_LOG_MONTHS, HibernateUtils.SETTING_LOG_MONTHS_DEFAULT));
-                Date date = Common.addDate(new Date(), Calendar.MONTH, -HibernateUtils.getSystemSetting(HibernateUtils.SETTING_LOG_MONTHS, HibernateUtils.SETTING_LOG_MONTHS_DEFAULT));
-                HibernateUtils.executeSQL(String.format("delete from log where date_added < '%s'", Common.formatDate(date, "yyyy-MM-dd")));
-                lastTruncateLogTable = new Date();
+            engine= VelocityUtils.getEngine();
+            source=new DatabaseApp(datasource);
+
+            // Open a connection to the database(s)
+
+            logger.debug("Opening source {}", datasource.getName());
+            source.open();
+            source.setMaximumResults(0);
+
+            // Now add the useful stuff to the context
+
+            logger.debug("Creating velocity context");
+            Context context= VelocityUtils.getVelocityContext();
+            context.put("ClearCache", false);
+            context.put("Source", source);
+
+            // Carry out the transformation using the script in the database
+
+            String report= Report.getScript(datasource.getCacheTriggerReport());
+            engine.evaluate(context, output, HibernateUtils.class.getSimpleName(), report);
+
+            // Check the context to see if the magic variable "ClearCache" is set to true
+
+            if ((Boolean)context.get("ClearCache")) {
+                logger.debug("Clearing cache for [{}]", datasource.getName());
+                CacheEngine.clear(datasource.getId());
             }
         }
-        catch (Exception e) {
-            logger.error("Cannot truncate log entries - {}", PivotalException.getErrorMessage(e));
+        catch (Throwable e) {
+            logger.error("Problem running trigger report for [{}] - {}", datasource.getName(), PivotalException.getErrorMessage(e));
+        }
+        finally{
+            Common.close(source);
         }
     }
 
-
     /**
-     * This method checks to see when the last update was made in the database
-     * and compares that with the static date we have here.  If there is a difference,
-     * the hibernate caches are destroyed and re-created.
+     * Publishes the changes made to cached entities on this node and evicts
+     * the entities changed by the other nodes sharing the database from our
+     * Hibernate cache
      * This is necessary in a clustered environment where a change to the database
      * may have occurred on another node so we need to reload from the database.
-     * This wouldn't be the case of course if we were to be using a distributed cache.
      */
     private void checkForStaleHibernate() {
+        CacheInvalidator.publish();
+        if (CacheInvalidator.receive()) {
 
-        // Find the most recent audit entry
-
-        List<Object> lastChanges = HibernateUtils.selectSQLEntities("select time_added from change_log order by 1 desc limit 1");
-        if (!Common.isBlank(lastChanges)) {
-            Timestamp lastChange = (Timestamp)lastChanges.get(0);
-            if (HibernateUtils.lastUpdate!=null && HibernateUtils.lastUpdate.getTime()!=lastChange.getTime()) {
-
-                // Clear the hibernate cache
+            // Get the latest value for the period in case it was the settings that changed
 
-                logger.debug("Force clearing the stale Hibernate cache");
-                HibernateUtils.clearCache();
-
-                // Get the latest value for the period
-
-                monitorPeriod = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_MONITOR_PERIOD, monitorPeriod);
-            }
-            HibernateUtils.lastUpdate = lastChange;
+            monitorPeriod = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_MONITOR_PERIOD, monitorPeriod);
         }
     }
 
@@ -529,6 +517,15 @@ public class EventMonitor extends Monitor {
                 addLogEntry("permgen.percent.used." + mx.getName().replaceAll(" ", "").trim().toLowerCase(), percent);
         }
 
+        // Get the number of events that couldn't be queued since the last time
+
+        long dropped = droppedEvents.get();
+        if (dropped > lastDroppedEvents) {
+            logger.warn("Dropped {} events because the event queue was full", dropped - lastDroppedEvents);
+        }
+        addLogEntry("events.dropped", dropped - lastDroppedEvents);
+        lastDroppedEvents = dropped;
+
         // Get a count of the active threads
 
         addLogEntry("threads.count", Thread.activeCount());
@@ -618,8 +615,8 @@ public class EventMonitor extends Monitor {
      * @param eventType Type of the event
      * @param eventValue Value of the event
      */
-    public synchronized static void addEvent(String eventName, String eventType, String eventValue) {
-        eventQueue.add(new Event(eventName, eventType, eventValue));
+    public static void addEvent(String eventName, String eventType, String eventValue) {
+        queueEvent(new Event(eventName, eventType, eventValue));
     }
 
     /**
@@ -630,8 +627,8 @@ public class EventMonitor extends Monitor {
      * @param eventSubType Sub type of the event
      * @param eventValue Value of the event
      */
-    public synchronized static void addEvent(String eventName, String eventType, String eventSubType, String eventValue) {
-        eventQueue.add(new Event(eventName, eventType, eventSubType, eventValue));
+    public static void addEvent(String eventName, String eventType, String eventSubType, String eventValue) {
+        queueEvent(new Event(eventName, eventType, eventSubType, eventValue));
     }
 
     /**
@@ -641,8 +638,8 @@ public class EventMonitor extends Monitor {
      * @param eventType Type of the event
      * @param eventValue Value of the event
      */
-    public synchronized static void addEvent(String eventName, String eventType, long eventValue) {
-        eventQueue.add(new Event(eventName, eventType, eventValue));
+    public static void addEvent(String eventName, String eventType, long eventValue) {
+        queueEvent(new Event(eventName, eventType, eventValue));
     }
 
     /**
@@ -653,8 +650,43 @@ public class EventMonitor extends Monitor {
      * @param eventSubType Sub type of the event
      * @param eventValue Value of the event
      */
-    public synchronized static void addEvent(String eventName, String eventType, String eventSubType, long eventValue) {
-        eventQueue.add(new Event(eventName, eventType, eventSubType, eventValue));
+    public static void addEvent(String eventName, String eventType, String eventSubType, long eventValue) {
+        queueEvent(new Event(eventName, eventType, eventSubType, eventValue));
+    }
+
+    /**
+     * Adds the event to the queue if there is room for it, otherwise
+     * it is counted as dropped
+     *
+     * @param event Event to add
+     */
+    private static void queueEvent(Event event) {
+        if (eventQueueSize.incrementAndGet() > eventQueueCapacity) {
+            eventQueueSize.decrementAndGet();
+            droppedEvents.incrementAndGet();
+        }
+        else {
+            eventQueue.offer(event);
+        }
+    }
+
+    /**
+     * Returns the number of events that have been dropped since startup
+     * because the queue was full
+     *
+     * @return Number of dropped events
+     */
+    public static long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Returns the number of events waiting to be processed
+     *
+     * @return Number of queued events
+     */
+    public static int getEventQueueSize() {
+        return eventQueueSize.get();
     }
 
     /**
@@ -696,10 +728,23 @@ public class EventMonitor extends Monitor {
      * @param clear True if the queue should be cleared
      * @return Copy of the queue
      */
-    protected synchronized static List<Event> getEventQueue(boolean clear) {
+    protected static List<Event> getEventQueue(boolean clear) {
         List<Event> events=new ArrayList<>();
-        events.addAll(eventQueue);
-        if (clear) eventQueue.clear();
+        if (clear) {
+
+            // Only take the events that were there when we started so that
+            // busy producers can't keep us here
+
+            int count = eventQueueSize.get();
+            for (int i=0; i<count; i++) {
+                Event event = eventQueue.poll();
+                if (event==null) break;
+                eventQueueSize.decrementAndGet();
+                events.add(event);
+            }
+        }
+        else
+            events.addAll(eventQueue);
         return events;
     }
 
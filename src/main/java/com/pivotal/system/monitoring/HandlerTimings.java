@@ -0,0 +1,101 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a latency histogram for each of the controller methods that handle
+ * requests so that the slow pages can be found from real traffic
+ * Handlers are identified by the simple name of the controller class and the
+ * name of the method e.g. StatusController.populateJvm
+ */
+public class HandlerTimings {
+
+    private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Prevent instantiation
+     */
+    private HandlerTimings() {
+    }
+
+    /**
+     * Records the time taken by the handler to service a request
+     *
+     * @param handler Name of the handler
+     * @param duration Time taken in milliseconds
+     */
+    public static void record(String handler, long duration) {
+        LatencyHistogram histogram = histograms.get(handler);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(handler, histogram);
+            if (existing != null) histogram = existing;
+        }
+        histogram.record(duration);
+    }
+
+    /**
+     * Returns the histogram for the handler
+     *
+     * @param handler Name of the handler
+     *
+     * @return Histogram or null if the handler hasn't been used
+     */
+    public static LatencyHistogram getHistogram(String handler) {
+        return histograms.get(handler);
+    }
+
+    /**
+     * Returns the number of handlers that have been used
+     *
+     * @return Number of handlers
+     */
+    public static int getHandlerCount() {
+        return histograms.size();
+    }
+
+    /**
+     * Returns a summary of the latencies of every handler that has been used,
+     * slowest (by 99th percentile) first
+     *
+     * @return Map of summaries keyed on the handler name
+     */
+    public static Map<String, Map<String, Object>> getSummaries() {
+        List<Map.Entry<String, LatencyHistogram>> entries = new ArrayList<>(histograms.entrySet());
+        final Map<String, Long> percentiles = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : entries) {
+            percentiles.put(entry.getKey(), entry.getValue().getPercentile(99));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, LatencyHistogram>>() {
+            @Override
+            public int compare(Map.Entry<String, LatencyHistogram> o1, Map.Entry<String, LatencyHistogram> o2) {
+                int returnValue = percentiles.get(o2.getKey()).compareTo(percentiles.get(o1.getKey()));
+                return returnValue == 0 ? o1.getKey().compareTo(o2.getKey()) : returnValue;
+            }
+        });
+        Map<String, Map<String, Object>> returnValue = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : entries) {
+            returnValue.put(entry.getKey(), entry.getValue().getSummary());
+        }
+        return returnValue;
+    }
+
+    /**
+     * Clears the latencies of all the handlers
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies in milliseconds that can be recorded
+ * to from many threads at once without locking
+ * In the same way as an HDR histogram, values below 16 have a bucket each and
+ * every power of 2 above that is split into 8 equal buckets, so any value is
+ * held to within 12.5% using only a couple of hundred counters
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int FIRST_EXPONENT = 4;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency
+     *
+     * @param value Latency in milliseconds, negative values are treated as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(getBucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of latencies recorded
+     *
+     * @return Count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the total of the latencies recorded
+     *
+     * @return Sum in milliseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the mean of the latencies recorded
+     *
+     * @return Mean in milliseconds
+     */
+    public long getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : sum.get() / total;
+    }
+
+    /**
+     * Returns the largest latency recorded
+     *
+     * @return Maximum in milliseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value that the percentage of recorded latencies are at or below
+     * The value is the top of the bucket it falls in, limited to the maximum
+     *
+     * @param percentile Percentile e.g. 99.9
+     *
+     * @return Latency in milliseconds
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long target = Math.max(1, (long)Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) return Math.min(getBucketTop(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns a summary of the histogram
+     *
+     * @return Map of count, sum, mean, p50, p95, p99 and max
+     */
+    public Map<String, Object> getSummary() {
+        Map<String, Object> returnValue = new LinkedHashMap<>();
+        returnValue.put("count", getCount());
+        returnValue.put("sum", getSum());
+        returnValue.put("mean", getMean());
+        returnValue.put("p50", getPercentile(50));
+        returnValue.put("p95", getPercentile(95));
+        returnValue.put("p99", getPercentile(99));
+        returnValue.put("max", getMax());
+        return returnValue;
+    }
+
+    /**
+     * Clears all the recorded latencies
+     * Latencies recorded while this is happening may be partly kept
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns the bucket that the value falls in
+     *
+     * @param value Value to find
+     *
+     * @return Bucket index
+     */
+    private static int getBucket(long value) {
+        if (value < LINEAR_BUCKETS) return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value that falls in the bucket
+     *
+     * @param bucket Bucket index
+     *
+     * @return Largest value
+     */
+    private static long getBucketTop(int bucket) {
+        if (bucket < LINEAR_BUCKETS) return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import com.pivotal.system.data.dao.Database;
+import com.pivotal.system.data.dao.DatabaseHibernate;
+import com.pivotal.utils.Common;
+import com.pivotal.utils.JsonMapper;
+import com.pivotal.utils.PivotalException;
+import com.pivotal.web.servlet.ServletHelper;
+
+import java.sql.Timestamp;
+import java.util.*;
+
+/**
+ * Accumulates the performance metrics of this server in memory,
+ * aggregated on the minute they occur in, so that they can be written in
+ * a single statement rather than a select and save for every metric
+ * Only minutes that have finished are written so that each minute is
+ * normally written once, unless told to write everything e.g. at shutdown
+ * Alongside the duration and total columns of timings, the count, sum, min,
+ * max and a histogram of the values are stored as JSON in the parameter_values
+ * column - gauges only have the value and total
+ * A minute can be written again if events arrive late or the server is
+ * restarted within the minute it was stopped in - the statistics of these
+ * minutes are read back and merged with the new values before being written
+ */
+class LogAggregator {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LogAggregator.class);
+
+    // Upper bounds of the histogram buckets in milliseconds - the last bucket is unbounded
+
+    private static final long[] BUCKET_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    // Postgres limits a statement to 32767 parameters
+
+    private static final int MAX_ROWS_PER_STATEMENT = 500;
+
+    // Number of minutes to remember which entries have been written
+
+    private static final int RECENT_MINUTES = 10;
+
+    // Performance entries are unique on these columns (see app_patch-3.sql)
+
+    private static final String CONFLICT_TARGET = "(server_id,status,report_name,date_added) where status in ('" + EventMonitor.EVENT_DISPATCHER + "','" + EventMonitor.EVENT_HOUSEKEEPING + "')";
+
+    private final Map<String, Aggregate> aggregates = new LinkedHashMap<>();
+    private final Map<String, Long> recentlyWritten = new HashMap<>();
+    private boolean written;
+
+    /**
+     * Adds a timing or counting event to the minute it occurred in
+     * The durations are added together and the total is the number of events
+     *
+     * @param timeAdded Time of the event
+     * @param event Event name
+     * @param type Type of the event
+     * @param duration Duration of the event
+     */
+    synchronized void addTiming(Date timeAdded, String event, String type, long duration) {
+        getAggregate(timeAdded, event, type, true).add(duration);
+    }
+
+    /**
+     * Sets the value of a gauge for the minute it was read in
+     * The last value read in the minute is the one that is written
+     *
+     * @param timeAdded Time the value was read
+     * @param event Event name
+     * @param type Type of the value
+     * @param value Value read
+     * @param total Total value to use
+     */
+    synchronized void setValue(Date timeAdded, String event, String type, long value, long total) {
+        Aggregate aggregate = getAggregate(timeAdded, event, type, false);
+        aggregate.add(value);
+        aggregate.last = value;
+        aggregate.total = total;
+    }
+
+    /**
+     * Writes the aggregated entries to the log table and forgets them
+     * If the database can't be written to, the entries are dropped so
+     * that they don't build up
+     *
+     * @param all True if entries for the current minute should be written as well
+     */
+    void flush(boolean all) {
+
+        // Take the entries we're going to write
+
+        List<Aggregate> pending = new ArrayList<>();
+        List<Aggregate> rewrites = new ArrayList<>();
+        long currentMinute = getMinute(new Date());
+        synchronized (this) {
+            Iterator<Aggregate> iterator = aggregates.values().iterator();
+            while (iterator.hasNext()) {
+                Aggregate aggregate = iterator.next();
+                if (all || aggregate.minute < currentMinute) {
+                    pending.add(aggregate);
+                    iterator.remove();
+
+                    // Anything written before (or possibly before the server started) needs merging
+
+                    String key = aggregate.getKey();
+                    if (aggregate.cumulative && (!written || recentlyWritten.containsKey(key))) rewrites.add(aggregate);
+                    recentlyWritten.put(key, aggregate.minute);
+                }
+            }
+            written = written || !pending.isEmpty();
+            Iterator<Long> minutes = recentlyWritten.values().iterator();
+            while (minutes.hasNext()) {
+                if (minutes.next() < currentMinute - RECENT_MINUTES * 60000L) minutes.remove();
+            }
+        }
+
+        // Write them in as few statements as possible
+
+        if (!pending.isEmpty()) {
+            logger.debug("Writing {} aggregated log entries", pending.size());
+            Database db = new DatabaseHibernate();
+            try {
+                if (!rewrites.isEmpty()) mergeWritten(db, rewrites);
+
+                // Values added to an existing entry and values that replace it need different updates
+
+                List<Aggregate> additions = new ArrayList<>();
+                List<Aggregate> replacements = new ArrayList<>();
+                for (Aggregate aggregate : pending) {
+                    if (aggregate.cumulative && !aggregate.merged)
+                        additions.add(aggregate);
+                    else
+                        replacements.add(aggregate);
+                }
+                upsert(db, additions, true);
+                upsert(db, replacements, false);
+            }
+            catch (Exception e) {
+                logger.error("Cannot write aggregated log entries - {}", PivotalException.getErrorMessage(e));
+            }
+            finally {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the statistics of any of the entries that are already in the log
+     * table and merges them into the aggregates, which then replace the
+     * entries when written rather than being added to them
+     *
+     * @param db Database to use
+     * @param rewrites Cumulative aggregates that may have been written before
+     */
+    private static void mergeWritten(Database db, List<Aggregate> rewrites) {
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        Map<String, Aggregate> byKey = new HashMap<>();
+        for (Aggregate aggregate : rewrites) {
+            from = Math.min(from, aggregate.minute);
+            to = Math.max(to, aggregate.minute);
+            byKey.put(aggregate.getKey(), aggregate);
+        }
+        List<Map<String, Object>> rows = db.find("select status,report_name,date_added,parameter_values from log where server_id=? and date_added between ? and ?",
+                                                 true, ServletHelper.getAppIdentity(), new Timestamp(from), new Timestamp(to));
+        if (db.isInError()) {
+            logger.error("Cannot read written log entries - {}", db.getLastError());
+            return;
+        }
+        for (Map<String, Object> row : rows) {
+            Aggregate aggregate = byKey.get(((Date)row.get("date_added")).getTime() + "|" + row.get("status") + '|' + row.get("report_name"));
+            if (aggregate != null && !Common.isBlank((String)row.get("parameter_values"))) {
+                aggregate.merge(JsonMapper.deserializeIntoMap((String)row.get("parameter_values"), String.class, Object.class));
+            }
+        }
+    }
+
+    /**
+     * Returns the aggregate for the minute, creating it if necessary
+     *
+     * @param timeAdded Time of the event
+     * @param event Event name
+     * @param type Type of the event
+     * @param cumulative True if the values are added together
+     *
+     * @return Aggregate
+     */
+    private Aggregate getAggregate(Date timeAdded, String event, String type, boolean cumulative) {
+        Aggregate aggregate = new Aggregate(getMinute(timeAdded), event, type, cumulative);
+        Aggregate existing = aggregates.get(aggregate.getKey());
+        if (existing == null)
+            aggregates.put(aggregate.getKey(), aggregate);
+        else
+            aggregate = existing;
+        return aggregate;
+    }
+
+    /**
+     * Returns the start of the minute that the time falls in
+     *
+     * @param time Time to use
+     *
+     * @return Start of the minute in milliseconds
+     */
+    private static long getMinute(Date time) {
+        Calendar tmp = Calendar.getInstance();
+        tmp.setTime(time);
+        tmp.set(Calendar.SECOND, 0);
+        tmp.set(Calendar.MILLISECOND, 0);
+        return tmp.getTimeInMillis();
+    }
+
+    /**
+     * Writes the aggregates to the log table in as few statements as possible
+     *
+     * @param db Database to use
+     * @param aggregates Aggregates to write
+     * @param add True if the values are added to any existing entry rather than replacing it
+     */
+    private static void upsert(Database db, List<Aggregate> aggregates, boolean add) {
+        for (int start = 0; start < aggregates.size(); start += MAX_ROWS_PER_STATEMENT) {
+            List<Aggregate> rows = aggregates.subList(start, Math.min(aggregates.size(), start + MAX_ROWS_PER_STATEMENT));
+            if (!db.execute(getUpsertStatement(rows.size(), add), getUpsertParameters(rows))) {
+                logger.error("Cannot write aggregated log entries - {}", db.getLastError());
+            }
+        }
+    }
+
+    /**
+     * Returns a statement that inserts the log entries for the rows or, if
+     * they already exist, updates them
+     * The unique index on the performance entries makes this atomic, so two
+     * flushes of the same minute can't both insert an entry
+     * The statistics of an existing entry can't be combined by the database
+     * so if values are added to one they are cleared rather than left
+     * contradicting the duration and total
+     *
+     * @param rowCount Number of rows to upsert
+     * @param add True if the values are added to any existing entry rather than replacing it
+     *
+     * @return SQL statement
+     */
+    private static String getUpsertStatement(int rowCount, boolean add) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < rowCount; i++) {
+            if (i > 0) values.append(',');
+            values.append("(?,?,?,?,?,?,?)");
+        }
+        return "insert into log (server_id,status,report_name,date_added,duration,total,parameter_values) values " + values + '\n' +
+               "on conflict " + CONFLICT_TARGET + " do update set " +
+               (add ? "duration=coalesce(log.duration,0)+excluded.duration,total=coalesce(log.total,0)+excluded.total,parameter_values=null"
+                    : "duration=excluded.duration,total=excluded.total,parameter_values=excluded.parameter_values");
+    }
+
+    /**
+     * Returns the parameters of the upsert statement for the rows
+     *
+     * @param rows Aggregates to write
+     *
+     * @return Array of positional parameters
+     */
+    private static Object[] getUpsertParameters(List<Aggregate> rows) {
+        String serverId = ServletHelper.getAppIdentity();
+        List<Object> parameters = new ArrayList<>();
+        for (Aggregate aggregate : rows) {
+            parameters.add(serverId);
+            parameters.add(aggregate.event);
+            parameters.add(aggregate.type);
+            parameters.add(new Timestamp(aggregate.minute));
+            parameters.add(aggregate.cumulative ? aggregate.sum : aggregate.last);
+            parameters.add(aggregate.cumulative ? aggregate.count : aggregate.total);
+            parameters.add(aggregate.cumulative ? JsonMapper.serializeItem(aggregate.getStatistics()) : null);
+        }
+        return parameters.toArray();
+    }
+
+    /**
+     * The values of a single metric within a minute
+     */
+    private static class Aggregate {
+
+        final long minute;
+        final String event;
+        final String type;
+        final boolean cumulative;
+        final long[] buckets = new long[BUCKET_BOUNDS.length + 1];
+        long count;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        long last;
+        long total;
+        boolean merged;
+
+        /**
+         * Creates an empty aggregate
+         *
+         * @param minute Start of the minute in milliseconds
+         * @param event Event name
+         * @param type Type of the event
+         * @param cumulative True if the values are added together
+         */
+        Aggregate(long minute, String event, String type, boolean cumulative) {
+            this.minute = minute;
+            this.event = event;
+            this.type = type;
+            this.cumulative = cumulative;
+        }
+
+        /**
+         * Returns the key that identifies the metric and minute
+         *
+         * @return Key
+         */
+        String getKey() {
+            return minute + "|" + event + '|' + type;
+        }
+
+        /**
+         * Adds the statistics of an entry already written for the same
+         * minute so that the aggregate covers both
+         *
+         * @param statistics Statistics read from the parameter values (can be null)
+         */
+        void merge(Map<String, Object> statistics) {
+            if (statistics == null || !(statistics.get("count") instanceof Number)) return;
+            long writtenCount = ((Number)statistics.get("count")).longValue();
+            if (writtenCount > 0) {
+                count += writtenCount;
+                sum += ((Number)statistics.get("sum")).longValue();
+                min = Math.min(min, ((Number)statistics.get("min")).longValue());
+                max = Math.max(max, ((Number)statistics.get("max")).longValue());
+                Object writtenBuckets = statistics.get("buckets");
+                if (writtenBuckets instanceof List && ((List)writtenBuckets).size() == buckets.length) {
+                    for (int i = 0; i < buckets.length; i++) {
+                        buckets[i] += ((Number)((List)writtenBuckets).get(i)).longValue();
+                    }
+                }
+            }
+            merged = true;
+        }
+
+        /**
+         * Adds a value to the statistics
+         *
+         * @param value Value to add
+         */
+        void add(long value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS.length && value > BUCKET_BOUNDS[bucket]) bucket++;
+            buckets[bucket]++;
+        }
+
+        /**
+         * Returns the statistics of the values as a map
+         *
+         * @return Map of statistics
+         */
+        Map<String, Object> getStatistics() {
+            Map<String, Object> returnValue = new LinkedHashMap<>();
+            returnValue.put("count", count);
+            returnValue.put("sum", sum);
+            returnValue.put("min", min);
+            returnValue.put("max", max);
+            returnValue.put("p50", getPercentile(50));
+            returnValue.put("p95", getPercentile(95));
+            returnValue.put("p99", getPercentile(99));
+            returnValue.put("bounds", BUCKET_BOUNDS);
+            returnValue.put("buckets", buckets);
+            return returnValue;
+        }
+
+        /**
+         * Returns an estimate of the percentile as the upper bound of the
+         * bucket it falls in, limited to the maximum value seen
+         *
+         * @param percentile Percentile to find
+         *
+         * @return Estimated value
+         */
+        long getPercentile(int percentile) {
+            long target = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) return Math.min(BUCKET_BOUNDS[i], max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import com.pivotal.system.data.dao.Database;
+import com.pivotal.system.data.dao.DatabaseHibernate;
+import com.pivotal.system.hibernate.utils.HibernateUtils;
+import com.pivotal.utils.Common;
+import com.pivotal.utils.PivotalException;
+import com.pivotal.web.servlet.ServletHelper;
+
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes old entries from the log table and rolls the per minute performance
+ * entries up into hourly entries once they are old enough
+ * Rows are deleted in small chunks with a pause in between so that the table
+ * is never locked for long and the WAL isn't flooded
+ * The job runs once a day on only one of the nodes sharing the database - the
+ * node has to hold the lease row in the job_lease table, which it renews as it
+ * goes so that another node can take over if it dies part way through
+ * The chunked deletes, lease and rollup use PostgreSQL syntax so on any other
+ * database the old entries are simply deleted in one statement once a day
+ * and nothing is rolled up
+ */
+class LogRetention {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LogRetention.class);
+
+    // Name of the lease in the job_lease table
+    private static final String LEASE_NAME = "log.retention";
+
+    // Number of rows deleted in each statement and the pause between them
+    private static final int CHUNK_SIZE = 5000;
+    private static final long CHUNK_PAUSE = 500;
+
+    // Value put at the start of the parameter_values of the hourly entries
+    private static final String ROLLUP_MARKER = "{\"rollup\":\"hour\"";
+
+    private static final String ACQUIRE_LEASE = "update job_lease set node=?, expires=now() + interval '10 minutes' " +
+                                                "where name=? and (expires < now() or node=?) and (last_completed is null or last_completed < current_date)";
+
+    private static final String RENEW_LEASE = "update job_lease set expires=now() + interval '10 minutes' where name=? and node=?";
+
+    private static final String DELETE_CHUNK = "delete from log where id in (select id from log where date_added < ? limit ?)";
+
+    private static final String FIRST_MINUTE = "select min(date_added) as first from log where status in (?,?) and date_added < ? " +
+                                               "and (parameter_values is null or parameter_values not like '" + ROLLUP_MARKER + "%')";
+
+    private static final String ROLLUP_HOUR = "with d as (delete from log where status in (?,?) and date_added >= ? and date_added < ? " +
+                                                  "and (parameter_values is null or parameter_values not like '" + ROLLUP_MARKER + "%') " +
+                                                  "returning server_id,status,report_name,duration,total)\n" +
+                                              "insert into log (server_id,status,report_name,date_added,duration,total,parameter_values) " +
+                                              "select server_id,status,report_name,cast(? as timestamp)," +
+                                                  "case when status=? then sum(duration) else round(avg(duration)) end," +
+                                                  "case when status=? then sum(total) else max(total) end," +
+                                                  "'" + ROLLUP_MARKER + ",\"rows\":'||count(*)||',\"min\":'||coalesce(min(duration),0)||',\"max\":'||coalesce(max(duration),0)||'}' " +
+                                              "from d group by server_id,status,report_name\n" +
+                                              "on conflict (server_id,status,report_name,date_added) where status in ('" + EventMonitor.EVENT_DISPATCHER + "','" + EventMonitor.EVENT_HOUSEKEEPING + "') " +
+                                              "do update set duration=case when log.status='" + EventMonitor.EVENT_DISPATCHER + "' then log.duration+excluded.duration else log.duration end," +
+                                                  "total=case when log.status='" + EventMonitor.EVENT_DISPATCHER + "' then log.total+excluded.total else log.total end";
+
+    // Day the entries were last deleted on databases other than PostgreSQL
+    private static Date lastPortableRun;
+
+    /**
+     * Prevent instantiation
+     */
+    private LogRetention() {
+    }
+
+    /**
+     * Runs the retention job if it hasn't already been completed today
+     * and no other node is currently running it
+     */
+    static void run() {
+        String node = ServletHelper.getNodeIdentity();
+        Database db = new DatabaseHibernate();
+        try {
+            if (!HibernateUtils.getDataSource().isPostgreSQL()) {
+                runPortable(db);
+                return;
+            }
+            if (!acquireLease(db, node)) return;
+
+            // Remove everything past the retention period
+
+            int months = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_LOG_MONTHS, HibernateUtils.SETTING_LOG_MONTHS_DEFAULT);
+            logger.debug("Archiving {} log table entries older than {} months", Common.getAplicationName(), months);
+            Date cutoff = Common.addDate(new Date(), Calendar.MONTH, -months);
+            if (!deleteBefore(db, node, cutoff)) return;
+            if (!db.execute("delete from performance_rollup where bucket < ?", new Timestamp(cutoff.getTime()))) {
+                logger.error("Cannot delete performance totals - {}", db.getLastError());
+            }
+
+            // Combine the older performance entries into hours
+
+            int rollupDays = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_LOG_ROLLUP_DAYS, HibernateUtils.SETTING_LOG_ROLLUP_DAYS_DEFAULT);
+            if (rollupDays > 0 && !rollupBefore(db, node, getHour(Common.addDate(new Date(), Calendar.DATE, -rollupDays)))) return;
+
+            // Mark the job as done for today and let the lease go
+
+            if (!db.execute("update job_lease set last_completed=now(), expires=now() where name=? and node=?", LEASE_NAME, node)) {
+                logger.error("Cannot release the log retention lease - {}", db.getLastError());
+            }
+        }
+        catch (InterruptedException e) {
+            logger.warn("Log retention was interrupted - it will carry on from where it left off next time");
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            logger.error("Cannot truncate log entries - {}", PivotalException.getErrorMessage(e));
+        }
+        finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Deletes all the entries past the retention period in a single statement
+     * if it hasn't already been done today by this node
+     *
+     * @param db Database to use
+     */
+    private static void runPortable(Database db) {
+        if (lastPortableRun == null || Common.getDay(lastPortableRun) != Common.getDay(new Date())) {
+            int months = HibernateUtils.getSystemSetting(HibernateUtils.SETTING_LOG_MONTHS, HibernateUtils.SETTING_LOG_MONTHS_DEFAULT);
+            logger.debug("Archiving {} log table entries older than {} months", Common.getAplicationName(), months);
+            if (db.execute("delete from log where date_added < ?", new Timestamp(Common.addDate(new Date(), Calendar.MONTH, -months).getTime())))
+                lastPortableRun = new Date();
+            else
+                logger.error("Cannot delete log entries - {}", db.getLastError());
+        }
+    }
+
+    /**
+     * Takes the lease for this node if it isn't held by another node and the
+     * job hasn't already been completed today
+     *
+     * @param db Database to use
+     * @param node Identity of this node
+     *
+     * @return True if this node now holds the lease
+     */
+    private static boolean acquireLease(Database db, String node) {
+
+        // Make sure the row exists - it starts off expired so anyone can take it
+
+        List<Map<String, Object>> rows = db.find("select node from job_lease where name=?", true, LEASE_NAME);
+        if (!db.isInError() && Common.isBlank(rows)) {
+            db.execute("insert into job_lease (name,node,expires) select ?,?,now() where not exists (select 1 from job_lease where name=?)", LEASE_NAME, node, LEASE_NAME);
+        }
+        if (db.isInError()) {
+            logger.error("Cannot read the log retention lease - {}", db.getLastError());
+            return false;
+        }
+        if (!db.execute(ACQUIRE_LEASE, node, LEASE_NAME, node)) {
+            logger.error("Cannot acquire the log retention lease - {}", db.getLastError());
+            return false;
+        }
+        return db.getLastUpdateCount() == 1;
+    }
+
+    /**
+     * Extends the lease held by this node
+     *
+     * @param db Database to use
+     * @param node Identity of this node
+     *
+     * @return True if the lease is still held
+     */
+    private static boolean renewLease(Database db, String node) {
+        if (!db.execute(RENEW_LEASE, LEASE_NAME, node) || db.getLastUpdateCount() != 1) {
+            logger.warn("Log retention lease has been lost - {}", Common.isBlank(db.getLastError()) ? "taken by another node" : db.getLastError());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes all the log entries before the date a chunk at a time
+     *
+     * @param db Database to use
+     * @param node Identity of this node
+     * @param cutoff Entries before this date are deleted
+     *
+     * @return True if all the entries were removed
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private static boolean deleteBefore(Database db, String node, Date cutoff) throws InterruptedException {
+        Timestamp before = new Timestamp(cutoff.getTime());
+        long total = 0;
+        int deleted = CHUNK_SIZE;
+        while (deleted >= CHUNK_SIZE) {
+            if (!renewLease(db, node)) return false;
+            if (!db.execute(DELETE_CHUNK, before, CHUNK_SIZE)) {
+                logger.error("Cannot delete log entries - {}", db.getLastError());
+                return false;
+            }
+            deleted = db.getLastUpdateCount();
+            total += Math.max(deleted, 0);
+            if (deleted >= CHUNK_SIZE) Thread.sleep(CHUNK_PAUSE);
+        }
+        logger.debug("Deleted {} log entries before {}", total, cutoff);
+        return true;
+    }
+
+    /**
+     * Replaces the per minute performance entries before the date with a
+     * single entry per hour, an hour at a time
+     * Timings are added together and gauges are averaged - the number of
+     * minutes and the lowest and highest values are kept in the parameter values
+     * Minutes that arrive after their hour was rolled up have their timings
+     * added to the hourly entry
+     *
+     * @param db Database to use
+     * @param node Identity of this node
+     * @param cutoff Start of the hour before which entries are rolled up
+     *
+     * @return True if all the entries were rolled up
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private static boolean rollupBefore(Database db, String node, Date cutoff) throws InterruptedException {
+        Timestamp before = new Timestamp(cutoff.getTime());
+        int hours = 0;
+        while (true) {
+            if (!renewLease(db, node)) return false;
+            List<Map<String, Object>> rows = db.find(FIRST_MINUTE, true, EventMonitor.EVENT_DISPATCHER, EventMonitor.EVENT_HOUSEKEEPING, before);
+            if (db.isInError()) {
+                logger.error("Cannot read log entries to roll up - {}", db.getLastError());
+                return false;
+            }
+            if (Common.isBlank(rows) || rows.get(0).get("first") == null) break;
+
+            Date start = getHour((Date) rows.get(0).get("first"));
+            Timestamp from = new Timestamp(start.getTime());
+            Timestamp to = new Timestamp(start.getTime() + 60 * 60 * 1000L);
+            if (!db.execute(ROLLUP_HOUR, EventMonitor.EVENT_DISPATCHER, EventMonitor.EVENT_HOUSEKEEPING, from, to, from, EventMonitor.EVENT_DISPATCHER, EventMonitor.EVENT_DISPATCHER)) {
+                logger.error("Cannot roll up log entries for {} - {}", start, db.getLastError());
+                return false;
+            }
+            hours++;
+            Thread.sleep(CHUNK_PAUSE);
+        }
+        logger.debug("Rolled up {} hours of log entries before {}", hours, cutoff);
+        return true;
+    }
+
+    /**
+     * Returns the start of the hour the date falls in
+     *
+     * @param date Date to truncate
+     *
+     * @return Start of the hour
+     */
+    private static Date getHour(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTime();
+    }
+}
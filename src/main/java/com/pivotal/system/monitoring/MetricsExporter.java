@@ -0,0 +1,371 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import com.pivotal.api.PoolBroker;
+import com.pivotal.system.data.cache.CacheAccessorFactory;
+import com.pivotal.system.hibernate.utils.HibernateUtils;
+import com.pivotal.system.monitoring.jmx.Performance;
+import com.pivotal.system.monitoring.jmx.Tasks;
+import com.pivotal.utils.Common;
+import com.pivotal.utils.PivotalException;
+import com.pivotal.utils.VelocityCacheDirective;
+import com.pivotal.web.servlet.VelocityResourceCache;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.hibernate.SessionFactory;
+import org.hibernate.stats.Statistics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Writes all the statistics that are otherwise only available through JMX
+ * or the status pages in the OpenMetrics text format so that they can be
+ * scraped from every node by a monitoring system
+ * None of the statistics need the database to be queried
+ */
+public class MetricsExporter {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MetricsExporter.class);
+
+    private static final String PREFIX = "nrmm_";
+
+    // The sets of metrics, each collected separately
+    private static final String[] COLLECTORS = {"performance", "pools", "monitors", "templating", "cache", "hibernate", "handlers"};
+
+    // Cache statistics that only ever go up until the statistics are cleared
+    private static final Pattern CACHE_COUNTERS = Pattern.compile("_(hits|misses|puts|deletes|evictions|revalidations)$");
+
+    /**
+     * Prevent instantiation
+     */
+    private MetricsExporter() {
+    }
+
+    /**
+     * Writes all the metrics to the writer
+     * A problem collecting one set of metrics doesn't stop the others
+     * from being written
+     *
+     * @param out Writer to send the metrics to
+     *
+     * @throws IOException If the writer fails
+     */
+    public static void write(Writer out) throws IOException {
+        MetricsWriter metrics = new MetricsWriter(out, PREFIX);
+        for (String collector : COLLECTORS) {
+            try {
+                write(collector, metrics);
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                logger.error("Problem collecting {} metrics - {}", collector, PivotalException.getErrorMessage(e));
+            }
+        }
+        metrics.finish();
+    }
+
+    /**
+     * Writes one set of metrics
+     *
+     * @param collector Name of the set of metrics
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void write(String collector, MetricsWriter metrics) throws IOException {
+        switch (collector) {
+            case "performance":
+                writePerformance(metrics);
+                break;
+            case "pools":
+                writePools(metrics);
+                break;
+            case "monitors":
+                writeMonitors(metrics);
+                break;
+            case "templating":
+                writeTemplating(metrics);
+                break;
+            case "cache":
+                writeCache(metrics);
+                break;
+            case "hibernate":
+                writeHibernate(metrics);
+                break;
+            case "handlers":
+                writeHandlers(metrics);
+                break;
+            default:
+                logger.error("Unknown metrics collector [{}]", collector);
+        }
+    }
+
+    /**
+     * Writes the load and event queue statistics
+     *
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writePerformance(MetricsWriter metrics) throws IOException {
+        Performance performance = new Performance();
+        metrics.family("load_average", MetricsWriter.TYPE_GAUGE, "System load average over the last minute");
+        metrics.sample("load_average", ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage());
+        metrics.family("under_pressure", MetricsWriter.TYPE_GAUGE, "1 if the load average shows the server is struggling");
+        metrics.sample("under_pressure", performance.isUnderPressure() ? 1 : 0);
+        metrics.family("critical", MetricsWriter.TYPE_GAUGE, "1 if the load average shows the server is about to go down");
+        metrics.sample("critical", performance.isCritical() ? 1 : 0);
+        metrics.family("heap_used_bytes", MetricsWriter.TYPE_GAUGE, "Heap memory in use");
+        metrics.sample("heap_used_bytes", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        metrics.family("heap_max_bytes", MetricsWriter.TYPE_GAUGE, "Maximum heap memory");
+        metrics.sample("heap_max_bytes", Runtime.getRuntime().maxMemory());
+        metrics.family("threads", MetricsWriter.TYPE_GAUGE, "Number of live threads");
+        metrics.sample("threads", Thread.activeCount());
+        metrics.family("tasks_running", MetricsWriter.TYPE_GAUGE, "Number of scheduled tasks currently running");
+        metrics.sample("tasks_running", new Tasks().getNumberOfRunningTasks());
+        metrics.family("event_queue_size", MetricsWriter.TYPE_GAUGE, "Events waiting to be processed by the event monitor");
+        metrics.sample("event_queue_size", EventMonitor.getEventQueueSize());
+        metrics.family("events_dropped", MetricsWriter.TYPE_COUNTER, "Events dropped because the event queue was full");
+        metrics.sample("events_dropped_total", EventMonitor.getDroppedEventCount());
+    }
+
+    /**
+     * Writes the connection pool statistics for the application pool
+     * and the datasource pools
+     *
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writePools(MetricsWriter metrics) throws IOException {
+        Map<String, DataSource> pools = new LinkedHashMap<>();
+        try {
+            pools.put(Common.getAplicationName(), HibernateUtils.getDataSource());
+        }
+        catch (Exception e) {
+            logger.debug("Problem getting the application pool - {}", PivotalException.getErrorMessage(e));
+        }
+        Collection<DataSource> activePools = PoolBroker.getInstance().getAllActivePools();
+        if (!Common.isBlank(activePools)) {
+            for (DataSource pool : activePools) {
+                pools.put(pool.getName(), pool);
+            }
+        }
+        metrics.family("pool_active", MetricsWriter.TYPE_GAUGE, "Connections in use");
+        for (Map.Entry<String, DataSource> pool : pools.entrySet()) {
+            metrics.sample("pool_active", "pool", pool.getKey(), pool.getValue().getNumActive());
+        }
+        metrics.family("pool_idle", MetricsWriter.TYPE_GAUGE, "Connections waiting to be used");
+        for (Map.Entry<String, DataSource> pool : pools.entrySet()) {
+            metrics.sample("pool_idle", "pool", pool.getKey(), pool.getValue().getNumIdle());
+        }
+        metrics.family("pool_max_active", MetricsWriter.TYPE_GAUGE, "Maximum connections that can be in use");
+        for (Map.Entry<String, DataSource> pool : pools.entrySet()) {
+            metrics.sample("pool_max_active", "pool", pool.getKey(), pool.getValue().getMaxActive());
+        }
+    }
+
+    /**
+     * Writes the run durations of the background monitors
+     *
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writeMonitors(MetricsWriter metrics) throws IOException {
+        List<Monitor> monitors = Monitor.getMonitors();
+        metrics.family("monitor_running", MetricsWriter.TYPE_GAUGE, "1 if the monitor is running");
+        for (Monitor monitor : monitors) {
+            metrics.sample("monitor_running", "monitor", monitor.getMonitorName(), monitor.isRunning() ? 1 : 0);
+        }
+        metrics.family("monitor_last_run_milliseconds", MetricsWriter.TYPE_GAUGE, "Duration of the last run of the monitor");
+        for (Monitor monitor : monitors) {
+            metrics.sample("monitor_last_run_milliseconds", "monitor", monitor.getMonitorName(), monitor.getLastRunDuration());
+        }
+        metrics.family("monitor_average_run_milliseconds", MetricsWriter.TYPE_GAUGE, "Rolling average duration of the monitor runs, which for the event monitor is only the time to start its stages");
+        for (Monitor monitor : monitors) {
+            metrics.sample("monitor_average_run_milliseconds", "monitor", monitor.getMonitorName(), monitor.getAverageRunDuration());
+        }
+        metrics.family("monitor_max_run_milliseconds", MetricsWriter.TYPE_GAUGE, "Longest run of the monitor, which for the event monitor is only the time to start its stages");
+        for (Monitor monitor : monitors) {
+            metrics.sample("monitor_max_run_milliseconds", "monitor", monitor.getMonitorName(), monitor.getMaxRunDuration());
+        }
+        metrics.family("monitor_queue_length", MetricsWriter.TYPE_GAUGE, "Jobs waiting for a consumer of the monitor");
+        for (Monitor monitor : monitors) {
+            if (monitor.getQueueLength() >= 0) {
+                metrics.sample("monitor_queue_length", "monitor", monitor.getMonitorName(), monitor.getQueueLength());
+            }
+        }
+
+        // The stages of the event monitor
+
+        List<MonitorStage> stages = null;
+        for (Monitor monitor : monitors) {
+            if (monitor instanceof EventMonitor) stages = ((EventMonitor) monitor).getStages();
+        }
+        if (stages != null) {
+            metrics.family("monitor_stage_running", MetricsWriter.TYPE_GAUGE, "1 if the event monitor stage is running");
+            for (MonitorStage stage : stages) {
+                metrics.sample("monitor_stage_running", "stage", stage.getName(), stage.isRunning() ? 1 : 0);
+            }
+            metrics.family("monitor_stage_average_run_milliseconds", MetricsWriter.TYPE_GAUGE, "Rolling average duration of the event monitor stage runs");
+            for (MonitorStage stage : stages) {
+                metrics.sample("monitor_stage_average_run_milliseconds", "stage", stage.getName(), stage.getRunStatistics().getAverageRunDuration());
+            }
+            metrics.family("monitor_stage_max_run_milliseconds", MetricsWriter.TYPE_GAUGE, "Longest run of the event monitor stage");
+            for (MonitorStage stage : stages) {
+                metrics.sample("monitor_stage_max_run_milliseconds", "stage", stage.getName(), stage.getRunStatistics().getMaxRunDuration());
+            }
+            metrics.family("monitor_stage_timeouts", MetricsWriter.TYPE_COUNTER, "Runs of the event monitor stage interrupted for taking too long");
+            for (MonitorStage stage : stages) {
+                metrics.sample("monitor_stage_timeouts_total", "stage", stage.getName(), stage.getTimeouts());
+            }
+            metrics.family("monitor_stage_failures", MetricsWriter.TYPE_COUNTER, "Runs of the event monitor stage that failed");
+            for (MonitorStage stage : stages) {
+                metrics.sample("monitor_stage_failures_total", "stage", stage.getName(), stage.getFailures());
+            }
+        }
+    }
+
+    /**
+     * Writes the Velocity template cache statistics
+     *
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writeTemplating(MetricsWriter metrics) throws IOException {
+        VelocityResourceCache.VelocityCacheStats stats = VelocityResourceCache.getStats();
+        metrics.family("velocity_cache_size", MetricsWriter.TYPE_GAUGE, "Templates held in the Velocity cache");
+        metrics.sample("velocity_cache_size", stats.getSize());
+        metrics.family("velocity_cache_hits", MetricsWriter.TYPE_COUNTER, "Velocity template cache hits");
+        metrics.sample("velocity_cache_hits_total", stats.getHits());
+        metrics.family("velocity_cache_misses", MetricsWriter.TYPE_COUNTER, "Velocity template cache misses");
+        metrics.sample("velocity_cache_misses_total", stats.getMisses());
+        metrics.family("velocity_cache_puts", MetricsWriter.TYPE_COUNTER, "Templates added to the Velocity cache");
+        metrics.sample("velocity_cache_puts_total", stats.getPuts());
+        metrics.family("velocity_cache_deletes", MetricsWriter.TYPE_COUNTER, "Templates removed from the Velocity cache");
+        metrics.sample("velocity_cache_deletes_total", stats.getDeletes());
+        metrics.family("velocity_fragment_cache_size", MetricsWriter.TYPE_GAUGE, "Rendered fragments held by the #cache directive");
+        metrics.sample("velocity_fragment_cache_size", VelocityCacheDirective.getSize());
+        metrics.family("velocity_fragment_cache_hits", MetricsWriter.TYPE_COUNTER, "Fragments written from the #cache directive cache");
+        metrics.sample("velocity_fragment_cache_hits_total", VelocityCacheDirective.getHits());
+        metrics.family("velocity_fragment_cache_misses", MetricsWriter.TYPE_COUNTER, "Fragments rendered by the #cache directive");
+        metrics.sample("velocity_fragment_cache_misses_total", VelocityCacheDirective.getMisses());
+    }
+
+    /**
+     * Writes the numeric statistics of the cache engine in use
+     * Statistics that only ever go up (hits, misses etc.) are written as
+     * counters and everything else (sizes, rates) as gauges
+     *
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writeCache(MetricsWriter metrics) throws IOException {
+        if (CacheAccessorFactory.isInitialised()) {
+            Map<String, Object> stats = CacheAccessorFactory.getInstance().getStatistics();
+            if (!Common.isBlank(stats)) {
+
+                // Different statistic names can come out as the same metric name
+                // and a family can only be written once, so keep the first
+
+                Set<String> written = new HashSet<>();
+                for (Map.Entry<String, Object> stat : stats.entrySet()) {
+                    if (stat.getValue() instanceof Number) {
+                        String name = "cache_" + MetricsWriter.toMetricName(stat.getKey());
+                        if (!written.add(name)) continue;
+                        if (CACHE_COUNTERS.matcher(name).find()) {
+                            metrics.family(name, MetricsWriter.TYPE_COUNTER, "Cache statistic " + stat.getKey());
+                            metrics.sample(name + "_total", ((Number) stat.getValue()).doubleValue());
+                        }
+                        else {
+                            metrics.family(name, MetricsWriter.TYPE_GAUGE, "Cache statistic " + stat.getKey());
+                            metrics.sample(name, ((Number) stat.getValue()).doubleValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the Hibernate statistics if they are being collected
+     *
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writeHibernate(MetricsWriter metrics) throws IOException {
+        SessionFactory factory = HibernateUtils.getSessionFactory();
+        Statistics stats = factory == null ? null : factory.getStatistics();
+        if (stats != null && stats.isStatisticsEnabled()) {
+            writeCounter(metrics, "hibernate_sessions_opened", "Hibernate sessions opened", stats.getSessionOpenCount());
+            writeCounter(metrics, "hibernate_transactions", "Hibernate transactions completed", stats.getTransactionCount());
+            writeCounter(metrics, "hibernate_statements_prepared", "JDBC statements prepared by Hibernate", stats.getPrepareStatementCount());
+            writeCounter(metrics, "hibernate_queries", "HQL queries executed", stats.getQueryExecutionCount());
+            writeCounter(metrics, "hibernate_entities_loaded", "Entities loaded", stats.getEntityLoadCount());
+            writeCounter(metrics, "hibernate_entities_inserted", "Entities inserted", stats.getEntityInsertCount());
+            writeCounter(metrics, "hibernate_entities_updated", "Entities updated", stats.getEntityUpdateCount());
+            writeCounter(metrics, "hibernate_entities_deleted", "Entities deleted", stats.getEntityDeleteCount());
+            writeCounter(metrics, "hibernate_second_level_cache_hits", "Second level cache hits", stats.getSecondLevelCacheHitCount());
+            writeCounter(metrics, "hibernate_second_level_cache_misses", "Second level cache misses", stats.getSecondLevelCacheMissCount());
+            writeCounter(metrics, "hibernate_query_cache_hits", "Query cache hits", stats.getQueryCacheHitCount());
+            writeCounter(metrics, "hibernate_query_cache_misses", "Query cache misses", stats.getQueryCacheMissCount());
+            metrics.family("hibernate_query_max_milliseconds", MetricsWriter.TYPE_GAUGE, "Slowest HQL query");
+            metrics.sample("hibernate_query_max_milliseconds", stats.getQueryExecutionMaxTime());
+        }
+    }
+
+    /**
+     * Writes the latency summaries of the request handlers
+     *
+     * @param metrics Metrics writer
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writeHandlers(MetricsWriter metrics) throws IOException {
+        metrics.family("handler_latency_milliseconds", MetricsWriter.TYPE_SUMMARY, "Time taken to service requests by controller method");
+        for (Map.Entry<String, Map<String, Object>> entry : HandlerTimings.getSummaries().entrySet()) {
+            Map<String, Object> summary = entry.getValue();
+            metrics.sample("handler_latency_milliseconds", "handler", entry.getKey(), "quantile", "0.5", (Long)summary.get("p50"));
+            metrics.sample("handler_latency_milliseconds", "handler", entry.getKey(), "quantile", "0.95", (Long)summary.get("p95"));
+            metrics.sample("handler_latency_milliseconds", "handler", entry.getKey(), "quantile", "0.99", (Long)summary.get("p99"));
+            metrics.sample("handler_latency_milliseconds_sum", "handler", entry.getKey(), (Long)summary.get("sum"));
+            metrics.sample("handler_latency_milliseconds_count", "handler", entry.getKey(), (Long)summary.get("count"));
+        }
+    }
+
+    /**
+     * Writes a counter family with a single sample
+     *
+     * @param metrics Metrics writer
+     * @param name Name of the counter without the _total suffix
+     * @param help Description of the counter
+     * @param value Value of the counter
+     *
+     * @throws IOException If the writer fails
+     */
+    private static void writeCounter(MetricsWriter metrics, String name, String help, long value) throws IOException {
+        metrics.family(name, MetricsWriter.TYPE_COUNTER, help);
+        metrics.sample(name + "_total", value);
+    }
+}
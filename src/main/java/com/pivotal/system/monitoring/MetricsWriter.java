@@ -0,0 +1,243 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes metrics in the OpenMetrics text format directly to a writer
+ * Names and values are written a piece at a time rather than being
+ * formatted into intermediate strings, so a scrape creates very little garbage
+ * Each metric family must be started with a call to family before its samples
+ * are written and the output finished with a call to finish
+ */
+public class MetricsWriter {
+
+    /** Constant <code>CONTENT_TYPE="application/openmetrics-text; version=1.0.0; charset=utf-8"</code> */
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    /** Constant <code>TYPE_GAUGE="gauge"</code> */
+    public static final String TYPE_GAUGE = "gauge";
+    /** Constant <code>TYPE_COUNTER="counter"</code> */
+    public static final String TYPE_COUNTER = "counter";
+    /** Constant <code>TYPE_SUMMARY="summary"</code> */
+    public static final String TYPE_SUMMARY = "summary";
+
+    private final Writer out;
+    private final String prefix;
+
+    /**
+     * Creates a writer that prefixes every metric name
+     *
+     * @param out Writer to send the metrics to
+     * @param prefix Prefix for the metric names e.g. nrmm_
+     */
+    public MetricsWriter(Writer out, String prefix) {
+        this.out = out;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Starts a metric family
+     *
+     * @param name Name of the family without the prefix or any _total suffix
+     * @param type Type of the metric
+     * @param help Description of the metric
+     *
+     * @throws IOException If the writer fails
+     */
+    public void family(String name, String type, String help) throws IOException {
+        out.write("# TYPE ");
+        out.write(prefix);
+        out.write(name);
+        out.write(' ');
+        out.write(type);
+        out.write("\n# HELP ");
+        out.write(prefix);
+        out.write(name);
+        out.write(' ');
+        writeEscaped(help);
+        out.write('\n');
+    }
+
+    /**
+     * Writes a sample without any labels
+     *
+     * @param name Name of the sample without the prefix
+     * @param value Value of the sample
+     *
+     * @throws IOException If the writer fails
+     */
+    public void sample(String name, long value) throws IOException {
+        startSample(name);
+        endSample(value);
+    }
+
+    /**
+     * Writes a sample without any labels
+     *
+     * @param name Name of the sample without the prefix
+     * @param value Value of the sample
+     *
+     * @throws IOException If the writer fails
+     */
+    public void sample(String name, double value) throws IOException {
+        startSample(name);
+        endSample(value);
+    }
+
+    /**
+     * Writes a sample with a single label
+     *
+     * @param name Name of the sample without the prefix
+     * @param label Name of the label
+     * @param labelValue Value of the label
+     * @param value Value of the sample
+     *
+     * @throws IOException If the writer fails
+     */
+    public void sample(String name, String label, String labelValue, long value) throws IOException {
+        startSample(name);
+        writeLabels(label, labelValue, null, null);
+        endSample(value);
+    }
+
+    /**
+     * Writes a sample with a single label
+     *
+     * @param name Name of the sample without the prefix
+     * @param label Name of the label
+     * @param labelValue Value of the label
+     * @param value Value of the sample
+     *
+     * @throws IOException If the writer fails
+     */
+    public void sample(String name, String label, String labelValue, double value) throws IOException {
+        startSample(name);
+        writeLabels(label, labelValue, null, null);
+        endSample(value);
+    }
+
+    /**
+     * Writes a sample with two labels
+     *
+     * @param name Name of the sample without the prefix
+     * @param label Name of the first label
+     * @param labelValue Value of the first label
+     * @param label2 Name of the second label
+     * @param labelValue2 Value of the second label
+     * @param value Value of the sample
+     *
+     * @throws IOException If the writer fails
+     */
+    public void sample(String name, String label, String labelValue, String label2, String labelValue2, long value) throws IOException {
+        startSample(name);
+        writeLabels(label, labelValue, label2, labelValue2);
+        endSample(value);
+    }
+
+    /**
+     * Writes the end of the metrics
+     *
+     * @throws IOException If the writer fails
+     */
+    public void finish() throws IOException {
+        out.write("# EOF\n");
+        out.flush();
+    }
+
+    /**
+     * Converts a name such as HitRate or Near Size into one that is
+     * valid in a metric name e.g. hit_rate or near_size
+     *
+     * @param name Name to convert
+     *
+     * @return Metric name
+     */
+    public static String toMetricName(String name) {
+        StringBuilder returnValue = new StringBuilder(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0 && returnValue.length() > 0 && returnValue.charAt(returnValue.length() - 1) != '_' && !Character.isUpperCase(name.charAt(i - 1)))
+                    returnValue.append('_');
+                returnValue.append(Character.toLowerCase(c));
+            }
+            else if (Character.isLetterOrDigit(c) && c < 128) {
+                returnValue.append(c);
+            }
+            else if (returnValue.length() > 0 && returnValue.charAt(returnValue.length() - 1) != '_') {
+                returnValue.append('_');
+            }
+        }
+        return returnValue.toString();
+    }
+
+    private void startSample(String name) throws IOException {
+        out.write(prefix);
+        out.write(name);
+    }
+
+    private void endSample(long value) throws IOException {
+        out.write(' ');
+        out.write(Long.toString(value));
+        out.write('\n');
+    }
+
+    private void endSample(double value) throws IOException {
+        out.write(' ');
+        if (Double.isNaN(value))
+            out.write("NaN");
+        else if (Double.isInfinite(value))
+            out.write(value > 0 ? "+Inf" : "-Inf");
+        else
+            out.write(Double.toString(value));
+        out.write('\n');
+    }
+
+    private void writeLabels(String label, String labelValue, String label2, String labelValue2) throws IOException {
+        out.write('{');
+        out.write(label);
+        out.write("=\"");
+        writeEscaped(labelValue);
+        out.write('"');
+        if (label2 != null) {
+            out.write(',');
+            out.write(label2);
+            out.write("=\"");
+            writeEscaped(labelValue2);
+            out.write('"');
+        }
+        out.write('}');
+    }
+
+    /**
+     * Writes the text escaping backslashes, new lines and double quotes
+     * as OpenMetrics requires for both help text and label values
+     *
+     * @param text Text to write
+     *
+     * @throws IOException If the writer fails
+     */
+    private void writeEscaped(String text) throws IOException {
+        if (text == null) return;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == '\n' || c == '"') {
+                out.write(text, start, i - start);
+                out.write('\\');
+                out.write(c == '\n' ? 'n' : c);
+                start = i + 1;
+            }
+        }
+        out.write(text, start, text.length() - start);
+    }
+}
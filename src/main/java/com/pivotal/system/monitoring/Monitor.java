@@ -73,10 +73,7 @@ public abstract class Monitor {
 
     protected Progress progress = new Progress();
     private Date lastMonitorRun;
-    private int lastRunDuration;
-    private int maxRunDuration;
-    private Date maxRunDate;
-    private final List<Integer> averages = new ArrayList<>();
+    private final RunStatistics runStatistics = new RunStatistics();
     private boolean hasWatchdog;
     private boolean isDynamicLoggingDisabled;
 
@@ -103,10 +100,7 @@ public abstract class Monitor {
         isTriggered = false;
         monitor = null;
         lastMonitorRun = null;
-        lastRunDuration = 0;
-        maxRunDuration = 0;
-        maxRunDate = null;
-        averages.clear();
+        runStatistics.reset();
         hasWatchdog = true;
     }
 
@@ -338,7 +332,7 @@ public abstract class Monitor {
      * @return Milliseconds
      */
     public final int getLastRunDuration() {
-        return lastRunDuration;
+        return runStatistics.getLastRunDuration();
     }
 
     /**
@@ -347,7 +341,7 @@ public abstract class Monitor {
      * @return Milliseconds
      */
     public final int getMaxRunDuration() {
-        return maxRunDuration;
+        return runStatistics.getMaxRunDuration();
     }
 
     /**
@@ -356,7 +350,7 @@ public abstract class Monitor {
      * @return Milliseconds
      */
     public final Date getMaxRunDate() {
-        return maxRunDate;
+        return runStatistics.getMaxRunDate();
     }
 
     /**
@@ -383,16 +377,7 @@ public abstract class Monitor {
      * @return Real number milliseconds
      */
     public final double getAverageRunDuration() {
-        double returnValue = 0.0;
-        if (!Common.isBlank(averages)) {
-            synchronized (averages) {
-                for (Integer value : averages) {
-                    returnValue += value;
-                }
-                returnValue /= averages.size();
-            }
-        }
-        return returnValue;
+        return runStatistics.getAverageRunDuration();
     }
 
     /**
@@ -719,16 +704,7 @@ public abstract class Monitor {
 
             // Record the running stats
 
-            lastRunDuration = progress.getMilliSecondsElapsed();
-            if (lastRunDuration > maxRunDuration) {
-                maxRunDuration = lastRunDuration;
-                maxRunDate = new Date();
-            }
-            synchronized (averages) {
-                averages.add(lastRunDuration);
-                while (averages.size() > 10)
-                    averages.remove(0);
-            }
+            runStatistics.add(progress.getMilliSecondsElapsed());
 
             // If the thread is taking longer than the allowed time for the whole loop then
             // change the log level to debug
@@ -0,0 +1,187 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import com.pivotal.system.hibernate.utils.HibernateUtils;
+import com.pivotal.utils.PivotalException;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A piece of periodic work carried out by a monitor on a worker thread
+ * Each stage has its own period and timeout so that a slow stage doesn't hold
+ * up the others - a stage is never run again until its previous run has finished
+ * and a run that goes on past the timeout is interrupted
+ * A run blocked in a JDBC call doesn't notice the interrupt, so it carries on
+ * until the call returns and the stage isn't run again until then
+ */
+public abstract class MonitorStage {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MonitorStage.class);
+
+    private final String name;
+    private volatile int period;
+    private final int timeout;
+    private final RunStatistics runStatistics = new RunStatistics();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private Future<?> current;
+    private volatile boolean running;
+    private volatile long startedAt;
+    private long lastStart;
+
+    /**
+     * Creates a stage
+     *
+     * @param name Name of the stage used in the logs and statistics
+     * @param period Minimum seconds between the start of each run, 0 to run on every monitor tick
+     * @param timeout Seconds after which a run is interrupted, 0 for no timeout
+     */
+    protected MonitorStage(String name, int period, int timeout) {
+        this.name = name;
+        this.period = period;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Carries out the work of the stage
+     *
+     * @throws Exception If there is a problem
+     */
+    protected abstract void execute() throws Exception;
+
+    /**
+     * Starts a run of the stage on the pool if it is due and not already running,
+     * or interrupts the current run if it has taken longer than the timeout
+     *
+     * @param pool Pool of worker threads
+     */
+    synchronized void schedule(ExecutorService pool) {
+        long now = System.currentTimeMillis();
+        if (running) {
+
+            // The run was cancelled before it ever got going
+
+            if (startedAt == 0 && current.isDone()) {
+                running = false;
+            }
+            else {
+                if (timeout > 0 && startedAt > 0 && now - startedAt > timeout * 1000L && !current.isDone()) {
+                    logger.warn("Interrupting monitor stage [{}] as it has been running for more than {} seconds", name, timeout);
+                    timeouts.incrementAndGet();
+                    current.cancel(true);
+                }
+                return;
+            }
+        }
+        if (lastStart == 0 || now - lastStart >= period * 1000L) {
+            lastStart = now;
+            startedAt = 0;
+            running = true;
+            current = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    startedAt = System.currentTimeMillis();
+                    try {
+                        execute();
+                    }
+                    catch (Throwable e) {
+                        failures.incrementAndGet();
+                        logger.error("Problem running monitor stage [{}] - {}", name, PivotalException.getErrorMessage(e));
+                    }
+                    finally {
+                        runStatistics.add((int) (System.currentTimeMillis() - startedAt));
+                        logger.debug("Monitor stage [{}] completed in {} milliseconds", name, runStatistics.getLastRunDuration());
+
+                        // Worker threads are reused so don't leave a session behind
+
+                        HibernateUtils.closeSession();
+                        startedAt = 0;
+                        running = false;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the name of the stage
+     *
+     * @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the minimum number of seconds between the start of each run
+     *
+     * @return Seconds
+     */
+    public int getPeriod() {
+        return period;
+    }
+
+    /**
+     * Sets the minimum number of seconds between the start of each run
+     *
+     * @param period Seconds, 0 to run on every monitor tick
+     */
+    public void setPeriod(int period) {
+        this.period = period;
+    }
+
+    /**
+     * Returns the number of seconds after which a run is interrupted
+     *
+     * @return Seconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns true if the stage is currently running
+     *
+     * @return True if running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the statistics of the run durations
+     *
+     * @return Run statistics
+     */
+    public RunStatistics getRunStatistics() {
+        return runStatistics;
+    }
+
+    /**
+     * Returns the number of runs that have been interrupted for taking too long
+     *
+     * @return Number of timeouts
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of runs that have failed with an error
+     *
+     * @return Number of failures
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import com.pivotal.system.data.dao.Database;
+import com.pivotal.system.data.dao.DatabaseHibernate;
+import com.pivotal.utils.Common;
+
+import java.sql.Timestamp;
+import java.util.*;
+
+/**
+ * A downsampled view of the performance entries in the log table, returned
+ * as columns rather than rows so that it is compact to send to a chart
+ * The resolution is picked from the span of time requested so that no more
+ * than the maximum number of points are returned - the entries are grouped
+ * into buckets of that size by the database so only the points are read
+ * The log entries are the minute tier - spans that need hour or day buckets are
+ * read from the hourly and daily totals in the performance_rollup table, which
+ * are brought up to date with any complete buckets when they are read, so only
+ * the time since the last complete bucket is grouped from the log entries
+ * Building the totals doesn't delete anything from the log table
+ */
+public class PerformanceSeries {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(PerformanceSeries.class);
+
+    // Bucket sizes in seconds, smallest first
+    private static final int[] RESOLUTIONS = {60, 300, 900, 3600, 6 * 3600, 24 * 3600};
+
+    // Bucket sizes in seconds of the tiers kept in the performance_rollup table
+    private static final int HOUR = 3600;
+    private static final int DAY = 24 * 3600;
+
+    // Buckets are only totalled once they have been finished for this long so that late entries are included
+    private static final long ROLLUP_DELAY = 5 * 60 * 1000L;
+
+    // Groups a timestamp into buckets of the size given by two parameters
+    private static final String BUCKET = "to_timestamp(floor(extract(epoch from %s)/?)*?) at time zone 'UTC'";
+
+    // Metrics that are stored in thousandths
+    private static final Set<String> SCALED_METRICS = new HashSet<>(Collections.singletonList("load.average"));
+
+    private final int resolution;
+    private final List<Long> times = new ArrayList<>();
+    private final List<Series> series = new ArrayList<>();
+
+    /**
+     * Creates an empty set of series
+     *
+     * @param resolution Size of the buckets in seconds
+     */
+    private PerformanceSeries(int resolution) {
+        this.resolution = resolution;
+    }
+
+    /**
+     * Reads the series for the metrics over the last number of hours
+     * There is a series for each metric and server combination and the values
+     * of every series line up with the times
+     *
+     * @param hours Number of hours to read
+     * @param maxPoints Maximum number of points in each series
+     * @param names Names of the metrics (the report_name of the log entries)
+     *
+     * @return Series of values
+     */
+    public static PerformanceSeries read(int hours, int maxPoints, String... names) {
+        PerformanceSeries returnValue = new PerformanceSeries(getResolution(hours * 3600L, maxPoints));
+        if (Common.isBlank(names)) return returnValue;
+        Date from = new Date(System.currentTimeMillis() - hours * 3600000L);
+
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            in.append(i == 0 ? "?" : ",?");
+        }
+
+        Database db = new DatabaseHibernate();
+        try {
+
+            // Use the hour or day totals up to the last complete bucket if the buckets are big enough
+
+            int tier = returnValue.resolution >= DAY ? DAY : returnValue.resolution >= HOUR ? HOUR : 0;
+            Date tierStart = null;
+            Date tierEnd = null;
+            if (tier > 0) {
+                Date finished = new Date(System.currentTimeMillis() - ROLLUP_DELAY);
+                tierStart = getBucket(from, tier);
+                tierEnd = getBucket(finished, tier);
+                if (!updateTier(db, HOUR, tierStart, getBucket(finished, HOUR)) || tier == DAY && !updateTier(db, DAY, tierStart, tierEnd)) {
+                    tierEnd = null;
+                }
+            }
+
+            // Timings are averaged over the number of requests and gauges are averaged
+
+            List<Object> parameters = new ArrayList<>();
+            parameters.add(EventMonitor.EVENT_DISPATCHER);
+            StringBuilder sql = new StringBuilder("select bucket as \"bucket\",server_id as \"server\",report_name as \"name\",\n" +
+                                                  "case when max(status)=? and sum(total)>0 then sum(duration)/sum(total) else sum(duration)/sum(samples) end as \"value\"\n" +
+                                                  "from (");
+            if (tierEnd != null) {
+                sql.append("select ").append(String.format(BUCKET, "bucket")).append(" as bucket,server_id,report_name,status,duration,total,samples from performance_rollup ")
+                   .append("where resolution=? and report_name in (").append(in).append(") and bucket>=? and bucket<? and status in (?,?)\nunion all\n");
+                parameters.add(returnValue.resolution);
+                parameters.add(returnValue.resolution);
+                parameters.add(tier);
+                parameters.addAll(Arrays.asList(names));
+                parameters.add(new Timestamp(tierStart.getTime()));
+                parameters.add(new Timestamp(tierEnd.getTime()));
+                parameters.add(EventMonitor.EVENT_DISPATCHER);
+                parameters.add(EventMonitor.EVENT_HOUSEKEEPING);
+            }
+            sql.append("select ").append(String.format(BUCKET, "date_added")).append(" as bucket,server_id,report_name,status,duration,total,1 as samples from log ")
+               .append("where report_name in (").append(in).append(") and date_added>=? and status in (?,?)) l\n")
+               .append("group by bucket,server_id,report_name order by bucket");
+            parameters.add(returnValue.resolution);
+            parameters.add(returnValue.resolution);
+            parameters.addAll(Arrays.asList(names));
+            parameters.add(new Timestamp(tierEnd == null ? from.getTime() : tierEnd.getTime()));
+            parameters.add(EventMonitor.EVENT_DISPATCHER);
+            parameters.add(EventMonitor.EVENT_HOUSEKEEPING);
+
+            List<Map<String, Object>> rows = db.find(sql.toString(), false, parameters.toArray());
+            if (db.isInError())
+                logger.error("Cannot read performance series - {}", db.getLastError());
+            else if (!Common.isBlank(rows))
+                returnValue.addRows(rows);
+        }
+        finally {
+            db.close();
+        }
+        return returnValue;
+    }
+
+    /**
+     * Makes sure the totals of the tier cover every complete bucket from the
+     * start to the end, totalling any that are missing from the buckets
+     * below - the hour tier is totalled from the log entries and the day tier
+     * from the hour tier
+     * Only the buckets before the first or after the last existing total are
+     * looked at, so once a tier is up to date this only totals the new buckets
+     *
+     * @param db Database to use
+     * @param tier Bucket size of the tier in seconds
+     * @param start Start of the first bucket needed
+     * @param end Start of the bucket after the last complete one
+     *
+     * @return True if the tier is up to date
+     */
+    private static boolean updateTier(Database db, int tier, Date start, Date end) {
+        if (!start.before(end)) return true;
+        List<Map<String, Object>> rows = db.find("select min(bucket) as first,max(bucket) as last from performance_rollup where resolution=?", true, tier);
+        if (db.isInError()) {
+            logger.error("Cannot read the performance totals - {}", db.getLastError());
+            return false;
+        }
+        Date first = Common.isBlank(rows) ? null : (Date) rows.get(0).get("first");
+        Date last = Common.isBlank(rows) ? null : (Date) rows.get(0).get("last");
+        if (first == null || last == null) return addTotals(db, tier, start, end);
+        Date next = Common.addDate(last, tier == DAY ? Calendar.DATE : Calendar.HOUR_OF_DAY, 1);
+        return (!start.before(first) || addTotals(db, tier, start, first)) && (!next.before(end) || addTotals(db, tier, next, end));
+    }
+
+    /**
+     * Adds the totals of the tier for the buckets between the dates
+     * Another node or request may be doing the same so buckets that already
+     * have totals are left alone
+     *
+     * @param db Database to use
+     * @param tier Bucket size of the tier in seconds
+     * @param from Start of the first bucket
+     * @param to Start of the bucket after the last one
+     *
+     * @return True if the totals were added
+     */
+    private static boolean addTotals(Database db, int tier, Date from, Date to) {
+        String source = tier == HOUR
+                        ? "select " + String.format(BUCKET, "date_added") + " as bucket,server_id,status,report_name,duration,total,1 as samples from log " +
+                          "where status in (?,?) and report_name is not null and date_added>=? and date_added<?"
+                        : "select " + String.format(BUCKET, "bucket") + " as bucket,server_id,status,report_name,duration,total,samples from performance_rollup " +
+                          "where resolution=" + HOUR + " and status in (?,?) and bucket>=? and bucket<?";
+        if (!db.execute("insert into performance_rollup (resolution,bucket,server_id,status,report_name,duration,total,samples) " +
+                        "select ?,bucket,server_id,status,report_name,sum(duration),sum(total),sum(samples) from (" + source + ") l " +
+                        "group by bucket,server_id,status,report_name on conflict do nothing",
+                        tier, tier, tier, EventMonitor.EVENT_DISPATCHER, EventMonitor.EVENT_HOUSEKEEPING, new Timestamp(from.getTime()), new Timestamp(to.getTime()))) {
+            logger.error("Cannot add the performance totals from {} to {} - {}", from, to, db.getLastError());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the start of the hour or day that the date falls in
+     *
+     * @param date Date to truncate
+     * @param tier Bucket size of the tier in seconds
+     *
+     * @return Start of the bucket
+     */
+    private static Date getBucket(Date date, int tier) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        if (tier == DAY) calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTime();
+    }
+
+    /**
+     * Returns the smallest bucket size that keeps the number of points
+     * within the maximum
+     *
+     * @param span Seconds being shown
+     * @param maxPoints Maximum number of points
+     *
+     * @return Bucket size in seconds
+     */
+    static int getResolution(long span, int maxPoints) {
+        for (int resolution : RESOLUTIONS) {
+            if (span / resolution <= Math.max(maxPoints, 1)) return resolution;
+        }
+        return RESOLUTIONS[RESOLUTIONS.length - 1];
+    }
+
+    /**
+     * Pivots the rows, which are in time order, into the columns
+     *
+     * @param rows Bucket, server, name and value rows
+     */
+    private void addRows(List<Map<String, Object>> rows) {
+        Map<String, Series> seriesMap = new LinkedHashMap<>();
+        long lastTime = Long.MIN_VALUE;
+        for (Map<String, Object> row : rows) {
+            long time = ((Date) row.get("bucket")).getTime();
+            if (time != lastTime) {
+                times.add(time);
+                lastTime = time;
+            }
+            String name = (String) row.get("name");
+            String server = (String) row.get("server");
+            String key = name + '|' + server;
+            Series values = seriesMap.get(key);
+            if (values == null) {
+                values = new Series(name, server);
+                seriesMap.put(key, values);
+            }
+
+            // Fill in the buckets that this series had nothing for
+
+            while (values.values.size() < times.size() - 1) values.values.add(null);
+            values.values.add(getValue(name, (Number) row.get("value")));
+        }
+        for (Series values : seriesMap.values()) {
+            while (values.values.size() < times.size()) values.values.add(null);
+        }
+        series.addAll(seriesMap.values());
+    }
+
+    /**
+     * Returns the value to chart rounded to 2 decimal places
+     *
+     * @param name Name of the metric
+     * @param value Value stored in the log
+     *
+     * @return Value to chart
+     */
+    private static Double getValue(String name, Number value) {
+        if (value == null) return null;
+        double returnValue = value.doubleValue();
+        if (SCALED_METRICS.contains(name)) returnValue /= 1000;
+        return Math.round(returnValue * 100) / 100.0;
+    }
+
+    /**
+     * Returns the size of each bucket
+     *
+     * @return Seconds
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Returns the start time of every bucket that has a value
+     *
+     * @return List of milliseconds since the epoch
+     */
+    public List<Long> getTimes() {
+        return times;
+    }
+
+    /**
+     * Returns the series of values, each one the same length as the times
+     *
+     * @return List of series
+     */
+    public List<Series> getSeries() {
+        return series;
+    }
+
+    /**
+     * The values of a single metric from one server
+     */
+    public static class Series {
+
+        private final String name;
+        private final String server;
+        private final List<Double> values = new ArrayList<>();
+
+        /**
+         * Creates an empty series
+         *
+         * @param name Name of the metric
+         * @param server Server the values came from
+         */
+        Series(String name, String server) {
+            this.name = name;
+            this.server = server;
+        }
+
+        /**
+         * Returns the name of the metric
+         *
+         * @return Name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the server the values came from
+         *
+         * @return Server identity
+         */
+        public String getServer() {
+            return server;
+        }
+
+        /**
+         * Returns the values, null where there was nothing in the bucket
+         *
+         * @return List of values
+         */
+        public List<Double> getValues() {
+            return values;
+        }
+    }
+}
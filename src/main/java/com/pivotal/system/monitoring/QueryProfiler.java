@@ -0,0 +1,340 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps running statistics of the queries run through the Database classes
+ * Queries are grouped by datasource and a fingerprint of the SQL in which all
+ * the literals are replaced by ? so that the same statement with different
+ * values is counted together
+ * Only a limited number of statements are kept - when a new one is seen and
+ * there is no room, the statement that has taken the least total time is
+ * forgotten so the expensive ones always remain
+ * The new statement takes on the total of the one it replaced as its error
+ * (space saving) so that it isn't the next to be forgotten and gets the
+ * chance to build up its own total
+ */
+public class QueryProfiler {
+
+    // The maximum number of statements to keep statistics for
+    /** Constant <code>MAX_QUERIES=200</code> */
+    public static final int MAX_QUERIES = 200;
+
+    // Fingerprints are truncated to this length
+    private static final int MAX_FINGERPRINT_LENGTH = 2000;
+
+    private static final Pattern VALUE_LIST = Pattern.compile("\\(\\?(?: ?, ?\\?)+\\)");
+
+    private static final ConcurrentMap<String, QueryStats> queries = new ConcurrentHashMap<>();
+
+    /**
+     * Prevent instantiation
+     */
+    private QueryProfiler() {
+    }
+
+    /**
+     * Records the execution of a query
+     *
+     * @param datasource Name of the datasource the query was run against
+     * @param sql SQL of the query
+     * @param duration Time taken in milliseconds
+     * @param rows Number of rows returned
+     * @param cached True if the results came from the cache
+     */
+    public static void record(String datasource, String sql, long duration, long rows, boolean cached) {
+        if (sql == null) return;
+        String fingerprint = getFingerprint(sql);
+        String key = datasource + '|' + fingerprint;
+        QueryStats stats = queries.get(key);
+        if (stats == null) {
+            long error = queries.size() >= MAX_QUERIES ? evictCheapest() : 0;
+            stats = new QueryStats(datasource, fingerprint, error);
+            QueryStats existing = queries.putIfAbsent(key, stats);
+            if (existing != null) stats = existing;
+        }
+        stats.add(duration, rows, cached);
+    }
+
+    /**
+     * Returns the number of statements being tracked
+     *
+     * @return Number of statements
+     */
+    public static int getQueryCount() {
+        return queries.size();
+    }
+
+    /**
+     * Returns the statistics of all the statements being tracked, most
+     * expensive (by total time) first
+     *
+     * @return List of statement statistics
+     */
+    public static List<QueryStats> getQueries() {
+        List<QueryStats> returnValue = new ArrayList<>(queries.values());
+
+        // Take a copy of the totals so that the ordering can't change during the sort
+
+        final Map<QueryStats, Long> totals = new IdentityHashMap<>();
+        for (QueryStats stats : returnValue) {
+            totals.put(stats, stats.getTotalTime());
+        }
+        Collections.sort(returnValue, new Comparator<QueryStats>() {
+            @Override
+            public int compare(QueryStats o1, QueryStats o2) {
+                return totals.get(o2).compareTo(totals.get(o1));
+            }
+        });
+        return returnValue;
+    }
+
+    /**
+     * Forgets all the statistics
+     */
+    public static void reset() {
+        queries.clear();
+    }
+
+    /**
+     * Returns the SQL with all the string and numeric literals replaced by ?,
+     * runs of whitespace outside of quotes collapsed to a single space and
+     * lists of values e.g. in (?,?,?) reduced to a single value
+     *
+     * @param sql SQL to normalise
+     *
+     * @return Fingerprint of the statement
+     */
+    public static String getFingerprint(String sql) {
+        StringBuilder returnValue = new StringBuilder(Math.min(sql.length(), MAX_FINGERPRINT_LENGTH));
+        int length = sql.length();
+        int i = 0;
+        while (i < length && returnValue.length() < MAX_FINGERPRINT_LENGTH) {
+            char c = sql.charAt(i);
+            char previous = returnValue.length() == 0 ? ' ' : returnValue.charAt(returnValue.length() - 1);
+
+            // String literals, allowing for doubled up quotes within them
+
+            if (c == '\'') {
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'')
+                            i++;
+                        else
+                            break;
+                    }
+                    i++;
+                }
+                returnValue.append('?');
+                i++;
+            }
+
+            // Quoted identifiers are kept as they are
+
+            else if (c == '"') {
+                int end = sql.indexOf('"', i + 1);
+                if (end < 0) end = length - 1;
+                returnValue.append(sql, i, end + 1);
+                i = end + 1;
+            }
+
+            // Numbers that aren't part of a name
+
+            else if (Character.isDigit(c) && !Character.isLetterOrDigit(previous) && previous != '_' && previous != '$') {
+                while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) i++;
+                returnValue.append('?');
+            }
+            else if (Character.isWhitespace(c)) {
+                if (previous != ' ') returnValue.append(' ');
+                i++;
+            }
+            else {
+                returnValue.append(c);
+                i++;
+            }
+        }
+        return VALUE_LIST.matcher(returnValue.toString().trim()).replaceAll("(?)");
+    }
+
+    /**
+     * Removes the statement that has taken the least total time, counting
+     * the error that it took on when it was added
+     *
+     * @return Total time of the removed statement including its error
+     */
+    private static long evictCheapest() {
+        String cheapest = null;
+        long cheapestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, QueryStats> entry : queries.entrySet()) {
+            long time = entry.getValue().getTotalTime() + entry.getValue().getError();
+            if (time < cheapestTime) {
+                cheapestTime = time;
+                cheapest = entry.getKey();
+            }
+        }
+        if (cheapest == null || queries.remove(cheapest) == null) return 0;
+        return cheapestTime;
+    }
+
+    /**
+     * Running statistics for a single statement
+     */
+    public static class QueryStats {
+
+        private final String datasource;
+        private final String fingerprint;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final long error;
+
+        /**
+         * Creates empty statistics for the statement
+         *
+         * @param datasource Name of the datasource
+         * @param fingerprint Fingerprint of the statement
+         * @param error Total time of the statement this one replaced
+         */
+        QueryStats(String datasource, String fingerprint, long error) {
+            this.datasource = datasource;
+            this.fingerprint = fingerprint;
+            this.error = error;
+        }
+
+        /**
+         * Adds an execution of the statement
+         *
+         * @param duration Time taken in milliseconds
+         * @param rowCount Number of rows returned
+         * @param cached True if the results came from the cache
+         */
+        void add(long duration, long rowCount, boolean cached) {
+            count.incrementAndGet();
+            if (cached) cacheHits.incrementAndGet();
+            totalTime.addAndGet(duration);
+            rows.addAndGet(rowCount);
+            long current = maxTime.get();
+            while (duration > current && !maxTime.compareAndSet(current, duration)) {
+                current = maxTime.get();
+            }
+        }
+
+        /**
+         * Returns the name of the datasource the statement was run against
+         *
+         * @return Datasource name
+         */
+        public String getDatasource() {
+            return datasource;
+        }
+
+        /**
+         * Returns the statement with all the literals replaced by ?
+         *
+         * @return Fingerprint
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Returns the number of times the statement has been run
+         *
+         * @return Count
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Returns the number of times the results came from the cache
+         *
+         * @return Cache hits
+         */
+        public long getCacheHits() {
+            return cacheHits.get();
+        }
+
+        /**
+         * Returns the percentage of times the results came from the cache
+         *
+         * @return Percentage
+         */
+        public double getCacheHitRatio() {
+            long total = count.get();
+            return total == 0 ? 0 : cacheHits.get() * 100.0 / total;
+        }
+
+        /**
+         * Returns the total time spent running the statement
+         *
+         * @return Milliseconds
+         */
+        public long getTotalTime() {
+            return totalTime.get();
+        }
+
+        /**
+         * Returns the most time the statement may have taken before it was
+         * tracked - the total of the statement it replaced
+         *
+         * @return Milliseconds
+         */
+        public long getError() {
+            return error;
+        }
+
+        /**
+         * Returns the average time taken to run the statement
+         *
+         * @return Milliseconds
+         */
+        public long getMeanTime() {
+            long total = count.get();
+            return total == 0 ? 0 : totalTime.get() / total;
+        }
+
+        /**
+         * Returns the longest time taken to run the statement
+         *
+         * @return Milliseconds
+         */
+        public long getMaxTime() {
+            return maxTime.get();
+        }
+
+        /**
+         * Returns the total number of rows returned
+         *
+         * @return Rows
+         */
+        public long getRows() {
+            return rows.get();
+        }
+
+        /**
+         * Show a convenient string representation of the statistics
+         *
+         * @return Useful representation
+         */
+        public String toString() {
+            return String.format("%s count:%d cached:%.1f%% total:%d mean:%d max:%d rows:%d %s",
+                                 datasource, getCount(), getCacheHitRatio(), getTotalTime(), getMeanTime(), getMaxTime(), getRows(), fingerprint);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Keeps track of how long a repeating piece of work takes - the last, the
+ * maximum and a rolling average of the most recent runs
+ */
+public class RunStatistics {
+
+    // The number of runs that the average is taken over
+    private static final int AVERAGE_RUNS = 10;
+
+    private volatile int lastRunDuration;
+    private volatile int maxRunDuration;
+    private volatile Date maxRunDate;
+    private final List<Integer> averages = new ArrayList<>();
+
+    /**
+     * Records the duration of a run
+     *
+     * @param duration Milliseconds taken
+     */
+    public void add(int duration) {
+        synchronized (averages) {
+            lastRunDuration = duration;
+            if (duration > maxRunDuration) {
+                maxRunDuration = duration;
+                maxRunDate = new Date();
+            }
+            averages.add(duration);
+            while (averages.size() > AVERAGE_RUNS)
+                averages.remove(0);
+        }
+    }
+
+    /**
+     * Forgets all the runs
+     */
+    public void reset() {
+        synchronized (averages) {
+            lastRunDuration = 0;
+            maxRunDuration = 0;
+            maxRunDate = null;
+            averages.clear();
+        }
+    }
+
+    /**
+     * Returns the duration in milliseconds of the last run
+     *
+     * @return Milliseconds
+     */
+    public int getLastRunDuration() {
+        return lastRunDuration;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds that a run has taken
+     *
+     * @return Milliseconds
+     */
+    public int getMaxRunDuration() {
+        return maxRunDuration;
+    }
+
+    /**
+     * Returns the date when the maximum time occurred
+     *
+     * @return Date
+     */
+    public Date getMaxRunDate() {
+        return maxRunDate;
+    }
+
+    /**
+     * Calculates the rolling average of the run durations
+     *
+     * @return Real number milliseconds
+     */
+    public double getAverageRunDuration() {
+        double returnValue = 0.0;
+        synchronized (averages) {
+            if (!averages.isEmpty()) {
+                for (Integer value : averages) {
+                    returnValue += value;
+                }
+                returnValue /= averages.size();
+            }
+        }
+        return returnValue;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring.jmx;
+
+import com.pivotal.system.monitoring.HandlerTimings;
+import com.pivotal.system.monitoring.LatencyHistogram;
+import com.pivotal.utils.PivotalException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides the JMX MBean implementation for the latencies of the request handlers
+ */
+public class Handlers implements HandlersMBean {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(Handlers.class);
+
+    /**
+     * Registers a new MBean with the JMX infrastructure
+     */
+    public static void registerMBean() {
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = JMXUtils.getObjectName("Handlers");
+            mbs.registerMBean(new Handlers(), name);
+        }
+        catch (Exception e) {
+            logger.debug("Problem registering JMX MBean - {}", PivotalException.getErrorMessage(e));
+        }
+    }
+
+    /**
+     * Returns the number of request handlers that have been used
+     *
+     * @return Number of handlers
+     */
+    public int getNumberOfHandlers() {
+        return HandlerTimings.getHandlerCount();
+    }
+
+    /**
+     * Returns the latencies of every handler that has been used, slowest first,
+     * one line per handler with the count, mean, p50, p95, p99 and max in milliseconds
+     *
+     * @return Handler latencies
+     */
+    public String[] getHandlerLatencies() {
+        List<String> returnValue = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Object>> entry : HandlerTimings.getSummaries().entrySet()) {
+            returnValue.add(entry.getKey() + ' ' + entry.getValue());
+        }
+        return returnValue.toArray(new String[returnValue.size()]);
+    }
+
+    /**
+     * Returns the latency in milliseconds that the percentage of requests
+     * to the handler completed within
+     *
+     * @param handler Name of the handler e.g. StatusController.populateJvm
+     * @param percentile Percentile e.g. 99
+     *
+     * @return Latency or -1 if the handler hasn't been used
+     */
+    public long getPercentile(String handler, double percentile) {
+        LatencyHistogram histogram = HandlerTimings.getHistogram(handler);
+        return histogram == null ? -1 : histogram.getPercentile(percentile);
+    }
+
+    /**
+     * Clears the latencies of all the handlers
+     */
+    public void reset() {
+        HandlerTimings.reset();
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring.jmx;
+
+public interface HandlersMBean {
+
+    /**
+     * Returns the number of request handlers that have been used
+     *
+     * @return Number of handlers
+     */
+    int getNumberOfHandlers();
+
+    /**
+     * Returns the latencies of every handler that has been used, slowest first,
+     * one line per handler with the count, mean, p50, p95, p99 and max in milliseconds
+     *
+     * @return Handler latencies
+     */
+    String[] getHandlerLatencies();
+
+    /**
+     * Returns the latency in milliseconds that the percentage of requests
+     * to the handler completed within
+     *
+     * @param handler Name of the handler e.g. StatusController.populateJvm
+     * @param percentile Percentile e.g. 99
+     *
+     * @return Latency or -1 if the handler hasn't been used
+     */
+    long getPercentile(String handler, double percentile);
+
+    /**
+     * Clears the latencies of all the handlers
+     */
+    void reset();
+
+}
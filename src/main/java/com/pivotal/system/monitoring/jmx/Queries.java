@@ -0,0 +1,75 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring.jmx;
+
+import com.pivotal.system.monitoring.QueryProfiler;
+import com.pivotal.utils.PivotalException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides the JMX MBean implementation for the SQL statement profile
+ */
+public class Queries implements QueriesMBean {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(Queries.class);
+
+    /**
+     * Registers a new MBean with the JMX infrastructure
+     */
+    public static void registerMBean() {
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = JMXUtils.getObjectName("Queries");
+            mbs.registerMBean(new Queries(), name);
+        }
+        catch (Exception e) {
+            logger.debug("Problem registering JMX MBean - {}", PivotalException.getErrorMessage(e));
+        }
+    }
+
+    /**
+     * Returns the number of distinct statements being profiled
+     *
+     * @return Number of statements
+     */
+    public int getNumberOfQueries() {
+        return QueryProfiler.getQueryCount();
+    }
+
+    /**
+     * Returns the statistics of the statements, most expensive first,
+     * one line per statement
+     *
+     * @param limit Maximum number of statements to return
+     *
+     * @return Statement statistics
+     */
+    public String[] getTopQueries(int limit) {
+        List<String> returnValue = new ArrayList<>();
+        for (QueryProfiler.QueryStats stats : QueryProfiler.getQueries()) {
+            if (returnValue.size() >= limit) break;
+            returnValue.add(stats.toString());
+        }
+        return returnValue.toArray(new String[returnValue.size()]);
+    }
+
+    /**
+     * Clears the statistics of all the statements
+     */
+    public void reset() {
+        QueryProfiler.reset();
+    }
+
+}
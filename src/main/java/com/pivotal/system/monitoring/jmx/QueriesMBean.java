@@ -0,0 +1,35 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring.jmx;
+
+public interface QueriesMBean {
+
+    /**
+     * Returns the number of distinct statements being profiled
+     *
+     * @return Number of statements
+     */
+    int getNumberOfQueries();
+
+    /**
+     * Returns the statistics of the statements, most expensive first,
+     * one line per statement
+     *
+     * @param limit Maximum number of statements to return
+     *
+     * @return Statement statistics
+     */
+    String[] getTopQueries(int limit);
+
+    /**
+     * Clears the statistics of all the statements
+     */
+    void reset();
+
+}
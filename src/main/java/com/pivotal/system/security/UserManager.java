@@ -15,6 +15,8 @@ import com.pivotal.system.data.dao.DatabaseHibernate;
 import com.pivotal.system.hibernate.entities.RoleEntity;
 import com.pivotal.system.hibernate.entities.SettingsEntity;
 import com.pivotal.system.hibernate.entities.UserEntity;
+import com.pivotal.system.hibernate.entities.UserStatusEntity;
+import com.pivotal.system.hibernate.utils.CacheInvalidator;
 import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.utils.*;
 import com.pivotal.web.Constants;
@@ -875,6 +877,10 @@ public class UserManager {
         db.commitTransaction();
         db.close();
 
+        // The delete bypasses Hibernate so evict the status from every node's cache
+
+        CacheInvalidator.invalidateEntity(UserStatusEntity.class, sessionId);
+
         // If we are logging out our own session then clear it, otherwise send
         // a call to the server to log them out
 
@@ -10,6 +10,7 @@ package com.pivotal.utils;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.BeanWrapperImpl;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.PropertyValue;
@@ -26,12 +27,18 @@ import java.beans.PropertyDescriptor;
 import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * <p>Some general purpose methods involving classes.</p>
@@ -293,26 +300,42 @@ public class ClassUtils {
 
     /**
      * Exercises the getter method to retrieve the bean value
+     * The getters for each class and property are looked up once and cached so that
+     * this is little more than a method call - anything the cached accessor can't
+     * handle (indexed properties etc.) is passed to a bean wrapper
      * @param object Object to use
      * @param name Method name (nested is allowed)
-     * @return Object value
+     * @return Object value or null if any part of a nested property is null
      */
     @SuppressWarnings("unchecked")
     public static <T> T getPropertyValue(Object object, String name) {
 
-        BeanWrapperImpl beanWrapper = new BeanWrapperImpl(object);
         T returnValue = null;
-        try {
-            returnValue = (T)beanWrapper.getPropertyValue(name);
+        PropertyAccessor accessor = object==null ? null : PropertyAccessor.getInstance(object.getClass(), name);
+        if (accessor!=null) {
+            try {
+                returnValue = (T)accessor.get(object);
+            }
+            catch (Exception e) {
+                logger.debug("Field [{}] has produced a null value - {}", name, PivotalException.getErrorMessage(e));
+            }
         }
-        catch (Exception e) {
-            logger.debug("Field [%s] has produced a null value", name);
+        else {
+            BeanWrapperImpl beanWrapper = new BeanWrapperImpl(object);
+            try {
+                returnValue = (T)beanWrapper.getPropertyValue(name);
+            }
+            catch (Exception e) {
+                logger.debug("Field [%s] has produced a null value", name);
+            }
         }
         return returnValue;
     }
 
     /**
      * Exercises the setter method to set the bean value
+     * Values that are already of the right type are set using the cached
+     * accessor, anything that needs converting is passed to a bean wrapper
      * @param object Object to use
      * @param name Method name (nested is allowed)
      * @param value Value to apply to the property
@@ -321,14 +344,25 @@ public class ClassUtils {
     @SuppressWarnings("unchecked")
     public static <T> T setPropertyValue(Object object, String name, Object value) {
 
-        BeanWrapperImpl beanWrapper = new BeanWrapperImpl(object);
         T returnValue = null;
-        try {
-            returnValue = (T)beanWrapper.getPropertyValue(name);
-            beanWrapper.setPropertyValue(new PropertyValue(name, value));
+        PropertyAccessor accessor = object==null ? null : PropertyAccessor.getInstance(object.getClass(), name);
+        if (accessor!=null && accessor.canSet(value)) {
+            try {
+                returnValue = (T)accessor.set(object, value);
+            }
+            catch (Exception e) {
+                logger.debug("Cannot set field [{}] - {}", name, PivotalException.getErrorMessage(e));
+            }
         }
-        catch (Exception e) {
-            logger.debug("Field [%s] has produced a null value", name);
+        else {
+            BeanWrapperImpl beanWrapper = new BeanWrapperImpl(object);
+            try {
+                returnValue = (T)beanWrapper.getPropertyValue(name);
+                beanWrapper.setPropertyValue(new PropertyValue(name, value));
+            }
+            catch (Exception e) {
+                logger.debug("Field [%s] has produced a null value", name);
+            }
         }
         return returnValue;
     }
@@ -446,4 +480,174 @@ public class ClassUtils {
         return returnValue;
     }
 
+
+    /**
+     * Compiled getters (and setter) for a simple or nested property of a class
+     * Instances are cached for each class and property path so the bean
+     * introspection is only done once
+     * Each getter is resolved against the declared type of the previous property,
+     * which also works for Hibernate proxies as they extend the entity class
+     */
+    private static class PropertyAccessor {
+
+        // Maximum number of property names remembered for each class so that junk names can't fill the cache
+        private static final int MAX_NAMES_PER_CLASS = 500;
+
+        // Remembered in place of properties that can't be compiled so that they are only introspected once
+        private static final PropertyAccessor NOT_COMPILED = new PropertyAccessor(null, null, null);
+
+        private static final ConcurrentMap<Class, ConcurrentMap<String, PropertyAccessor>> accessors = new ConcurrentHashMap<>();
+        private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+        private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+        private final MethodHandle[] getters;
+        private final MethodHandle setter;
+        private final Class setterType;
+
+        /**
+         * Creates an accessor from the resolved methods
+         *
+         * @param getters Getters for each part of the path
+         * @param setter Setter for the last part of the path (can be null)
+         * @param setterType Type accepted by the setter
+         */
+        private PropertyAccessor(MethodHandle[] getters, MethodHandle setter, Class setterType) {
+            this.getters = getters;
+            this.setter = setter;
+            this.setterType = setterType;
+        }
+
+        /**
+         * Returns the accessor for the property of the class
+         *
+         * @param clazz Class of the object
+         * @param name Property name, nested with dots if required
+         * @return Accessor or null if the property can't be compiled
+         */
+        static PropertyAccessor getInstance(Class clazz, String name) {
+            if (name==null) return null;
+            ConcurrentMap<String, PropertyAccessor> classAccessors = accessors.get(clazz);
+            if (classAccessors==null) {
+                classAccessors = new ConcurrentHashMap<>();
+                ConcurrentMap<String, PropertyAccessor> existing = accessors.putIfAbsent(clazz, classAccessors);
+                if (existing!=null) classAccessors = existing;
+            }
+            PropertyAccessor returnValue = classAccessors.get(name);
+            if (returnValue==null) {
+                returnValue = create(clazz, name);
+                if (returnValue==null) returnValue = NOT_COMPILED;
+                if (classAccessors.size() < MAX_NAMES_PER_CLASS) classAccessors.put(name, returnValue);
+            }
+            return returnValue==NOT_COMPILED ? null : returnValue;
+        }
+
+        /**
+         * Resolves the getters for each part of the path
+         *
+         * @param clazz Class of the object
+         * @param name Property name
+         * @return Accessor or null if any part doesn't have a public getter
+         */
+        private static PropertyAccessor create(Class clazz, String name) {
+            try {
+                String[] names = name.split("\\.", -1);
+                MethodHandle[] getters = new MethodHandle[names.length];
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                MethodHandle setter = null;
+                Class setterType = null;
+                Class type = clazz;
+                for (int i = 0; i < names.length; i++) {
+                    PropertyDescriptor prop = Common.isBlank(names[i]) ? null : BeanUtils.getPropertyDescriptor(type, names[i]);
+                    if (prop==null || prop.getReadMethod()==null) return null;
+                    Method getter = prop.getReadMethod();
+                    getter.setAccessible(true);
+                    getters[i] = lookup.unreflect(getter).asType(GETTER_TYPE);
+                    if (i==names.length - 1 && prop.getWriteMethod()!=null) {
+                        Method write = prop.getWriteMethod();
+                        write.setAccessible(true);
+                        setter = lookup.unreflect(write).asType(SETTER_TYPE);
+                        setterType = write.getParameterTypes()[0];
+                    }
+                    type = prop.getPropertyType();
+                }
+                return new PropertyAccessor(getters, setter, setterType);
+            }
+            catch (Exception e) {
+                logger.debug("Cannot compile property [{}] of [{}] - {}", name, clazz, e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Gets the value of the property
+         *
+         * @param object Object to read
+         * @return Value or null if any part of the path is null
+         * @throws Exception if a getter fails
+         */
+        Object get(Object object) throws Exception {
+            return get(object, getters.length);
+        }
+
+        /**
+         * Returns true if the value can be set directly without any conversion
+         *
+         * @param value Value to set
+         * @return True if the setter accepts the value as it is
+         */
+        boolean canSet(Object value) {
+            if (setter==null) return false;
+            if (value==null) return !setterType.isPrimitive();
+            return org.springframework.util.ClassUtils.resolvePrimitiveIfNecessary(setterType).isInstance(value);
+        }
+
+        /**
+         * Sets the value of the property
+         * Nothing is set if any of the parent properties are null
+         *
+         * @param object Object to update
+         * @param value Value to set
+         * @return Previous value
+         * @throws Exception if a getter or setter fails
+         */
+        Object set(Object object, Object value) throws Exception {
+            Object parent = get(object, getters.length - 1);
+            if (parent==null) return null;
+            try {
+                Object returnValue = (Object)getters[getters.length - 1].invokeExact(parent);
+                setter.invokeExact(parent, value);
+                return returnValue;
+            }
+            catch (Exception | Error e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new UndeclaredThrowableException(e);
+            }
+        }
+
+        /**
+         * Follows the path through the first count getters
+         *
+         * @param object Object to start from
+         * @param count Number of getters to call
+         * @return Value or null if any part of the path is null
+         * @throws Exception if a getter fails
+         */
+        private Object get(Object object, int count) throws Exception {
+            Object returnValue = object;
+            try {
+                for (int i = 0; i < count && returnValue!=null; i++) {
+                    returnValue = (Object)getters[i].invokeExact(returnValue);
+                }
+            }
+            catch (Exception | Error e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new UndeclaredThrowableException(e);
+            }
+            return returnValue;
+        }
+    }
 }
@@ -14,10 +14,10 @@ import com.pivotal.web.servlet.ServletHelper;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.regex.Matcher;
 
 /**
  * <p>Implementation of the {@code I18nHostResolver} interface providing access to the i18n of the host application.</p>
@@ -31,7 +31,8 @@ public class I18nImplemenation  {
     public static final String I18N_FUNCTION_REGEX = "(?is)i18n *\\(" + I18N_REGEX + " *\\)";
     public static final String LOCALE_SETTING = "Locale";
 
-    // Ensure that when developing the bundles are not cached
+    // Ensure that when developing the bundles are not cached - the message
+    // tables built from them are reloaded when the bundle files change
     private final static ResourceBundle.Control bundleControl = new BundleControl();
 
     /**
@@ -216,66 +217,33 @@ public class I18nImplemenation  {
 
         // If the string contains the 'magic' I18N function, then recursively resolve it
 
-        if (stringToken != null && Common.findFirst(stringToken, I18N_FUNCTION_REGEX) != null) {
+        if (stringToken != null && stringToken.indexOf('(') >= 0 && MessageTable.I18N_FUNCTION_PATTERN.matcher(stringToken).find()) {
             returnValue = translateEmbedded(locale, stringToken, nullIfNotFound, parameters);
         }
 
         // If the token looks like it's a literal (contains whitespace, is numeric or doesn't look like a token) then return it
 
-        else if (stringToken == null || !stringToken.contains(".") || stringToken.matches("(.*\\s.*)|(-?[0-9\\.]+)")
-                || !stringToken.matches(I18N_REGEX)) {
+        else if (stringToken == null || !stringToken.contains(".") || MessageTable.LITERAL_PATTERN.matcher(stringToken).matches()
+                || !MessageTable.I18N_PATTERN.matcher(stringToken).matches()) {
             returnValue = stringToken;
         }
 
         else if (locale != null) {
             try {
-                logger.debug("Using locale [{}]", locale.toString());
-                ResourceBundle bundle = ResourceBundle.getBundle("i18n.app", locale, bundleControl);
 
-                // Check to see if the token is available unmolested
+                // The messages have already had their aliases and embedded values resolved
 
-                String token = stringToken;
-                boolean found = bundle.containsKey(token);
-                if (!found) {
-                    found = bundle.containsKey(token.toLowerCase());
-                    if (found) token = token.toLowerCase();
-                }
+                MessageTable.Message message = MessageTable.get(locale, bundleControl).get(stringToken);
 
                 // Write out the translated string
 
-                if (!found) {
+                if (message == null) {
                     if (!stringToken.endsWith(".column.extras"))
                         logger.error("ERROR no translation for [{}]", stringToken);
                     if (!nullIfNotFound) returnValue = "ERR[i18n]";
                 }
                 else {
-
-                    // Check to see if this is actually a de-referenced property
-
-                    logger.debug("Found token [{}] for target [{}]", token, stringToken);
-                    int sanityCheck = 0;
-                    while (bundle.containsKey(token) && token.matches("\\S+") && !Common.doStringsMatch(token, bundle.getString(token))) {
-                        token = bundle.getString(token);
-                        sanityCheck++;
-                        int MAX_RECURSION = 50;
-                        if (sanityCheck > MAX_RECURSION)
-                            throw new PivotalException(String.format("The hunt for token [%s] causes an endless loop", stringToken));
-                    }
-
-                    // Translate any embedded values
-
-                    if (!Common.isBlank(token)) {
-                        token = translateEmbedded(locale, token, false);
-                    }
-
-                    // Run the format with/without the parameters
-
-                    if (Common.isBlank(parameters)) {
-                        returnValue = token;
-                    }
-                    else {
-                        returnValue = String.format(token, parameters);
-                    }
+                    returnValue = message.format(parameters);
                 }
             }
             catch (Exception e) {
@@ -306,12 +274,12 @@ public class I18nImplemenation  {
 
             // Get a list of the parts to replace
 
-            List<String> parts = Common.find(stringToken, I18N_FUNCTION_REGEX);
-            if (!Common.isBlank(parts)) {
-                for (String part : parts) {
-                    String token = Common.findFirst(part, I18N_REGEX);
-                    returnValue = returnValue.replace(part, translate(locale, token, nullIfNotFound, parameters));
-                }
+            Matcher matcher = MessageTable.I18N_FUNCTION_PATTERN.matcher(stringToken);
+            while (matcher.find()) {
+                String part = matcher.group();
+                Matcher tokenMatcher = MessageTable.I18N_PATTERN.matcher(part);
+                String token = tokenMatcher.find() ? tokenMatcher.group() : null;
+                returnValue = returnValue.replace(part, translate(locale, token, nullIfNotFound, parameters));
             }
         }
 
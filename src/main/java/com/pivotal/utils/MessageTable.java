@@ -0,0 +1,304 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.utils;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * All the messages of the application bundle for a single locale, with every
+ * alias followed and every embedded i18n(...) token replaced when the bundle
+ * is loaded, so that a translation is a single hash lookup
+ * The tables are kept until one of the bundle files they were read from changes,
+ * which is checked at most every few seconds
+ */
+class MessageTable {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MessageTable.class);
+
+    private static final String BUNDLE_NAME = "i18n.app";
+    private static final String NOT_FOUND = "ERR[i18n]";
+    private static final int MAX_RECURSION = 50;
+
+    // How often to check if the bundle files have changed
+    private static final long CHECK_PERIOD = 5000;
+
+    static final Pattern I18N_PATTERN = Pattern.compile(I18nImplemenation.I18N_REGEX);
+    static final Pattern I18N_FUNCTION_PATTERN = Pattern.compile(I18nImplemenation.I18N_FUNCTION_REGEX);
+    static final Pattern LITERAL_PATTERN = Pattern.compile("(.*\\s.*)|(-?[0-9\\.]+)");
+    private static final Pattern NOT_WHITESPACE_PATTERN = Pattern.compile("\\S+");
+
+    private static final ConcurrentMap<Locale, MessageTable> tables = new ConcurrentHashMap<>();
+    private static volatile long nextCheck;
+
+    private final Map<String, Message> messages;
+    private final Map<URL, Long> sources;
+
+    /**
+     * Reads the bundle for the locale and resolves all the messages
+     *
+     * @param locale Locale to load
+     * @param control Control used to find the bundle
+     */
+    private MessageTable(Locale locale, ResourceBundle.Control control) {
+        ResourceBundle bundle = ResourceBundle.getBundle(BUNDLE_NAME, locale, control);
+        Map<String, String> values = new HashMap<>();
+        for (String key : bundle.keySet()) {
+            values.put(key, bundle.getString(key));
+        }
+        Map<String, Message> resolved = new HashMap<>(values.size() * 2);
+        for (String key : values.keySet()) {
+            resolve(values, resolved, key, 0);
+        }
+        messages = Collections.unmodifiableMap(resolved);
+        sources = getSources(locale, control);
+        logger.debug("Loaded {} messages for locale [{}]", messages.size(), locale);
+    }
+
+    /**
+     * Returns the table of messages for the locale, loading it if it hasn't
+     * been loaded yet or the bundle files have changed
+     *
+     * @param locale Locale to get
+     * @param control Control used to find the bundle
+     *
+     * @return Table of messages
+     */
+    static MessageTable get(Locale locale, ResourceBundle.Control control) {
+        long now = System.currentTimeMillis();
+        if (now > nextCheck) {
+            nextCheck = now + CHECK_PERIOD;
+            for (MessageTable table : tables.values()) {
+                if (table.isStale()) {
+                    logger.info("Reloading messages as the bundle files have changed");
+                    ResourceBundle.clearCache(Thread.currentThread().getContextClassLoader());
+                    ResourceBundle.clearCache(MessageTable.class.getClassLoader());
+                    tables.clear();
+                    break;
+                }
+            }
+        }
+        MessageTable returnValue = tables.get(locale);
+        if (returnValue == null) {
+            returnValue = new MessageTable(locale, control);
+            MessageTable existing = tables.putIfAbsent(locale, returnValue);
+            if (existing != null) returnValue = existing;
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns the message for the token, trying the lowercase version if
+     * the token isn't found as it is
+     *
+     * @param token Token to find
+     *
+     * @return Message or null if not found
+     */
+    Message get(String token) {
+        Message returnValue = messages.get(token);
+        if (returnValue == null) {
+            String lower = token.toLowerCase();
+            if (!lower.equals(token)) returnValue = messages.get(lower);
+        }
+        return returnValue;
+    }
+
+    /**
+     * Resolves the message for the key, following aliases and replacing
+     * any embedded tokens, and adds it to the table
+     *
+     * @param values Raw values from the bundle
+     * @param resolved Messages resolved so far
+     * @param key Key to resolve
+     * @param depth Number of embedded tokens being resolved to get here
+     *
+     * @return Message
+     */
+    private static Message resolve(Map<String, String> values, Map<String, Message> resolved, String key, int depth) {
+        Message returnValue = resolved.get(key);
+        if (returnValue != null) return returnValue;
+
+        // Follow the aliases until we get to an actual message
+
+        String token = key;
+        int sanityCheck = 0;
+        String error = null;
+        while (values.containsKey(token) && NOT_WHITESPACE_PATTERN.matcher(token).matches() && !Common.doStringsMatch(token, values.get(token))) {
+            token = values.get(token);
+            sanityCheck++;
+            if (sanityCheck > MAX_RECURSION) {
+                error = String.format("The hunt for token [%s] causes an endless loop", key);
+                break;
+            }
+        }
+
+        // Translate any embedded values
+
+        if (error == null && !Common.isBlank(token)) {
+            if (depth > MAX_RECURSION)
+                error = String.format("The embedded tokens in [%s] cause an endless loop", key);
+            else
+                token = resolveEmbedded(values, resolved, token, depth + 1);
+        }
+        returnValue = new Message(token, error);
+        resolved.put(key, returnValue);
+        return returnValue;
+    }
+
+    /**
+     * Replaces all the embedded i18n(...) tokens with their messages
+     *
+     * @param values Raw values from the bundle
+     * @param resolved Messages resolved so far
+     * @param text Text containing the tokens
+     * @param depth Number of embedded tokens being resolved to get here
+     *
+     * @return Text with the tokens replaced
+     */
+    private static String resolveEmbedded(Map<String, String> values, Map<String, Message> resolved, String text, int depth) {
+        Matcher matcher = I18N_FUNCTION_PATTERN.matcher(text);
+        if (!matcher.find()) return text;
+        StringBuffer returnValue = new StringBuffer();
+        do {
+            Matcher tokenMatcher = I18N_PATTERN.matcher(matcher.group());
+            String token = tokenMatcher.find() ? tokenMatcher.group() : null;
+            matcher.appendReplacement(returnValue, Matcher.quoteReplacement(String.valueOf(resolveToken(values, resolved, token, depth))));
+        } while (matcher.find());
+        matcher.appendTail(returnValue);
+        return returnValue.toString();
+    }
+
+    /**
+     * Returns the message for a token embedded in another message
+     *
+     * @param values Raw values from the bundle
+     * @param resolved Messages resolved so far
+     * @param token Embedded token
+     * @param depth Number of embedded tokens being resolved to get here
+     *
+     * @return Message text
+     */
+    private static String resolveToken(Map<String, String> values, Map<String, Message> resolved, String token, int depth) {
+        if (token == null || !token.contains(".") || LITERAL_PATTERN.matcher(token).matches()) return token;
+        String key = values.containsKey(token) ? token : token.toLowerCase();
+        if (!values.containsKey(key)) {
+            logger.error("ERROR no translation for [{}]", token);
+            return NOT_FOUND;
+        }
+        Message message = resolve(values, resolved, key, depth);
+        if (message.error != null) {
+            logger.error("ERROR translating [{}] - {}", token, message.error);
+            return NOT_FOUND;
+        }
+        return message.text;
+    }
+
+    /**
+     * Returns the location and last modified time of every properties file
+     * that may contribute to the bundle for the locale
+     *
+     * @param locale Locale of the bundle
+     * @param control Control used to find the bundle
+     *
+     * @return Map of file locations and last modified times
+     */
+    private static Map<URL, Long> getSources(Locale locale, ResourceBundle.Control control) {
+        Map<URL, Long> returnValue = new HashMap<>();
+        Set<Locale> locales = new LinkedHashSet<>(control.getCandidateLocales(BUNDLE_NAME, locale));
+        locales.addAll(control.getCandidateLocales(BUNDLE_NAME, Locale.getDefault()));
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) loader = MessageTable.class.getClassLoader();
+        for (Locale candidate : locales) {
+            URL url = loader.getResource(control.toResourceName(control.toBundleName(BUNDLE_NAME, candidate), "properties"));
+            if (url != null) returnValue.put(url, getLastModified(url));
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns true if any of the files the bundle was read from have changed
+     *
+     * @return True if the table should be reloaded
+     */
+    private boolean isStale() {
+        for (Map.Entry<URL, Long> source : sources.entrySet()) {
+            if (getLastModified(source.getKey()) != source.getValue()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the last modified time of the resource
+     *
+     * @param url Location of the resource
+     *
+     * @return Last modified time or 0 if it cannot be determined
+     */
+    private static long getLastModified(URL url) {
+        try {
+            if ("file".equals(url.getProtocol()))
+                return new File(url.toURI()).lastModified();
+            URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            long returnValue = connection.getLastModified();
+            Common.close(connection.getInputStream());
+            return returnValue;
+        }
+        catch (Exception e) {
+            logger.debug("Cannot get last modified time of [{}] - {}", url, PivotalException.getErrorMessage(e));
+            return 0;
+        }
+    }
+
+    /**
+     * A fully resolved message
+     */
+    static class Message {
+
+        private final String text;
+        private final String error;
+        private final boolean formatted;
+
+        /**
+         * Creates a message
+         *
+         * @param text Resolved text of the message
+         * @param error Reason the message couldn't be resolved or null
+         */
+        Message(String text, String error) {
+            this.text = text;
+            this.error = error;
+            this.formatted = text != null && text.indexOf('%') >= 0;
+        }
+
+        /**
+         * Returns the message with the parameters substituted
+         * Messages without any format specifiers are returned as they are
+         * without going through the formatter
+         *
+         * @param parameters Optional array of parameters to use
+         *
+         * @return Formatted message
+         */
+        String format(Object... parameters) {
+            if (error != null) throw new PivotalException(error);
+            if (!formatted || Common.isBlank(parameters))
+                return text;
+            else
+                return String.format(text, parameters);
+        }
+    }
+}
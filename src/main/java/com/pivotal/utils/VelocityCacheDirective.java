@@ -0,0 +1,237 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+
+package com.pivotal.utils;
+
+import com.pivotal.system.hibernate.entities.UserEntity;
+import com.pivotal.system.security.UserManager;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.directive.DirectiveConstants;
+import org.apache.velocity.runtime.parser.node.ASTBlock;
+import org.apache.velocity.runtime.parser.node.Node;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides a custom directive for Velocity that caches the rendered output
+ * of a block so that it doesn't have to be evaluated again
+ * <p>
+ * The directive takes the form of #cache(key, ttl, [table1, tableX]) ... #end<br>
+ * where key identifies the content of the block e.g. the ID of the entity shown<br>
+ * ttl is the number of seconds to keep the output for<br>
+ * table1-X are the tables the block reads from - when any of these are changed
+ * (recorded through HibernateUtils.addChangeLog) the cached output is discarded<br>
+ * The other nodes discard theirs when they next receive the cache invalidations
+ * (see CacheInvalidator) so may show the old output for up to the monitor period
+ * </p>
+ * The output is also kept separately for each template position, locale and role
+ * of the current user so the key only needs to describe what the block shows
+ * Note that any variables set within the block are not set when the output
+ * comes from the cache
+ */
+public class VelocityCacheDirective extends Directive {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(VelocityCacheDirective.class);
+
+    // The maximum number of fragments to keep - the least recently used are discarded
+    private static final int MAX_FRAGMENTS = 2000;
+
+    private static final ConcurrentMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+
+    private static final Map<String, Fragment> fragments = new LinkedHashMap<String, Fragment>(MAX_FRAGMENTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+            return size() > MAX_FRAGMENTS;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /** {@inheritDoc} */
+    @Override
+    public String getName() {
+        return "cache";
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getType() {
+        return DirectiveConstants.BLOCK;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean render(InternalContextAdapter context, Writer writer, Node node) throws IOException, ResourceNotFoundException, ParseErrorException, MethodInvocationException {
+
+        // Read the parameters and find the block
+
+        Node block = null;
+        Object key = null;
+        int ttl = 0;
+        StringBuilder cacheKey = new StringBuilder(node.getTemplateName()).append(':').append(node.getLine()).append(':').append(node.getColumn());
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            Node child = node.jjtGetChild(i);
+            if (child instanceof ASTBlock)
+                block = child;
+            else if (i == 0)
+                key = child.value(context);
+            else if (i == 1)
+                ttl = Common.parseInt(String.valueOf(child.value(context)));
+            else {
+                String table = String.valueOf(child.value(context)).toLowerCase();
+                cacheKey.append(':').append(table).append('=').append(getTableVersion(table));
+            }
+        }
+        if (block == null) return true;
+
+        // Add the things that change the output without being part of the key
+
+        UserEntity user = UserManager.getCurrentUser();
+        cacheKey.append(':').append(getLocale(context));
+        cacheKey.append(':').append(user == null || user.getRole() == null ? "" : user.getRole().getId());
+        cacheKey.append(':').append(key);
+        String fragmentKey = cacheKey.toString();
+
+        // Use the cached output if we have it
+
+        long now = System.currentTimeMillis();
+        Fragment fragment;
+        synchronized (fragments) {
+            fragment = fragments.get(fragmentKey);
+        }
+        if (fragment != null && fragment.expires > now) {
+            hits.incrementAndGet();
+            writer.write(fragment.text);
+        }
+        else {
+            misses.incrementAndGet();
+            StringWriter output = new StringWriter();
+            block.render(context, output);
+            String text = output.toString();
+            if (ttl > 0) {
+                synchronized (fragments) {
+                    fragments.put(fragmentKey, new Fragment(text, now + ttl * 1000L));
+                }
+            }
+            writer.write(text);
+        }
+        return true;
+    }
+
+    /**
+     * Discards all the cached output that depends on the table
+     *
+     * @param table Name of the table that has changed
+     */
+    public static void invalidate(String table) {
+        if (!Common.isBlank(table)) {
+            logger.debug("Invalidating cached fragments for [{}]", table);
+            getTableVersion(table.toLowerCase()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Discards all the cached output
+     */
+    public static void clear() {
+        synchronized (fragments) {
+            fragments.clear();
+        }
+    }
+
+    /**
+     * Returns the number of fragments in the cache
+     *
+     * @return Number of fragments
+     */
+    public static int getSize() {
+        synchronized (fragments) {
+            return fragments.size();
+        }
+    }
+
+    /**
+     * Returns the number of times the output came from the cache
+     *
+     * @return Number of hits
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times the block had to be rendered
+     *
+     * @return Number of misses
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the locale the block is rendered in, looking in the same places
+     * as I18n but without copying the context
+     *
+     * @param context Velocity context
+     *
+     * @return Locale
+     */
+    private static Locale getLocale(InternalContextAdapter context) {
+        Object locale = context.get(I18nImplemenation.LOCALE_SETTING);
+        if (locale instanceof Locale) return (Locale) locale;
+        Object request = context.get("Request");
+        if (request instanceof HttpServletRequest) return I18nImplemenation.getLocale((HttpServletRequest) request);
+        return I18nImplemenation.getLocale();
+    }
+
+    /**
+     * Returns the version counter for the table, which is moved on every
+     * time the table is changed so that old output no longer matches
+     *
+     * @param table Lowercase table name
+     *
+     * @return Version counter
+     */
+    private static AtomicLong getTableVersion(String table) {
+        AtomicLong returnValue = tableVersions.get(table);
+        if (returnValue == null) {
+            returnValue = new AtomicLong();
+            AtomicLong existing = tableVersions.putIfAbsent(table, returnValue);
+            if (existing != null) returnValue = existing;
+        }
+        return returnValue;
+    }
+
+    /**
+     * Rendered output of a block
+     */
+    private static class Fragment {
+        private final String text;
+        private final long expires;
+
+        Fragment(String text, long expires) {
+            this.text = text;
+            this.expires = expires;
+        }
+    }
+}
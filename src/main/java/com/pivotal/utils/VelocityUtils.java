@@ -99,6 +99,8 @@ public class VelocityUtils {
     private static VelocityEngine engine = makeEngine(true);
     private static Map<Class, Map<String, Object>> constantsCache;
     private static Map<String, Object> contextCache;
+    private static Map<String, Object> sharedObjects;
+    private static Context sharedContext;
 
     /**
      * Prevent instantiation
@@ -117,18 +119,53 @@ public class VelocityUtils {
 
     /**
      * Creates and initialises a velocity context
+     * The context is a thin layer holding the current user and theme on top
+     * of the shared context, so none of the global objects are copied
      *
      * @return Velocity context
      */
     public static Context getVelocityContext() {
-        Context context = new VelocityContext();
+        Context context = new VelocityContext(new HashMap<String, Object>(), getSharedContext());
+        addUserObjects(context);
+        return context;
+    }
 
-        // Get all the objects from the context
+    /**
+     * Returns the context that holds all the tools and constants that are
+     * the same for every request
+     * This is never changed once it has been created and is used as the
+     * parent of the request contexts
+     *
+     * @return Read only context
+     */
+    synchronized public static Context getSharedContext() {
+        if (sharedContext == null) {
+            sharedContext = new VelocityContext(getSharedObjects());
+        }
+        return sharedContext;
+    }
 
-        Map<String, Object> cacheContext = getVelocityContextMap();
-        for (Map.Entry entry : cacheContext.entrySet()) {
-            context.put((String) entry.getKey(), entry.getValue());
+    /**
+     * Returns all the tools and constants that are the same for every request
+     * as a read only map
+     *
+     * @return Map of shared objects
+     */
+    synchronized public static Map<String, Object> getSharedObjects() {
+        if (sharedObjects == null) {
+            Map<String, Object> objects = new HashMap<>(getVelocityContextMap());
+            addConstants(objects, UserManager.class);
+            sharedObjects = Collections.unmodifiableMap(objects);
         }
+        return sharedObjects;
+    }
+
+    /**
+     * Adds the current user, their preferences, theme and interface to the context
+     *
+     * @param context Context to populate
+     */
+    public static void addUserObjects(Context context) {
 
         // Add the current user to the context
 
@@ -151,11 +188,7 @@ public class VelocityUtils {
         if (Common.isBlank(userInterface))
             userInterface = UserManager.INTERFACE_STANDARD;
 
-        addConstants(context, UserManager.class);
-
         context.put(UserManager.USER_INTERFACE, userInterface);
-
-        return context;
     }
 
     /**
@@ -12,6 +12,7 @@ import com.pivotal.system.data.dao.DataSourceUtils;
 import com.pivotal.system.data.dao.Database;
 import com.pivotal.system.data.dao.DatabaseHibernate;
 import com.pivotal.system.hibernate.entities.LogEntity;
+import com.pivotal.system.monitoring.PerformanceSeries;
 import com.pivotal.system.security.UserManager;
 import com.pivotal.utils.Common;
 import com.pivotal.utils.PivotalException;
@@ -43,6 +44,7 @@ public class PerformanceController {
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(PerformanceController.class);
 
     private static final String DEFAULT_HOURS_TO_GET = "6";
+    private static final String DEFAULT_MAX_POINTS = "500";
     private static final String USER_PREFERENCE_STATUS_SETTINGS = "UserPreferenceStatusSettings";
 
     /**
@@ -418,11 +420,28 @@ public class PerformanceController {
                                             @RequestParam(value="anchor", defaultValue = "heap.percent.used") String anchor) {
         Database db = new DatabaseHibernate();
         String query = createQuery(anchor, hoursToGet, cats);
-        List<Map<String,Object>> rows = db.find(query, false);
+        List<Map<String,Object>> rows = db.findTable(query, false);
         db.close();
         return flattenTable(rows);
     }
 
+    /**
+     * Returns the historical performance as a set of columns downsampled
+     * to no more than the maximum number of points per series
+     *
+     * @param hoursToGet Hours of data to retrieve
+     * @param cats List of report names to get data for
+     * @param maxPoints Maximum number of points to return for each series
+     * @return Times and series of values
+     */
+    @ResponseBody
+    @RequestMapping(value="/series", produces = MediaType.APPLICATION_JSON_VALUE)
+    public PerformanceSeries getSeries(@RequestParam(value="hours", defaultValue= DEFAULT_HOURS_TO_GET) int hoursToGet,
+                                       @RequestParam(value="cats") String[] cats,
+                                       @RequestParam(value="points", defaultValue= DEFAULT_MAX_POINTS) int maxPoints) {
+        return PerformanceSeries.read(hoursToGet, maxPoints, cats);
+    }
+
     /**
      * Returns a list of events that may have occurred within the time period
      *
@@ -456,6 +475,7 @@ public class PerformanceController {
 
     /**
      * Reduces the rows by flattening the rows into a join based around the date
+     * The rows are read-only so the flattened rows are built up separately
      *
      * @param rows Results set to flatten
      *
@@ -473,7 +493,6 @@ public class PerformanceController {
 
             Timestamp date=(Timestamp)row.get("date");
             String server=((String)row.get("server")).replaceAll("[^a-zA-Z0-9_]", "_");
-            row.put("server", server);
 
             // Get the row from the table if it already exists
 
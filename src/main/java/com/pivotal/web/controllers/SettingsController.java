@@ -16,6 +16,7 @@ import com.pivotal.system.data.dao.DatabaseHibernate;
 import com.pivotal.system.hibernate.entities.ChangeLogEntity;
 import com.pivotal.system.hibernate.entities.LogEntity;
 import com.pivotal.system.hibernate.entities.SettingsEntity;
+import com.pivotal.system.hibernate.utils.CacheInvalidator;
 import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.system.security.UserManager;
 import com.pivotal.utils.*;
@@ -454,7 +455,7 @@ public class SettingsController extends AbstractController {
          * Clears the data caches and re-indexes the database
          */
         private static void clearStats() {
-            HibernateUtils.clearCache();
+            CacheInvalidator.invalidateAll();
         }
 
         /**
@@ -21,7 +21,9 @@ import com.pivotal.system.hibernate.entities.DatasourceEntity;
 import com.pivotal.system.hibernate.utils.AppConnectionProvider;
 import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.system.monitoring.EventMonitor;
+import com.pivotal.system.monitoring.HandlerTimings;
 import com.pivotal.system.monitoring.Monitor;
+import com.pivotal.system.monitoring.QueryProfiler;
 import com.pivotal.system.security.UserManager;
 import com.pivotal.utils.Common;
 import com.pivotal.utils.PivotalException;
@@ -139,6 +141,18 @@ public class StatusController extends AbstractController {
         return ret;
     }
 
+    /**
+     * Returns the latencies of all the request handlers that have been used,
+     * slowest first, as count, mean, p50, p95, p99 and max in milliseconds
+     *
+     * @return Map of latencies keyed on the controller and method name
+     */
+    @RequestMapping(value="/handlers", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    private Map<String, Map<String, Object>> getHandlerLatencies() {
+        return HandlerTimings.getSummaries();
+    }
+
     /**
      * Populates the context with information about the system
      *
@@ -814,6 +828,38 @@ public class StatusController extends AbstractController {
         return null;
     }
 
+    /**
+     * Populates the context with the query profile page
+     *
+     * @return Returns an appropriate template to use
+     */
+    @RequestMapping(value="/queries")
+    public String populateQueries() {
+        return "status";
+    }
+
+    /**
+     * Populates the context with the statistics of the most expensive statements
+     *
+     * @param model Context to populate
+     */
+    @RequestMapping(value="/queries/statistics")
+    public void populateQueryStats(Model model) {
+        model.addAttribute("Queries", QueryProfiler.getQueries());
+    }
+
+    /**
+     * Resets the query statistics
+     *
+     * @return Nothing
+     */
+    @RequestMapping(value={"/queries/reset"})
+    @ResponseBody
+    public Object resetQueryStats() {
+        QueryProfiler.reset();
+        return null;
+    }
+
     /**
      * Returns an XML string of the current health of th system
      *
@@ -904,7 +950,7 @@ public class StatusController extends AbstractController {
 
             // Run the query and return the results
 
-            model.addAttribute("Results", db.find(query, true));
+            model.addAttribute("Results", db.findTable(query, true));
             model.addAttribute("Error", db.getLastError());
         }
         catch (Exception e) {
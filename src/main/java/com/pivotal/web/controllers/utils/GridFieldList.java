@@ -24,6 +24,7 @@ import java.beans.PropertyDescriptor;
 import java.math.BigDecimal;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /**
  * A useful container for handling field lists used by the KendoUI grid
@@ -36,6 +37,12 @@ public class GridFieldList {
     private static final String PARAM_FIELDS = "fields";
     private static Map<String, Map<String, FieldDescription>> propertyCache = new LinkedCaseInsensitiveMap<>();
 
+    // Values that look like translation keys e.g. abc.def.ghi
+    private static final Pattern TRANSLATION_KEY = Pattern.compile("[a-z0-9_]{3,}\\.[a-z0-9_]{3,}+\\.[a-z0-9_]{3,}.+");
+
+    // Fields whose values may be translation keys
+    private static final Pattern TRANSLATABLE_FIELD = Pattern.compile("(?is)(.*(.+\\.)?[nN]ame)|((.+\\.)?description)|((.+\\.)?label)|((.+\\.)?category)|((.+\\.)?status)|((.+\\.)?severity)");
+
     private Class entityClass;
     private Map<String, FieldDescription> fieldList;
     private Preferences<Object> preferences;
@@ -312,6 +319,7 @@ public class GridFieldList {
         private boolean isMedia;
         private boolean isImage;
         private boolean isTransient;
+        private boolean isTranslatable;
         private String extra;
 
         /**
@@ -563,6 +571,13 @@ public class GridFieldList {
 
             isEntity = clazz.getSimpleName().endsWith("Entity");
 
+            // Work out if the values of the field might need translating
+
+            if (ReportTextEntity.class.isAssignableFrom(entityClass) && "layout".equalsIgnoreCase(name))
+                isTranslatable = true;
+            else
+                isTranslatable = !LogEntity.class.isAssignableFrom(entityClass) && name!=null && TRANSLATABLE_FIELD.matcher(name).matches();
+
         }
 
         @Override
@@ -595,24 +610,50 @@ public class GridFieldList {
 
             // If this is a media item, then return the ID
 
-            String regExp = "[a-z0-9_]{3,}\\.[a-z0-9_]{3,}+\\.[a-z0-9_]{3,}.+";
-            if (returnValue!=null) {
-                if (isMedia) {
+            if (returnValue!=null && isMedia) {
+                returnValue = getMediaValue((Integer)ClassUtils.getPropertyValue(returnValue, "id"), (String)ClassUtils.getPropertyValue(returnValue, "extension"));
+            }
+            else {
+                returnValue = getDisplayValue(returnValue);
+            }
+            return returnValue;
+        }
 
-                    // Check to see if this is an image
+        /**
+         * Returns the value to display for a media item
+         *
+         * @param id ID of the media item
+         * @param extension File extension of the media item
+         *
+         * @return ID of the media, negated if it has to be downloaded rather than shown
+         */
+        public Object getMediaValue(Integer id, String extension) {
 
-                    String extension = ClassUtils.getPropertyValue(returnValue, "extension");
-                    isImage = Common.doStringsMatch(extension, "jpeg", "jpg", "png", "gif");
+            // Check to see if this is an image
 
-                    // If this isn't an image, negate the ID to indicate that we need to download it
+            isImage = Common.doStringsMatch(extension, "jpeg", "jpg", "png", "gif");
 
-                    returnValue = ClassUtils.getPropertyValue(returnValue, "id");
-                    if (!isImage && returnValue!=null) returnValue = -(Integer)returnValue;
-                }
+            // If this isn't an image, negate the ID to indicate that we need to download it
+
+            return !isImage && id!=null ? Integer.valueOf(-id) : id;
+        }
+
+        /**
+         * Converts the value of this field into the value to display
+         * This is used for values that have been read directly from the database
+         * rather than from the entity, so it isn't used for media items
+         *
+         * @param value Value of the field
+         *
+         * @return Value object
+         */
+        public Object getDisplayValue(Object value) {
+            Object returnValue = value;
+            if (returnValue!=null) {
 
                 // Check for the special case where this is pointing at something interesting
 
-                else if (Common.doStringsMatch("roles", name))
+                if (Common.doStringsMatch("roles", name))
                     returnValue= UserManager.getRoleNames((String) returnValue, true);
 
                 // Return the string value if this is an entity reference
@@ -622,12 +663,7 @@ public class GridFieldList {
 
                 // Do any translation that might be needed
 
-                else if (entity instanceof ReportTextEntity && "layout".equalsIgnoreCase(name) && ((String)returnValue).matches(regExp)) {
-                    returnValue = I18n.translate((String) returnValue);
-                }
-                else if (!(entity instanceof LogEntity) && (returnValue instanceof String) && name!=null &&
-                         name.matches("(?is)(.*(.+\\.)?[nN]ame)|((.+\\.)?description)|((.+\\.)?label)|((.+\\.)?category)|((.+\\.)?status)|((.+\\.)?severity)") &&
-                        ((String)returnValue).matches(regExp)) {
+                else if (isTranslatable && (returnValue instanceof String) && TRANSLATION_KEY.matcher((String)returnValue).matches()) {
                     returnValue = I18n.translate((String) returnValue);
                 }
             }
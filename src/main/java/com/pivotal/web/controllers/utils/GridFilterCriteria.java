@@ -184,6 +184,19 @@ public class GridFilterCriteria {
      * @return Where clause
      */
     public String getWhereClause() {
+        return getWhereClause(null);
+    }
+
+    /**
+     * Returns a where clause with placeholders for the criteria where the
+     * criteria fields are qualified by the projection being used
+     * The fixed filter is used as it is
+     *
+     * @param projection Projection the query selects or null if it selects entities
+     *
+     * @return Where clause
+     */
+    String getWhereClause(GridProjection projection) {
         StringBuilder returnValue = new StringBuilder();
         StringBuilder whereClause = new StringBuilder();
         whereClause.append(" where ");
@@ -218,7 +231,7 @@ public class GridFilterCriteria {
                     lowerSuffix = "";
                 }
 
-                returnValue.append(lowerPrefix).append(field.field).append(lowerSuffix).append(" ").append(lookupOperator(field.operator)).append(" ? ");
+                returnValue.append(lowerPrefix).append(projection == null ? field.field : projection.qualify(field.field)).append(lowerSuffix).append(" ").append(lookupOperator(field.operator)).append(" ? ");
             }
         }
 
@@ -230,6 +243,16 @@ public class GridFilterCriteria {
         return returnValue.toString();
     }
 
+    /**
+     * Returns the permanent filter condition
+     *
+     * @return Fixed filter or null if there isn't one
+     */
+    @JsonIgnore
+    public String getFixedFilter() {
+        return fixedFilter;
+    }
+
     /**
      * Returns true if the where clause has some criteria
      *
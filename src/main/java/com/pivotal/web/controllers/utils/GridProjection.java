@@ -0,0 +1,212 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.web.controllers.utils;
+
+import com.pivotal.system.hibernate.utils.HibernateUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+import java.util.*;
+
+/**
+ * Builds the select and from clauses of an HQL query that reads just the
+ * properties needed by a grid rather than whole entities
+ * Properties of child entities (e.g. site.name) are read through explicit
+ * left joins so that rows without the child are still returned, unlike the
+ * implicit inner join that HQL creates for a dotted path
+ * Properties are added by their path from the grid entity and can then be
+ * read back from each row of the results by the same path
+ * As there is more than one entity in the from clause every property used
+ * anywhere in the query must be qualified with an alias - see qualify
+ */
+class GridProjection {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(GridProjection.class);
+
+    /** Alias given to the grid entity */
+    static final String ROOT_ALIAS = "gridRow";
+
+    private static final String JOIN_ALIAS = "gridJoin";
+
+    private final SessionFactory factory;
+    private final ClassMetadata rootMetadata;
+    private final String entityName;
+    private final Map<String, String> joinAliases = new HashMap<>();
+    private final StringBuilder joinClause = new StringBuilder();
+    private final Map<String, Integer> columns = new LinkedHashMap<>();
+    private final Map<String, String> expressions = new HashMap<>();
+
+    /**
+     * Creates a projection of the entity
+     *
+     * @param factory Session factory the entity belongs to
+     * @param rootMetadata Hibernate description of the entity
+     * @param entityName Name of the entity to use in the query
+     */
+    private GridProjection(SessionFactory factory, ClassMetadata rootMetadata, String entityName) {
+        this.factory = factory;
+        this.rootMetadata = rootMetadata;
+        this.entityName = entityName;
+    }
+
+    /**
+     * Creates an empty projection of the entity
+     *
+     * @param entityClass Grid entity
+     *
+     * @return Projection or null if the entity isn't mapped
+     */
+    static GridProjection create(Class entityClass) {
+        SessionFactory factory = HibernateUtils.getSessionFactory();
+        ClassMetadata metadata = factory == null ? null : factory.getClassMetadata(entityClass);
+        return metadata == null ? null : new GridProjection(factory, metadata, entityClass.getSimpleName());
+    }
+
+    /**
+     * Adds the property to the columns selected
+     *
+     * @param path Property path from the grid entity e.g. name or site.borough.name
+     *
+     * @return False if the property can't be read directly by the query
+     */
+    boolean add(String path) {
+        if (!columns.containsKey(path)) {
+            String expression = getExpression(path);
+            if (expression == null) return false;
+            columns.put(path, columns.size());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the HQL expression for the property, joining to any child
+     * entities on the way
+     *
+     * @param path Property path from the grid entity
+     *
+     * @return HQL expression or null if the property is not a simple mapped property
+     */
+    String getExpression(String path) {
+        String returnValue = expressions.get(path);
+        if (returnValue == null) {
+            try {
+                String[] names = path.split("\\.");
+                ClassMetadata metadata = rootMetadata;
+                String alias = ROOT_ALIAS;
+                String joinPath = "";
+                for (int i = 0; i < names.length - 1; i++) {
+
+                    // Only child entities can be joined to
+
+                    Type type = getPropertyType(metadata, names[i]);
+                    if (type == null || !type.isEntityType()) return null;
+                    joinPath += (i > 0 ? "." : "") + names[i];
+                    String joinAlias = joinAliases.get(joinPath);
+                    if (joinAlias == null) {
+                        joinAlias = JOIN_ALIAS + joinAliases.size();
+                        joinAliases.put(joinPath, joinAlias);
+                        joinClause.append(" left join ").append(alias).append('.').append(names[i]).append(' ').append(joinAlias);
+                    }
+                    alias = joinAlias;
+                    metadata = factory.getClassMetadata(((EntityType)type).getAssociatedEntityName());
+                    if (metadata == null) return null;
+                }
+
+                // The property itself must be a plain value
+
+                String name = names[names.length - 1];
+                Type type = getPropertyType(metadata, name);
+                if (type == null || type.isAssociationType() || type.isComponentType()) return null;
+                returnValue = alias + '.' + name;
+                expressions.put(path, returnValue);
+            }
+            catch (Exception e) {
+                logger.debug("Cannot project [{}.{}] - {}", entityName, path, e.getMessage());
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns the property qualified with the alias of the entity it belongs to
+     * so that it can be used anywhere in the query e.g. name becomes gridRow.name
+     * and site.name becomes gridJoin0.name
+     *
+     * @param path Property path from the grid entity
+     *
+     * @return Qualified HQL expression
+     */
+    String qualify(String path) {
+        String returnValue = getExpression(path);
+        return returnValue == null ? ROOT_ALIAS + '.' + path : returnValue;
+    }
+
+    /**
+     * Returns true if the query needs to join to any child entities
+     *
+     * @return True if there are joins
+     */
+    boolean hasJoins() {
+        return !joinAliases.isEmpty();
+    }
+
+    /**
+     * Returns the select clause for all the properties added
+     *
+     * @return Select clause
+     */
+    String getSelectClause() {
+        StringBuilder returnValue = new StringBuilder("select ");
+        boolean first = true;
+        for (String path : columns.keySet()) {
+            if (!first) returnValue.append(',');
+            returnValue.append(expressions.get(path));
+            first = false;
+        }
+        return returnValue.append(' ').toString();
+    }
+
+    /**
+     * Returns the from clause including the joins to any child entities
+     *
+     * @return From clause
+     */
+    String getFromClause() {
+        return "from " + entityName + ' ' + ROOT_ALIAS + joinClause;
+    }
+
+    /**
+     * Returns the value of the property from a row of the results
+     *
+     * @param row Row returned by the query
+     * @param path Property path that was added
+     *
+     * @return Value of the property
+     */
+    Object getValue(Object row, String path) {
+        Integer column = columns.get(path);
+        if (column == null) return null;
+        return row instanceof Object[] ? ((Object[])row)[column] : row;
+    }
+
+    /**
+     * Returns the type of the property or the identifier
+     *
+     * @param metadata Description of the entity
+     * @param name Name of the property
+     *
+     * @return Type or null if it isn't mapped
+     */
+    private static Type getPropertyType(ClassMetadata metadata, String name) {
+        if (name.equals(metadata.getIdentifierPropertyName())) return metadata.getIdentifierType();
+        return Arrays.asList(metadata.getPropertyNames()).contains(name) ? metadata.getPropertyType(name) : null;
+    }
+}
@@ -8,6 +8,9 @@
  */
 package com.pivotal.web.controllers.utils;
 
+import com.pivotal.system.data.cache.CacheEngine;
+import com.pivotal.system.data.cache.CacheKey;
+import com.pivotal.system.data.cache.CacheLoader;
 import com.pivotal.system.security.Preferences;
 import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.utils.ClassUtils;
@@ -18,7 +21,10 @@ import com.pivotal.utils.PivotalException;
 import com.pivotal.web.servlet.ServletHelper;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.hibernate.Query;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.Type;
 
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -37,6 +43,14 @@ public class GridResults {
     /** Constant <code>PARAM_PAGE_CLASS_ID="classId"</code> */
     public static final String PARAM_PAGE_CLASS_ID = "classId";
 
+    private static final String PREF_PAGE_KEYS = "page-keys";
+
+    // Time in seconds to cache the row count for a grid query
+    private static final int COUNT_CACHE_TIME_TO_LIVE = 15;
+
+    // Maximum number of page positions to remember for seeking
+    private static final int MAX_PAGE_KEYS = 50;
+
     private Class entityClass;
 
     private GridFieldList fields;
@@ -167,27 +181,109 @@ public class GridResults {
      * @return HQL query
      */
     public String getQuery(String extraFilter) {
+        return getQuery(extraFilter, null, null);
+    }
+
+    /**
+     * Constructs an HQL query using the values stored in the object
+     * The rows are always ordered by ID after any sort fields so that the
+     * order of the pages is stable
+     * If a projection is given then the query selects just its columns and
+     * every property is qualified with the alias of its entity
+     *
+     * @param extraFilter Extra filter to apply to the grid data
+     * @param seekFilter Filter to start the page after the last row of the previous page
+     * @param projection Columns to select or null to select the entities
+     *
+     * @return HQL query
+     */
+    private String getQuery(String extraFilter, String seekFilter, GridProjection projection) {
+
+        // TODO When the entities are selected (no projection) any sort that references
+        // TODO a child entity property still creates the dreaded "implicit inner join"
+        // TODO so rows without the child are dropped - the projection joins the children
+        // TODO itself but it can't be used when there are extra or fixed filters as well
+        // TODO as joins because their unqualified properties would become ambiguous
+
+        StringBuilder sortClause = new StringBuilder();
+        for (GridSortCriteria.FieldSort fieldSort : sortCriteria.getFieldSort().values()) {
+            sortClause.append(sortClause.length() == 0 ? " order by " : ",").append(qualify(projection, fieldSort.getField().replace('_', '.'))).append(' ').append(fieldSort.getDirection());
+        }
+        if (!sortCriteria.getFieldSort().containsKey("id")) {
+            sortClause.append(sortClause.length() == 0 ? " order by " : ",").append(qualify(projection, "id")).append(" asc");
+        }
 
-        String whereClause = filterCriteria.getWhereClause();
+        // The where clause may add joins to the projection so it has to come first
+
+        String whereClause = getWhereClause(extraFilter, seekFilter, projection);
+        String fromClause = projection == null ? "from " + entityClass.getSimpleName() : projection.getSelectClause() + projection.getFromClause();
+        return fromClause + whereClause + sortClause;
+    }
+
+    /**
+     * Returns the property qualified for use in a query of the projection
+     *
+     * @param projection Projection used for the query or null if it selects entities
+     * @param field Property path from the grid entity
+     *
+     * @return HQL expression
+     */
+    private static String qualify(GridProjection projection, String field) {
+        return projection == null ? field : projection.qualify(field);
+    }
+
+    /**
+     * Returns the where clause made up of the filter criteria and any extra filters
+     *
+     * @param extraFilter Extra filter to apply to the grid data
+     * @param seekFilter Filter to start the page after the last row of the previous page
+     * @param projection Projection used for the query or null if it selects entities
+     *
+     * @return Where clause or an empty string if there is no filtering
+     */
+    private String getWhereClause(String extraFilter, String seekFilter, GridProjection projection) {
+
+        String whereClause = filterCriteria.getWhereClause(projection);
 
         if (!Common.isBlank(extraFilter))
             whereClause += (Common.isBlank(whereClause)?" where ":" and ") + extraFilter;
 
-        return "from " + entityClass.getSimpleName() + whereClause + sortCriteria.getSortClause();
+        // The filter may contain "or" connectors so keep it separate from the seek condition
+
+        if (!Common.isBlank(seekFilter)) {
+            if (Common.isBlank(whereClause))
+                whereClause = " where " + seekFilter;
+            else
+                whereClause = " where (" + whereClause.replaceFirst("^\\s*where\\s", "") + ") and (" + seekFilter + ')';
+        }
+        return whereClause;
     }
 
     /**
      * Calculates the number of rows that would be returned for the given query
+     * The count is cached for a short time so that paging through a large grid
+     * doesn't count all the rows again for every page, and only one request
+     * counts the rows for the same filter at a time
+     *
+     * @param extraFilter Extra filter to apply to the grid data
      *
      * @return Number of rows for the query
      */
-    private int calculateRowCount() {
-        String hql = "select count(*) from " + entityClass.getSimpleName() + filterCriteria.getWhereClause();
-
-        Query query = HibernateUtils.createQuery(hql);
-        filterCriteria.addCriteria(query);
-        query.setCacheable(false);
-        return ((Long)query.iterate().next()).intValue();
+    private int calculateRowCount(String extraFilter) {
+        final String hql = "select count(*) from " + entityClass.getSimpleName() + getWhereClause(extraFilter, null, null);
+        String cacheKey = "grid-count|" + new CacheKey(ServletHelper.getAppIdentity(), 0, hql, filterCriteria.toString());
+
+        CacheLoader<Integer> loader = new CacheLoader<Integer>() {
+            @Override
+            public Integer load() {
+                Query query = HibernateUtils.createQuery(hql);
+                filterCriteria.addCriteria(query);
+                query.setCacheable(false);
+                return ((Long)query.iterate().next()).intValue();
+            }
+        };
+        Integer returnValue = CacheEngine.getOrLoad(cacheKey, COUNT_CACHE_TIME_TO_LIVE, loader);
+        return returnValue == null ? loader.load() : returnValue;
     }
 
     /**
@@ -201,8 +297,14 @@ public class GridResults {
 
     /**
      * Runs the query with all the parameters and sets the resulting list
-     * This runs the query and then reduces the resulting object list into a list
-     * of maps containing the results only for the specified fields
+     * If all the fields are simple properties of the entity or its children then
+     * only those columns are selected, otherwise this runs the query for the entities
+     * and then reduces the resulting object list into a list of maps containing the
+     * results only for the specified fields
+     * If we know where the previous page ended, and the sort fields allow it,
+     * the page is found by seeking past the last row of the previous page rather
+     * than skipping all the rows before it, so that the cost of getting a page
+     * doesn't grow with the page number
      *
      * @param extraFilter Extra filter to apply to query
      *
@@ -212,40 +314,71 @@ public class GridResults {
         // Get the number of rows
 
         results = new ArrayList<>();
-        numberOfRows = calculateRowCount();
+        numberOfRows = calculateRowCount(extraFilter);
         if (numberOfRows > 0 ) {
 
+            // See if we can seek to the start of the page
+
+            List<String> seekFields = getSeekFields();
+            PageKeys pageKeys = null;
+            Object[] seekValues = null;
+            if (seekFields != null) {
+                String signature = entityClass.getName() + '|' + getWhereClause(extraFilter, null, null) + '|' + filterCriteria + '|' + seekFields + '|' + sortCriteria + '|' + pageSize;
+                Object stored = preferences.getSession().get(PREF_PAGE_KEYS);
+                if (stored instanceof PageKeys && ((PageKeys)stored).signature.equals(signature))
+                    pageKeys = (PageKeys)stored;
+                else
+                    pageKeys = new PageKeys(signature);
+                if (page > 1) seekValues = pageKeys.get(page - 1);
+            }
+
             // Construct the query and get the results - this is going to produce
-            // a list of Entities
+            // a list of column values if we can select just the fields we need
+            // or a list of Entities if not
+
+            boolean hasInternalProperty = ClassUtils.propertyExists(entityClass, "internal");
+            GridProjection projection = getProjection(seekFields, hasInternalProperty, extraFilter);
+            List<Object> seekParameters = new ArrayList<>();
+            Query query = HibernateUtils.createQuery(getQuery(extraFilter, seekValues == null ? null : getSeekFilter(seekFields, seekValues, projection, seekParameters), projection));
+            filterCriteria.addCriteria(query);
+
+            // The seek parameters come after the filter criteria parameters
 
-            Query query = HibernateUtils.createQuery(getQuery(extraFilter));
-            if (page > 1) query.setFirstResult((page - 1) * pageSize);
+            int parameterIndex = filterCriteria.getFieldCriteria() == null ? 0 : filterCriteria.getFieldCriteria().size();
+            for (Object parameter : seekParameters) {
+                query.setParameter(parameterIndex++, parameter);
+            }
+            if (seekValues == null && page > 1) {
+                query.setFirstResult((page - 1) * pageSize);
+            }
             query.setMaxResults(pageSize);
             query.setCacheable(true);
-            filterCriteria.addCriteria(query);
             @SuppressWarnings("unchecked")
             List<Object> localResults = query.list();
 
+            // Remember where this page ended so that the next one can seek to it
+
+            if (seekFields != null && !Common.isBlank(localResults)) {
+                Object lastRow = localResults.get(localResults.size() - 1);
+                Object[] lastValues = new Object[seekFields.size()];
+                for (int i = 0; i < lastValues.length; i++) {
+                    lastValues[i] = projection == null ? ClassUtils.getPropertyValue(lastRow, seekFields.get(i)) : projection.getValue(lastRow, seekFields.get(i));
+                }
+                pageKeys.put(page, lastValues);
+                preferences.getSession().put(PREF_PAGE_KEYS, pageKeys);
+            }
+
             // Copy the data into a list of maps of the data so that the JSON is
             // kept under some sort of control and the field names match
-            // We're doing it this way rather than using an explicit Select so that
-            // we don't invoke the dreaded "implicit inner join"
-
-            // TODO The implicit join is still created for any sort that references
-            // TODO a child entity property - need to manually create the queries
-            // TODO so that we can manage the join ourselves but to be able to do this
-            // TODO we are going to need to get involved in the Hibernate annotations
-            // TODO so that we know how entities are related to each other
 
             if (localResults!=null) {
                 int rowNumber=1;
-                boolean hasInternalProperty = ClassUtils.propertyExists(entityClass, "internal");
                 for (Object row : localResults) {
                     Map<String, Object> tmp = new LinkedHashMap<>();
                     boolean idInFieldList = false;
                     boolean internalInFieldList = false;
                     for (GridFieldList.FieldDescription field : fields.getFieldList()) {
-                        Object value = field.getValue(row);
+                        Object value = projection == null ? field.getValue(row) : getProjectedValue(projection, row, field);
 
                         // Don't add null values - improves the JSON size
 
@@ -270,10 +403,10 @@ public class GridResults {
 
                     tmp.put("rowNumber", rowNumber + ((page - 1) * pageSize));
                     if (!idInFieldList) {
-                        tmp.put("id", ClassUtils.getPropertyValue(row, "id"));
+                        tmp.put("id", projection == null ? ClassUtils.getPropertyValue(row, "id") : projection.getValue(row, "id"));
                     }
                     if (!internalInFieldList && hasInternalProperty) {
-                        tmp.put("internal", ClassUtils.getPropertyValue(row, "internal"));
+                        tmp.put("internal", projection == null ? ClassUtils.getPropertyValue(row, "internal") : projection.getValue(row, "internal"));
                     }
                     else {
                         tmp.put("internal", false);
@@ -285,6 +418,156 @@ public class GridResults {
         }
     }
 
+    /**
+     * Returns a projection of all the columns needed to display the grid
+     * This is only possible if every field is a mapped property of the entity
+     * or one of its children - anything else (transient properties, entities
+     * displayed as strings etc.) needs the whole entity
+     * Fixed and extra filters are free text that refer to the properties without
+     * an alias, which can only be resolved when there is a single entity in the
+     * from clause, so these grids also need the whole entity if there are joins
+     *
+     * @param seekFields Fields used to seek to the page (can be null)
+     * @param hasInternalProperty True if the entity has an internal flag
+     * @param extraFilter Extra filter to apply to the grid data
+     *
+     * @return Projection or null if the entities need to be read
+     */
+    private GridProjection getProjection(List<String> seekFields, boolean hasInternalProperty, String extraFilter) {
+        GridProjection returnValue = GridProjection.create(entityClass);
+        if (returnValue == null || !returnValue.add("id")) return null;
+        if (hasInternalProperty && !returnValue.add("internal")) return null;
+
+        for (GridFieldList.FieldDescription field : fields.getFieldList()) {
+            if (field.isMedia()) {
+                if (!returnValue.add(field.getName() + ".id") || !returnValue.add(field.getName() + ".extension")) return null;
+            }
+            else if (field.isEntity() || !returnValue.add(field.getName())) {
+                return null;
+            }
+        }
+        for (GridSortCriteria.FieldSort fieldSort : sortCriteria.getFieldSort().values()) {
+            if (returnValue.getExpression(fieldSort.getField().replace('_', '.')) == null) return null;
+        }
+        if (seekFields != null) {
+            for (String field : seekFields) {
+                if (!returnValue.add(field)) return null;
+            }
+        }
+
+        // Filtering on a child property also needs a join
+
+        if (!Common.isBlank(filterCriteria.getFieldCriteria())) {
+            for (GridFilterCriteria.FieldCriteria field : filterCriteria.getFieldCriteria()) {
+                returnValue.qualify(field.getField());
+            }
+        }
+        if (returnValue.hasJoins() && (!Common.isBlank(extraFilter) || !Common.isBlank(filterCriteria.getFixedFilter()))) return null;
+        return returnValue;
+    }
+
+    /**
+     * Returns the display value of the field from a row of projected columns
+     *
+     * @param projection Projection used for the query
+     * @param row Row of column values
+     * @param field Field to get
+     *
+     * @return Value object
+     */
+    private static Object getProjectedValue(GridProjection projection, Object row, GridFieldList.FieldDescription field) {
+        if (field.isMedia()) {
+            Object id = projection.getValue(row, field.getName() + ".id");
+            return id == null ? null : field.getMediaValue((Integer)id, (String)projection.getValue(row, field.getName() + ".extension"));
+        }
+        return field.getDisplayValue(projection.getValue(row, field.getName()));
+    }
+
+    /**
+     * Returns the fields that the rows are ordered by, ending with the ID, if
+     * they can be used to seek to the start of a page
+     * This is only possible if they are all simple properties of the entity
+     *
+     * @return List of field names or null if seeking isn't possible
+     */
+    private List<String> getSeekFields() {
+        ClassMetadata metadata = HibernateUtils.getSessionFactory().getClassMetadata(entityClass);
+        if (metadata == null || !"id".equals(metadata.getIdentifierPropertyName())) return null;
+
+        List<String> returnValue = new ArrayList<>();
+        List<String> propertyNames = Arrays.asList(metadata.getPropertyNames());
+        for (GridSortCriteria.FieldSort fieldSort : sortCriteria.getFieldSort().values()) {
+            String field = fieldSort.getField().replace('_', '.');
+            if (!Common.doStringsMatch(fieldSort.getDirection(), "asc", "desc")) return null;
+            if (!field.equals("id")) {
+                int index = propertyNames.indexOf(field);
+                if (index < 0) return null;
+                Type type = metadata.getPropertyTypes()[index];
+                if (type.isAssociationType() || type.isComponentType() || type.isCollectionType()) return null;
+            }
+            returnValue.add(field);
+        }
+        if (!returnValue.contains("id")) returnValue.add("id");
+        return returnValue;
+    }
+
+    /**
+     * Returns a filter that selects the rows that come after the row with the
+     * given values of the seek fields in the sort order
+     * Nulls are treated as larger than any other value, which is where
+     * PostgreSQL puts them in the order, so a null value is matched with
+     * "is null" and rows with a null come after everything else when ascending
+     * and before everything else when descending
+     * The values are positional parameters added to the list in the order
+     * they appear in the filter
+     *
+     * @param seekFields Fields the rows are ordered by, ending with the ID
+     * @param seekValues Values of the fields in the last row of the previous page
+     * @param projection Projection used for the query or null if it selects entities
+     * @param parameters List to add the parameter values to
+     *
+     * @return Filter clause
+     */
+    private String getSeekFilter(List<String> seekFields, Object[] seekValues, GridProjection projection, List<Object> parameters) {
+        StringBuilder returnValue = new StringBuilder();
+        List<Object> equalityParameters = new ArrayList<>();
+        StringBuilder equalities = new StringBuilder();
+        for (int i = 0; i < seekFields.size(); i++) {
+            String field = qualify(projection, seekFields.get(i));
+            Object value = seekValues[i];
+            GridSortCriteria.FieldSort fieldSort = sortCriteria.getFieldSort().get(seekFields.get(i));
+            boolean descending = fieldSort != null && "desc".equalsIgnoreCase(fieldSort.getDirection());
+
+            // Work out what comes after the value - nothing does if it's a null in ascending order
+
+            String after = null;
+            if (value == null) {
+                if (descending) after = field + " is not null";
+            }
+            else if (descending)
+                after = field + " < ?";
+            else
+                after = '(' + field + " > ? or " + field + " is null)";
+
+            if (after != null) {
+                if (returnValue.length() > 0) returnValue.append(" or ");
+                returnValue.append('(').append(equalities).append(after).append(')');
+                parameters.addAll(equalityParameters);
+                if (value != null) parameters.add(value);
+            }
+
+            // The following fields only matter when this one is the same
+
+            if (value == null)
+                equalities.append(field).append(" is null and ");
+            else {
+                equalities.append(field).append(" = ? and ");
+                equalityParameters.add(value);
+            }
+        }
+        return returnValue.toString();
+    }
+
     /**
      * Returns the number of rows found for the query once it has been executed
      *
@@ -381,4 +664,53 @@ public class GridResults {
     public GridSortCriteria getSortClause() {
         return sortCriteria;
     }
+
+    /**
+     * Remembers the values of the seek fields for the last row of each page that
+     * has been shown for a particular query, so that the following page can be
+     * found by seeking rather than skipping rows
+     */
+    private static class PageKeys implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String signature;
+        private final Map<Integer, Object[]> keys = new LinkedHashMap<Integer, Object[]>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object[]> eldest) {
+                return size() > MAX_PAGE_KEYS;
+            }
+        };
+
+        /**
+         * Creates an empty set of page positions for the query
+         *
+         * @param signature Identifies the query, filter and sort the positions belong to
+         */
+        PageKeys(String signature) {
+            this.signature = signature;
+        }
+
+        /**
+         * Returns the values of the last row of the page
+         *
+         * @param page Page number
+         * @return Values of the seek fields or null if not known
+         */
+        Object[] get(int page) {
+            return keys.get(page);
+        }
+
+        /**
+         * Stores the values of the last row of the page
+         *
+         * @param page Page number
+         * @param values Values of the seek fields
+         */
+        void put(int page, Object[] values) {
+            keys.put(page, values);
+        }
+    }
 }
@@ -17,6 +17,7 @@ package com.pivotal.web.servlet;
 import com.pivotal.system.hibernate.entities.UserEntity;
 import com.pivotal.system.hibernate.utils.HibernateUtils;
 import com.pivotal.system.monitoring.EventMonitor;
+import com.pivotal.system.monitoring.HandlerTimings;
 import com.pivotal.system.security.UserManager;
 import com.pivotal.utils.Common;
 import com.pivotal.utils.HttpUtils;
@@ -48,6 +49,8 @@ public class Dispatcher extends DispatcherServlet {
 
     /** Constant <code>REQUEST_START_TIME="RequestStartTime"</code> */
     public static final String REQUEST_START_TIME = "RequestStartTime";
+    /** Constant <code>REQUEST_HANDLER="RequestHandler"</code> */
+    public static final String REQUEST_HANDLER = "RequestHandler";
     /** Constant <code>TARGET_URL="Target"</code> */
     public static final String TARGET_URL = "Target";
     private static final long serialVersionUID = 3535082542736659353L;
@@ -152,15 +155,34 @@ public class Dispatcher extends DispatcherServlet {
             Thread.currentThread().setName(name);
         }
 
-        // Add a monitoring timer event to the queue
+        // Add a monitoring timer event to the queue and time the handler
 
-        EventMonitor.addEvent(EventMonitor.EVENT_DISPATCHER, EventMonitor.EVENT_TYPE_DISPATCHER_REQUEST, new Date().getTime() - startTime.getTime());
+        long duration = new Date().getTime() - startTime.getTime();
+        EventMonitor.addEvent(EventMonitor.EVENT_DISPATCHER, EventMonitor.EVENT_TYPE_DISPATCHER_REQUEST, duration);
+        Object handler = request.getAttribute(REQUEST_HANDLER);
+        if (handler instanceof HandlerMethod) {
+            HandlerMethod method = (HandlerMethod) handler;
+            HandlerTimings.record(method.getBeanType().getSimpleName() + '.' + method.getMethod().getName(), duration);
+        }
 
         // Close the session if it hasn't already been
 
         HibernateUtils.closeSession();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Keeps a note of the handler in the request so that the time it takes
+     * can be recorded against it
+     */
+    @Override
+    protected HandlerExecutionChain getHandler(HttpServletRequest request) throws Exception {
+        HandlerExecutionChain returnValue = super.getHandler(request);
+        if (returnValue != null) request.setAttribute(REQUEST_HANDLER, returnValue.getHandler());
+        return returnValue;
+    }
+
     /**
      * This method is used to check to see if the user is allowed access to the
      * resource that they are attempting to get to.
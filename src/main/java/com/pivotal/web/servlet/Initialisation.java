@@ -247,6 +247,8 @@ public class Initialisation implements ServletContextListener, HttpSessionListen
         Tasks.registerMBean();
         JDBCPool.registerMBean();
         Performance.registerMBean();
+        Handlers.registerMBean();
+        Queries.registerMBean();
     }
 
     /**
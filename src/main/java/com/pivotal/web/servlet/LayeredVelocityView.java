@@ -0,0 +1,29 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.web.servlet;
+
+import com.pivotal.utils.VelocityUtils;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.Context;
+import org.springframework.web.servlet.view.velocity.VelocityView;
+
+import java.util.Map;
+
+/**
+ * Velocity view that renders the model as a layer on top of the shared
+ * context of tools and constants, rather than having them copied into the
+ * model of every request
+ */
+public class LayeredVelocityView extends VelocityView {
+
+    @Override
+    protected Context createVelocityContext(Map<String, Object> model) throws Exception {
+        return new VelocityContext(model, VelocityUtils.getSharedContext());
+    }
+}
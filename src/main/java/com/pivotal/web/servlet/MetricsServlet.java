@@ -0,0 +1,55 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.web.servlet;
+
+import com.pivotal.system.hibernate.utils.HibernateUtils;
+import com.pivotal.system.monitoring.MetricsExporter;
+import com.pivotal.system.monitoring.MetricsWriter;
+import com.pivotal.utils.Common;
+import com.pivotal.utils.HttpUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Serves the statistics of this node in OpenMetrics format so that they can
+ * be scraped by a monitoring system
+ * This bypasses the Spring dispatcher so that it doesn't need a login, instead
+ * only the addresses listed in the metrics addresses setting are allowed in
+ * The client address is taken from any X-Forwarded-For header so that callers
+ * don't all look like the proxy in front of us, and nobody is allowed in until
+ * the setting has been filled in
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MetricsServlet.class);
+    private static final long serialVersionUID = 4820367329613407451L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+        // Check that the caller is allowed to see the metrics
+
+        String address = HttpUtils.getAddressFromRequest(request);
+        List<String> allowed = Common.splitToList(HibernateUtils.getSystemSetting(HibernateUtils.SETTING_MONITOR_METRICS_ADDRESSES, HibernateUtils.SETTING_MONITOR_METRICS_ADDRESSES_DEFAULT));
+        if (Common.isBlank(allowed) || !allowed.contains(address)) {
+            logger.debug("Metrics requested by [{}] which is not an allowed address", address);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+        }
+        else {
+            response.setContentType(MetricsWriter.CONTENT_TYPE);
+            response.setHeader("Cache-Control", "no-cache");
+            MetricsExporter.write(response.getWriter());
+        }
+    }
+}
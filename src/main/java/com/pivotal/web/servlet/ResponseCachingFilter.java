@@ -11,27 +11,31 @@ package com.pivotal.web.servlet;
 import javax.servlet.*;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Filter to add a cache control definition header on the response headers.
  * The instruction will be passed by the filter configuration in the web.xml
- * To make sure it works in old browsers, there's a default 'Now' plus 5 days 'Expires' header being passed along
+ * To make sure it works in old browsers, an 'Expires' header is passed along for the max-age of the
+ * instruction (or 5 days if it doesn't have one)
+ * Fingerprinted assets have their own headers set by the StaticServlet
  */
 public class ResponseCachingFilter implements Filter {
     private final static String HEADER_GET_KEY = "Cache-Control";
     private final static String HEADER_PRAGMA = "Pragma";
     private final static String HEADER_EXPIRES = "Expires";
+    private final static long DEFAULT_CACHE_DURATION_IN_SECOND = 60 * 60 * 24 * 5; // 5 days
+    private final static Pattern MAX_AGE_PATTERN = Pattern.compile("max-age\\s*=\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
 
     private String cacheLifeTimeInstruction = null;
+    private long cacheDurationInMs = DEFAULT_CACHE_DURATION_IN_SECOND * 1000;
 
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
         if (null != cacheLifeTimeInstruction) {
             ((HttpServletResponse) res).setHeader(HEADER_GET_KEY, cacheLifeTimeInstruction);
             ((HttpServletResponse) res).setHeader(HEADER_PRAGMA, null);
-            final int CACHE_DURATION_IN_SECOND = 60 * 60 * 24 * 5; // 5 days
-            final long CACHE_DURATION_IN_MS = CACHE_DURATION_IN_SECOND * 1000;
-            long now = System.currentTimeMillis();
-            ((HttpServletResponse) res).setDateHeader(HEADER_EXPIRES, now + CACHE_DURATION_IN_MS);
+            ((HttpServletResponse) res).setDateHeader(HEADER_EXPIRES, System.currentTimeMillis() + cacheDurationInMs);
         }
 
         chain.doFilter(req, res);
@@ -39,6 +43,13 @@ public class ResponseCachingFilter implements Filter {
 
     public void init(FilterConfig config) throws ServletException {
         cacheLifeTimeInstruction = config.getInitParameter(HEADER_GET_KEY);
+
+        // Keep the expiry in step with the instruction
+
+        if (null != cacheLifeTimeInstruction) {
+            Matcher matcher = MAX_AGE_PATTERN.matcher(cacheLifeTimeInstruction);
+            if (matcher.find()) cacheDurationInMs = Long.parseLong(matcher.group(1)) * 1000;
+        }
     }
 
     public void destroy() {
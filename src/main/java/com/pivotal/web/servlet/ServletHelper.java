@@ -29,6 +29,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
@@ -68,6 +69,9 @@ public class ServletHelper extends HandlerInterceptorAdapter {
     private static ThreadLocal<HttpServletResponse> threadResponse = new ThreadLocal<>();
     private static ServletContext context;
 
+    // The public static uppercase fields of the classes exposed as constants
+    private static final Map<Class, List<Field>> constantFields = new java.util.concurrent.ConcurrentHashMap<>();
+
     /**
      * Make the class a singleton as we only want to access this as a static
      */
@@ -164,6 +168,17 @@ public class ServletHelper extends HandlerInterceptorAdapter {
         return Common.getAplicationName();
     }
 
+    /**
+     * Returns a name for this JVM that is unique amongst all the nodes
+     * sharing the application database
+     *
+     * @return Process ID and host name, at most 100 characters
+     */
+    public static String getNodeIdentity() {
+        String returnValue = ManagementFactory.getRuntimeMXBean().getName();
+        return returnValue.length() > 100 ? returnValue.substring(0, 100) : returnValue;
+    }
+
     /**
      * Safe way to send an error response to the browser
      *
@@ -398,23 +413,43 @@ public class ServletHelper extends HandlerInterceptorAdapter {
         // Add on all the application specific values to the context
         // This is all the public static fields that are in uppercase
 
-        List<Field> objFields = new ArrayList<>(Arrays.asList(fieldClass.getDeclaredFields()));
-        for (Field objField : objFields) {
-            if (Modifier.isPublic(objField.getModifiers()) && Modifier.isStatic(objField.getModifiers()) && objField.getName().equals(objField.getName().toUpperCase())) {
-                try {
-                    modelAndView.put(objField.getName(), objField.get(objField.getClass()));
+        boolean isSettings = Common.doStringsMatch(fieldClass.getName(), HibernateUtils.class.getName());
+        for (Field objField : getConstantFields(fieldClass)) {
+            try {
+                modelAndView.put(objField.getName(), objField.get(objField.getClass()));
 
-                    // If this is a Hibernate constant then get the values from the settings table
+                // If this is a Hibernate constant then get the values from the settings table
 
-                    if (Common.doStringsMatch(fieldClass.getName(), HibernateUtils.class.getName())) {
-                        addSettingValue(modelAndView, fieldClass, objField.getName());
-                    }
+                if (isSettings) {
+                    addSettingValue(modelAndView, fieldClass, objField.getName());
                 }
-                catch (Exception e) {
-                    logger.error("Problem outputting static field values - {}", PivotalException.getErrorMessage(e));
+            }
+            catch (Exception e) {
+                logger.error("Problem outputting static field values - {}", PivotalException.getErrorMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Returns the public static fields of the class that are in uppercase
+     * The fields are only found once for each class
+     *
+     * @param fieldClass Class from which to read the constants
+     *
+     * @return List of fields
+     */
+    private static List<Field> getConstantFields(Class fieldClass) {
+        List<Field> returnValue = constantFields.get(fieldClass);
+        if (returnValue == null) {
+            returnValue = new ArrayList<>();
+            for (Field objField : fieldClass.getDeclaredFields()) {
+                if (Modifier.isPublic(objField.getModifiers()) && Modifier.isStatic(objField.getModifiers()) && objField.getName().equals(objField.getName().toUpperCase())) {
+                    returnValue.add(objField);
                 }
             }
+            constantFields.put(fieldClass, returnValue);
         }
+        return returnValue;
     }
 
     /**
@@ -427,6 +462,22 @@ public class ServletHelper extends HandlerInterceptorAdapter {
      * @return Map of context objects
      */
     public static Map<String, Object> getGenericObjects(HttpServletRequest request, HttpServletResponse response, boolean addStatic) {
+        return getGenericObjects(request, response, addStatic, addStatic);
+    }
+
+    /**
+     * Creates a map of all the useful context values that we may have
+     * The shared tools and constants can be left out when the map is going to
+     * be used as a layer on top of the shared Velocity context
+     *
+     * @param request   Web request
+     * @param response  Web response
+     * @param addStatic True if the NRMM settings constants etc should be added to the context
+     * @param addShared True if the tools and constants shared by all requests should be added
+     *
+     * @return Map of context objects
+     */
+    public static Map<String, Object> getGenericObjects(HttpServletRequest request, HttpServletResponse response, boolean addStatic, boolean addShared) {
         Map<String, Object> returnValue = new HashMap<>();
 
         // Add on all the application specific values to the context
@@ -435,8 +486,13 @@ public class ServletHelper extends HandlerInterceptorAdapter {
         if (addStatic) {
             addConstants(returnValue, HibernateUtils.class);
             addConstants(returnValue, Constants.class);
+        }
+        if (addShared) {
+            returnValue.putAll(VelocityUtils.getSharedObjects());
+        }
+        if (addStatic) {
 
-            // Get a default velocity context
+            // Get the user specific part of a default velocity context
 
             Context tmp = VelocityUtils.getVelocityContext();
             for (Object key : tmp.getKeys())
@@ -523,14 +579,14 @@ public class ServletHelper extends HandlerInterceptorAdapter {
      * @param folder  Folder to look inside
      * @param pattern File pattern
      *
-     * @return Translated path to the asset
+     * @return Translated and fingerprinted path to the asset
      */
     public static String getAsset(HttpServletRequest request, String folder, String pattern) {
         String returnValue = null;
         if (request != null && request.getSession(false) != null) {
             List<File> files = Common.listFiles(getRealPath(request.getSession().getServletContext(), folder), pattern, false, false);
             if (!Common.isBlank(files)) {
-                returnValue = request.getContextPath() + folder + File.separator + files.get(0).getName();
+                returnValue = request.getContextPath() + StaticAssets.getPath(folder + '/' + files.get(0).getName());
             }
             else {
                 logger.error("Cannot find asset [{}] in folder [{}]", pattern, getRealPath(request.getSession().getServletContext(), folder));
@@ -553,6 +609,20 @@ public class ServletHelper extends HandlerInterceptorAdapter {
         return getAsset(getRequest(), folder, pattern);
     }
 
+    /**
+     * Returns the path of the static asset with the hash of its content in
+     * the name so that it can be cached by the browser until it changes
+     * The path is relative to the application so templates should prefix
+     * it with $AppPath
+     *
+     * @param path Path of the asset within the application e.g. /javascript/common.js
+     *
+     * @return Fingerprinted path of the asset
+     */
+    public static String getAssetPath(String path) {
+        return StaticAssets.getPath(path);
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -581,7 +651,9 @@ public class ServletHelper extends HandlerInterceptorAdapter {
                 // Add on some normal goodies for all pages and set the
                 // content type if it hasn't been specified already
 
-                modelAndView.getModel().putAll(getGenericObjects(request, response, true));
+                // The shared tools and constants are provided by the view
+
+                modelAndView.getModel().putAll(getGenericObjects(request, response, true, false));
                 modelAndView.addObject("Context", modelAndView.getModel());
                 Class<?> handlerClass;
 
@@ -335,8 +335,9 @@ public class ServletHelperStateless extends HandlerInterceptorAdapter {
         if (addStatic) {
             addConstants(returnValue, HibernateUtils.class);
             addConstants(returnValue, Constants.class);
+            returnValue.putAll(VelocityUtils.getSharedObjects());
 
-            // Get a default velocity context
+            // Get the user specific part of a default velocity context
 
             Context tmp = VelocityUtils.getVelocityContext();
             for (Object key : tmp.getKeys())
@@ -0,0 +1,375 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.web.servlet;
+
+import com.pivotal.utils.Common;
+import com.pivotal.utils.PivotalException;
+
+import javax.servlet.ServletContext;
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps track of the content hash of the static assets so that they can be
+ * referenced by a URL that changes whenever the content does e.g.
+ * /javascript/common.js becomes /javascript/common.0a1b2c3d4e5f.js
+ * These URLs never change their content so can be cached by the browser forever
+ * without being revalidated
+ * Text assets are also compressed once into the temporary directory so that
+ * they can be sent as they are to browsers that accept gzip
+ * The common folders are fingerprinted and compressed in the background at
+ * startup, any other asset is fingerprinted when it is first referenced and
+ * compressed in the background afterwards
+ * The files are checked for changes at most once every few seconds so that
+ * rendering a page doesn't stat every asset it references
+ */
+public class StaticAssets {
+
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(StaticAssets.class);
+
+    // Length of the content hash put in the file name
+    private static final int HASH_LENGTH = 12;
+
+    // Fingerprinted name - the hash goes just before the extension
+    private static final Pattern FINGERPRINT = Pattern.compile("^(.+)\\.([0-9a-f]{" + HASH_LENGTH + "})(\\.[a-zA-Z0-9]+)$");
+
+    // The types of file that are worth compressing
+    private static final Set<String> COMPRESSIBLE = new HashSet<>(Arrays.asList("js", "css", "svg", "json", "map", "html", "htm", "txt", "xml"));
+
+    // Folders that are fingerprinted at startup
+    private static final String[] WARM_FOLDERS = {"/javascript", "/themes"};
+
+    // How long an asset is used before its file is checked for changes
+    private static final long CHECK_INTERVAL = 5000;
+
+    private static final ConcurrentMap<String, Asset> assets = new ConcurrentHashMap<>();
+    private static ServletContext servletContext;
+    private static File compressedDirectory;
+
+    // Background thread that warms up the assets and compresses them
+    private static ExecutorService worker;
+
+    /**
+     * Prevent instantiation
+     */
+    private StaticAssets() {
+    }
+
+    /**
+     * Prepares the registry and fingerprints the common folders on a
+     * background thread so that startup isn't held up
+     * This is called when the static servlet is loaded at startup
+     *
+     * @param context Servlet context the assets are served from
+     */
+    public static synchronized void init(ServletContext context) {
+        servletContext = context;
+        assets.clear();
+        compressedDirectory = new File(Common.getTemporaryDirectory(), "assets");
+        if (!compressedDirectory.exists() && !compressedDirectory.mkdirs()) {
+            logger.warn("Cannot create the compressed asset directory [{}]", compressedDirectory);
+        }
+        if (worker == null) {
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StaticAssets");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                for (String folder : WARM_FOLDERS) {
+                    warm(folder, new File(ServletHelper.getRealPath(servletContext, folder)));
+                }
+                logger.debug("Fingerprinted {} static assets in {} milliseconds", assets.size(), System.currentTimeMillis() - start);
+            }
+        });
+    }
+
+    /**
+     * Returns the fingerprinted version of the path of an asset
+     * If the asset cannot be found then the path is returned as it is
+     *
+     * @param path Path of the asset within the application e.g. /javascript/common.js
+     *
+     * @return Fingerprinted path
+     */
+    public static String getPath(String path) {
+        if (servletContext == null || Common.isBlank(path)) return path;
+        Asset asset = getAsset(path);
+        if (asset == null) return path;
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf('/')) return path;
+        return path.substring(0, dot) + '.' + asset.hash + path.substring(dot);
+    }
+
+    /**
+     * Returns the asset for a fingerprinted path
+     * The file is always checked so that changed content is never sent
+     * as if it matched the hash
+     *
+     * @param path Fingerprinted path requested
+     *
+     * @return Asset or null if the path isn't fingerprinted or the asset doesn't exist
+     */
+    static Asset getFingerprinted(String path) {
+        if (servletContext == null || path == null) return null;
+        Matcher matcher = FINGERPRINT.matcher(path);
+        if (!matcher.matches()) return null;
+        String assetPath = matcher.group(1) + matcher.group(3);
+        Asset returnValue = getAsset(assetPath);
+        if (returnValue != null && returnValue.isChanged()) {
+            returnValue.checked = 0;
+            returnValue = getAsset(assetPath);
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns true if the path has a hash in it
+     *
+     * @param path Path requested
+     *
+     * @return True if the path is fingerprinted
+     */
+    static boolean isFingerprinted(String path) {
+        return path != null && FINGERPRINT.matcher(path).matches();
+    }
+
+    /**
+     * Returns the current details of the asset, fingerprinting it if it
+     * hasn't been seen before or the file has changed
+     * Assets found on a request are compressed later in the background
+     *
+     * @param path Path of the asset within the application
+     *
+     * @return Asset or null if it doesn't exist
+     */
+    private static Asset getAsset(String path) {
+        return getAsset(path, false);
+    }
+
+    /**
+     * Returns the current details of the asset, fingerprinting it if it
+     * hasn't been seen before or the file has changed
+     * The file is only checked if it hasn't been checked for a while
+     *
+     * @param path Path of the asset within the application
+     * @param compress True if a new asset should be compressed straight away
+     *
+     * @return Asset or null if it doesn't exist
+     */
+    private static Asset getAsset(final String path, boolean compress) {
+        Asset returnValue = assets.get(path);
+        long now = System.currentTimeMillis();
+        if (returnValue != null && now - returnValue.checked < CHECK_INTERVAL) return returnValue;
+        File file = returnValue == null ? new File(ServletHelper.getRealPath(servletContext, path)) : returnValue.file;
+        if (returnValue == null || returnValue.isChanged()) {
+            if (!file.isFile()) {
+                assets.remove(path);
+                return null;
+            }
+            returnValue = createAsset(path, file, compress);
+            if (returnValue != null) {
+                assets.put(path, returnValue);
+                if (!compress && worker != null && isCompressible(file)) {
+                    final Asset asset = returnValue;
+                    worker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            File compressed = compress(asset.file, asset.hash);
+                            if (compressed != null)
+                                assets.replace(path, asset, new Asset(asset.file, asset.hash, asset.lastModified, asset.length, compressed));
+                        }
+                    });
+                }
+            }
+        }
+        else {
+            returnValue.checked = now;
+        }
+        return returnValue;
+    }
+
+    /**
+     * Fingerprints all the files in the folder and its sub-folders
+     *
+     * @param path Path of the folder within the application
+     * @param folder Folder on disk
+     */
+    private static void warm(String path, File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory())
+                    warm(path + '/' + file.getName(), file);
+                else
+                    getAsset(path + '/' + file.getName(), true);
+            }
+        }
+    }
+
+    /**
+     * Hashes the file and creates the compressed copy if it is worth having
+     *
+     * @param path Path of the asset within the application
+     * @param file File on disk
+     * @param compress True if the compressed copy should be created
+     *
+     * @return Asset or null if it cannot be read
+     */
+    private static Asset createAsset(String path, File file, boolean compress) {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            String fingerprint = hash.substring(0, HASH_LENGTH);
+            return new Asset(file, fingerprint, lastModified, length, compress ? compress(file, fingerprint) : null);
+        }
+        catch (Exception e) {
+            logger.warn("Cannot fingerprint asset [{}] - {}", path, PivotalException.getErrorMessage(e));
+            return null;
+        }
+        finally {
+            Common.close(in);
+        }
+    }
+
+    /**
+     * Writes a gzip copy of the file into the compressed directory, named
+     * after the hash so that it is shared by identical files
+     *
+     * @param file File to compress
+     * @param fingerprint Hash of the content
+     *
+     * @return Compressed file or null if it isn't worth compressing
+     */
+    private static File compress(File file, String fingerprint) {
+        if (!isCompressible(file)) return null;
+        String extension = Common.getFilenameExtension(file.getName());
+        File returnValue = new File(compressedDirectory, fingerprint + '.' + extension + ".gz");
+        if (returnValue.isFile()) return returnValue;
+
+        // Write to a temporary file first so a partial file is never served
+
+        File tmp = new File(compressedDirectory, fingerprint + '.' + Thread.currentThread().getId() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(file);
+            out = new GZIPOutputStream(new FileOutputStream(tmp));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            out.close();
+            out = null;
+            if (tmp.length() >= file.length() || (!tmp.renameTo(returnValue) && !returnValue.isFile())) {
+                returnValue = null;
+            }
+        }
+        catch (Exception e) {
+            logger.warn("Cannot compress asset [{}] - {}", file, PivotalException.getErrorMessage(e));
+            returnValue = null;
+        }
+        finally {
+            Common.close(in, out);
+            if (tmp.exists() && !tmp.delete()) logger.debug("Cannot remove [{}]", tmp);
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns true if the file is a type and size worth compressing
+     *
+     * @param file File to check
+     *
+     * @return True if a compressed copy should be made
+     */
+    private static boolean isCompressible(File file) {
+        String extension = Common.getFilenameExtension(file.getName());
+        return compressedDirectory != null && extension != null && COMPRESSIBLE.contains(extension.toLowerCase()) && file.length() >= 1024;
+    }
+
+    /**
+     * A fingerprinted asset
+     */
+    static class Asset {
+        final File file;
+        final String hash;
+        final long lastModified;
+        final long length;
+        final File compressed;
+        volatile long checked = System.currentTimeMillis();
+
+        Asset(File file, String hash, long lastModified, long length, File compressed) {
+            this.file = file;
+            this.hash = hash;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.compressed = compressed;
+        }
+
+        /**
+         * Returns the strong entity tag of the content
+         *
+         * @return Quoted hash
+         */
+        String getETag() {
+            return '"' + hash + '"';
+        }
+
+        /**
+         * Returns the strong entity tag of the gzip copy of the content
+         *
+         * @return Quoted hash with a suffix for the encoding
+         */
+        String getCompressedETag() {
+            return '"' + hash + "-gz\"";
+        }
+
+        /**
+         * Returns true if the file is different to when it was fingerprinted
+         *
+         * @return True if the file has changed
+         */
+        boolean isChanged() {
+            return lastModified != file.lastModified() || length != file.length();
+        }
+    }
+}
@@ -8,17 +8,33 @@
  */
 package com.pivotal.web.servlet;
 
+import com.pivotal.utils.Common;
 import org.apache.catalina.servlets.DefaultServlet;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 
 /**
  * This is simply a wrapper around the default servlet and allows
  * us to set values that otherwise would have to defined in the
  * Tomcat installed web.xml
+ * It also serves the fingerprinted assets (see StaticAssets) itself so that
+ * they can be marked as immutable and the pre-compressed copy can be sent
  */
 public class StaticServlet extends DefaultServlet {
 
+    // One year, which is the most that browsers take notice of
+    private static final long IMMUTABLE_AGE = 365L * 24 * 60 * 60;
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     @Override
     public void init() throws ServletException {
         super.init();
@@ -28,5 +44,87 @@ public class StaticServlet extends DefaultServlet {
         output = 1024 * 30;
         sendfileSize = 1024 * 30;
         fileEncoding = "UTF-8";
+
+        // Start fingerprinting the assets
+
+        StaticAssets.init(getServletContext());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!serveAsset(request, response, true)) super.doGet(request, response);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!serveAsset(request, response, false)) super.doHead(request, response);
+    }
+
+    /**
+     * Serves the request if it is for a fingerprinted asset
+     * If the hash doesn't match the current content (a page rendered before
+     * the file changed) then the current content is sent but not cached
+     * The gzip copy has its own entity tag as it isn't the same bytes
+     *
+     * @param request Request
+     * @param response Response
+     * @param content True if the body should be sent
+     *
+     * @return True if the request has been handled
+     * @throws IOException If the file cannot be sent
+     */
+    boolean serveAsset(HttpServletRequest request, HttpServletResponse response, boolean content) throws IOException {
+        String path = request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo());
+        if (!StaticAssets.isFingerprinted(path)) return false;
+        StaticAssets.Asset asset = StaticAssets.getFingerprinted(path);
+        if (asset == null) return false;
+        response.setHeader("Vary", "Accept-Encoding");
+
+        // Send the compressed copy to anyone that can take it
+
+        File file = asset.file;
+        String encoding = request.getHeader("Accept-Encoding");
+        boolean compressed = asset.compressed != null && encoding != null && encoding.toLowerCase().contains("gzip") && asset.compressed.isFile();
+        if (compressed) file = asset.compressed;
+
+        // Only the exact content can be cached forever
+
+        boolean current = path.contains('.' + asset.hash + '.');
+        if (current) {
+            String eTag = compressed ? asset.getCompressedETag() : asset.getETag();
+            response.setHeader("Cache-Control", "public, max-age=" + IMMUTABLE_AGE + ", immutable");
+            response.setDateHeader("Expires", System.currentTimeMillis() + IMMUTABLE_AGE * 1000);
+            response.setHeader("ETag", eTag);
+            String match = request.getHeader("If-None-Match");
+            if (match != null && (match.contains(eTag) || "*".equals(match.trim()))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        else {
+            response.setHeader("Cache-Control", "no-cache");
+            response.setDateHeader("Expires", 0);
+        }
+        response.setDateHeader("Last-Modified", asset.lastModified);
+        if (compressed) response.setHeader("Content-Encoding", "gzip");
+        String mimeType = getServletContext().getMimeType(asset.file.getName());
+        if (!Common.isBlank(mimeType)) {
+            response.setContentType(mimeType.startsWith("text/") || mimeType.contains("javascript") ? mimeType + ";charset=" + fileEncoding : mimeType);
+        }
+        long length = file.length();
+        if (length <= Integer.MAX_VALUE) response.setContentLength((int) length);
+        if (!content) return true;
+
+        // Let the connector send the file directly from disk if it can
+
+        if (length > sendfileSize && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, 0L);
+            request.setAttribute(SENDFILE_END, length);
+        }
+        else {
+            Files.copy(file.toPath(), response.getOutputStream());
+        }
+        return true;
     }
 }
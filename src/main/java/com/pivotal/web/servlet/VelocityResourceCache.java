@@ -9,6 +9,7 @@
 package com.pivotal.web.servlet;
 
 import com.pivotal.utils.Common;
+import com.pivotal.utils.VelocityCacheDirective;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.resource.Resource;
@@ -77,6 +78,10 @@ public class VelocityResourceCache extends ResourceCacheImpl {
      */
     synchronized public static void clear() {
         logger.debug("Cleared cache");
+
+        // The rendered fragments may have come from the old templates
+
+        VelocityCacheDirective.clear();
         if (!Common.isBlank(cacheHandlers)) {
             for (Map map : cacheHandlers.values()) {
                 map.clear();
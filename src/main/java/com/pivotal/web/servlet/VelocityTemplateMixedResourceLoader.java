@@ -25,6 +25,8 @@ import java.io.*;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>Resource loader that allows us to check the database, file system and the class loader for the required template.
@@ -41,16 +43,27 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
     // All templates starting with database should be fetched from the DB
     public static final String DATABASE_RESOURCE = "/database/";
 
+    // How long a database template is used before it is read again to pick up
+    // changes made on other nodes
+    private static final long REVALIDATE_PERIOD = 60000;
+
+    // Looks up the report for a database template
+    private static final ReportFinder DATABASE_FINDER = new ReportFinder() {
+        @Override
+        public ReportEntity find(String resource) {
+            return getReportEntity(resource);
+        }
+    };
+
     // Cache for the database reports
-    private static Map<String, ReportEntity> reportCache;
+    private static final Map<String, TemplateEntry> reportCache = new ConcurrentHashMap<>();
 
-    // Cache for the strings
-    private static Map<String, String> formulaCache;
+    // Changed every time the cache is cleared so that a load that was started
+    // before a report was edited doesn't put the old version back in the cache
+    private static final AtomicLong generation = new AtomicLong();
 
-    static {
-        reportCache = new ConcurrentHashMap<>();
-        formulaCache = new ConcurrentHashMap<>();
-    }
+    // Locks used to make sure each database template is only loaded by one thread at a time
+    private static final ConcurrentMap<String, Object> loadLocks = new ConcurrentHashMap<>();
 
     // Store the path to the file based templates
     private String templatePath;
@@ -58,6 +71,28 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
     // The location for the original classic templates
     private String templatePathClassic;
 
+    // Where database templates are read from and how long they are kept
+    private final ReportFinder reportFinder;
+    private final long revalidatePeriod;
+
+    /**
+     * Creates a loader that reads database templates from the database
+     */
+    public VelocityTemplateMixedResourceLoader() {
+        this(DATABASE_FINDER, REVALIDATE_PERIOD);
+    }
+
+    /**
+     * Creates a loader that looks up database templates some other way
+     *
+     * @param reportFinder Looks up the report for a database template
+     * @param revalidatePeriod How long a database template is used before it is read again
+     */
+    VelocityTemplateMixedResourceLoader(ReportFinder reportFinder, long revalidatePeriod) {
+        this.reportFinder = reportFinder;
+        this.revalidatePeriod = revalidatePeriod;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -95,24 +130,19 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
         // Check to see if this is an attempt to get a file from the databases
 
         if (resource.getName().toLowerCase().startsWith(DATABASE_RESOURCE)) {
-            ReportEntity report = getReportEntity(resource.getName());
-            if (report != null) {
+            TemplateEntry entry = getTemplate(resource.getName());
+            if (entry != null) {
 
                 // Check to see if the resource is being overidden
 
-                File reportFile = Report.getOverridingFile(report);
+                File reportFile = Report.getOverridingFile(entry.report);
                 if (!Common.isBlank(reportFile)) {
                     logger.debug("Resource {} was modified - {}", resource.getName(), reportFile.getAbsolutePath(), reportFile.lastModified());
                     return reportFile.lastModified();
                 }
                 else {
-                    logger.debug("Resource {} was modified - {}", resource.getName(), report.getTimeModified());
-                    if (report.getTimeModified() == null) {
-                        return 0;
-                    }
-                    else {
-                        return report.getTimeModified().getTime();
-                    }
+                    logger.debug("Resource {} was modified - {}", resource.getName(), entry.version);
+                    return entry.version;
                 }
             }
             else {
@@ -143,8 +173,10 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
      * {@inheritDoc}
      *
      * Returns the template as a stream from either the classpath or filesystem
+     * This isn't synchronised so that templates can be loaded in parallel - only
+     * the loading of each database template is serialised
      */
-    public synchronized InputStream getResourceStream(String templateName) throws ResourceNotFoundException {
+    public InputStream getResourceStream(String templateName) throws ResourceNotFoundException {
 
         // Check for an invalid template
 
@@ -157,14 +189,14 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
             // Check to see if this is an attempt to get a file from the database
 
             if (templateName.toLowerCase().startsWith(DATABASE_RESOURCE)) {
-                ReportEntity report = getReportEntity(templateName);
-                if (report != null) {
+                TemplateEntry entry = getTemplate(templateName);
+                if (entry != null) {
 
                     // Get the resource from the report object to allow us to take into
                     // account that this might have been overridden
 
-                    logger.debug("Found report file in database id: {}", report.getId());
-                    return new BufferedInputStream(new ByteArrayInputStream(report.getFile()));
+                    logger.debug("Found report file in database id: {}", entry.report.getId());
+                    return new BufferedInputStream(new ByteArrayInputStream(entry.file));
                 }
                 else {
                     logger.error("Cannot find the database resource - {} - ignoring", templateName);
@@ -234,6 +266,71 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
         return template.getAbsolutePath();
     }
 
+    /**
+     * Returns the cached database template, loading it if it isn't in the cache
+     * or hasn't been checked for a while
+     * Only one thread loads any particular template at a time, the others wait
+     * for it rather than all going to the database
+     *
+     * @param resource Template to get
+     *
+     * @return Cached template or null if it cannot be found
+     */
+    private TemplateEntry getTemplate(String resource) {
+        String key = getCacheKey(resource);
+        if (key == null) return null;
+        TemplateEntry returnValue = reportCache.get(key);
+        if (returnValue != null && !returnValue.isStale(revalidatePeriod)) {
+            logger.debug("Found database include file [{}] in cache", returnValue.report.getName());
+            return returnValue;
+        }
+        Object lock = loadLocks.get(key);
+        if (lock == null) {
+            lock = new Object();
+            Object existing = loadLocks.putIfAbsent(key, lock);
+            if (existing != null) lock = existing;
+        }
+        synchronized (lock) {
+
+            // Another thread may have loaded it while we were waiting
+
+            returnValue = reportCache.get(key);
+            if (returnValue == null || returnValue.isStale(revalidatePeriod)) {
+                long loadGeneration = generation.get();
+                ReportEntity report = reportFinder.find(resource);
+                if (report == null) {
+                    reportCache.remove(key);
+                    returnValue = null;
+                }
+                else {
+                    returnValue = new TemplateEntry(report);
+                    if (generation.get() == loadGeneration) {
+                        reportCache.put(key, returnValue);
+                    }
+                }
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * Returns the key used to cache the database template
+     *
+     * @param resource Template to get
+     *
+     * @return Cache key or null if the name isn't a database template
+     */
+    private static String getCacheKey(String resource) {
+        if (resource.matches("(?i)" + DATABASE_RESOURCE + "report:[0-9]+"))
+            return resource;
+        String folder = Common.getItem(resource, "/", 2);
+        String template = Common.getItem(resource, "/", 3);
+        if (!Common.isBlank(folder) && !Common.isBlank(template) &&
+                !folder.startsWith("$") && !template.startsWith("$"))
+            return folder + "---" + template;
+        return null;
+    }
+
     /**
      * Gets the report object to use
      * This method looks for specific patterns in the names of the templates to
@@ -255,19 +352,12 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
         // Determine where to find the template from
 
         if (resource.matches("(?i)" + DATABASE_RESOURCE + "report:[0-9]+")) {
-            returnValue = reportCache.get(resource);
-            if (returnValue == null) {
-                int key = Common.parseInt(resource.replaceAll("[^0-9]+", ""));
-                returnValue = HibernateUtils.getEntity(ReportEntity.class, key);
-                if (returnValue == null)
-                    logger.warn("Cannot find database include file [{}] using key", resource);
-                else {
-                    logger.debug("Found database include file [{}] in database using key", returnValue.getName());
-                    reportCache.put(resource, returnValue);
-                }
-            }
+            int key = Common.parseInt(resource.replaceAll("[^0-9]+", ""));
+            returnValue = HibernateUtils.getEntity(ReportEntity.class, key);
+            if (returnValue == null)
+                logger.warn("Cannot find database include file [{}] using key", resource);
             else
-                logger.debug("Found database include file [{}] in cache using key", returnValue.getName());
+                logger.debug("Found database include file [{}] in database using key", returnValue.getName());
         }
 
         // The template is specified by it's folder/name
@@ -275,37 +365,67 @@ public class VelocityTemplateMixedResourceLoader extends org.apache.velocity.run
         else {
             String folder = Common.getItem(resource, "/", 2);
             String template = Common.getItem(resource, "/", 3);
-            if (!Common.isBlank(folder) && !Common.isBlank(template) &&
-                    !folder.startsWith("$") && !template.startsWith("$")) {
-
-                // Try the cache first
-
-                String key = folder + "---" + template;
-                returnValue = reportCache.get(key);
-
-                // Get the report
-
-                if (returnValue == null) {
-                    List<ReportEntity> reports = HibernateUtils.selectEntities("from ReportBlobEntity where name=? and folder.name=?", template, folder);
-                    if (!Common.isBlank(reports)) {
-                        returnValue = reports.get(0);
-                        reportCache.put(key, returnValue);
-                        logger.debug("Found database include file [{}] in database using select", returnValue.getName());
-                    }
-                    else
-                        logger.warn("Cannot find database include file [{}]", resource);
-                }
-                else
-                    logger.debug("Found database include file [{}] in cache", returnValue.getName());
+            List<ReportEntity> reports = HibernateUtils.selectEntities("from ReportBlobEntity where name=? and folder.name=?", template, folder);
+            if (!Common.isBlank(reports)) {
+                returnValue = reports.get(0);
+                logger.debug("Found database include file [{}] in database using select", returnValue.getName());
             }
+            else
+                logger.warn("Cannot find database include file [{}]", resource);
         }
         return returnValue;
     }
+
     /**
      * Clears the local database backed reports cache
      */
     public static void clearCache() {
+        generation.incrementAndGet();
         reportCache.clear();
         logger.debug("Cleared cache");
     }
+
+    /**
+     * A database template held in the cache
+     * The version is the modification time of the report so that Velocity
+     * can tell when the template it has parsed is out of date
+     */
+    private static class TemplateEntry {
+        private final ReportEntity report;
+        private final byte[] file;
+        private final long version;
+        private final long loaded = System.currentTimeMillis();
+
+        TemplateEntry(ReportEntity report) {
+            this.report = report;
+            this.file = report.getFile() == null ? new byte[0] : report.getFile();
+            this.version = report.getTimeModified() == null ? 0 : report.getTimeModified().getTime();
+        }
+
+        /**
+         * Returns true if the template should be read again
+         *
+         * @param revalidatePeriod How long a template is used before it is read again
+         *
+         * @return True if it's been in the cache too long
+         */
+        boolean isStale(long revalidatePeriod) {
+            return System.currentTimeMillis() - loaded > revalidatePeriod;
+        }
+    }
+
+    /**
+     * Finds the report holding a database template
+     */
+    interface ReportFinder {
+
+        /**
+         * Returns the report for the template
+         *
+         * @param resource Template to get
+         *
+         * @return Report entity or null if it cannot be found
+         */
+        ReportEntity find(String resource);
+    }
 }
@@ -0,0 +1,15 @@
+--
+-- Messages between the nodes sharing the database telling each other
+-- which entries to evict from their Hibernate 2nd level cache
+--
+
+CREATE TABLE IF NOT EXISTS cache_invalidation (
+    id serial NOT NULL PRIMARY KEY,
+    time_added timestamp without time zone DEFAULT now() NOT NULL,
+    node character varying(100) NOT NULL,
+    entity_name character varying(255) NOT NULL,
+    entity_id character varying(100),
+    collection_role character varying(255)
+);
+
+CREATE INDEX IF NOT EXISTS cache_invalidation_time_added ON cache_invalidation USING btree (time_added);
@@ -0,0 +1,7 @@
+--
+-- Tables to watch for changes so that only the cached results that read
+-- from them are cleared - a comma separated list of table:column where
+-- the column is a sequence or timestamp that increases with every change
+--
+
+ALTER TABLE datasource ADD COLUMN IF NOT EXISTS cache_trigger_tables text;
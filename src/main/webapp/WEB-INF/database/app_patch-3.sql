@@ -0,0 +1,30 @@
+--
+-- Only one performance entry per server, metric and minute so that the
+-- entries can be written with a single upsert - any duplicates written by
+-- flushes racing each other are merged first, timings being added together
+-- and the latest gauge value kept
+-- The merge is only needed once, before the index exists, so it is skipped
+-- when the patch is applied again
+--
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_indexes WHERE schemaname = current_schema() AND indexname = 'log_performance_minute') THEN
+
+        UPDATE log SET duration = d.duration, total = d.total, parameter_values = NULL
+        FROM (SELECT min(id) AS id,
+                     CASE WHEN status = 'dispatcher' THEN sum(duration) ELSE (array_agg(duration ORDER BY id DESC))[1] END AS duration,
+                     CASE WHEN status = 'dispatcher' THEN sum(total) ELSE (array_agg(total ORDER BY id DESC))[1] END AS total
+              FROM log WHERE status IN ('dispatcher', 'housekeeping')
+              GROUP BY server_id, status, report_name, date_added HAVING count(*) > 1) d
+        WHERE log.id = d.id;
+
+        DELETE FROM log USING log kept
+        WHERE log.status IN ('dispatcher', 'housekeeping') AND kept.status = log.status AND kept.server_id = log.server_id
+          AND kept.report_name = log.report_name AND kept.date_added = log.date_added AND kept.id < log.id;
+
+    END IF;
+END
+$$;
+
+CREATE UNIQUE INDEX IF NOT EXISTS log_performance_minute ON log USING btree (server_id, status, report_name, date_added) WHERE status IN ('dispatcher', 'housekeeping');
@@ -0,0 +1,11 @@
+--
+-- Leases that make sure a background job is only run by one of the nodes
+-- sharing the database at a time
+--
+
+CREATE TABLE IF NOT EXISTS job_lease (
+    name character varying(100) NOT NULL PRIMARY KEY,
+    node character varying(100) NOT NULL,
+    expires timestamp without time zone NOT NULL,
+    last_completed timestamp without time zone
+);
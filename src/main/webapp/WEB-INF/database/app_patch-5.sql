@@ -0,0 +1,20 @@
+--
+-- Hourly and daily totals of the performance entries in the log table used
+-- by the performance charts for longer periods - unlike the optional hourly
+-- rollup of the log entries, these are built alongside the entries and
+-- nothing is deleted to make them
+--
+
+CREATE TABLE IF NOT EXISTS performance_rollup (
+    resolution integer NOT NULL,
+    bucket timestamp without time zone NOT NULL,
+    server_id character varying(100) NOT NULL,
+    status character varying(255) NOT NULL,
+    report_name character varying(255) NOT NULL,
+    duration numeric,
+    total numeric,
+    samples bigint NOT NULL,
+    PRIMARY KEY (resolution, bucket, server_id, status, report_name)
+);
+
+CREATE INDEX IF NOT EXISTS performance_rollup_bucket ON performance_rollup USING btree (bucket);
@@ -0,0 +1,65 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the discovery of the tables that a cached query depends on
+ */
+public class CacheEngineTest {
+
+    @Test
+    public void tablesAreFoundInSelects() {
+        assertEquals(tables("users"), CacheEngine.getTableNames("select * from users where id = 1"));
+        assertEquals(tables("users", "roles"), CacheEngine.getTableNames("select u.name from users u left join roles r on r.id = u.role_id order by 1"));
+        assertEquals(tables("users", "roles"), CacheEngine.getTableNames("SELECT * FROM Users WHERE role_id IN (SELECT id FROM Roles)"));
+        assertEquals(tables("users"), CacheEngine.getTableNames("select a, b, c from users where x in (1, 2, 3)"));
+    }
+
+    @Test
+    public void schemasAndQuotesAreRemoved() {
+        assertEquals(tables("users"), CacheEngine.getTableNames("select * from public.\"Users\""));
+        assertEquals(tables("users"), CacheEngine.getTableNames("select * from only public . users"));
+    }
+
+    @Test
+    public void tablesAreFoundInUpdates() {
+        assertEquals(tables("users"), CacheEngine.getTableNames("update users set name = 'x' where id = 1"));
+        assertEquals(tables("log"), CacheEngine.getTableNames("insert into log (id) values (1)"));
+        assertEquals(tables("log"), CacheEngine.getTableNames("delete from log where id = 1"));
+    }
+
+    @Test
+    public void unclearQueriesHaveNoTables() {
+        assertNull(CacheEngine.getTableNames(null));
+        assertNull(CacheEngine.getTableNames(""));
+        assertNull(CacheEngine.getTableNames("select 1"));
+        assertNull(CacheEngine.getTableNames("select * from users, roles where users.role_id = roles.id"));
+        assertNull(CacheEngine.getTableNames("select * from (select * from users) u"));
+        assertNull(CacheEngine.getTableNames("select * from users u join (select id from roles) r on r.id = u.role_id"));
+        assertNull(CacheEngine.getTableNames("select * from generate_series(1, 10)"));
+    }
+
+    /**
+     * Returns the set of table names in the order given
+     *
+     * @param names Table names
+     * @return Set of names
+     */
+    private static Set<String> tables(String... names) {
+        return new LinkedHashSet<>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import com.pivotal.utils.Common;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building a cache key for a query the way getCacheKey used to,
+ * with an MD5 digest of the SQL and a regex to strip its whitespace, with
+ * building a {@link CacheKey}
+ * Run it from the test classpath with the main method or the JMH runner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class CacheKeyBenchmark {
+
+    private static final String APP_IDENTITY = "nrmm-benchmark";
+
+    // Number of times the select list and conditions are repeated to make the query longer
+
+    @Param({"1", "50"})
+    public int repeats;
+
+    private String sql;
+    private Object[] parameters;
+
+    @Setup
+    public void setUp() {
+        StringBuilder select = new StringBuilder("select\n    site.id,\n    site.name");
+        StringBuilder where = new StringBuilder("where\n    site.borough_id = ?");
+        for (int i = 0; i < repeats; i++) {
+            select.append(",\n    machinery.column_").append(i).append(" as \"Column ").append(i).append('"');
+            where.append("\n    and (machinery.column_").append(i).append(" is null or machinery.column_").append(i).append(" <> 'value ").append(i).append("')");
+        }
+        sql = select + "\nfrom site\n    left join machinery on machinery.site_id = site.id\n" + where + "\norder by site.name";
+        parameters = new Object[]{27};
+    }
+
+    @Benchmark
+    public String md5Key() {
+        String key = APP_IDENTITY + '|' + 3 + '|' + Common.getMD5String(sql) + '|';
+        String compact = sql.replaceAll("\\s", "");
+        return key + compact.substring(0, Math.min(compact.length(), 50));
+    }
+
+    @Benchmark
+    public CacheKey hashedKey() {
+        return new CacheKey(APP_IDENTITY, 3, sql, parameters);
+    }
+
+    @Benchmark
+    public String hashedKeyString() {
+        return new CacheKey(APP_IDENTITY, 3, sql, parameters).toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(CacheKeyBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the index of cache keys by tag
+ */
+public class CacheKeyIndexTest {
+
+    @Test
+    public void keysAreFoundByTag() {
+        CacheKeyIndex index = new CacheKeyIndex();
+        index.add("a", Arrays.asList("ds|1", "ds|1|users"));
+        index.add("b", Arrays.asList("ds|1", "ds|1|roles"));
+        index.add("c", null);
+
+        assertEquals(3, index.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(index.getKeys("ds|1")));
+        assertEquals(Collections.singletonList("a"), index.getKeys("ds|1|users"));
+        assertTrue(index.getKeys("unknown").isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), new HashSet<>(index.getKeys()));
+    }
+
+    @Test
+    public void reusedKeysReplaceTheirTags() {
+        CacheKeyIndex index = new CacheKeyIndex();
+        index.add("a", Collections.singletonList("users"));
+        index.add("a", Collections.singletonList("roles"));
+
+        assertEquals(1, index.size());
+        assertTrue(index.getKeys("users").isEmpty());
+        assertEquals(Collections.singletonList("a"), index.getKeys("roles"));
+    }
+
+    @Test
+    public void removedKeysLeaveTheirTags() {
+        CacheKeyIndex index = new CacheKeyIndex();
+        index.add("a", Arrays.asList("users", "roles"));
+        index.add("b", Collections.singletonList("users"));
+        index.remove("a");
+        index.remove("missing");
+
+        assertEquals(1, index.size());
+        assertEquals(Collections.singletonList("b"), index.getKeys("users"));
+        assertTrue(index.getKeys("roles").isEmpty());
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(index.getKeys("users").isEmpty());
+    }
+
+    @Test
+    public void expiredKeysAreSweptAway() {
+        CacheKeyIndex index = new CacheKeyIndex();
+        index.add("soon", Collections.singletonList("users"), 1000);
+        index.add("later", Collections.singletonList("users"), 5000);
+        index.add("never", Collections.singletonList("users"), 0);
+
+        assertTrue(index.removeExpired(999).isEmpty());
+        assertEquals(Collections.singletonList("soon"), index.removeExpired(1000));
+        assertEquals(2, index.size());
+        assertEquals(new HashSet<>(Arrays.asList("later", "never")), new HashSet<>(index.getKeys("users")));
+        assertEquals(Collections.singletonList("later"), index.removeExpired(Long.MAX_VALUE));
+        assertEquals(Collections.singletonList("never"), index.getKeys());
+    }
+
+    @Test
+    public void eldestKeysExpireSoonest() {
+        CacheKeyIndex index = new CacheKeyIndex();
+        index.add("never", null, 0);
+        index.add("third", null, 3000);
+        index.add("first", null, 1000);
+        index.add("second", null, 2000);
+
+        assertEquals(Arrays.asList("first", "second"), index.getEldestKeys(2));
+        assertEquals(Arrays.asList("first", "second", "third", "never"), index.getEldestKeys(10));
+        assertTrue(index.getEldestKeys(0).isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the hashing of queries into cache keys
+ */
+public class CacheKeyTest {
+
+    private static final String SQL = "select * from users where name = ? and role_id = ?";
+
+    @Test
+    public void sameQueryGivesSameKey() {
+        CacheKey key = new CacheKey("app", 1, SQL, "fred", 2);
+        CacheKey other = new CacheKey("app", 1, SQL, "fred", 2);
+        assertEquals(key, other);
+        assertEquals(key.hashCode(), other.hashCode());
+        assertEquals(key.toString(), other.toString());
+    }
+
+    @Test
+    public void whitespaceOutsideQuotesIsIgnored() {
+        assertEquals(new CacheKey("app", 1, "select * from users where name = 'a b'"),
+                     new CacheKey("app", 1, "  select *\n\tfrom   users\nwhere name = 'a b'  "));
+        assertFalse(new CacheKey("app", 1, "select * from users where name = 'a b'").equals(
+                    new CacheKey("app", 1, "select * from users where name = 'a  b'")));
+    }
+
+    @Test
+    public void everyPartOfTheKeyCounts() {
+        CacheKey key = new CacheKey("app", 1, SQL, "fred", 2);
+        assertFalse(key.equals(new CacheKey("other", 1, SQL, "fred", 2)));
+        assertFalse(key.equals(new CacheKey("app", 2, SQL, "fred", 2)));
+        assertFalse(key.equals(new CacheKey("app", 1, SQL + " order by 1", "fred", 2)));
+        assertFalse(key.equals(new CacheKey("app", 1, SQL, "fred", 3)));
+        assertFalse(key.equals(new CacheKey("app", 1, SQL, "fred")));
+        assertFalse(key.equals(new CacheKey("app", 1, SQL, 2, "fred")));
+    }
+
+    @Test
+    public void parametersAreTyped() {
+        CacheKey key = new CacheKey("app", 1, SQL, 1);
+        assertFalse(key.equals(new CacheKey("app", 1, SQL, 1L)));
+        assertFalse(key.equals(new CacheKey("app", 1, SQL, "1")));
+        assertFalse(new CacheKey("app", 1, SQL, (Object)null).equals(new CacheKey("app", 1, SQL, "null")));
+    }
+
+    @Test
+    public void parametersAreComparedByValue() {
+        assertEquals(new CacheKey("app", 1, SQL, new Date(1000)), new CacheKey("app", 1, SQL, new Date(1000)));
+        assertEquals(new CacheKey("app", 1, SQL, (Object)new int[]{1, 2}), new CacheKey("app", 1, SQL, (Object)new int[]{1, 2}));
+        assertFalse(new CacheKey("app", 1, SQL, (Object)new int[]{1, 2}).equals(new CacheKey("app", 1, SQL, (Object)new int[]{2, 1})));
+    }
+
+    @Test
+    public void stringFormIsShortAndFixed() {
+        CacheKey key = new CacheKey("app", 12, SQL, "fred");
+        assertTrue(key.toString(), key.toString().matches("app\\|12\\|[0-9a-f]{32}"));
+        assertEquals("app", key.getAppIdentity());
+        assertEquals(12, key.getDataSourceId());
+    }
+
+    @Test
+    public void similarQueriesDontCollide() {
+        Set<String> keys = new HashSet<>();
+        Set<Integer> hashCodes = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            CacheKey key = new CacheKey("app", 1, "select * from users where id = " + i);
+            keys.add(key.toString());
+            hashCodes.add(key.hashCode());
+        }
+        assertEquals(10000, keys.size());
+        assertTrue(hashCodes.size() > 9900);
+    }
+
+    @Test
+    public void survivesSerialisation() throws Exception {
+        CacheKey key = new CacheKey("app", 1, SQL, "fred", 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(key);
+        out.close();
+        CacheKey copy = (CacheKey)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(key, copy);
+        assertEquals(key.toString(), copy.toString());
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that only one caller loads a key at a time and that callers waiting
+ * on a load always get its result
+ */
+public class SingleFlightTest {
+
+    private final SingleFlight flight = new SingleFlight();
+
+    @Test
+    public void loadsAreRunAndForgotten() {
+        assertEquals("a", flight.run("key", value("a"), true, 5));
+        assertFalse(flight.isLoading("key"));
+        assertEquals("b", flight.run("key", value("b"), true, 5));
+    }
+
+    @Test
+    public void failedLoadsReturnNull() {
+        assertNull(flight.run("key", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                throw new IllegalStateException("failed");
+            }
+        }, true, 5));
+        assertFalse(flight.isLoading("key"));
+    }
+
+    @Test(timeout = 20000)
+    public void waitersGetTheResultOfTheLoadInProgress() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> first = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return flight.run("key", new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            loads.incrementAndGet();
+                            started.countDown();
+                            release.await();
+                            return "loaded";
+                        }
+                    }, true, 30);
+                }
+            });
+            started.await();
+            Future<Object> second = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return flight.run("key", counting(loads, "other"), true, 30);
+                }
+            });
+
+            // A caller that doesn't want to wait gets nothing
+
+            assertNull(flight.run("key", counting(loads, "other"), false, 30));
+            release.countDown();
+            assertEquals("loaded", first.get(5, TimeUnit.SECONDS));
+            assertEquals("loaded", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void callersArrivingAfterTheLoadFindTheCachedValue() throws Exception {
+
+        // The second caller missed the cache before the first one stored its
+        // value but only gets to load after the value is stored, so its load
+        // finds the value in the cache and a third caller joining it must
+        // still be released with that value rather than waiting for the timeout
+
+        final ConcurrentMap<String, Object> cache = new ConcurrentHashMap<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch checking = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        assertEquals("value", flight.run("key", cacheLoad(cache, loads, null, null), true, 30));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> second = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return flight.run("key", cacheLoad(cache, loads, checking, release), true, 30);
+                }
+            });
+            checking.await();
+            Future<Object> third = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return flight.run("key", cacheLoad(cache, loads, null, null), true, 30);
+                }
+            });
+            Thread.sleep(100);
+            release.countDown();
+            long start = System.currentTimeMillis();
+            assertEquals("value", second.get(5, TimeUnit.SECONDS));
+            assertEquals("value", third.get(5, TimeUnit.SECONDS));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(1, loads.get());
+            assertFalse(flight.isLoading("key"));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns a load that returns the value
+     *
+     * @param value Value to return
+     * @return Load
+     */
+    private static Callable<Object> value(final Object value) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * Returns a load that counts how many times it is run
+     *
+     * @param loads Count of loads
+     * @param value Value to return
+     * @return Load
+     */
+    private static Callable<Object> counting(final AtomicInteger loads, final Object value) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                return value;
+            }
+        };
+    }
+
+    /**
+     * Returns a load that behaves like the one used by the cache engine,
+     * returning the cached value if there is one and only loading and storing
+     * the value if there isn't
+     *
+     * @param cache Cache to check
+     * @param loads Count of real loads
+     * @param checking Latch to count down when checking the cache or null
+     * @param release Latch to wait on before checking the cache or null
+     * @return Load
+     */
+    private static Callable<Object> cacheLoad(final ConcurrentMap<String, Object> cache, final AtomicInteger loads, final CountDownLatch checking, final CountDownLatch release) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                if (checking != null) checking.countDown();
+                if (release != null) release.await();
+                Object cached = cache.get("key");
+                if (cached != null) return cached;
+                loads.incrementAndGet();
+                cache.put("key", "value");
+                return "value";
+            }
+        };
+    }
+}
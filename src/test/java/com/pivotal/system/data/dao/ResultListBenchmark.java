@@ -0,0 +1,96 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.dao;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of a hit on a cached query result when the cached
+ * list is cloned, as find used to do, with wrapping the cached table in a
+ * copy on write list
+ * Run it from the test classpath with the main method or the JMH runner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ResultListBenchmark {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    private List<Map<String, Object>> cachedList;
+    private ResultTable cachedTable;
+
+    @Setup
+    public void setUp() {
+        cachedList = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", i);
+            row.put("name", "Machine " + i);
+            row.put("borough", i % 33 == 0 ? null : "Borough " + i % 33);
+            row.put("power", i * 1.5);
+            row.put("hours", (long) i * 10);
+            row.put("created", new Timestamp(1500000000000L + i * 60000L));
+            cachedList.add(row);
+        }
+        cachedTable = ResultTable.valueOf(cachedList);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> cloneHit() {
+        return DataSourceUtils.cloneResultsList(cachedList);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> copyOnWriteHit() {
+        return new ResultList(cachedTable);
+    }
+
+    @Benchmark
+    public void cloneHitAndRead(Blackhole blackhole) {
+        read(DataSourceUtils.cloneResultsList(cachedList), blackhole);
+    }
+
+    @Benchmark
+    public void copyOnWriteHitAndRead(Blackhole blackhole) {
+        read(new ResultList(cachedTable), blackhole);
+    }
+
+    /**
+     * Reads every value of the results as a grid would
+     *
+     * @param results Results to read
+     * @param blackhole Consumes the values
+     */
+    private static void read(List<Map<String, Object>> results, Blackhole blackhole) {
+        for (Map<String, Object> row : results) {
+            blackhole.consume(row.get("id"));
+            blackhole.consume(row.get("name"));
+            blackhole.consume(row.get("borough"));
+            blackhole.consume(row.get("power"));
+            blackhole.consume(row.get("hours"));
+            blackhole.consume(row.get("created"));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ResultListBenchmark.class.getSimpleName()).build()).run();
+    }
+}
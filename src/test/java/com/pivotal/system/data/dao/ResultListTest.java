@@ -0,0 +1,124 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.dao;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static com.pivotal.system.data.dao.ResultTableTest.row;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that changes to a copy on write list of results never reach the
+ * shared table underneath it
+ */
+public class ResultListTest {
+
+    private ResultTable table;
+
+    @Before
+    public void setUp() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(row("id", 1, "name", "first"));
+        rows.add(row("id", 2, "name", "second"));
+        rows.add(row("id", 3, "name", "third"));
+        table = ResultTable.valueOf(rows);
+    }
+
+    @Test
+    public void readsComeFromTheTable() {
+        ResultList list = new ResultList(table);
+        assertEquals(table.size(), list.size());
+        for (int i = 0; i < table.size(); i++) {
+            assertEquals(table.get(i), list.get(i));
+        }
+    }
+
+    @Test
+    public void changedRowsAreCopied() {
+        ResultList list = new ResultList(table);
+        list.get(1).put("name", "changed");
+        list.get(1).put("extra", true);
+        list.get(2).remove("name");
+
+        assertEquals("changed", list.get(1).get("name"));
+        assertEquals(true, list.get(1).get("extra"));
+        assertFalse(list.get(2).containsKey("name"));
+        assertEquals("second", table.getValue(1, "name"));
+        assertEquals("third", table.getValue(2, "name"));
+        assertFalse(table.get(1).containsKey("extra"));
+
+        // Other lists over the same table don't see the changes
+
+        assertEquals("second", new ResultList(table).get(1).get("name"));
+    }
+
+    @Test
+    public void changesThroughViewsAreCopied() {
+        ResultList list = new ResultList(table);
+        for (Map.Entry<String, Object> entry : list.get(0).entrySet()) {
+            if ("name".equals(entry.getKey())) assertEquals("first", entry.setValue("changed"));
+        }
+        Iterator<Map.Entry<String, Object>> entries = list.get(1).entrySet().iterator();
+        entries.next();
+        entries.remove();
+        list.get(2).keySet().remove("name");
+        list.get(2).values().remove(3);
+
+        assertEquals("changed", list.get(0).get("name"));
+        assertEquals(Collections.<String, Object>singletonMap("name", "second"), list.get(1));
+        assertTrue(list.get(2).isEmpty());
+        assertEquals(table.get(0).size(), list.get(0).size());
+        assertEquals("first", table.getValue(0, "name"));
+        assertEquals(2, table.get(1).size());
+        assertEquals("third", table.getValue(2, "name"));
+        assertEquals(3, table.getValue(2, "id"));
+    }
+
+    @Test
+    public void addedAndRemovedRowsAreCopied() {
+        ResultList list = new ResultList(table);
+        list.get(0).put("name", "changed");
+        list.add(row("id", 4, "name", "fourth"));
+        list.remove(1);
+
+        assertEquals(3, list.size());
+        assertEquals("changed", list.get(0).get("name"));
+        assertEquals(3, list.get(1).get("id"));
+        assertEquals(4, list.get(2).get("id"));
+        assertEquals(3, table.size());
+        assertEquals("first", table.getValue(0, "name"));
+    }
+
+    @Test
+    public void rowsCanBeReplaced() {
+        ResultList list = new ResultList(table);
+        list.set(0, row("id", 10));
+        assertEquals(10, list.get(0).get("id"));
+        assertEquals(1, table.getValue(0, "id"));
+    }
+
+    @Test
+    public void serialisesAsPlainList() throws Exception {
+        ResultList list = new ResultList(table);
+        list.get(0).put("name", "changed");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(list);
+        out.close();
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertTrue(copy instanceof ArrayList);
+        assertEquals(list, copy);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.data.dao;
+
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the columnar storage of query results
+ */
+public class ResultTableTest {
+
+    @Test
+    public void valuesAreReturnedAsTheyWereAdded() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(row("id", 1, "name", "first", "size", 10L, "ratio", 0.5, "created", new Timestamp(1000)));
+        rows.add(row("id", 2, "name", null, "size", null, "ratio", 1.5, "created", null));
+        rows.add(row("id", null, "name", "third", "size", 30L, "ratio", null, "created", new Timestamp(3000)));
+
+        ResultTable table = ResultTable.valueOf(rows);
+        assertEquals(3, table.size());
+        assertEquals(Arrays.asList("id", "name", "size", "ratio", "created"), table.getColumnNames());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(rows.get(i), table.get(i));
+        }
+        assertEquals(1, table.getValue(0, "id"));
+        assertNull(table.getValue(2, "id"));
+        assertEquals(30L, table.getValue(2, 2));
+        assertEquals(new Timestamp(3000), table.getValue(2, "created"));
+        assertNull(table.getValue(0, "missing"));
+    }
+
+    @Test
+    public void mixedTypesAreKept() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(row("value", 1));
+        rows.add(row("value", "two"));
+        rows.add(row("value", 3L));
+
+        ResultTable table = ResultTable.valueOf(rows);
+        assertEquals(1, table.getValue(0, "value"));
+        assertEquals("two", table.getValue(1, "value"));
+        assertEquals(3L, table.getValue(2, "value"));
+    }
+
+    @Test
+    public void mutableValuesAreCopied() {
+        Date created = new Date(1000);
+        byte[] data = {1, 2, 3};
+        ResultTable table = ResultTable.valueOf(Collections.singletonList(row("created", created, "data", data)));
+
+        // Changing the original values doesn't change the table
+
+        created.setTime(2000);
+        data[0] = 9;
+        assertEquals(new Date(1000), table.getValue(0, "created"));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) table.getValue(0, "data"));
+
+        // Nor does changing the values that have been read
+
+        ((Date) table.getValue(0, "created")).setTime(3000);
+        ((byte[]) table.get(0).get("data"))[1] = 9;
+        ((Date) table.get(0).entrySet().iterator().next().getValue()).setTime(4000);
+        assertEquals(new Date(1000), table.getValue(0, "created"));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) table.getValue(0, "data"));
+        assertNotSame(table.get(0).get("created"), table.get(0).get("created"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void rowsAreReadOnly() {
+        ResultTable table = ResultTable.valueOf(Collections.singletonList(row("id", 1)));
+        table.get(0).put("id", 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rowsOutsideTheTableAreRejected() {
+        ResultTable.valueOf(Collections.singletonList(row("id", 1))).get(1);
+    }
+
+    @Test
+    public void emptyListGivesEmptyTable() {
+        ResultTable table = ResultTable.valueOf(new ArrayList<Map<String, Object>>());
+        assertEquals(0, table.size());
+        assertEquals(0, table.getColumnCount());
+    }
+
+    /**
+     * Creates a row from pairs of column names and values
+     *
+     * @param values Alternating column names and values
+     * @return Row
+     */
+    static Map<String, Object> row(Object... values) {
+        Map<String, Object> returnValue = new LinkedHashMap<>();
+        for (int i = 0; i < values.length; i += 2) {
+            returnValue.put((String)values[i], values[i + 1]);
+        }
+        return returnValue;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of addEvent with many request threads adding
+ * events at once while a single thread drains the queue, as the monitor does
+ * The number of events dropped because the queue was full is reported by JMH
+ * alongside the throughput (droppedEvents) as dropping is cheaper than queueing
+ * Run it from the test classpath with the main method or the JMH runner
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class EventMonitorBenchmark {
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        EventMonitor.getEventQueue(true);
+    }
+
+    @Benchmark
+    @Group("ingest")
+    @GroupThreads(8)
+    public void addEvent() {
+        EventMonitor.addEvent(EventMonitor.EVENT_DISPATCHER, "benchmark", 5L);
+    }
+
+    @Benchmark
+    @Group("ingest")
+    @GroupThreads(1)
+    public List<EventMonitor.Event> drain(Drops drops) throws InterruptedException {
+
+        // Drain often enough that the queue doesn't fill but without spinning
+
+        TimeUnit.MILLISECONDS.sleep(1);
+        drops.update();
+        return EventMonitor.getEventQueue(true);
+    }
+
+    /**
+     * Counts the events dropped during the iteration, updated by the draining thread
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Drops {
+
+        public long droppedEvents;
+        private long lastCount;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            droppedEvents = 0;
+            lastCount = EventMonitor.getDroppedEventCount();
+        }
+
+        void update() {
+            long count = EventMonitor.getDroppedEventCount();
+            droppedEvents += count - lastCount;
+            lastCount = count;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(EventMonitorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that events added from many threads at once are all queued
+ */
+public class EventMonitorTest {
+
+    private static final int THREADS = 8;
+    private static final int EVENTS_PER_THREAD = 2000;
+
+    @Test(timeout = 30000)
+    public void concurrentEventsAreAllQueued() throws Exception {
+        EventMonitor.getEventQueue(true);
+        long dropped = EventMonitor.getDroppedEventCount();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            final String type = "thread" + i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                            EventMonitor.addEvent(EventMonitor.EVENT_HOUSEKEEPING, type, j);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(20, TimeUnit.SECONDS));
+
+        assertEquals(THREADS * EVENTS_PER_THREAD, EventMonitor.getEventQueueSize());
+        assertEquals(THREADS * EVENTS_PER_THREAD, EventMonitor.getEventQueue(true).size());
+        assertEquals(0, EventMonitor.getEventQueueSize());
+        assertEquals(dropped, EventMonitor.getDroppedEventCount());
+    }
+}
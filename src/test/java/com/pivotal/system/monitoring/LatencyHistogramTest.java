@@ -0,0 +1,133 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the bucketing and percentile maths of the latency histogram
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramIsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 16; value++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(100000);
+            assertEquals(value, histogram.getPercentile(50));
+        }
+    }
+
+    @Test
+    public void largeValuesAreWithinOneBucket() {
+        for (long value = 16; value < 10000000; value = value * 5 / 4 + 1) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE);
+            long top = histogram.getPercentile(50);
+            assertTrue("Bucket top " + top + " is below " + value, top >= value);
+            assertTrue("Bucket top " + top + " is too far above " + value, top - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void percentilesAreLimitedToTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        assertEquals(100, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesFindTheRightBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000);
+        }
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(10, histogram.getPercentile(99));
+        assertEquals(5000, histogram.getPercentile(99.9));
+        assertEquals(5000, histogram.getMax());
+        assertEquals((1000 * 10 + 10 * 5000) / 1010, histogram.getMean());
+    }
+
+    @Test
+    public void uniformValuesGiveExpectedPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(50, histogram.getMean());
+        assertEquals(51, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+
+        Map<String, Object> summary = histogram.getSummary();
+        assertEquals(100L, summary.get("count"));
+        assertEquals(5050L, summary.get("sum"));
+        assertEquals(51L, summary.get("p50"));
+        assertEquals(100L, summary.get("max"));
+    }
+
+    @Test
+    public void negativeValuesAreZeroAndResetClears() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            final int thread = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(thread * 100 + j % 100);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(20, TimeUnit.SECONDS));
+        assertEquals(80000, histogram.getCount());
+        assertEquals(799, histogram.getMax());
+        assertEquals(799, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the OpenMetrics text output
+ */
+public class MetricsWriterTest {
+
+    @Test
+    public void namesAreConverted() {
+        assertEquals("hit_rate", MetricsWriter.toMetricName("HitRate"));
+        assertEquals("near_size", MetricsWriter.toMetricName("Near Size"));
+        assertEquals("near_size", MetricsWriter.toMetricName("nearSize"));
+        assertEquals("cache_misses", MetricsWriter.toMetricName("cache-misses"));
+        assertEquals("all", MetricsWriter.toMetricName("ALL"));
+        assertEquals("heap_used2", MetricsWriter.toMetricName("heap.used2"));
+        assertEquals("size", MetricsWriter.toMetricName("  Size"));
+        assertEquals("a_b", MetricsWriter.toMetricName("a - b"));
+        assertEquals("", MetricsWriter.toMetricName(""));
+    }
+
+    @Test
+    public void familiesAndSamplesAreWritten() throws Exception {
+        StringWriter out = new StringWriter();
+        MetricsWriter writer = new MetricsWriter(out, "nrmm_");
+        writer.family("requests", MetricsWriter.TYPE_COUNTER, "Number of requests");
+        writer.sample("requests_total", 12);
+        writer.sample("requests_total", "handler", "home", 3);
+        writer.sample("requests_total", "handler", "home", "status", "200", 2);
+        writer.family("ratio", MetricsWriter.TYPE_GAUGE, "A ratio");
+        writer.sample("ratio", 0.5);
+        writer.sample("ratio", "kind", "nan", Double.NaN);
+        writer.sample("ratio", "kind", "inf", Double.POSITIVE_INFINITY);
+        writer.finish();
+
+        assertEquals("# TYPE nrmm_requests counter\n" +
+                     "# HELP nrmm_requests Number of requests\n" +
+                     "nrmm_requests_total 12\n" +
+                     "nrmm_requests_total{handler=\"home\"} 3\n" +
+                     "nrmm_requests_total{handler=\"home\",status=\"200\"} 2\n" +
+                     "# TYPE nrmm_ratio gauge\n" +
+                     "# HELP nrmm_ratio A ratio\n" +
+                     "nrmm_ratio 0.5\n" +
+                     "nrmm_ratio{kind=\"nan\"} NaN\n" +
+                     "nrmm_ratio{kind=\"inf\"} +Inf\n" +
+                     "# EOF\n", out.toString());
+    }
+
+    @Test
+    public void textIsEscaped() throws Exception {
+        StringWriter out = new StringWriter();
+        MetricsWriter writer = new MetricsWriter(out, "");
+        writer.family("x", MetricsWriter.TYPE_GAUGE, "Back\\slash \"quoted\"\nnext");
+        writer.sample("x", "path", "C:\\temp \"a\"\nb", 1);
+
+        assertEquals("# TYPE x gauge\n" +
+                     "# HELP x Back\\\\slash \\\"quoted\\\"\\nnext\n" +
+                     "x{path=\"C:\\\\temp \\\"a\\\"\\nb\"} 1\n", out.toString());
+    }
+}
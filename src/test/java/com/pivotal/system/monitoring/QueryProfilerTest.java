@@ -0,0 +1,100 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.system.monitoring;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the normalisation of SQL statements into fingerprints and the
+ * forgetting of statements once the table is full
+ */
+public class QueryProfilerTest {
+
+    @Test
+    public void literalsAreReplaced() {
+        assertEquals("select * from users where id = ? and name = ?",
+                     QueryProfiler.getFingerprint("select * from users where id = 42 and name = 'fred'"));
+        assertEquals("select * from users where name = ? and size > ?",
+                     QueryProfiler.getFingerprint("select * from users where name = 'O''Brien' and size > 1.5"));
+        assertEquals("select ?", QueryProfiler.getFingerprint("select ''"));
+    }
+
+    @Test
+    public void namesWithDigitsAreKept() {
+        assertEquals("select col1, t2.x_3 from table2 t2 where t2.a$1 = ?",
+                     QueryProfiler.getFingerprint("select col1, t2.x_3 from table2 t2 where t2.a$1 = 7"));
+    }
+
+    @Test
+    public void quotedIdentifiersAreKept() {
+        assertEquals("select \"Name 1\" from \"Users\" where id = ?",
+                     QueryProfiler.getFingerprint("select \"Name 1\" from \"Users\" where id = 1"));
+    }
+
+    @Test
+    public void whitespaceIsCollapsed() {
+        assertEquals("select * from users where id = ?",
+                     QueryProfiler.getFingerprint("\n  select *\n\tfrom   users\r\n where id = 1  "));
+    }
+
+    @Test
+    public void valueListsAreReduced() {
+        assertEquals("select * from users where id in (?)",
+                     QueryProfiler.getFingerprint("select * from users where id in (1, 2, 3)"));
+        assertEquals("select * from users where id in (?)",
+                     QueryProfiler.getFingerprint("select * from users where id in (?,?)"));
+        assertEquals("insert into users (id, name) values (?)",
+                     QueryProfiler.getFingerprint("insert into users (id, name) values (5, 'fred')"));
+        assertEquals(QueryProfiler.getFingerprint("select * from users where id in (1)"),
+                     QueryProfiler.getFingerprint("select * from users where id in (1, 2, 3, 4, 5)"));
+    }
+
+    @Test
+    public void newStatementsAreNotForgottenStraightAway() {
+        QueryProfiler.reset();
+        for (int i = 0; i < QueryProfiler.MAX_QUERIES; i++) {
+            QueryProfiler.record("app", "select column" + i + " from users", 10, 1, false);
+        }
+        QueryProfiler.record("app", "select name from users", 1, 1, false);
+        QueryProfiler.record("app", "select email from users", 1, 1, false);
+        assertEquals(QueryProfiler.MAX_QUERIES, QueryProfiler.getQueryCount());
+
+        QueryProfiler.QueryStats first = find("select name from users");
+        assertNotNull(first);
+        assertEquals(1, first.getTotalTime());
+        assertEquals(10, first.getError());
+        assertNotNull(find("select email from users"));
+        QueryProfiler.reset();
+    }
+
+    @Test
+    public void longStatementsAreTruncated() {
+        StringBuilder sql = new StringBuilder("select ");
+        for (int i = 0; i < 1000; i++) {
+            sql.append("column_").append((char)('a' + i % 26)).append(", ");
+        }
+        sql.append("x from y");
+        assertTrue(QueryProfiler.getFingerprint(sql.toString()).length() <= 2000);
+    }
+
+    /**
+     * Returns the statistics of the statement
+     *
+     * @param fingerprint Fingerprint of the statement
+     * @return Statistics or null if it isn't tracked
+     */
+    private static QueryProfiler.QueryStats find(String fingerprint) {
+        for (QueryProfiler.QueryStats stats : QueryProfiler.getQueries()) {
+            if (stats.getFingerprint().equals(fingerprint)) return stats;
+        }
+        return null;
+    }
+}
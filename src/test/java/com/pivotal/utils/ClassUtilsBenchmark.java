@@ -0,0 +1,75 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.utils;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.PropertyValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading and writing bean properties through the cached accessors
+ * with building a bean wrapper for every call as ClassUtils used to
+ * Run it from the test classpath with the main method or the JMH runner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ClassUtilsBenchmark {
+
+    private ClassUtilsTest.Person person;
+
+    @Setup
+    public void setUp() {
+        person = new ClassUtilsTest.Person("fred", 30, new ClassUtilsTest.Address("London"));
+    }
+
+    @Benchmark
+    public Object beanWrapperGet() {
+        return new BeanWrapperImpl(person).getPropertyValue("name");
+    }
+
+    @Benchmark
+    public Object accessorGet() {
+        return ClassUtils.getPropertyValue(person, "name");
+    }
+
+    @Benchmark
+    public Object beanWrapperGetNested() {
+        return new BeanWrapperImpl(person).getPropertyValue("address.city");
+    }
+
+    @Benchmark
+    public Object accessorGetNested() {
+        return ClassUtils.getPropertyValue(person, "address.city");
+    }
+
+    @Benchmark
+    public Object beanWrapperSet() {
+        BeanWrapperImpl beanWrapper = new BeanWrapperImpl(person);
+        Object returnValue = beanWrapper.getPropertyValue("address.city");
+        beanWrapper.setPropertyValue(new PropertyValue("address.city", "London"));
+        return returnValue;
+    }
+
+    @Benchmark
+    public Object accessorSet() {
+        return ClassUtils.setPropertyValue(person, "address.city", "London");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ClassUtilsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests reading and writing bean properties through the cached accessors
+ */
+public class ClassUtilsTest {
+
+    @Test
+    public void simplePropertiesAreRead() {
+        Person person = new Person("fred", 30, new Address("London"));
+        assertEquals("fred", ClassUtils.getPropertyValue(person, "name"));
+        assertEquals(30, (int)ClassUtils.<Integer>getPropertyValue(person, "age"));
+
+        // Read again to use the cached accessor
+
+        assertEquals("fred", ClassUtils.getPropertyValue(person, "name"));
+    }
+
+    @Test
+    public void nestedPropertiesAreRead() {
+        assertEquals("London", ClassUtils.getPropertyValue(new Person("fred", 30, new Address("London")), "address.city"));
+        assertNull(ClassUtils.getPropertyValue(new Person("fred", 30, null), "address.city"));
+    }
+
+    @Test
+    public void subclassesAreRead() {
+        Employee employee = new Employee("fred", "NRMM");
+        assertEquals("fred", ClassUtils.getPropertyValue(employee, "name"));
+        assertEquals("NRMM", ClassUtils.getPropertyValue(employee, "team"));
+    }
+
+    @Test
+    public void unknownPropertiesAreNull() {
+        Person person = new Person("fred", 30, null);
+        assertNull(ClassUtils.getPropertyValue(person, "missing"));
+        assertNull(ClassUtils.getPropertyValue(person, "name.missing"));
+    }
+
+    @Test
+    public void propertiesAreSet() {
+        Person person = new Person("fred", 30, new Address("London"));
+        assertEquals("fred", ClassUtils.setPropertyValue(person, "name", "bill"));
+        assertEquals("bill", person.getName());
+        assertEquals("London", ClassUtils.setPropertyValue(person, "address.city", "Leeds"));
+        assertEquals("Leeds", person.getAddress().getCity());
+        ClassUtils.setPropertyValue(person, "age", 31);
+        assertEquals(31, person.getAge());
+    }
+
+    @Test
+    public void convertedValuesAreSet() {
+        Person person = new Person("fred", 30, null);
+        assertEquals(30, (int)ClassUtils.<Integer>setPropertyValue(person, "age", "42"));
+        assertEquals(42, person.getAge());
+    }
+
+    @Test
+    public void nestedPropertiesOfNullAreNotSet() {
+        Person person = new Person("fred", 30, null);
+        assertNull(ClassUtils.setPropertyValue(person, "address.city", "Leeds"));
+        assertNull(person.getAddress());
+    }
+
+    @Test
+    public void uncompiledPropertiesAreReadRepeatedly() {
+        Team team = new Team(new Person("fred", 30, null), new Person("bill", 40, null));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("bill", ClassUtils.getPropertyValue(team, "members[1].name"));
+            assertNull(ClassUtils.getPropertyValue(team, "missing"));
+        }
+    }
+
+    @Test
+    public void failingGettersGiveNull() {
+        assertNull(ClassUtils.getPropertyValue(new Broken(new IllegalStateException("broken")), "value"));
+    }
+
+    @Test(expected = BrokenError.class)
+    public void errorsAreNotSwallowed() {
+        ClassUtils.getPropertyValue(new Broken(new BrokenError()), "value");
+    }
+
+    /**
+     * Simple bean with a nested property
+     */
+    public static class Person {
+        private String name;
+        private int age;
+        private Address address;
+
+        public Person(String name, int age, Address address) {
+            this.name = name;
+            this.age = age;
+            this.address = address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getAge() {
+            return age;
+        }
+
+        public void setAge(int age) {
+            this.age = age;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public void setAddress(Address address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * Bean nested within the person
+     */
+    public static class Address {
+        private String city;
+
+        public Address(String city) {
+            this.city = city;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public void setCity(String city) {
+            this.city = city;
+        }
+    }
+
+    /**
+     * Subclass of the person
+     */
+    public static class Employee extends Person {
+        private final String team;
+
+        public Employee(String name, String team) {
+            super(name, 0, null);
+            this.team = team;
+        }
+
+        public String getTeam() {
+            return team;
+        }
+    }
+
+    /**
+     * Bean with an indexed property
+     */
+    public static class Team {
+        private final Person[] members;
+
+        public Team(Person... members) {
+            this.members = members;
+        }
+
+        public Person[] getMembers() {
+            return members;
+        }
+    }
+
+    /**
+     * Bean whose getter always fails
+     */
+    public static class Broken {
+        private final Throwable failure;
+
+        public Broken(Throwable failure) {
+            this.failure = failure;
+        }
+
+        public Object getValue() {
+            if (failure instanceof Error) throw (Error)failure;
+            throw (RuntimeException)failure;
+        }
+    }
+
+    /**
+     * Error thrown by a getter
+     */
+    public static class BrokenError extends Error {
+        private static final long serialVersionUID = 1L;
+    }
+}
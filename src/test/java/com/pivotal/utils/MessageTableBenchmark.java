@@ -0,0 +1,123 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.utils;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares translating tokens from the application bundle through the message
+ * tables with the way translate worked before them, which read the bundle,
+ * followed the aliases and expanded the embedded tokens on every call
+ * Run it from the test classpath with the main method or the JMH runner
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class MessageTableBenchmark {
+
+    private static final Locale LOCALE = Locale.UK;
+    private static final ResourceBundle.Control CONTROL = new I18nImplemenation.BundleControl();
+
+    // A plain message, an alias, a message with an embedded token and one with a parameter
+
+    @Param({"system.setting.log.months", "globalsearch.results.column.name", "loginview.title", "system.error.uploaded_file_missing"})
+    public String token;
+
+    @Benchmark
+    public String messageTable() {
+        return I18nImplemenation.translate(LOCALE, token, "file.txt");
+    }
+
+    @Benchmark
+    public String bundleEachTime() {
+        return translateFromBundle(LOCALE, token, "file.txt");
+    }
+
+    /**
+     * Translates the token the way translate did before the message tables
+     * (a copy of the previous code without the logging)
+     *
+     * @param locale Locale to use
+     * @param stringToken Token to translate
+     * @param parameters Parameters of the message
+     * @return Translated message
+     */
+    private static String translateFromBundle(Locale locale, String stringToken, Object... parameters) {
+        String returnValue = null;
+        if (stringToken != null && Common.findFirst(stringToken, I18nImplemenation.I18N_FUNCTION_REGEX) != null) {
+            returnValue = translateEmbedded(locale, stringToken, parameters);
+        }
+        else if (stringToken == null || !stringToken.contains(".") || stringToken.matches("(.*\\s.*)|(-?[0-9\\.]+)")
+                || !stringToken.matches(I18nImplemenation.I18N_REGEX)) {
+            returnValue = stringToken;
+        }
+        else {
+            ResourceBundle bundle = ResourceBundle.getBundle("i18n.app", locale, CONTROL);
+            String token = stringToken;
+            boolean found = bundle.containsKey(token);
+            if (!found) {
+                found = bundle.containsKey(token.toLowerCase());
+                if (found) token = token.toLowerCase();
+            }
+            if (!found) {
+                returnValue = "ERR[i18n]";
+            }
+            else {
+                int sanityCheck = 0;
+                while (bundle.containsKey(token) && token.matches("\\S+") && !Common.doStringsMatch(token, bundle.getString(token))) {
+                    token = bundle.getString(token);
+                    sanityCheck++;
+                    if (sanityCheck > 50)
+                        throw new PivotalException(String.format("The hunt for token [%s] causes an endless loop", stringToken));
+                }
+                if (!Common.isBlank(token)) {
+                    token = translateEmbedded(locale, token);
+                }
+                returnValue = Common.isBlank(parameters) ? token : String.format(token, parameters);
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * Replaces the embedded i18n() tokens with their translations as translate used to
+     *
+     * @param locale Locale to use
+     * @param stringToken Message containing the tokens
+     * @param parameters Parameters of the message
+     * @return Translated message
+     */
+    private static String translateEmbedded(Locale locale, String stringToken, Object... parameters) {
+        String returnValue = stringToken;
+        if (!Common.isBlank(stringToken)) {
+            List<String> parts = Common.find(stringToken, I18nImplemenation.I18N_FUNCTION_REGEX);
+            if (!Common.isBlank(parts)) {
+                for (String part : parts) {
+                    String token = Common.findFirst(part, I18nImplemenation.I18N_REGEX);
+                    returnValue = returnValue.replace(part, translateFromBundle(locale, token, parameters));
+                }
+            }
+        }
+        return returnValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(MessageTableBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the resolution of aliases and embedded tokens when the message
+ * table is loaded, and checks that the messages match resolving them from
+ * the bundle on every call as translate used to
+ */
+public class MessageTableTest {
+
+    private static final Locale LOCALE = new Locale("xx", "MT");
+
+    private static final Object[][] MESSAGES = {
+            {"app.name", "NRMM"},
+            {"app.title", "app.name"},
+            {"app.heading", "app.title"},
+            {"app.sentence", "app.name is here"},
+            {"app.welcome", "Welcome to i18n(app.title)"},
+            {"app.nested", "i18n(app.welcome) - i18n(APP.NAME)"},
+            {"app.greeting", "Hello %s, you have %d messages"},
+            {"app.missing", "See i18n(app.nothere)"},
+            {"app.loop1", "app.loop2"},
+            {"app.loop2", "app.loop1"},
+            {"app.recursive", "again i18n(app.recursive)"},
+    };
+
+    private static final ResourceBundle.Control CONTROL = new ResourceBundle.Control() {
+        @Override
+        public List<Locale> getCandidateLocales(String baseName, Locale locale) {
+            return Collections.singletonList(locale);
+        }
+
+        @Override
+        public Locale getFallbackLocale(String baseName, Locale locale) {
+            return null;
+        }
+
+        @Override
+        public ResourceBundle newBundle(String baseName, Locale locale, String format, ClassLoader loader, boolean reload) {
+            return new ListResourceBundle() {
+                @Override
+                protected Object[][] getContents() {
+                    return MESSAGES;
+                }
+            };
+        }
+    };
+
+    private MessageTable table;
+
+    @Before
+    public void setUp() {
+        table = MessageTable.get(LOCALE, CONTROL);
+    }
+
+    @Test
+    public void messagesAreFound() {
+        assertEquals("NRMM", table.get("app.name").format());
+        assertEquals("NRMM", table.get("APP.Name").format());
+        assertNull(table.get("app.unknown"));
+        assertSame(table, MessageTable.get(LOCALE, CONTROL));
+    }
+
+    @Test
+    public void aliasesAreFollowed() {
+        assertEquals("NRMM", table.get("app.title").format());
+        assertEquals("NRMM", table.get("app.heading").format());
+        assertEquals("app.name is here", table.get("app.sentence").format());
+    }
+
+    @Test
+    public void embeddedTokensAreReplaced() {
+        assertEquals("Welcome to NRMM", table.get("app.welcome").format());
+        assertEquals("Welcome to NRMM - NRMM", table.get("app.nested").format());
+        assertEquals("See ERR[i18n]", table.get("app.missing").format());
+    }
+
+    @Test
+    public void parametersAreFormatted() {
+        assertEquals("Hello Fred, you have 3 messages", table.get("app.greeting").format("Fred", 3));
+        assertEquals("Hello %s, you have %d messages", table.get("app.greeting").format());
+        assertEquals("NRMM", table.get("app.name").format("ignored"));
+    }
+
+    @Test(expected = PivotalException.class)
+    public void endlessAliasesAreReported() {
+        table.get("app.loop1").format();
+    }
+
+    @Test
+    public void endlessEmbeddingStops() {
+        assertTrue(table.get("app.recursive").format().endsWith("ERR[i18n]"));
+    }
+
+    @Test
+    public void lookupsMatchResolvingFromTheBundle() {
+        String[] tokens = {"app.name", "app.heading", "app.nested", "app.greeting"};
+        for (String token : tokens) {
+            assertEquals(token, resolveFromBundle(token, "Fred", 3), table.get(token).format("Fred", 3));
+        }
+    }
+
+    /**
+     * Resolves the message from the bundle in the way that translate did
+     * before the message tables, walking the aliases and embedded tokens
+     * on every call
+     *
+     * @param token Token to translate
+     * @param parameters Parameters of the message
+     * @return Translated message
+     */
+    private static String resolveFromBundle(String token, Object... parameters) {
+        ResourceBundle bundle = ResourceBundle.getBundle("i18n.app", LOCALE, CONTROL);
+        if (!bundle.containsKey(token)) token = token.toLowerCase();
+        while (bundle.containsKey(token) && token.matches("\\S+") && !token.equals(bundle.getString(token))) {
+            token = bundle.getString(token);
+        }
+        String returnValue = token;
+        Matcher parts = Pattern.compile(I18nImplemenation.I18N_FUNCTION_REGEX).matcher(token);
+        while (parts.find()) {
+            Matcher matcher = Pattern.compile(I18nImplemenation.I18N_REGEX).matcher(parts.group());
+            if (matcher.find()) returnValue = returnValue.replace(parts.group(), resolveFromBundle(matcher.group()));
+        }
+        return parameters.length == 0 || returnValue.indexOf('%') < 0 ? returnValue : String.format(returnValue, parameters);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.web.servlet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that static assets are given fingerprinted names and that the
+ * static servlet serves those names with the right caching headers, entity
+ * tags and encoding
+ */
+public class StaticServletTest {
+
+    private File root;
+    private StaticServlet servlet;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("assets", "");
+        if (!root.delete() || !new File(root, "javascript").mkdirs()) fail("Cannot create " + root);
+        write("/javascript/small.js", "var small = 1;");
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            large.append("var value").append(i).append(" = ").append(i).append(";\n");
+        }
+        write("/javascript/large.js", large.toString());
+
+        ServletContext context = mock(ServletContext.class);
+        when(context.getRealPath(anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return new File(root, (String) invocation.getArguments()[0]).getAbsolutePath();
+            }
+        });
+        when(context.getMimeType(anyString())).thenReturn("application/javascript");
+        StaticAssets.init(context);
+        servlet = new TestStaticServlet(context);
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void pathsHaveTheHashBeforeTheExtension() throws Exception {
+        String path = StaticAssets.getPath("/javascript/small.js");
+        assertTrue(path, path.matches("/javascript/small\\.[0-9a-f]{12}\\.js"));
+        assertTrue(StaticAssets.isFingerprinted(path));
+        assertEquals(path, StaticAssets.getPath("/javascript/small.js"));
+
+        assertFalse(StaticAssets.isFingerprinted("/javascript/small.js"));
+        assertFalse(StaticAssets.isFingerprinted("/javascript/jquery-1.12.4.min.js"));
+        assertEquals("/javascript/missing.js", StaticAssets.getPath("/javascript/missing.js"));
+    }
+
+    @Test
+    public void requestsForOtherPathsAreNotHandled() throws Exception {
+        assertFalse(new Exchange("/javascript/small.js").serve());
+        assertFalse(new Exchange("/javascript/missing.0123456789ab.js").serve());
+    }
+
+    @Test
+    public void currentHashIsCachedForever() throws Exception {
+        String path = StaticAssets.getPath("/javascript/small.js");
+        Exchange exchange = new Exchange(path);
+        assertTrue(exchange.serve());
+
+        verify(exchange.response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertTrue(exchange.headers.get("Cache-Control").contains("immutable"));
+        assertEquals('"' + hash(path) + '"', exchange.headers.get("ETag"));
+        assertEquals("Accept-Encoding", exchange.headers.get("Vary"));
+        assertNull(exchange.headers.get("Content-Encoding"));
+        assertEquals("var small = 1;", exchange.body.toString("UTF-8"));
+    }
+
+    @Test
+    public void staleHashGetsTheCurrentContentWithoutCaching() throws Exception {
+        String path = StaticAssets.getPath("/javascript/small.js");
+        File file = new File(root, "javascript/small.js");
+        long lastModified = file.lastModified();
+        write("/javascript/small.js", "var small = 2; // changed");
+        if (!file.setLastModified(lastModified + 10000)) fail("Cannot change the time of " + file);
+
+        Exchange exchange = new Exchange(path);
+        assertTrue(exchange.serve());
+
+        assertEquals("no-cache", exchange.headers.get("Cache-Control"));
+        assertNull(exchange.headers.get("ETag"));
+        assertEquals("var small = 2; // changed", exchange.body.toString("UTF-8"));
+        assertFalse(path.equals(StaticAssets.getPath("/javascript/small.js")));
+    }
+
+    @Test
+    public void matchingEntityTagIsNotModified() throws Exception {
+        String path = StaticAssets.getPath("/javascript/small.js");
+        Exchange exchange = new Exchange(path).header("If-None-Match", "\"" + hash(path) + '"');
+        assertTrue(exchange.serve());
+
+        verify(exchange.response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals("Accept-Encoding", exchange.headers.get("Vary"));
+        assertEquals(0, exchange.body.size());
+
+        exchange = new Exchange(path).header("If-None-Match", "\"0123456789ab\"");
+        assertTrue(exchange.serve());
+        verify(exchange.response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals("var small = 1;", exchange.body.toString("UTF-8"));
+    }
+
+    @Test(timeout = 30000)
+    public void gzipCopyIsSentToBrowsersThatAcceptIt() throws Exception {
+        String path = StaticAssets.getPath("/javascript/large.js");
+        String content = read(new FileInputStream(new File(root, "javascript/large.js")));
+
+        // The compressed copy is made in the background
+
+        while (StaticAssets.getFingerprinted(path).compressed == null) {
+            Thread.sleep(10);
+        }
+
+        Exchange exchange = new Exchange(path).header("Accept-Encoding", "gzip, deflate");
+        assertTrue(exchange.serve());
+        assertEquals("gzip", exchange.headers.get("Content-Encoding"));
+        assertEquals("\"" + hash(path) + "-gz\"", exchange.headers.get("ETag"));
+        assertEquals("Accept-Encoding", exchange.headers.get("Vary"));
+        assertEquals(content, read(new GZIPInputStream(new ByteArrayInputStream(exchange.body.toByteArray()))));
+
+        // The entity tag of one encoding doesn't validate the other
+
+        exchange = new Exchange(path).header("Accept-Encoding", "gzip").header("If-None-Match", "\"" + hash(path) + '"');
+        assertTrue(exchange.serve());
+        verify(exchange.response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals("gzip", exchange.headers.get("Content-Encoding"));
+
+        exchange = new Exchange(path).header("If-None-Match", "\"" + hash(path) + "-gz\"");
+        assertTrue(exchange.serve());
+        verify(exchange.response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertNull(exchange.headers.get("Content-Encoding"));
+        assertEquals("\"" + hash(path) + '"', exchange.headers.get("ETag"));
+        assertEquals(content, exchange.body.toString("UTF-8"));
+    }
+
+    /**
+     * Returns the hash from a fingerprinted path
+     *
+     * @param path Fingerprinted path
+     * @return Hash
+     */
+    private static String hash(String path) {
+        String[] parts = path.split("\\.");
+        return parts[parts.length - 2];
+    }
+
+    /**
+     * Reads the whole stream as UTF-8 text
+     *
+     * @param in Stream to read
+     * @return Content of the stream
+     * @throws IOException If it cannot be read
+     */
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a file below the root folder
+     *
+     * @param name Path of the file
+     * @param content Content of the file
+     * @throws Exception If it cannot be written
+     */
+    private void write(String name, String content) throws Exception {
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(root, name)), "UTF-8");
+        try {
+            out.write(content);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes the file or folder and everything in it
+     *
+     * @param file File to delete
+     */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    /**
+     * A GET request for an asset and the response it gets, with the headers
+     * and body that are sent collected up
+     */
+    private class Exchange {
+        private final HttpServletRequest request = mock(HttpServletRequest.class);
+        private final HttpServletResponse response = mock(HttpServletResponse.class);
+        private final Map<String, String> headers = new HashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Exchange(String path) throws IOException {
+            when(request.getServletPath()).thenReturn(path);
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    headers.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]);
+                    return null;
+                }
+            }).when(response).setHeader(anyString(), anyString());
+            when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            });
+        }
+
+        Exchange header(String name, String value) {
+            when(request.getHeader(name)).thenReturn(value);
+            return this;
+        }
+
+        boolean serve() throws IOException {
+            return servlet.serveAsset(request, response, true);
+        }
+    }
+
+    /**
+     * Static servlet that uses the mock context rather than being initialised
+     * by a container
+     */
+    private static class TestStaticServlet extends StaticServlet {
+        private final ServletContext context;
+
+        TestStaticServlet(ServletContext context) {
+            this.context = context;
+            fileEncoding = "UTF-8";
+        }
+
+        @Override
+        public ServletContext getServletContext() {
+            return context;
+        }
+    }
+}
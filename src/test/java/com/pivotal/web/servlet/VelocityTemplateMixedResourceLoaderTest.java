@@ -0,0 +1,300 @@
+/*
+ ***************************************************************************
+ *
+ * Copyright (c) Greater London Authority, 2020. This source code is licensed under the Open Government Licence 3.0.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM.
+ *
+ ****************************************************************************
+ */
+package com.pivotal.web.servlet;
+
+import com.pivotal.system.hibernate.entities.ReportEntity;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress tests the resource loader with many threads rendering distinct
+ * templates at once, all starting together so that the first loads of the
+ * templates overlap, and checks that database templates are loaded once
+ * per report, go stale and are reloaded when the cache is cleared
+ */
+public class VelocityTemplateMixedResourceLoaderTest {
+
+    private static final int TEMPLATES = 100;
+    private static final int THREADS = 16;
+    private static final int RENDERS_PER_THREAD = 500;
+
+    private File root;
+    private VelocityEngine engine;
+    private VelocityTemplateMixedResourceLoader loader;
+    private final ConcurrentMap<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("templates", "");
+        if (!root.delete() || !new File(root, "templates/stress").mkdirs()) fail("Cannot create " + root);
+        write("stress/shared.vm", "[shared]");
+        for (int i = 0; i < TEMPLATES; i++) {
+            write("stress/template" + i + ".vm", "Template " + i + ": #foreach($i in [1..3])${value}$i #end#parse('stress/shared.vm')");
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("resource.loader", "file");
+        properties.setProperty("file.resource.loader.class", VelocityTemplateMixedResourceLoader.class.getName());
+        properties.setProperty("file.resource.loader.path", new File(root, "templates").getAbsolutePath());
+        properties.setProperty("file.resource.loader.cache", "true");
+        properties.setProperty("file.resource.loader.modificationCheckInterval", "0");
+        properties.setProperty("runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+        engine = new VelocityEngine(properties);
+        engine.init();
+
+        VelocityTemplateMixedResourceLoader.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        VelocityTemplateMixedResourceLoader.clearCache();
+        delete(root);
+    }
+
+    @Test(timeout = 120000)
+    public void concurrentRendersOfDistinctTemplates() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger renders = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    List<String> errors = new ArrayList<>();
+                    start.await();
+                    for (int r = 0; r < RENDERS_PER_THREAD; r++) {
+                        int template = (thread * 7 + r) % TEMPLATES;
+                        String value = "t" + thread + "r" + r + "-";
+                        VelocityContext context = new VelocityContext();
+                        context.put("value", value);
+                        StringWriter output = new StringWriter();
+                        engine.mergeTemplate("stress/template" + template + ".vm", "UTF-8", context, output);
+                        String expected = "Template " + template + ": " + value + "1 " + value + "2 " + value + "3 [shared]";
+                        if (!expected.equals(output.toString())) errors.add("Expected [" + expected + "] but got [" + output + ']');
+                        renders.incrementAndGet();
+                    }
+                    return errors;
+                }
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(100, TimeUnit.SECONDS));
+
+        for (Future<List<String>> result : results) {
+            List<String> errors = result.get();
+            assertTrue(errors.isEmpty() ? "" : errors.size() + " bad renders e.g. " + errors.get(0), errors.isEmpty());
+        }
+        assertEquals(THREADS * RENDERS_PER_THREAD, renders.get());
+    }
+
+    @Test(expected = org.apache.velocity.exception.ResourceNotFoundException.class)
+    public void missingTemplatesAreNotFound() throws Exception {
+        engine.getTemplate("stress/missing.vm");
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentFirstLoadsOfAReportReadItOnce() throws Exception {
+        final CountDownLatch slowLoad = new CountDownLatch(1);
+        loader(slowLoad, "/database/report:1", 60000);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<String>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    start.await();
+                    return read("/database/report:1");
+                }
+            }));
+        }
+        start.countDown();
+
+        // While the first report is still loading another can be read
+
+        while (!lookups.containsKey("/database/report:1")) {
+            Thread.sleep(10);
+        }
+        assertEquals("Report 2 v1", read("/database/report:2"));
+        assertFalse(results.get(0).isDone());
+
+        slowLoad.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        for (Future<String> result : results) {
+            assertEquals("Report 1 v1", result.get());
+        }
+        assertEquals(1, lookups.get("/database/report:1").get());
+        assertEquals(1, lookups.get("/database/report:2").get());
+    }
+
+    @Test
+    public void cachedReportsAreReadAgainWhenStale() throws Exception {
+        loader(null, null, 60000);
+        assertEquals("Report 3 v1", read("/database/report:3"));
+        assertEquals("Report 3 v1", read("/database/report:3"));
+        assertEquals(1, lookups.get("/database/report:3").get());
+
+        loader(null, null, -1);
+        assertEquals("Report 3 v2", read("/database/report:3"));
+        assertEquals(2, lookups.get("/database/report:3").get());
+    }
+
+    @Test
+    public void clearingTheCacheReadsReportsAgain() throws Exception {
+        loader(null, null, 60000);
+        assertEquals("Report 4 v1", read("/database/report:4"));
+        VelocityTemplateMixedResourceLoader.clearCache();
+        assertEquals("Report 4 v2", read("/database/report:4"));
+        assertEquals(2, lookups.get("/database/report:4").get());
+    }
+
+    @Test(timeout = 60000)
+    public void reportsLoadedWhileTheCacheIsClearedAreNotKept() throws Exception {
+        final CountDownLatch slowLoad = new CountDownLatch(1);
+        loader(slowLoad, "/database/report:5", 60000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> result = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return read("/database/report:5");
+            }
+        });
+
+        // The report is edited while the old version is being read
+
+        while (!lookups.containsKey("/database/report:5")) {
+            Thread.sleep(10);
+        }
+        VelocityTemplateMixedResourceLoader.clearCache();
+        slowLoad.countDown();
+        executor.shutdown();
+        assertEquals("Report 5 v1", result.get());
+
+        loader(null, null, 60000);
+        assertEquals("Report 5 v2", read("/database/report:5"));
+        assertEquals(2, lookups.get("/database/report:5").get());
+    }
+
+    @Test
+    public void missingReportsAreEmpty() throws Exception {
+        loader(null, null, 60000);
+        assertEquals("", read("/database/report:0"));
+    }
+
+    /**
+     * Creates the loader used by the test with a report lookup that counts the
+     * lookups of each template and returns a new version of the report every time
+     * Report 0 doesn't exist
+     *
+     * @param latch Latch to wait for before returning the report, or null
+     * @param slowResource Template that waits for the latch
+     * @param revalidatePeriod How long a report is used before it is read again
+     */
+    private void loader(final CountDownLatch latch, final String slowResource, long revalidatePeriod) {
+        loader = new VelocityTemplateMixedResourceLoader(new VelocityTemplateMixedResourceLoader.ReportFinder() {
+            @Override
+            public ReportEntity find(String resource) {
+                AtomicInteger count = new AtomicInteger();
+                AtomicInteger existing = lookups.putIfAbsent(resource, count);
+                int version = (existing == null ? count : existing).incrementAndGet();
+                if (latch != null && resource.equals(slowResource)) {
+                    try {
+                        latch.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int id = Integer.parseInt(resource.replaceAll("[^0-9]+", ""));
+                if (id == 0) return null;
+                ReportEntity report = new ReportEntity();
+                report.setId(id);
+                report.setName("Report " + id);
+                report.setTimeModified(new Timestamp(version));
+                try {
+                    report.setFile(("Report " + id + " v" + version).getBytes("UTF-8"));
+                }
+                catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                return report;
+            }
+        }, revalidatePeriod);
+    }
+
+    /**
+     * Reads a template through the loader
+     *
+     * @param name Name of the template
+     * @return Content of the template
+     * @throws Exception If it cannot be read
+     */
+    private String read(String name) throws Exception {
+        InputStream in = loader.getResourceStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a template into the template folder
+     *
+     * @param name Name of the template
+     * @param content Content of the template
+     * @throws Exception If it cannot be written
+     */
+    private void write(String name, String content) throws Exception {
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(root, "templates/" + name)), "UTF-8");
+        try {
+            out.write(content);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes the file or folder and everything in it
+     *
+     * @param file File to delete
+     */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) file.deleteOnExit();
+    }
+}